@@ -0,0 +1,115 @@
+package org.werelate.gedcom.bench;
+
+import org.werelate.gedcom.*;
+import org.werelate.gedcom.scripts.SyntheticGedcom;
+
+import java.io.*;
+
+/**
+ * Synthetic GEDCOMs and the files made from them, shared by the benchmarks.
+ * Places are standardized by OfflinePlaceNames, so no servers are needed.
+ */
+public class BenchGedcoms {
+   /**
+    * Writes a synthetic GEDCOM with the given number of people, and families,
+    * sources and notes in proportion
+    * @throws IOException
+    */
+   public static File write(File dir, int numPeople, String encoding) throws IOException
+   {
+      SyntheticGedcom synthetic = new SyntheticGedcom();
+      synthetic.setNumPeople(numPeople);
+      synthetic.setNumFamilies(numPeople * 2 / 5);
+      synthetic.setNumSources(Math.max(1, numPeople / 20));
+      synthetic.setNumNotes(numPeople / 10);
+      synthetic.setNoteLength(500);
+      synthetic.setNumGenerations(8);
+      synthetic.setEncoding(encoding);
+      File file = new File(dir, numPeople + "-" + encoding + ".ged");
+      synthetic.write(file);
+      return file;
+   }
+
+   /**
+    * Parses and post-processes the GEDCOM as the Uploader does
+    * @throws Exception
+    */
+   public static Gedcom parse(File file) throws Exception
+   {
+      return new Gedcom(new OfflinePlaceNames(), file.getPath(), "Bench", "", "", 1, false, false,
+                        new StringBuffer());
+   }
+
+   /**
+    * Writes the in-process XML file of the GEDCOM, as for an uploaded GEDCOM
+    * but without matching sources and families
+    * @throws Exception
+    */
+   public static File printInProcess(File gedFile, File dir) throws Exception
+   {
+      StringBuffer placeXMLBuffer = new StringBuffer();
+      Gedcom gedcom = new Gedcom(new OfflinePlaceNames(), gedFile.getPath(), "Bench", "", "", 1, false, false,
+                                 placeXMLBuffer);
+      Person.setLiving(gedcom);
+      Person.setUnknownName(gedcom);
+      Person.setAllBornBeforeCutoff(gedcom);
+      File file = new File(dir, gedFile.getName() + ".xml");
+      PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+      try
+      {
+         out.println("<gedcom>");
+         out.print(placeXMLBuffer);
+         for (java.util.Map.Entry<String, Source> entry : gedcom.getSources().entrySet())
+         {
+            Source source = entry.getValue();
+            if (entry.getKey().equals(source.getID()) && source.shouldPrint(gedcom))
+            {
+               source.print(gedcom, out, true);
+            }
+         }
+         for (Person person : gedcom.getPeople().values())
+         {
+            person.print(gedcom, out, true);
+         }
+         for (Family fam : gedcom.getFamilies().values())
+         {
+            fam.print(gedcom, out, true);
+         }
+         out.println("</gedcom>");
+      } finally
+      {
+         out.close();
+      }
+      return file;
+   }
+
+   /**
+    * @return a new empty temporary directory
+    * @throws IOException
+    */
+   public static File createTempDir() throws IOException
+   {
+      File dir = File.createTempFile("gedcom-bench", "");
+      if (!dir.delete() || !dir.mkdir())
+      {
+         throw new IOException("Could not create " + dir);
+      }
+      return dir;
+   }
+
+   /**
+    * Deletes the directory and the files in it
+    */
+   public static void deleteDir(File dir)
+   {
+      File[] files = dir.listFiles();
+      if (files != null)
+      {
+         for (File file : files)
+         {
+            file.delete();
+         }
+      }
+      dir.delete();
+   }
+}
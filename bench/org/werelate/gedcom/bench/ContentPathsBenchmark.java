@@ -0,0 +1,114 @@
+package org.werelate.gedcom.bench;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.werelate.gedcom.ContentPaths;
+import org.werelate.gedcom.GedcomXML;
+import org.werelate.gedcom.Uploader;
+import org.xml.sax.InputSource;
+
+import javax.xml.xpath.XPath;
+import javax.xml.xpath.XPathConstants;
+import javax.xml.xpath.XPathExpression;
+import javax.xml.xpath.XPathFactory;
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+
+/**
+ * Reading the paths GedcomXML reads in every page's content,
+ * with XPath expressions and with the ContentPaths accessors that replaced them
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ContentPathsBenchmark {
+   @Param({"1000"})
+   public int people;
+
+   private List<Document> contents = new ArrayList<Document>();
+   private XPathExpression husbandId;
+   private XPathExpression wifeId;
+   private XPathExpression sourceTitle;
+   private XPathExpression personReferences;
+   private XPathExpression events;
+   private XPathExpression childOfFamily;
+   private XPathExpression id;
+
+   @Setup(Level.Trial)
+   public void setUp() throws Exception
+   {
+      File dir = BenchGedcoms.createTempDir();
+      try
+      {
+         File xmlFile = BenchGedcoms.printInProcess(BenchGedcoms.write(dir, people, "UTF-8"), dir);
+         StringBuilder xml = new StringBuilder();
+         Reader in = new InputStreamReader(new FileInputStream(xmlFile), "UTF-8");
+         char[] buf = new char[65536];
+         for (int n; (n = in.read(buf)) > 0; )
+         {
+            xml.append(buf, 0, n);
+         }
+         in.close();
+         // the content sections are CDATA, so their XML can be found in the file as is
+         Matcher m = GedcomXML.pPageContentXml.matcher(xml);
+         while (m.find())
+         {
+            contents.add(Uploader.getDocumentBuilder().parse(new InputSource(new StringReader(m.group(0)))));
+         }
+      } finally
+      {
+         BenchGedcoms.deleteDir(dir);
+      }
+      XPath xpe = XPathFactory.newInstance().newXPath();
+      husbandId = xpe.compile("/family/husband[1]/@id");
+      wifeId = xpe.compile("/family/wife[1]/@id");
+      sourceTitle = xpe.compile("/mysource/title | /source/title");
+      personReferences = xpe.compile("family/husband | family/wife | family/child");
+      events = xpe.compile("person/event_fact | family/event_fact");
+      childOfFamily = xpe.compile("person/child_of_family");
+      id = xpe.compile("@id");
+   }
+
+   @Benchmark
+   public void xpath(Blackhole bh) throws Exception
+   {
+      for (Document content : contents)
+      {
+         bh.consume(husbandId.evaluate(content, XPathConstants.STRING));
+         bh.consume(wifeId.evaluate(content, XPathConstants.STRING));
+         bh.consume(sourceTitle.evaluate(content, XPathConstants.STRING));
+         bh.consume(events.evaluate(content, XPathConstants.NODESET));
+         bh.consume(childOfFamily.evaluate(content, XPathConstants.NODE));
+         org.w3c.dom.NodeList references = (org.w3c.dom.NodeList) personReferences.evaluate(content, XPathConstants.NODESET);
+         for (int i = 0; i < references.getLength(); i++)
+         {
+            bh.consume(id.evaluate(references.item(i), XPathConstants.STRING));
+         }
+      }
+   }
+
+   @Benchmark
+   public void direct(Blackhole bh)
+   {
+      for (Document content : contents)
+      {
+         bh.consume(ContentPaths.getHusbandId(content));
+         bh.consume(ContentPaths.getWifeId(content));
+         bh.consume(ContentPaths.getSourceTitleText(content));
+         bh.consume(ContentPaths.getEvents(content));
+         bh.consume(ContentPaths.getChildOfFamily(content));
+         for (Element reference : ContentPaths.getPersonReferences(content))
+         {
+            bh.consume(ContentPaths.getAttribute(reference, "id"));
+         }
+      }
+   }
+}
@@ -0,0 +1,113 @@
+package org.werelate.gedcom.bench;
+
+import org.openjdk.jmh.annotations.*;
+import org.werelate.gedcom.GedcomXML;
+import org.werelate.gedcom.OfflinePlaceNames;
+import org.werelate.gedcom.PageRecordFile;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading, preparing and saving the in-process XML of a reviewed GEDCOM
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class GedcomXMLBenchmark {
+   @Param({"1000", "10000"})
+   public int people;
+
+   // An in-process XML file to read instead of generating one, such as a large user upload
+   @Param({""})
+   public String file;
+
+   private File dir;
+   private File xmlFile;
+   private File recordFile;
+   private File savedFile;
+   private GedcomXML parsed;
+
+   /**
+    * updateContent and prepareForGeneration change the pages, so each invocation gets a newly parsed file
+    */
+   @State(Scope.Thread)
+   public static class Fresh {
+      GedcomXML gedXML;
+
+      @Setup(Level.Invocation)
+      public void parse(GedcomXMLBenchmark benchmark) throws Exception
+      {
+         gedXML = new GedcomXML(new OfflinePlaceNames());
+         gedXML.parse(benchmark.xmlFile.getPath());
+      }
+   }
+
+   @Setup(Level.Trial)
+   public void setUp() throws Exception
+   {
+      dir = BenchGedcoms.createTempDir();
+      xmlFile = file.length() > 0 ? new File(file) :
+                BenchGedcoms.printInProcess(BenchGedcoms.write(dir, people, "UTF-8"), dir);
+      savedFile = new File(dir, "saved.xml");
+      recordFile = new File(dir, "inprocess" + PageRecordFile.EXTENSION);
+      PageRecordFile.fromXML(xmlFile, recordFile);
+      parsed = new GedcomXML();
+      parsed.parse(xmlFile.getPath());
+   }
+
+   @TearDown(Level.Trial)
+   public void tearDown()
+   {
+      BenchGedcoms.deleteDir(dir);
+   }
+
+   @Benchmark
+   public GedcomXML parse() throws Exception
+   {
+      GedcomXML gedXML = new GedcomXML();
+      gedXML.parse(xmlFile.getPath());
+      return gedXML;
+   }
+
+   @Benchmark
+   public GedcomXML parseRecords() throws Exception
+   {
+      GedcomXML gedXML = new GedcomXML();
+      gedXML.parse(recordFile.getPath());
+      return gedXML;
+   }
+
+   /**
+    * Every person and family references places, so this is mostly rewriting places
+    */
+   @Benchmark
+   @BenchmarkMode(Mode.SingleShotTime)
+   @Warmup(iterations = 5)
+   @Measurement(iterations = 20)
+   public GedcomXML updateContent(Fresh fresh) throws Exception
+   {
+      fresh.gedXML.updateContent("");
+      return fresh.gedXML;
+   }
+
+   @Benchmark
+   @BenchmarkMode(Mode.SingleShotTime)
+   @Warmup(iterations = 5)
+   @Measurement(iterations = 20)
+   public GedcomXML prepareForGeneration(Fresh fresh) throws Exception
+   {
+      fresh.gedXML.prepareForGeneration();
+      return fresh.gedXML;
+   }
+
+   @Benchmark
+   public long save() throws Exception
+   {
+      parsed.save(savedFile);
+      return savedFile.length();
+   }
+}
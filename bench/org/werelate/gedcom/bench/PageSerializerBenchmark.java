@@ -0,0 +1,146 @@
+package org.werelate.gedcom.bench;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.werelate.gedcom.GedcomElementWriter;
+import org.werelate.gedcom.GedcomXML;
+import org.werelate.gedcom.PageSerializer;
+import org.werelate.gedcom.Uploader;
+import org.werelate.util.ElementWriter;
+import org.xml.sax.InputSource;
+
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+
+/**
+ * Writing the pages sent to the wiki and the contents written back to them,
+ * with the Transformer and GedcomElementWriters and with the PageSerializer that replaced them
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class PageSerializerBenchmark {
+   @Param({"1000"})
+   public int people;
+
+   private List<Node> pages = new ArrayList<Node>();
+   private List<Document> contents = new ArrayList<Document>();
+   private Transformer transformer;
+   private StringBuilder buf = new StringBuilder();
+
+   @Setup(Level.Trial)
+   public void setUp() throws Exception
+   {
+      File dir = BenchGedcoms.createTempDir();
+      try
+      {
+         File xmlFile = BenchGedcoms.printInProcess(BenchGedcoms.write(dir, people, "UTF-8"), dir);
+         GedcomXML gedXML = new GedcomXML();
+         gedXML.parse(xmlFile.getPath());
+         pages.addAll(gedXML.getPages());
+         for (Node page : pages)
+         {
+            Matcher m = GedcomXML.pPageContentXml.matcher(page.getTextContent());
+            if (m.find())
+            {
+               contents.add(Uploader.getDocumentBuilder().parse(new InputSource(new StringReader(m.group(0)))));
+            }
+         }
+      } finally
+      {
+         BenchGedcoms.deleteDir(dir);
+      }
+      transformer = TransformerFactory.newInstance().newTransformer();
+   }
+
+   @Benchmark
+   public void transformPages(Blackhole bh) throws Exception
+   {
+      for (Node page : pages)
+      {
+         StringWriter out = new StringWriter();
+         transformer.transform(new DOMSource(page), new StreamResult(out));
+         bh.consume(out.toString().replaceAll("<\\?xml\\s+version=\"1.0\"\\s+encoding=\"UTF-8\"(\\s+standalone=\"no\")?\\?>", ""));
+      }
+   }
+
+   @Benchmark
+   public void serializePages(Blackhole bh)
+   {
+      for (Node page : pages)
+      {
+         buf.setLength(0);
+         PageSerializer.serialize((Element) page, buf);
+         bh.consume(buf.length());
+      }
+   }
+
+   // As GedcomXML wrote contents before PageSerializer
+   private static void writeContent(Node node, StringBuffer buf)
+   {
+      ElementWriter ew = new GedcomElementWriter(node.getNodeName());
+      if (node.getAttributes() != null)
+      {
+         for (int i = 0; i < node.getAttributes().getLength(); i++)
+         {
+            Node attribute = node.getAttributes().item(i);
+            ew.put(attribute.getNodeName(), attribute.getNodeValue());
+         }
+      }
+      StringBuffer subBuf = new StringBuffer();
+      StringBuffer subText = new StringBuffer();
+      for (int i = 0; i < node.getChildNodes().getLength(); i++)
+      {
+         Node childNode = node.getChildNodes().item(i);
+         if (childNode.getNodeType() == Node.TEXT_NODE)
+         {
+            subText.append(childNode.getTextContent().trim());
+         } else
+         {
+            writeContent(childNode, subBuf);
+         }
+      }
+      if (node.getNodeValue() != null && !node.getNodeValue().trim().equals(""))
+      {
+         subBuf.append(node.getNodeValue());
+      }
+      ew.setSubXML(subBuf.toString());
+      ew.setSubText(subText.toString());
+      ew.write(buf);
+   }
+
+   @Benchmark
+   public void elementWriterContents(Blackhole bh)
+   {
+      for (Document content : contents)
+      {
+         StringBuffer out = new StringBuffer();
+         writeContent(content.getDocumentElement(), out);
+         bh.consume(out.toString());
+      }
+   }
+
+   @Benchmark
+   public void serializeContents(Blackhole bh)
+   {
+      for (Document content : contents)
+      {
+         buf.setLength(0);
+         PageSerializer.serializeContent(content.getDocumentElement(), buf);
+         bh.consume(buf.length());
+      }
+   }
+}
@@ -0,0 +1,62 @@
+package org.werelate.gedcom.bench;
+
+import org.lm.gedml.GedcomParser;
+import org.openjdk.jmh.annotations.*;
+import org.werelate.gedcom.Gedcom;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading a GEDCOM: detecting and decoding its character encoding,
+ * and building the Gedcom (parsing plus post-processing)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ParseBenchmark {
+   @Param({"1000", "10000"})
+   public int people;
+
+   @Param({"UTF-8", "ANSEL"})
+   public String encoding;
+
+   private File dir;
+   private File gedFile;
+
+   @Setup(Level.Trial)
+   public void setUp() throws Exception
+   {
+      dir = BenchGedcoms.createTempDir();
+      gedFile = BenchGedcoms.write(dir, people, encoding);
+   }
+
+   @TearDown(Level.Trial)
+   public void tearDown()
+   {
+      BenchGedcoms.deleteDir(dir);
+   }
+
+   @Benchmark
+   public int readLines() throws Exception
+   {
+      BufferedReader in = GedcomParser.getBufferedReader("file://" + gedFile.getAbsolutePath());
+      int numLines = 0;
+      while (in.readLine() != null)
+      {
+         numLines++;
+      }
+      in.close();
+      return numLines;
+   }
+
+   @Benchmark
+   public Gedcom gedcom() throws Exception
+   {
+      return BenchGedcoms.parse(gedFile);
+   }
+}
@@ -0,0 +1,60 @@
+package org.werelate.gedcom.bench;
+
+import org.openjdk.jmh.annotations.*;
+import org.werelate.gedcom.Gedcom;
+import org.werelate.gedcom.Person;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Deciding who is living and who was born before the cutoff.
+ * Both change the people, so each invocation gets a newly parsed GEDCOM.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 20)
+@Fork(1)
+public class PostProcessBenchmark {
+   @Param({"1000", "10000"})
+   public int people;
+
+   private File dir;
+   private File gedFile;
+   private Gedcom gedcom;
+
+   @Setup(Level.Trial)
+   public void setUp() throws Exception
+   {
+      dir = BenchGedcoms.createTempDir();
+      gedFile = BenchGedcoms.write(dir, people, "UTF-8");
+   }
+
+   @Setup(Level.Invocation)
+   public void parse() throws Exception
+   {
+      gedcom = BenchGedcoms.parse(gedFile);
+   }
+
+   @TearDown(Level.Trial)
+   public void tearDown()
+   {
+      BenchGedcoms.deleteDir(dir);
+   }
+
+   @Benchmark
+   public Gedcom setLiving() throws Exception
+   {
+      Person.setLiving(gedcom);
+      return gedcom;
+   }
+
+   @Benchmark
+   public Gedcom setAllBornBeforeCutoff()
+   {
+      Person.setAllBornBeforeCutoff(gedcom);
+      return gedcom;
+   }
+}
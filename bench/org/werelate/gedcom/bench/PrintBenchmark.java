@@ -0,0 +1,86 @@
+package org.werelate.gedcom.bench;
+
+import org.openjdk.jmh.annotations.*;
+import org.werelate.gedcom.Family;
+import org.werelate.gedcom.Gedcom;
+import org.werelate.gedcom.Person;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Printing all of the people and all of the families of a GEDCOM
+ * to the in-process XML, written to a Writer that discards it
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class PrintBenchmark {
+   @Param({"1000", "10000"})
+   public int people;
+
+   private File dir;
+   private Gedcom gedcom;
+   private CountingWriter writer;
+   private PrintWriter out;
+
+   // Counts the characters written, so printing can't be optimized away
+   private static class CountingWriter extends Writer {
+      long numChars = 0;
+
+      public void write(char[] cbuf, int off, int len) {
+         numChars += len;
+      }
+
+      public void flush() {
+      }
+
+      public void close() {
+      }
+   }
+
+   @Setup(Level.Trial)
+   public void setUp() throws Exception
+   {
+      dir = BenchGedcoms.createTempDir();
+      gedcom = BenchGedcoms.parse(BenchGedcoms.write(dir, people, "UTF-8"));
+      Person.setLiving(gedcom);
+      Person.setUnknownName(gedcom);
+      Person.setAllBornBeforeCutoff(gedcom);
+      writer = new CountingWriter();
+      out = new PrintWriter(writer);
+   }
+
+   @TearDown(Level.Trial)
+   public void tearDown()
+   {
+      BenchGedcoms.deleteDir(dir);
+   }
+
+   @Benchmark
+   public long printPeople() throws Exception
+   {
+      for (Person person : gedcom.getPeople().values())
+      {
+         person.print(gedcom, out, true);
+      }
+      out.flush();
+      return writer.numChars;
+   }
+
+   @Benchmark
+   public long printFamilies() throws Exception
+   {
+      for (Family fam : gedcom.getFamilies().values())
+      {
+         fam.print(gedcom, out, true);
+      }
+      out.flush();
+      return writer.numChars;
+   }
+}
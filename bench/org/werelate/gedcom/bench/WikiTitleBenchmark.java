@@ -0,0 +1,39 @@
+package org.werelate.gedcom.bench;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.werelate.util.Utils;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Making wiki titles from the kinds of names found in GEDCOMs
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class WikiTitleBenchmark {
+   private static final String [] TITLES = {
+         "John Smith (1)",
+         "Marie-Th\u00e9r\u00e8se Lef\u00e8vre (12)",
+         "\u00d8deg\u00e5rd, Bergen, Hordaland, Norway",
+         "Family:William Taylor and Mary O'Brien (3)",
+         "Source:Parish Registers of St. Mary's [Boston], 1650-1700",
+         "Anna%20Kowalski%20(2)",
+         "   Hans   <M\u00fcller>  {born}  |Z\u00fcrich|   ",
+         "Records of the Historical Society of Salt Lake City, Salt Lake, Utah, United States, " +
+               "including births, marriages and deaths from 1847 through 1900 and an index of names"
+   };
+
+   @Benchmark
+   public void prepareWikiTitle(Blackhole bh)
+   {
+      for (String title : TITLES)
+      {
+         bh.consume(Utils.prepareWikiTitle(title));
+      }
+   }
+}
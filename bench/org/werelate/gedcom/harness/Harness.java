@@ -0,0 +1,430 @@
+package org.werelate.gedcom.harness;
+
+import org.apache.commons.cli.*;
+import org.werelate.gedcom.JobMetrics;
+import org.werelate.gedcom.Uploader;
+import org.werelate.gedcom.scripts.SyntheticGedcom;
+
+import java.io.*;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.*;
+
+/**
+ * Runs a corpus of GEDCOMs through Uploader.loop() end to end, with the wiki,
+ * place server, match server and wikidb replaced by StubServices and HarnessDatabase,
+ * and reports the throughput of each pass and the latency percentiles of each
+ * job stage and each endpoint.
+ *
+ * The GEDCOMs are uploaded and parsed, reviewed (moved from STATUS_REVIEW to
+ * STATUS_CREATE_PAGES, as the user does on the wiki), generated, and then
+ * regenerated. The per-job stage times are read back from the metrics_csv file
+ * the Uploader writes. Note that the Uploader pauses 100ms after each page it
+ * generates, which bounds the generate throughput.
+ *
+ * Settings in the -p properties file override the harness defaults; they may be
+ * any Uploader setting (workers, retry_*, place_*...) and the stubs' harness.latency
+ * and harness.error_rate settings.
+ */
+public class Harness {
+   // A run of Uploader.loop() over the GEDCOMs with one status
+   private static class Pass {
+      String name;
+      int status;
+      long wallNanos;
+      int numJobs;
+
+      Pass(String name, int status)
+      {
+         this.name = name;
+         this.status = status;
+      }
+   }
+
+   private File workDir;
+   private Properties properties = new Properties();
+   private StubServices stubs;
+   private HarnessDatabase db;
+   private List<Pass> passes = new ArrayList<Pass>();
+   private int numGedcoms = 0;
+
+   public Harness(File workDir, Properties overrides)
+   {
+      this.workDir = workDir;
+      properties.setProperty("sysop", "HarnessSysop");
+      properties.setProperty("sysop_mail", "");
+      properties.setProperty("wiki_username", "HarnessAgent");
+      properties.setProperty("wiki_password", "harness");
+      properties.setProperty("db_username", "harness");
+      properties.setProperty("db_passwd", "harness");
+      // fail fast enough that injected errors don't dominate the run
+      properties.setProperty("retry_base_wait", "50");
+      properties.setProperty("retry_max_wait", "1000");
+      properties.setProperty("breaker_open_time", "1000");
+      properties.putAll(overrides);
+      properties.setProperty("gedcom_dir", makeDir("gedcom"));
+      properties.setProperty("xml_inprocess", makeDir("inprocess"));
+      properties.setProperty("xml_output", makeDir("output"));
+      properties.setProperty("metrics_csv", new File(workDir, "metrics.csv").getPath());
+   }
+
+   private String makeDir(String name)
+   {
+      File dir = new File(workDir, name);
+      dir.mkdirs();
+      return dir.getPath();
+   }
+
+   /**
+    * Starts the stubs and points the Uploader's settings at them
+    * @throws IOException
+    */
+   public void start() throws IOException
+   {
+      int workers = Integer.parseInt(properties.getProperty("workers", "1")) +
+                    Integer.parseInt(properties.getProperty("parse_workers", "0")) +
+                    Integer.parseInt(properties.getProperty("generate_workers", "0"));
+      stubs = new StubServices(properties);
+      stubs.start(Math.max(4, 4 * workers));
+      String server = "localhost:" + stubs.getPort();
+      properties.setProperty("wiki_server", "http://" + server);
+      properties.setProperty("place_server", server);
+      properties.setProperty("match_server", server);
+      db = new HarnessDatabase("harness" + System.identityHashCode(this), properties);
+      properties.setProperty("db_url", db.getUrl());
+   }
+
+   public void stop()
+   {
+      if (stubs != null)
+      {
+         stubs.stop();
+      }
+   }
+
+   /**
+    * Queues a GEDCOM as uploaded by one of numUsers users
+    * @throws IOException
+    */
+   public void addGedcom(File gedFile, int numUsers) throws IOException
+   {
+      int gedID = ++numGedcoms;
+      copy(gedFile, new File(properties.getProperty("gedcom_dir"), gedID + ".ged"));
+      int user = (gedID - 1) % numUsers + 1;
+      db.addGedcom(gedID, Uploader.STATUS_UPLOADED, "HarnessUser" + user, user, gedID, "Tree " + gedID,
+                   gedFile.getName());
+   }
+
+   /**
+    * Writes a synthetic GEDCOM with numPeople people, and families, sources and notes
+    * in proportion, and queues it
+    * @throws IOException
+    */
+   public void addSyntheticGedcom(int numPeople, int numUsers) throws IOException
+   {
+      SyntheticGedcom synthetic = new SyntheticGedcom();
+      synthetic.setNumPeople(numPeople);
+      synthetic.setNumFamilies(numPeople * 2 / 5);
+      synthetic.setNumSources(Math.max(1, numPeople / 20));
+      synthetic.setNumNotes(numPeople / 10);
+      synthetic.setSeed(numGedcoms + 1);
+      File file = new File(workDir, "synthetic.ged");
+      synthetic.write(file);
+      addGedcom(file, numUsers);
+      file.delete();
+   }
+
+   private static void copy(File from, File to) throws IOException
+   {
+      InputStream in = new FileInputStream(from);
+      try
+      {
+         OutputStream out = new FileOutputStream(to);
+         try
+         {
+            byte[] buf = new byte[65536];
+            int n;
+            while ((n = in.read(buf)) > 0)
+            {
+               out.write(buf, 0, n);
+            }
+         } finally
+         {
+            out.close();
+         }
+      } finally
+      {
+         in.close();
+      }
+   }
+
+   /**
+    * Runs the GEDCOMs through the upload, generate and regenerate passes
+    * @throws Exception
+    */
+   public void run() throws Exception
+   {
+      Uploader uploader = new Uploader(properties);
+      try
+      {
+         uploader.setUnitTesting(false);
+         // as in Uploader.main
+         uploader.setShouldCheckOverlap(false);
+         runPass(uploader, new Pass("upload", Uploader.STATUS_UPLOADED));
+         db.changeStatus(Uploader.STATUS_REVIEW, Uploader.STATUS_CREATE_PAGES);
+         runPass(uploader, new Pass("generate", Uploader.STATUS_CREATE_PAGES));
+         db.changeStatus(Uploader.STATUS_READY, Uploader.STATUS_REGENERATE);
+         runPass(uploader, new Pass("regenerate", Uploader.STATUS_REGENERATE));
+      } finally
+      {
+         uploader.shutdown();
+      }
+   }
+
+   private void runPass(Uploader uploader, Pass pass) throws Exception
+   {
+      for (HarnessDatabase.Gedcom g : db.getGedcoms())
+      {
+         if (g.getStatus() == pass.status)
+         {
+            pass.numJobs++;
+         }
+      }
+      System.out.println("Running " + pass.name + " pass over " + pass.numJobs + " GEDCOMs");
+      long start = System.nanoTime();
+      uploader.loop();
+      pass.wallNanos = System.nanoTime() - start;
+      passes.add(pass);
+   }
+
+   /**
+    * Prints the throughput of each pass, the latency percentiles of each stage
+    * and endpoint, and the number of GEDCOMs that ended in each status
+    * @throws IOException
+    */
+   public void report(PrintStream out) throws IOException
+   {
+      out.println();
+      out.println(String.format("%-24s %7s %9s %9s", "Pass", "GEDCOMs", "Seconds", "GEDCOMs/s"));
+      for (Pass pass : passes)
+      {
+         double seconds = pass.wallNanos / 1e9;
+         out.println(String.format("%-24s %7d %9.1f %9.2f", pass.name, pass.numJobs, seconds,
+                                   seconds > 0 ? pass.numJobs / seconds : 0));
+      }
+
+      // stage -> per-job times, and the stage's total items
+      Map<String, Latencies> stageLatencies = new LinkedHashMap<String, Latencies>();
+      Map<String, Long> stageItems = new HashMap<String, Long>();
+      Latencies jobLatencies = new Latencies();
+      readMetrics(new File(properties.getProperty("metrics_csv")), jobLatencies, stageLatencies, stageItems);
+      out.println();
+      out.println(String.format("%-24s %7s %9s %9s %9s %9s %9s", "Stage (ms per job)", "Jobs", "p50", "p95",
+                                "p99", "max", "Items/s"));
+      out.println(String.format("%-24s %s", "total", jobLatencies));
+      for (Map.Entry<String, Latencies> e : stageLatencies.entrySet())
+      {
+         double seconds = e.getValue().getTotal() / 1000;
+         out.println(String.format("%-24s %s %9.0f", e.getKey(), e.getValue(),
+                                   seconds > 0 ? stageItems.get(e.getKey()) / seconds : 0));
+      }
+
+      out.println();
+      out.println(String.format("%-24s %7s %9s %9s %9s %9s %9s", "Endpoint (ms)", "Calls", "p50", "p95",
+                                "p99", "max", "Errors"));
+      for (Map.Entry<String, Latencies> e : stubs.getLatencies().entrySet())
+      {
+         if (e.getValue().getCount() > 0)
+         {
+            out.println(String.format("%-24s %s %9d", e.getKey(), e.getValue(), e.getValue().getErrors()));
+         }
+      }
+      out.println(String.format("%-24s %s %9d", "db", db.getLatencies(), db.getLatencies().getErrors()));
+
+      out.println();
+      Map<Integer, Integer> statusCounts = new TreeMap<Integer, Integer>();
+      for (HarnessDatabase.Gedcom g : db.getGedcoms())
+      {
+         Integer n = statusCounts.get(g.getStatus());
+         statusCounts.put(g.getStatus(), n == null ? 1 : n + 1);
+         if (g.getStatus() != Uploader.STATUS_READY && g.getStatus() != Uploader.STATUS_REGENERATE)
+         {
+            out.println("Gedcom " + g.getID() + " ended in status " + getStatusName(g.getStatus()) +
+                        ": " + g.getReason());
+         }
+      }
+      for (Map.Entry<Integer, Integer> e : statusCounts.entrySet())
+      {
+         out.println(String.format("%-24s %7d", getStatusName(e.getKey()), e.getValue()));
+      }
+   }
+
+   // Reads the per-job rows written by GedcomMetrics.appendCsv. A stage counts
+   // for a job if it took any time or handled any items.
+   private static void readMetrics(File csv, Latencies jobLatencies, Map<String, Latencies> stageLatencies,
+                                   Map<String, Long> stageItems) throws IOException
+   {
+      for (String stage : JobMetrics.STAGES)
+      {
+         stageLatencies.put(stage, new Latencies());
+         stageItems.put(stage, 0L);
+      }
+      if (!csv.exists())
+      {
+         return;
+      }
+      BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(csv), "UTF-8"));
+      try
+      {
+         String line = in.readLine(); // header
+         while ((line = in.readLine()) != null)
+         {
+            // the harness's user names have no commas
+            String[] fields = line.split(",");
+            jobLatencies.add(Long.parseLong(fields[4]));
+            for (int i = 0; i < JobMetrics.STAGES.length; i++)
+            {
+               long ms = Long.parseLong(fields[7 + 2 * i]);
+               long items = Long.parseLong(fields[8 + 2 * i]);
+               if (ms > 0 || items > 0)
+               {
+                  String stage = JobMetrics.STAGES[i];
+                  stageLatencies.get(stage).add(ms);
+                  stageItems.put(stage, stageItems.get(stage) + items);
+               }
+            }
+         }
+      } finally
+      {
+         in.close();
+      }
+   }
+
+   private static String getStatusName(int status)
+   {
+      for (Field field : Uploader.class.getFields())
+      {
+         try
+         {
+            if (field.getName().startsWith("STATUS_") && Modifier.isStatic(field.getModifiers()) &&
+                field.getInt(null) == status)
+            {
+               return field.getName();
+            }
+         } catch (IllegalAccessException e)
+         {
+            // public fields only
+         }
+      }
+      return Integer.toString(status);
+   }
+
+   private static void deleteDir(File dir)
+   {
+      File[] files = dir.listFiles();
+      if (files != null)
+      {
+         for (File file : files)
+         {
+            if (file.isDirectory())
+            {
+               deleteDir(file);
+            } else
+            {
+               file.delete();
+            }
+         }
+      }
+      dir.delete();
+   }
+
+   public static void main(String [] args) throws Exception
+   {
+      Options opt = new Options();
+      opt.addOption("n", true, "Number of synthetic GEDCOMs (20)");
+      opt.addOption("i", true, "Individuals in each synthetic GEDCOM (200)");
+      opt.addOption("c", true, "Directory of .ged files to use instead of synthetic GEDCOMs");
+      opt.addOption("u", true, "Number of users the GEDCOMs are spread over (5)");
+      opt.addOption("w", true, "Number of workers (1)");
+      opt.addOption("p", true, "Properties file overriding the Uploader and stub settings");
+      opt.addOption("d", true, "Work directory, which is kept (default: a temporary directory, deleted afterwards)");
+      opt.addOption("h", false, "Print out help information");
+      BasicParser bp = new BasicParser();
+      CommandLine cl = bp.parse(opt, args);
+
+      if (cl.hasOption("h"))
+      {
+         System.out.println("Runs GEDCOMs through the Uploader against local stubs of the wiki, servers and database.");
+         HelpFormatter f = new HelpFormatter();
+         f.printHelp("Harness", opt);
+         return;
+      }
+      Properties overrides = new Properties();
+      if (cl.hasOption("w"))
+      {
+         overrides.setProperty("workers", cl.getOptionValue("w"));
+      }
+      if (cl.hasOption("p"))
+      {
+         InputStream in = new FileInputStream(cl.getOptionValue("p"));
+         try
+         {
+            overrides.load(in);
+         } finally
+         {
+            in.close();
+         }
+      }
+      boolean keepWorkDir = cl.hasOption("d");
+      File workDir;
+      if (keepWorkDir)
+      {
+         workDir = new File(cl.getOptionValue("d"));
+      } else
+      {
+         workDir = File.createTempFile("gedcom-harness", "");
+         workDir.delete();
+      }
+      workDir.mkdirs();
+
+      Harness harness = new Harness(workDir, overrides);
+      try
+      {
+         harness.start();
+         int numUsers = Integer.parseInt(cl.getOptionValue("u", "5"));
+         if (cl.hasOption("c"))
+         {
+            File[] files = new File(cl.getOptionValue("c")).listFiles(new FilenameFilter() {
+               public boolean accept(File dir, String name) {
+                  return name.toLowerCase().endsWith(".ged");
+               }
+            });
+            if (files == null || files.length == 0)
+            {
+               throw new IOException("No .ged files in " + cl.getOptionValue("c"));
+            }
+            Arrays.sort(files);
+            for (File file : files)
+            {
+               harness.addGedcom(file, numUsers);
+            }
+         } else
+         {
+            int numPeople = Integer.parseInt(cl.getOptionValue("i", "200"));
+            for (int i = Integer.parseInt(cl.getOptionValue("n", "20")); i > 0; i--)
+            {
+               harness.addSyntheticGedcom(numPeople, numUsers);
+            }
+         }
+         harness.run();
+         harness.report(System.out);
+      } finally
+      {
+         harness.stop();
+         if (!keepWorkDir)
+         {
+            deleteDir(workDir);
+         }
+      }
+   }
+}
@@ -0,0 +1,763 @@
+package org.werelate.gedcom.harness;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.*;
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * An in-memory stand-in for the familytree_gedcom, familytree, user and
+ * familytree_gedcom_lease tables of the wikidb, reached through a JDBC URL
+ * of the form jdbc:harness:name.
+ *
+ * It is not a SQL database: it only understands the statements that the Uploader
+ * and JobQueue send, and throws an SQLException for any other statement.
+ * A connection that turns off auto-commit holds a lock on the whole database until
+ * it commits or rolls back; the statements of other connections wait for it, and a
+ * rollback puts the tables back as they were when its first statement was run.
+ * The database's clock, which JobQueue times leases by, is this JVM's.
+ * Each statement can be delayed by harness.latency.db milliseconds, and fails
+ * with a transient error with probability harness.error_rate.db.
+ */
+public class HarnessDatabase {
+   public static final String URL_PREFIX = "jdbc:harness:";
+
+   private static final Map<String, HarnessDatabase> databases = new HashMap<String, HarnessDatabase>();
+
+   /**
+    * A row of familytree_gedcom joined with its familytree and user
+    */
+   public static class Gedcom {
+      int id, status, treeID, userID;
+      String statusDate, reason = "", fileName, defaultCountry = "", userName, treeName;
+
+      public int getID() {
+         return id;
+      }
+
+      public int getStatus() {
+         return status;
+      }
+
+      public String getReason() {
+         return reason;
+      }
+   }
+
+   // A row of familytree_gedcom_lease
+   private static class Lease {
+      int gedID, prevStatus, status, claims;
+      String owner;
+      long expires;
+   }
+
+   // A statement the database understands
+   private static abstract class Query {
+      Pattern pattern;
+
+      Query(String regex)
+      {
+         pattern = Pattern.compile(regex);
+      }
+
+      // Returns the rows selected, or an Integer update count
+      abstract Object run(Matcher m, Map<Integer, Object> params) throws SQLException;
+   }
+
+   // How JobQueue asks for the database's time
+   private static final String NOW = "ROUND\\(UNIX_TIMESTAMP\\(NOW\\(3\\)\\) \\* 1000\\)";
+
+   private String name;
+   private long latency;
+   private double errorRate;
+   private Random random = new Random();
+   private Latencies latencies = new Latencies();
+   // guarded by this
+   private Map<Integer, Gedcom> gedcoms = new TreeMap<Integer, Gedcom>();
+   private Map<Integer, Lease> leases = new HashMap<Integer, Lease>();
+   private List<Query> queries = new ArrayList<Query>();
+   // the connection in a transaction, and the tables as they were when it began; guarded by this
+   private ConnectionHandler txConn = null;
+   private Map<Integer, Gedcom> txGedcoms;
+   private Map<Integer, Lease> txLeases;
+
+   // How long a statement waits for another connection's transaction, as innodb_lock_wait_timeout
+   private static final long LOCK_WAIT_TIMEOUT = 50000;
+
+   static
+   {
+      try
+      {
+         DriverManager.registerDriver(new HarnessDriver());
+      } catch (SQLException e)
+      {
+         throw new RuntimeException(e);
+      }
+   }
+
+   /**
+    * Creates the database and makes it reachable at getUrl()
+    * @param properties reads harness.latency.db and harness.error_rate.db, falling back to
+    *    harness.latency and harness.error_rate
+    */
+   public HarnessDatabase(String name, Properties properties)
+   {
+      this.name = name;
+      latency = Long.parseLong(StubServices.getSetting(properties, "latency", "db", "0"));
+      errorRate = Double.parseDouble(StubServices.getSetting(properties, "error_rate", "db", "0"));
+      addQueries();
+      synchronized (databases)
+      {
+         databases.put(name, this);
+      }
+   }
+
+   public String getUrl() {
+      return URL_PREFIX + name;
+   }
+
+   /**
+    * @return how long each statement took, including the injected latency
+    */
+   public Latencies getLatencies() {
+      return latencies;
+   }
+
+   /**
+    * Adds a GEDCOM to the queue
+    */
+   public synchronized void addGedcom(int gedID, int status, String userName, int userID, int treeID,
+                                      String treeName, String fileName)
+   {
+      Gedcom g = new Gedcom();
+      g.id = gedID;
+      g.status = status;
+      g.statusDate = "20000101000000";
+      g.userName = userName;
+      g.userID = userID;
+      g.treeID = treeID;
+      g.treeName = treeName;
+      g.fileName = fileName;
+      gedcoms.put(gedID, g);
+   }
+
+   /**
+    * Changes the status of every GEDCOM with fromStatus to toStatus, as a user
+    * or administrator does on the wiki
+    * @return the number of GEDCOMs changed
+    */
+   public synchronized int changeStatus(int fromStatus, int toStatus)
+   {
+      int n = 0;
+      for (Gedcom g : gedcoms.values())
+      {
+         if (g.status == fromStatus)
+         {
+            g.status = toStatus;
+            g.statusDate = now();
+            n++;
+         }
+      }
+      return n;
+   }
+
+   /**
+    * @return copies of the GEDCOM rows, in gedID order
+    */
+   public synchronized List<Gedcom> getGedcoms()
+   {
+      List<Gedcom> result = new ArrayList<Gedcom>();
+      for (Gedcom g : gedcoms.values())
+      {
+         Gedcom copy = new Gedcom();
+         copy.id = g.id;
+         copy.status = g.status;
+         copy.reason = g.reason;
+         result.add(copy);
+      }
+      return result;
+   }
+
+   private void addQueries()
+   {
+      // Uploader.updateGedcom and JobQueue claims
+      queries.add(new Query("^UPDATE familytree_gedcom SET fg_status = \\?, fg_status_date = \\?, fg_status_reason = \\? " +
+                            "WHERE fg_id = \\?( AND fg_status = \\?)?$") {
+         Object run(Matcher m, Map<Integer, Object> params) {
+            Gedcom g = gedcoms.get(getInt(params, 4));
+            if (g == null || (m.group(1) != null && g.status != getInt(params, 5)))
+            {
+               return 0;
+            }
+            g.status = getInt(params, 1);
+            g.statusDate = (String) params.get(2);
+            g.reason = (String) params.get(3);
+            return 1;
+         }
+      });
+      // The queue queries; the statuses are part of the SQL
+      queries.add(new Query("^SELECT fg_id, fg_status, ft_user, user_id, ft_tree_id, fg_gedcom_filename, ft_name, " +
+                            "fg_default_country, fg_status_date FROM .* WHERE (.*) ORDER BY fg_status_date LIMIT (\\d+)$") {
+         Object run(Matcher m, Map<Integer, Object> params) {
+            Set<Integer> statuses = getStatuses(m.group(1));
+            List<Gedcom> selected = new ArrayList<Gedcom>();
+            for (Gedcom g : gedcoms.values())
+            {
+               if (statuses.contains(g.status))
+               {
+                  selected.add(g);
+               }
+            }
+            Collections.sort(selected, new Comparator<Gedcom>() {
+               public int compare(Gedcom g1, Gedcom g2) {
+                  return g1.statusDate.compareTo(g2.statusDate);
+               }
+            });
+            List<Object[]> rows = new ArrayList<Object[]>();
+            for (Gedcom g : selected.subList(0, Math.min(selected.size(), Integer.parseInt(m.group(2)))))
+            {
+               rows.add(new Object[] {g.id, g.status, g.userName, g.userID, g.treeID, g.fileName, g.treeName,
+                                      g.defaultCountry, g.statusDate});
+            }
+            return rows;
+         }
+      });
+      // The user's other GEDCOMs, for the overlap check
+      queries.add(new Query("^SELECT fg_id, fg_status, fg_gedcom_filename from .* WHERE ft_user = \\? AND (.*)$") {
+         Object run(Matcher m, Map<Integer, Object> params) {
+            Set<Integer> statuses = getStatuses(m.group(1));
+            List<Object[]> rows = new ArrayList<Object[]>();
+            for (Gedcom g : gedcoms.values())
+            {
+               if (g.userName.equals(params.get(1)) && statuses.contains(g.status))
+               {
+                  rows.add(new Object[] {g.id, g.status, g.fileName});
+               }
+            }
+            return rows;
+         }
+      });
+      queries.add(new Query("^SELECT fgl_claims FROM familytree_gedcom_lease WHERE fgl_fg_id = \\?$") {
+         Object run(Matcher m, Map<Integer, Object> params) {
+            List<Object[]> rows = new ArrayList<Object[]>();
+            Lease lease = leases.get(getInt(params, 1));
+            if (lease != null)
+            {
+               rows.add(new Object[] {lease.claims});
+            }
+            return rows;
+         }
+      });
+      queries.add(new Query("^REPLACE INTO familytree_gedcom_lease \\(fgl_fg_id, fgl_owner, fgl_prev_status, " +
+                            "fgl_status, fgl_expires, fgl_claims\\) VALUES \\(\\?, \\?, \\?, \\?, " + NOW + " \\+ \\?, \\?\\)$") {
+         Object run(Matcher m, Map<Integer, Object> params) {
+            Lease lease = new Lease();
+            lease.gedID = getInt(params, 1);
+            lease.owner = (String) params.get(2);
+            lease.prevStatus = getInt(params, 3);
+            lease.status = getInt(params, 4);
+            lease.expires = System.currentTimeMillis() + getLong(params, 5);
+            lease.claims = getInt(params, 6);
+            leases.put(lease.gedID, lease);
+            return 1;
+         }
+      });
+      queries.add(new Query("^UPDATE familytree_gedcom_lease SET fgl_expires = " + NOW + " \\+ \\? " +
+                            "WHERE fgl_owner = \\? AND fgl_expires > 0$") {
+         Object run(Matcher m, Map<Integer, Object> params) {
+            int n = 0;
+            for (Lease lease : leases.values())
+            {
+               if (lease.owner.equals(params.get(2)) && lease.expires > 0)
+               {
+                  lease.expires = System.currentTimeMillis() + getLong(params, 1);
+                  n++;
+               }
+            }
+            return n;
+         }
+      });
+      queries.add(new Query("^UPDATE familytree_gedcom_lease SET fgl_expires = 0 WHERE fgl_fg_id = \\? AND fgl_owner = \\?$") {
+         Object run(Matcher m, Map<Integer, Object> params) {
+            Lease lease = getLease(params, false);
+            if (lease == null)
+            {
+               return 0;
+            }
+            lease.expires = 0;
+            return 1;
+         }
+      });
+      queries.add(new Query("^DELETE FROM familytree_gedcom_lease WHERE fgl_fg_id = \\? AND fgl_owner = \\?( AND fgl_expires < " + NOW + ")?$") {
+         Object run(Matcher m, Map<Integer, Object> params) {
+            Lease lease = getLease(params, m.group(1) != null);
+            if (lease == null)
+            {
+               return 0;
+            }
+            leases.remove(lease.gedID);
+            return 1;
+         }
+      });
+      queries.add(new Query("^SELECT fgl_fg_id, fgl_owner, fgl_prev_status, fgl_status, fgl_claims " +
+                            "FROM familytree_gedcom_lease WHERE fgl_expires < " + NOW + "$") {
+         Object run(Matcher m, Map<Integer, Object> params) {
+            List<Object[]> rows = new ArrayList<Object[]>();
+            long now = System.currentTimeMillis();
+            for (Lease lease : leases.values())
+            {
+               if (lease.expires < now)
+               {
+                  rows.add(new Object[] {lease.gedID, lease.owner, lease.prevStatus, lease.status, lease.claims});
+               }
+            }
+            return rows;
+         }
+      });
+   }
+
+   // The current time in the format of fg_status_date
+   static String now()
+   {
+      SimpleDateFormat format = new SimpleDateFormat("yyyyMMddHHmmss");
+      format.setTimeZone(TimeZone.getTimeZone("GMT"));
+      return format.format(new java.util.Date());
+   }
+
+   private static final Pattern pStatus = Pattern.compile("fg_status = (\\d+)");
+
+   private static Set<Integer> getStatuses(String where)
+   {
+      Set<Integer> statuses = new HashSet<Integer>();
+      Matcher m = pStatus.matcher(where);
+      while (m.find())
+      {
+         statuses.add(Integer.parseInt(m.group(1)));
+      }
+      return statuses;
+   }
+
+   // The lease of gedID (parameter 1) held by owner (parameter 2),
+   // if it has expired when expiredOnly is set
+   private Lease getLease(Map<Integer, Object> params, boolean expiredOnly)
+   {
+      Lease lease = leases.get(getInt(params, 1));
+      if (lease == null || !lease.owner.equals(params.get(2)) ||
+          (expiredOnly && lease.expires >= System.currentTimeMillis()))
+      {
+         return null;
+      }
+      return lease;
+   }
+
+   private static int getInt(Map<Integer, Object> params, int index)
+   {
+      return ((Number) params.get(index)).intValue();
+   }
+
+   private static long getLong(Map<Integer, Object> params, int index)
+   {
+      return ((Number) params.get(index)).longValue();
+   }
+
+   // Runs the statement sent on conn, returning the rows selected or an Integer update count
+   private Object execute(ConnectionHandler conn, String sql, Map<Integer, Object> params) throws SQLException
+   {
+      long start = System.nanoTime();
+      try
+      {
+         if (latency > 0)
+         {
+            try
+            {
+               Thread.sleep(latency);
+            } catch (InterruptedException e)
+            {
+               Thread.currentThread().interrupt();
+               throw new SQLTransientException("Interrupted");
+            }
+         }
+         synchronized (this)
+         {
+            waitForLock(conn);
+            if (errorRate > 0 && random.nextDouble() < errorRate)
+            {
+               latencies.addError();
+               throw new SQLTransientConnectionException("Injected error");
+            }
+            if (!conn.autoCommit && txConn == null)
+            {
+               txConn = conn;
+               txGedcoms = copyGedcoms(gedcoms);
+               txLeases = copyLeases(leases);
+            }
+            String normalized = sql.replaceAll("\\s+", " ").trim();
+            for (Query query : queries)
+            {
+               Matcher m = query.pattern.matcher(normalized);
+               if (m.find())
+               {
+                  return query.run(m, params);
+               }
+            }
+         }
+         throw new SQLSyntaxErrorException("Not supported by the harness database: " + sql);
+      } finally
+      {
+         latencies.add((System.nanoTime() - start) / 1e6);
+      }
+   }
+
+   // Waits until no other connection is in a transaction; guarded by this
+   private void waitForLock(ConnectionHandler conn) throws SQLException
+   {
+      long end = System.currentTimeMillis() + LOCK_WAIT_TIMEOUT;
+      while (txConn != null && txConn != conn)
+      {
+         long remaining = end - System.currentTimeMillis();
+         if (remaining <= 0)
+         {
+            throw new SQLTransientException("Lock wait timeout exceeded");
+         }
+         try
+         {
+            wait(remaining);
+         } catch (InterruptedException e)
+         {
+            Thread.currentThread().interrupt();
+            throw new SQLTransientException("Interrupted");
+         }
+      }
+   }
+
+   // Ends conn's transaction, if it is in one, putting the tables back unless it commits
+   private synchronized void endTransaction(ConnectionHandler conn, boolean commit)
+   {
+      if (txConn == conn)
+      {
+         if (!commit)
+         {
+            gedcoms = txGedcoms;
+            leases = txLeases;
+         }
+         txConn = null;
+         txGedcoms = null;
+         txLeases = null;
+         notifyAll();
+      }
+   }
+
+   private static Map<Integer, Gedcom> copyGedcoms(Map<Integer, Gedcom> rows)
+   {
+      Map<Integer, Gedcom> copy = new TreeMap<Integer, Gedcom>();
+      for (Gedcom g : rows.values())
+      {
+         Gedcom c = new Gedcom();
+         c.id = g.id;
+         c.status = g.status;
+         c.treeID = g.treeID;
+         c.userID = g.userID;
+         c.statusDate = g.statusDate;
+         c.reason = g.reason;
+         c.fileName = g.fileName;
+         c.defaultCountry = g.defaultCountry;
+         c.userName = g.userName;
+         c.treeName = g.treeName;
+         copy.put(c.id, c);
+      }
+      return copy;
+   }
+
+   private static Map<Integer, Lease> copyLeases(Map<Integer, Lease> rows)
+   {
+      Map<Integer, Lease> copy = new HashMap<Integer, Lease>();
+      for (Lease l : rows.values())
+      {
+         Lease c = new Lease();
+         c.gedID = l.gedID;
+         c.owner = l.owner;
+         c.prevStatus = l.prevStatus;
+         c.status = l.status;
+         c.claims = l.claims;
+         c.expires = l.expires;
+         copy.put(c.gedID, c);
+      }
+      return copy;
+   }
+
+   /**
+    * Connects jdbc:harness: URLs to the database of that name
+    */
+   public static class HarnessDriver implements Driver {
+      public Connection connect(String url, Properties info) throws SQLException
+      {
+         if (!acceptsURL(url))
+         {
+            return null;
+         }
+         HarnessDatabase db;
+         synchronized (databases)
+         {
+            db = databases.get(url.substring(URL_PREFIX.length()));
+         }
+         if (db == null)
+         {
+            throw new SQLNonTransientConnectionException("No harness database at " + url);
+         }
+         return (Connection) newProxy(Connection.class, db.new ConnectionHandler());
+      }
+
+      public boolean acceptsURL(String url)
+      {
+         return url != null && url.startsWith(URL_PREFIX);
+      }
+
+      public DriverPropertyInfo[] getPropertyInfo(String url, Properties info)
+      {
+         return new DriverPropertyInfo[0];
+      }
+
+      public int getMajorVersion() {
+         return 1;
+      }
+
+      public int getMinorVersion() {
+         return 0;
+      }
+
+      public boolean jdbcCompliant() {
+         return false;
+      }
+
+      public java.util.logging.Logger getParentLogger() throws SQLFeatureNotSupportedException {
+         throw new SQLFeatureNotSupportedException();
+      }
+   }
+
+   private static Object newProxy(Class<?> type, InvocationHandler handler)
+   {
+      return Proxy.newProxyInstance(HarnessDatabase.class.getClassLoader(), new Class<?>[] {type}, handler);
+   }
+
+   // Handles the methods every JDBC object has
+   private static abstract class Handler implements InvocationHandler {
+      boolean closed = false;
+
+      public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+      {
+         String name = method.getName();
+         if (name.equals("close"))
+         {
+            closed = true;
+            return null;
+         } else if (name.equals("isClosed"))
+         {
+            return closed;
+         } else if (name.equals("toString"))
+         {
+            return getClass().getSimpleName();
+         } else if (name.equals("hashCode"))
+         {
+            return System.identityHashCode(proxy);
+         } else if (name.equals("equals"))
+         {
+            return proxy == args[0];
+         }
+         if (closed)
+         {
+            throw new SQLNonTransientConnectionException(method.getDeclaringClass().getSimpleName() + " is closed");
+         }
+         return handle(name, args);
+      }
+
+      abstract Object handle(String name, Object[] args) throws Exception;
+
+      Exception unsupported(String name)
+      {
+         return new SQLFeatureNotSupportedException(name + " is not supported by the harness database");
+      }
+   }
+
+   private class ConnectionHandler extends Handler {
+      volatile boolean autoCommit = true;
+
+      public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+      {
+         if (method.getName().equals("close"))
+         {
+            // closing a connection rolls back its transaction
+            endTransaction(this, false);
+         }
+         return super.invoke(proxy, method, args);
+      }
+
+      Object handle(String name, Object[] args) throws Exception
+      {
+         if (name.equals("prepareStatement") && args.length == 1)
+         {
+            return newProxy(PreparedStatement.class, new StatementHandler(this, (String) args[0]));
+         } else if (name.equals("createStatement") && (args == null || args.length == 0))
+         {
+            return newProxy(Statement.class, new StatementHandler(this, null));
+         } else if (name.equals("isValid"))
+         {
+            return true;
+         } else if (name.equals("getAutoCommit"))
+         {
+            return autoCommit;
+         } else if (name.equals("setAutoCommit"))
+         {
+            autoCommit = (Boolean) args[0];
+            if (autoCommit)
+            {
+               endTransaction(this, true);
+            }
+            return null;
+         } else if (name.equals("commit") || name.equals("rollback"))
+         {
+            endTransaction(this, name.equals("commit"));
+            return null;
+         } else if (name.equals("clearWarnings"))
+         {
+            return null;
+         } else if (name.equals("getWarnings"))
+         {
+            return null;
+         }
+         throw unsupported(name);
+      }
+   }
+
+   private class StatementHandler extends Handler {
+      ConnectionHandler conn;
+      String sql;
+      Map<Integer, Object> params = new HashMap<Integer, Object>();
+      Object result = null;
+
+      StatementHandler(ConnectionHandler conn, String sql)
+      {
+         this.conn = conn;
+         this.sql = sql;
+      }
+
+      Object handle(String name, Object[] args) throws Exception
+      {
+         if (name.equals("setInt") || name.equals("setLong") || name.equals("setString") || name.equals("setObject"))
+         {
+            params.put((Integer) args[0], args[1]);
+            return null;
+         } else if (name.equals("setAsciiStream"))
+         {
+            params.put((Integer) args[0], readString((InputStream) args[1]));
+            return null;
+         } else if (name.equals("clearParameters"))
+         {
+            params.clear();
+            return null;
+         } else if (name.equals("execute") || name.equals("executeQuery") || name.equals("executeUpdate"))
+         {
+            String statementSql = (args == null || args.length == 0) ? sql : (String) args[0];
+            result = HarnessDatabase.this.execute(conn, statementSql, params);
+            if (name.equals("executeQuery"))
+            {
+               return getResultSet();
+            } else if (name.equals("executeUpdate"))
+            {
+               return getUpdateCount();
+            }
+            return result instanceof List;
+         } else if (name.equals("getResultSet"))
+         {
+            return getResultSet();
+         } else if (name.equals("getUpdateCount"))
+         {
+            return getUpdateCount();
+         } else if (name.equals("getWarnings") || name.equals("clearWarnings"))
+         {
+            return null;
+         }
+         throw unsupported(name);
+      }
+
+      private ResultSet getResultSet() throws SQLException
+      {
+         if (!(result instanceof List))
+         {
+            throw new SQLException("The statement did not return rows: " + sql);
+         }
+         return (ResultSet) newProxy(ResultSet.class, new ResultSetHandler((List<Object[]>) result));
+      }
+
+      private int getUpdateCount()
+      {
+         return result instanceof Integer ? (Integer) result : -1;
+      }
+   }
+
+   private static String readString(InputStream in) throws IOException
+   {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      byte[] buf = new byte[4096];
+      int n;
+      while ((n = in.read(buf)) > 0)
+      {
+         bytes.write(buf, 0, n);
+      }
+      return new String(bytes.toByteArray(), "UTF-8");
+   }
+
+   private static class ResultSetHandler extends Handler {
+      List<Object[]> rows;
+      int row = -1;
+      boolean wasNull = false;
+
+      ResultSetHandler(List<Object[]> rows)
+      {
+         this.rows = rows;
+      }
+
+      Object handle(String name, Object[] args) throws Exception
+      {
+         if (name.equals("next"))
+         {
+            return ++row < rows.size();
+         } else if (name.equals("wasNull"))
+         {
+            return wasNull;
+         } else if (name.startsWith("get") && args != null && args.length == 1 && args[0] instanceof Integer)
+         {
+            if (row < 0 || row >= rows.size())
+            {
+               throw new SQLException("The result set is not on a row");
+            }
+            Object value = rows.get(row)[(Integer) args[0] - 1];
+            wasNull = (value == null);
+            if (name.equals("getInt"))
+            {
+               return value == null ? 0 : ((Number) value).intValue();
+            } else if (name.equals("getLong"))
+            {
+               return value == null ? 0L : ((Number) value).longValue();
+            } else if (name.equals("getString"))
+            {
+               return value == null ? null : value.toString();
+            } else if (name.equals("getAsciiStream"))
+            {
+               return value == null ? null : new ByteArrayInputStream(value.toString().getBytes("UTF-8"));
+            } else if (name.equals("getObject"))
+            {
+               return value;
+            }
+         }
+         throw unsupported(name);
+      }
+   }
+}
@@ -0,0 +1,66 @@
+package org.werelate.gedcom.harness;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Collects durations, in milliseconds, and reports their percentiles
+ */
+public class Latencies {
+   private List<Double> millis = new ArrayList<Double>();
+   private long errors = 0;
+
+   public synchronized void add(double ms)
+   {
+      millis.add(ms);
+   }
+
+   public synchronized void addError()
+   {
+      errors++;
+   }
+
+   public synchronized int getCount() {
+      return millis.size();
+   }
+
+   public synchronized long getErrors() {
+      return errors;
+   }
+
+   public synchronized double getTotal()
+   {
+      double total = 0;
+      for (double ms : millis)
+      {
+         total += ms;
+      }
+      return total;
+   }
+
+   /**
+    * @param percent e.g. 95 for the 95th percentile
+    * @return the smallest duration that percent of the durations are no longer than, or 0 if there are none
+    */
+   public synchronized double getPercentile(double percent)
+   {
+      if (millis.isEmpty())
+      {
+         return 0;
+      }
+      List<Double> sorted = new ArrayList<Double>(millis);
+      Collections.sort(sorted);
+      int index = (int) Math.ceil(percent / 100 * sorted.size()) - 1;
+      return sorted.get(Math.max(0, Math.min(sorted.size() - 1, index)));
+   }
+
+   /**
+    * @return count, p50, p95, p99 and max, formatted for the report
+    */
+   public String toString()
+   {
+      return String.format("%7d %9.1f %9.1f %9.1f %9.1f", getCount(), getPercentile(50), getPercentile(95),
+                           getPercentile(99), getPercentile(100));
+   }
+}
@@ -0,0 +1,306 @@
+package org.werelate.gedcom.harness;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.werelate.util.Utils;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * In-process stand-ins for the wiki, the place server and the Solr match server,
+ * all served from one port on localhost.
+ *
+ * The wiki answers logins, user talk page edits and the ajax functions the
+ * Uploader calls; wfReserveIndexNumbers numbers the titles like the wiki does,
+ * counting from 1 for each title. The place server standardizes every name
+ * to itself, and the match server finds one family with a score below the
+ * match thresholds.
+ *
+ * Each endpoint waits harness.latency.&lt;endpoint&gt; milliseconds before answering
+ * and fails with a 503 with probability harness.error_rate.&lt;endpoint&gt;, falling back
+ * to harness.latency and harness.error_rate. Logins and talk pages are never failed,
+ * since PageEdit gives up on the whole process when they fail.
+ */
+public class StubServices {
+   /**
+    * The endpoints, named after the root element of the wiki's response where there is one
+    */
+   public static final String[] ENDPOINTS = {
+         "login", "talk", "trustedUploader", "readGedcomData", "reserve", "generate", "add",
+         "updateTreePrimary", "matchSource", "addGedcomSourceMatches", "placestandardize", "search"
+   };
+   private static final Set<String> NEVER_FAIL = new HashSet<String>(Arrays.asList("login", "talk"));
+   private static final Map<String, String> AJAX_ENDPOINTS = new HashMap<String, String>();
+   static
+   {
+      AJAX_ENDPOINTS.put("wfIsTrustedUploader", "trustedUploader");
+      AJAX_ENDPOINTS.put("wfReadGedcomData", "readGedcomData");
+      AJAX_ENDPOINTS.put("wfReserveIndexNumbers", "reserve");
+      AJAX_ENDPOINTS.put("wfGenerateFamilyTreePage", "generate");
+      AJAX_ENDPOINTS.put("wfAddPagesToTree", "add");
+      AJAX_ENDPOINTS.put("wfUpdateTreePrimary", "updateTreePrimary");
+      AJAX_ENDPOINTS.put("wfMatchSource", "matchSource");
+      AJAX_ENDPOINTS.put("wfAddGedcomSourceMatches", "addGedcomSourceMatches");
+   }
+
+   private HttpServer server;
+   private ExecutorService executor;
+   private Map<String, Long> latency = new HashMap<String, Long>();
+   private Map<String, Double> errorRate = new HashMap<String, Double>();
+   private Map<String, Latencies> latencies = new LinkedHashMap<String, Latencies>();
+   private Random random = new Random();
+   // title -> last index reserved; guarded by itself
+   private Map<String, Integer> titleIndexes = new HashMap<String, Integer>();
+
+   /**
+    * @return harness.&lt;setting&gt;.&lt;endpoint&gt;, or harness.&lt;setting&gt;, or the default
+    */
+   public static String getSetting(Properties properties, String setting, String endpoint, String defaultValue)
+   {
+      String value = properties.getProperty("harness." + setting + '.' + endpoint,
+                                            properties.getProperty("harness." + setting));
+      return Utils.isEmpty(value) ? defaultValue : value.trim();
+   }
+
+   public StubServices(Properties properties)
+   {
+      for (String endpoint : ENDPOINTS)
+      {
+         latency.put(endpoint, Long.parseLong(getSetting(properties, "latency", endpoint, "0")));
+         errorRate.put(endpoint, NEVER_FAIL.contains(endpoint) ? 0.0 :
+               Double.parseDouble(getSetting(properties, "error_rate", endpoint, "0")));
+         latencies.put(endpoint, new Latencies());
+      }
+   }
+
+   /**
+    * Starts serving on a free port
+    * @param threads number of requests answered at once
+    * @throws IOException
+    */
+   public void start(int threads) throws IOException
+   {
+      server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+      server.createContext("/w/index.php", new Handler() {
+         String getEndpoint(String path, Map<String, String> params) {
+            String title = params.get("title");
+            if (title != null && title.startsWith("Special:Userlogin"))
+            {
+               return "login";
+            } else if (title != null && title.startsWith("User_talk:"))
+            {
+               return "talk";
+            }
+            return AJAX_ENDPOINTS.get(params.get("rs"));
+         }
+
+         String respond(String endpoint, String method, Map<String, String> params) {
+            return wikiResponse(endpoint, method, params);
+         }
+      });
+      server.createContext("/placestandardize", new Handler() {
+         String getEndpoint(String path, Map<String, String> params) {
+            return "placestandardize";
+         }
+
+         String respond(String endpoint, String method, Map<String, String> params) {
+            StringBuilder buf = new StringBuilder("<response><arr name=\"result\">");
+            for (String name : params.get("q").split("\\|"))
+            {
+               String encoded = Utils.encodeXML(name);
+               buf.append("<lst><str name=\"q\">").append(encoded).append("</str><str name=\"PlaceTitle\">")
+                  .append(encoded).append("</str></lst>");
+            }
+            return buf.append("</arr></response>").toString();
+         }
+      });
+      server.createContext("/search", new Handler() {
+         String getEndpoint(String path, Map<String, String> params) {
+            return "search";
+         }
+
+         String respond(String endpoint, String method, Map<String, String> params) {
+            return "<response><result name=\"response\" numFound=\"1\" start=\"0\"><doc>" +
+                   "<float name=\"score\">0.5</float><str name=\"TitleStored\">Family:Stub and Stub (1)</str>" +
+                   "</doc></result></response>";
+         }
+      });
+      executor = Executors.newFixedThreadPool(threads);
+      server.setExecutor(executor);
+      server.start();
+   }
+
+   public void stop()
+   {
+      if (server != null)
+      {
+         server.stop(0);
+         executor.shutdown();
+         server = null;
+      }
+   }
+
+   public int getPort() {
+      return server.getAddress().getPort();
+   }
+
+   /**
+    * @return endpoint -> how long it took to answer each request, including the injected latency
+    */
+   public Map<String, Latencies> getLatencies() {
+      return latencies;
+   }
+
+   private static final Pattern pPage = Pattern.compile("<page\\s+namespace=\"([^\"]*)\"\\s+title=\"([^\"]*)\"");
+
+   private String wikiResponse(String endpoint, String method, Map<String, String> params)
+   {
+      if (endpoint.equals("login"))
+      {
+         return "<html><body>Login successful</body></html>";
+      } else if (endpoint.equals("talk"))
+      {
+         if (method.equals("GET"))
+         {
+            return "<html><body><form>" +
+                   "<input type='hidden' value=\"" + HarnessDatabase.now() + "\" name=\"wpEdittime\" />" +
+                   "<input type='hidden' value=\"stub+\\\" name=\"wpEditToken\" />" +
+                   "</form></body></html>";
+         }
+         return "<html><body>User talk:</body></html>";
+      } else if (endpoint.equals("trustedUploader"))
+      {
+         return "<trustedUploader status=\"0\" trusted=\"false\"/>";
+      } else if (endpoint.equals("reserve"))
+      {
+         StringBuilder buf = new StringBuilder("<reserve status=\"0\">\n");
+         Matcher m = pPage.matcher(params.get("rsargs"));
+         while (m.find())
+         {
+            String key = m.group(1) + '|' + m.group(2);
+            int index;
+            synchronized (titleIndexes)
+            {
+               Integer last = titleIndexes.get(key);
+               index = (last == null ? 1 : last + 1);
+               titleIndexes.put(key, index);
+            }
+            buf.append("<page namespace=\"").append(m.group(1)).append("\" title=\"").append(m.group(2))
+               .append("\" titleix=\"").append(m.group(2)).append(" (").append(index).append(")\"/>\n");
+         }
+         return buf.append("</reserve>").toString();
+      } else if (endpoint.equals("readGedcomData"))
+      {
+         return "<readGedcomData status=\"0\"></readGedcomData>";
+      }
+      // generate, add, updateTreePrimary and the source matches only report their status
+      return "<" + endpoint + " status=\"0\"/>";
+   }
+
+   // Times the request, injects latency and errors, and sends the stub's response
+   private abstract class Handler implements HttpHandler {
+      abstract String getEndpoint(String path, Map<String, String> params);
+
+      abstract String respond(String endpoint, String method, Map<String, String> params);
+
+      public void handle(HttpExchange exchange) throws IOException
+      {
+         long start = System.nanoTime();
+         Latencies endpointLatencies = null;
+         try
+         {
+            Map<String, String> params = new HashMap<String, String>();
+            parseForm(exchange.getRequestURI().getRawQuery(), params);
+            if (exchange.getRequestMethod().equals("POST"))
+            {
+               parseForm(readString(exchange.getRequestBody()), params);
+            }
+            String endpoint = getEndpoint(exchange.getRequestURI().getPath(), params);
+            if (endpoint == null)
+            {
+               send(exchange, 400, "Unknown request " + exchange.getRequestURI() + " " + params.get("rs"));
+               return;
+            }
+            endpointLatencies = latencies.get(endpoint);
+            long wait = latency.get(endpoint);
+            if (wait > 0)
+            {
+               Thread.sleep(wait);
+            }
+            boolean fail;
+            synchronized (random)
+            {
+               fail = random.nextDouble() < errorRate.get(endpoint);
+            }
+            if (fail)
+            {
+               endpointLatencies.addError();
+               send(exchange, 503, "Injected error");
+            } else
+            {
+               send(exchange, 200, respond(endpoint, exchange.getRequestMethod(), params));
+            }
+         } catch (InterruptedException e)
+         {
+            send(exchange, 503, "Interrupted");
+         } catch (RuntimeException e)
+         {
+            send(exchange, 500, e.toString());
+         } finally
+         {
+            if (endpointLatencies != null)
+            {
+               endpointLatencies.add((System.nanoTime() - start) / 1e6);
+            }
+            exchange.close();
+         }
+      }
+   }
+
+   private static void send(HttpExchange exchange, int status, String body) throws IOException
+   {
+      byte[] bytes = body.getBytes("UTF-8");
+      exchange.getResponseHeaders().set("Content-Type", "text/xml; charset=UTF-8");
+      exchange.sendResponseHeaders(status, bytes.length);
+      OutputStream out = exchange.getResponseBody();
+      out.write(bytes);
+      out.close();
+   }
+
+   private static void parseForm(String form, Map<String, String> params) throws UnsupportedEncodingException
+   {
+      if (Utils.isEmpty(form))
+      {
+         return;
+      }
+      for (String pair : form.split("&"))
+      {
+         int pos = pair.indexOf('=');
+         if (pos > 0)
+         {
+            params.put(URLDecoder.decode(pair.substring(0, pos), "UTF-8"),
+                       URLDecoder.decode(pair.substring(pos + 1), "UTF-8"));
+         }
+      }
+   }
+
+   private static String readString(InputStream in) throws IOException
+   {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      byte[] buf = new byte[4096];
+      int n;
+      while ((n = in.read(buf)) > 0)
+      {
+         bytes.write(buf, 0, n);
+      }
+      return new String(bytes.toByteArray(), "UTF-8");
+   }
+}
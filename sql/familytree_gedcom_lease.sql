@@ -0,0 +1,12 @@
+-- Leases on the GEDCOMs of familytree_gedcom that workers have claimed (see JobQueue).
+-- Run once against the wikidb before starting the processor.
+CREATE TABLE IF NOT EXISTS familytree_gedcom_lease (
+  fgl_fg_id INT NOT NULL PRIMARY KEY,
+  fgl_owner VARCHAR(255) NOT NULL,
+  fgl_prev_status INT NOT NULL,
+  fgl_status INT NOT NULL,
+  fgl_expires BIGINT NOT NULL,
+  fgl_claims INT NOT NULL DEFAULT 0,
+  KEY (fgl_owner),
+  KEY (fgl_expires)
+);
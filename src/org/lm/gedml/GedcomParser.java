@@ -9,6 +9,8 @@ import org.xml.sax.helpers.*;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.werelate.gedcom.Gedcom;
+import org.werelate.gedcom.GedcomEvents;
+import org.werelate.gedcom.JobMetrics;
 import org.werelate.util.Utils;
 
 /**
@@ -349,7 +351,12 @@ public class GedcomParser implements XMLReader, Locator {
       //System.out.println("This parser was called!");
       this.systemId = systemId;
       try {
-         parse(getBufferedReader(systemId));
+         JobMetrics.Timer timer = JobMetrics.start("encodingDetection");
+         BufferedReader reader = getBufferedReader(systemId);
+         JobMetrics.stop(timer, 1);
+         timer = JobMetrics.start("parse");
+         parse(reader);
+         JobMetrics.stop(timer, lineNr);
       } catch (SAXParseException e) {
          System.out.println("SAX Parse Exception: Line: " + this.getLineNumber());
          System.out.println("Exception error msg: " + e.getMessage());
@@ -409,6 +416,8 @@ public class GedcomParser implements XMLReader, Locator {
       contentHandler.setDocumentLocator(this);
       contentHandler.startDocument();
       contentHandler.startElement("", "GED", "GED", emptyAttList);
+      // the level-0 record being parsed, when events are enabled
+      GedcomEvents.RecordParsed recordEvent = null;
 
       try {
          boolean goodLine = false; // Indicates whether we have found a good line so
@@ -438,6 +447,11 @@ public class GedcomParser implements XMLReader, Locator {
 
             lineNr++;
             currentLine = line;
+            if (recordEvent != null)
+            {
+               recordEvent.lines++;
+               recordEvent.chars += line.length();
+            }
 
             // parse the GEDCOM line into five fields: level, iden, tag, xref, valu
 
@@ -496,6 +510,20 @@ public class GedcomParser implements XMLReader, Locator {
                      contentHandler.endElement("", endtag, endtag);
                      prevlevel--;
                   }
+                  // the previous record has been handled, including its closing tags
+                  if (thislevel == 0 && GedcomEvents.isEnabled()) {
+                     if (recordEvent != null) {
+                        // this line was counted in the previous record
+                        recordEvent.lines--;
+                        recordEvent.chars -= line.length();
+                        recordEvent.commit();
+                     }
+                     recordEvent = new GedcomEvents.RecordParsed();
+                     recordEvent.recordType = tag;
+                     recordEvent.lines = 1;
+                     recordEvent.chars = line.length();
+                     recordEvent.begin();
+                  }
                   if (!tag.equals("TRLR")) {
                      attList.clear();
                      if (!Utils.isEmpty(iden)) attList.addAttribute("", "ID", "ID", "ID", iden);
@@ -604,6 +632,9 @@ public class GedcomParser implements XMLReader, Locator {
             gedcom.setInvalid();
          }
          contentHandler.endDocument();
+         if (recordEvent != null) {
+            recordEvent.commit();
+         }
          //System.err.println("Parsing complete: " + lineNr + " lines");
 
       } catch (SAXException e1) {
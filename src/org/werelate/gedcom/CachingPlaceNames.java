@@ -0,0 +1,90 @@
+package org.werelate.gedcom;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Asks the place server only for names it hasn't been asked about before
+ * with the same default country, so that re-running many GEDCOMs that share
+ * places sends each place to the server once. Safe to share between threads.
+ */
+public class CachingPlaceNames implements PlaceNames {
+   private PlaceStandardizer placeStandardizer;
+   // default country + '|' + name -> result
+   private Map<String, PlaceStandardizer.Result> cache = new ConcurrentHashMap<String, PlaceStandardizer.Result>();
+   private volatile int numHits = 0;
+   private volatile int numMisses = 0;
+
+   public CachingPlaceNames(PlaceStandardizer placeStandardizer)
+   {
+      this.placeStandardizer = placeStandardizer;
+   }
+
+   public void getStandardizedPlaceNames(String placeServer, Set<String> names, String defaultCountry,
+                                         StringBuffer placeXMLBuffer) throws IOException
+   {
+      Uploader.writePlaceElements(standardize(placeServer, names, defaultCountry), placeXMLBuffer);
+   }
+
+   public void getPlaceDisplayNames(String placeServer, Set<String> names, Map<String, String> placeMap)
+         throws IOException
+   {
+      for (PlaceStandardizer.Result result : standardize(placeServer, names, ""))
+      {
+         placeMap.put(result.getQ().replace('^', '|'), result.getPlaceTitle().replace('^', '|'));
+      }
+   }
+
+   // Returns the results in the order of the names, as the place standardizer does
+   private List<PlaceStandardizer.Result> standardize(String placeServer, Set<String> names, String defaultCountry)
+         throws IOException
+   {
+      List<String> misses = new ArrayList<String>();
+      for (String name : names)
+      {
+         if (!cache.containsKey(defaultCountry + '|' + name))
+         {
+            misses.add(name);
+         }
+      }
+      if (misses.size() > 0)
+      {
+         List<PlaceStandardizer.Result> results = placeStandardizer.standardize(placeServer, misses, defaultCountry);
+         if (results.size() != misses.size())
+         {
+            throw new IOException("Place server returned " + results.size() + " results for " + misses.size() +
+                                  " names");
+         }
+         for (int i = 0; i < misses.size(); i++)
+         {
+            cache.put(defaultCountry + '|' + misses.get(i), results.get(i));
+         }
+      }
+      synchronized (this)
+      {
+         numHits += names.size() - misses.size();
+         numMisses += misses.size();
+      }
+      List<PlaceStandardizer.Result> results = new ArrayList<PlaceStandardizer.Result>(names.size());
+      for (String name : names)
+      {
+         results.add(cache.get(defaultCountry + '|' + name));
+      }
+      return results;
+   }
+
+   /**
+    * @return the number of names that were found in the cache
+    */
+   public int getNumHits() {
+      return numHits;
+   }
+
+   /**
+    * @return the number of names sent to the place server
+    */
+   public int getNumMisses() {
+      return numMisses;
+   }
+}
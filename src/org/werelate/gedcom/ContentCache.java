@@ -0,0 +1,169 @@
+package org.werelate.gedcom;
+
+import org.w3c.dom.Document;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The parsed content documents of the pages of a GedcomXML. A page's content is parsed
+ * when it is first asked for, and at most maxSize documents are kept, least recently used first out.
+ * A document that was changed is written back to its page before it is dropped,
+ * so it can be parsed again with the changes.
+ * Its methods may be called by several threads at once.
+ */
+class ContentCache {
+   /**
+    * Where the contents are parsed from and written back to
+    */
+   interface Store {
+      /**
+       * Called without holding the cache's lock, so that contents can be parsed by several threads at once
+       * @return the parsed content of the page, or null if there is no such page
+       */
+      public Document read(String id);
+
+      public void write(String id, Document content);
+   }
+
+   private static class Entry {
+      private final Document content;
+      private boolean changed;
+
+      private Entry(Document content, boolean changed)
+      {
+         this.content = content;
+         this.changed = changed;
+      }
+   }
+
+   private final Store store;
+   private final LinkedHashMap<String, Entry> cache;
+   private int numReads = 0;
+   private int numWrites = 0;
+
+   /**
+    * @param maxSize maximum number of documents to keep; 0 keeps all of them
+    */
+   public ContentCache(Store store, final int maxSize)
+   {
+      this.store = store;
+      this.cache = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+         protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            if (maxSize <= 0 || size() <= maxSize)
+            {
+               return false;
+            }
+            if (eldest.getValue().changed)
+            {
+               write(eldest.getKey(), eldest.getValue().content);
+            }
+            return true;
+         }
+      };
+   }
+
+   /**
+    * A document that is changed must be passed to changed when the changes are done,
+    * since it may have been dropped from the cache in the meantime
+    * @return the content of the page, or null if there is no such page
+    */
+   public Document get(String id)
+   {
+      synchronized (this)
+      {
+         Entry entry = cache.get(id);
+         if (entry != null)
+         {
+            return entry.content;
+         }
+      }
+      Document content = store.read(id);
+      synchronized (this)
+      {
+         numReads++;
+         if (content == null)
+         {
+            return null;
+         }
+         // another thread may have read it in the meantime
+         Entry entry = cache.get(id);
+         if (entry == null)
+         {
+            entry = new Entry(content, false);
+            cache.put(id, entry);
+         }
+         return entry.content;
+      }
+   }
+
+   /**
+    * Keeps the changed content until it is written back
+    */
+   public synchronized void changed(String id, Document content)
+   {
+      Entry entry = cache.get(id);
+      if (entry != null && entry.content == content)
+      {
+         entry.changed = true;
+      } else
+      {
+         cache.put(id, new Entry(content, true));
+      }
+   }
+
+   /**
+    * Called when the page's content has been written by someone else,
+    * either from this document or replacing it
+    * @param replaced whether the content was replaced, so this document is out of date
+    */
+   public synchronized void written(String id, boolean replaced)
+   {
+      if (replaced)
+      {
+         cache.remove(id);
+      } else
+      {
+         Entry entry = cache.get(id);
+         if (entry != null)
+         {
+            entry.changed = false;
+         }
+      }
+   }
+
+   /**
+    * Writes back all of the changed documents
+    */
+   public synchronized void flush()
+   {
+      for (Map.Entry<String, Entry> entry : cache.entrySet())
+      {
+         if (entry.getValue().changed)
+         {
+            write(entry.getKey(), entry.getValue().content);
+            entry.getValue().changed = false;
+         }
+      }
+   }
+
+   private void write(String id, Document content)
+   {
+      store.write(id, content);
+      numWrites++;
+   }
+
+   /**
+    * @return the number of times a page's content was parsed
+    */
+   public synchronized int getNumReads() {
+      return numReads;
+   }
+
+   /**
+    * @return the number of times a changed document was written back
+    */
+   public synchronized int getNumWrites() {
+      return numWrites;
+   }
+}
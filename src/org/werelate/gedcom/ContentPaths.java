@@ -0,0 +1,289 @@
+package org.werelate.gedcom;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Walks the fixed paths that GedcomXML and Name read in page contents directly,
+ * instead of evaluating an XPath expression for each page or reference.
+ * Each method returns what the XPath expression in its comment returns
+ * (a string expression returns "" when it matches nothing).
+ * Unlike XPath objects, these may be used by any number of threads at once.
+ */
+public class ContentPaths {
+   private static final String[] PERSON = {"person"};
+   private static final String[] PERSON_OR_FAMILY = {"person", "family"};
+   private static final String[] SOURCE = {"mysource", "source"};
+   private static final String[] FAMILY = {"family"};
+
+   private static final String[] FAMILY_REFERENCES = {"child_of_family", "spouse_of_family"};
+   private static final String[] PERSON_REFERENCES = {"husband", "wife", "child"};
+   private static final String[] SPOUSES = {"husband", "wife"};
+   private static final String[] SOURCES_PARENTS = {"name", "alt_name", "event_fact", "note"};
+   private static final String[] PLACES = {"place", "birthplace", "deathplace", "chrplace", "burialplace"};
+
+   private ContentPaths()
+   {
+   }
+
+   private static boolean isOneOf(String name, String[] names)
+   {
+      for (String n : names)
+      {
+         if (n.equals(name))
+         {
+            return true;
+         }
+      }
+      return false;
+   }
+
+   // Returns the root element of the content if it has one of the names, else null
+   private static Element getRoot(Node content, String[] names)
+   {
+      Element root = content != null && content.getNodeType() == Node.DOCUMENT_NODE ?
+                     ((Document) content).getDocumentElement() : null;
+      return root != null && isOneOf(root.getNodeName(), names) ? root : null;
+   }
+
+   /**
+    * @return the child elements of parent with one of the names, in document order
+    */
+   public static List<Element> getChildren(Node parent, String[] names)
+   {
+      List<Element> children = new ArrayList<Element>();
+      if (parent != null)
+      {
+         for (Node child = parent.getFirstChild(); child != null; child = child.getNextSibling())
+         {
+            if (child.getNodeType() == Node.ELEMENT_NODE && isOneOf(child.getNodeName(), names))
+            {
+               children.add((Element) child);
+            }
+         }
+      }
+      return children;
+   }
+
+   /**
+    * @return the first child element of parent with the name, or null
+    */
+   public static Element getFirstChild(Node parent, String name)
+   {
+      if (parent != null)
+      {
+         for (Node child = parent.getFirstChild(); child != null; child = child.getNextSibling())
+         {
+            if (child.getNodeType() == Node.ELEMENT_NODE && child.getNodeName().equals(name))
+            {
+               return (Element) child;
+            }
+         }
+      }
+      return null;
+   }
+
+   /**
+    * @return the value of the attribute, or "" if node is null or doesn't have it
+    */
+   public static String getAttribute(Node node, String name)
+   {
+      if (node == null || node.getAttributes() == null)
+      {
+         return "";
+      }
+      Node attribute = node.getAttributes().getNamedItem(name);
+      return attribute == null ? "" : attribute.getNodeValue();
+   }
+
+   /**
+    * /family/husband[1]/@id
+    */
+   public static String getHusbandId(Document content)
+   {
+      return getAttribute(getFirstChild(getRoot(content, FAMILY), "husband"), "id");
+   }
+
+   /**
+    * /family/wife[1]/@id
+    */
+   public static String getWifeId(Document content)
+   {
+      return getAttribute(getFirstChild(getRoot(content, FAMILY), "wife"), "id");
+   }
+
+   /**
+    * /family/husband/@id | /family/wife/@id
+    */
+   public static List<String> getSpouseIds(Node content)
+   {
+      List<String> ids = new ArrayList<String>();
+      for (Element spouse : getChildren(getRoot(content, FAMILY), SPOUSES))
+      {
+         if (spouse.hasAttribute("id"))
+         {
+            ids.add(spouse.getAttribute("id"));
+         }
+      }
+      return ids;
+   }
+
+   /**
+    * /mysource/title | /source/title
+    */
+   public static Element getSourceTitle(Document content)
+   {
+      return getFirstChild(getRoot(content, SOURCE), "title");
+   }
+
+   /**
+    * string(/mysource/title | /source/title)
+    */
+   public static String getSourceTitleText(Document content)
+   {
+      Element title = getSourceTitle(content);
+      return title == null ? "" : title.getTextContent();
+   }
+
+   /**
+    * person/child_of_family | person/spouse_of_family
+    */
+   public static List<Element> getFamilyReferences(Document content)
+   {
+      return getChildren(getRoot(content, PERSON), FAMILY_REFERENCES);
+   }
+
+   /**
+    * family/husband | family/wife | family/child
+    */
+   public static List<Element> getPersonReferences(Document content)
+   {
+      return getChildren(getRoot(content, FAMILY), PERSON_REFERENCES);
+   }
+
+   /**
+    * @child_of_family | @spouse_of_family
+    */
+   public static List<Node> getFamilyReferenceAttributes(Node reference)
+   {
+      List<Node> attributes = new ArrayList<Node>();
+      for (String name : FAMILY_REFERENCES)
+      {
+         Node attribute = reference.getAttributes().getNamedItem(name);
+         if (attribute != null)
+         {
+            attributes.add(attribute);
+         }
+      }
+      return attributes;
+   }
+
+   /**
+    * person/child_of_family
+    */
+   public static Element getChildOfFamily(Document content)
+   {
+      return getFirstChild(getRoot(content, PERSON), "child_of_family");
+   }
+
+   /**
+    * person/name
+    */
+   public static List<Element> getNames(Document content)
+   {
+      return getChildren(getRoot(content, PERSON), new String[] {"name"});
+   }
+
+   /**
+    * (person/name)[1]
+    */
+   public static Element getName(Document content)
+   {
+      return getFirstChild(getRoot(content, PERSON), "name");
+   }
+
+   /**
+    * person/alt_name
+    */
+   public static List<Element> getAltNames(Document content)
+   {
+      return getChildren(getRoot(content, PERSON), new String[] {"alt_name"});
+   }
+
+   /**
+    * person/event_fact | family/event_fact
+    */
+   public static List<Element> getEvents(Document content)
+   {
+      return getChildren(getRoot(content, PERSON_OR_FAMILY), new String[] {"event_fact"});
+   }
+
+   /**
+    * person/note | family/note
+    */
+   public static List<Element> getNotes(Document content)
+   {
+      return getChildren(getRoot(content, PERSON_OR_FAMILY), new String[] {"note"});
+   }
+
+   /**
+    * person/source_citation | family/source_citation
+    */
+   public static List<Element> getSourceCitations(Document content)
+   {
+      return getChildren(getRoot(content, PERSON_OR_FAMILY), new String[] {"source_citation"});
+   }
+
+   /**
+    * person/name[@sources] | person/alt_name[@sources] | person/event_fact[@sources] | person/note[@sources] |
+    * family/name[@sources] | family/alt_name[@sources] | family/event_fact[@sources] | family/note[@sources]
+    */
+   public static List<Element> getSourcesParents(Document content)
+   {
+      List<Element> parents = new ArrayList<Element>();
+      for (Element child : getChildren(getRoot(content, PERSON_OR_FAMILY), SOURCES_PARENTS))
+      {
+         if (child.hasAttribute("sources"))
+         {
+            parents.add(child);
+         }
+      }
+      return parents;
+   }
+
+   /**
+    * //@place | //@birthplace | //@deathplace | //@chrplace | //@burialplace
+    */
+   public static List<Node> getPlaceAttributes(Node content)
+   {
+      List<Node> attributes = new ArrayList<Node>();
+      if (content != null)
+      {
+         addPlaceAttributes(content, attributes);
+      }
+      return attributes;
+   }
+
+   private static void addPlaceAttributes(Node node, List<Node> attributes)
+   {
+      if (node.getNodeType() == Node.ELEMENT_NODE)
+      {
+         for (String name : PLACES)
+         {
+            Node attribute = node.getAttributes().getNamedItem(name);
+            if (attribute != null)
+            {
+               attributes.add(attribute);
+            }
+         }
+      }
+      for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling())
+      {
+         addPlaceAttributes(child, attributes);
+      }
+   }
+}
@@ -2312,7 +2312,7 @@ public class Gedcom implements ContentHandler {
       return numPlacesQueried;
    }
 
-   private Uploader uploader = null;
+   private PlaceNames uploader = null;
 
    /**
     * This creates a standardized place map
@@ -2497,7 +2497,9 @@ public class Gedcom implements ContentHandler {
       setRepos(null);
       logger.info("Done copying repository information");
       logger.info("Creating standardized place map");
+      JobMetrics.Timer timer = JobMetrics.start("placeStandardization");
       createStandardizedPlaceMap(placeServer, defaultCountry, placeXMLBuffer);
+      JobMetrics.stop(timer, numPlacesQueried);
       logger.info("Done creating standardized place map");
    }
 
@@ -2557,7 +2559,7 @@ public class Gedcom implements ContentHandler {
 
    /**
     * Constructor
-    * @param uploader uploader object which is controlling this GEDCOM
+    * @param uploader uploader object which is controlling this GEDCOM, or other place name standardizer
     * @param fn file name of GEDCOM
     * @param userName username of person to whom GEDCOM belongs
     * @param placeServer location of the place search server
@@ -2566,7 +2568,7 @@ public class Gedcom implements ContentHandler {
     * @throws SAXException
     * @throws PostProcessException
     */
-   public Gedcom(Uploader uploader, String fn, String userName, String placeServer, String defaultCountry,
+   public Gedcom(PlaceNames uploader, String fn, String userName, String placeServer, String defaultCountry,
                  int treeId, boolean isTrustedUploader,
                  boolean ignoreUnexpectedTags, StringBuffer placeXMLBuffer)
          throws IOException, SAXException, PostProcessException
@@ -2583,7 +2585,9 @@ public class Gedcom implements ContentHandler {
       gp.parse("file://" + (new File(fn)).getAbsolutePath());
       if (!isInvalid)
       {
+         JobMetrics.Timer timer = JobMetrics.start("postProcess");
          postProcess(placeServer, defaultCountry, placeXMLBuffer);
+         JobMetrics.stop(timer, getPeople().size() + getFamilies().size());
       }
    }
 
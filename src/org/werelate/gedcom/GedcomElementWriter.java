@@ -34,6 +34,13 @@ public class GedcomElementWriter extends ElementWriter {
    protected Map <String ,Map<String, Integer>> getAttributeOrderMap () {
       return attributeOrderMap;
    }
+
+   /**
+    * @return attribute name -> position for the element, or null if its attributes are written alphabetically
+    */
+   static Map<String, Integer> getAttributeOrder(String elementName) {
+      return attributeOrderMap.get(elementName);
+   }
    static {
       for (int i=0; i < ATTRIBUTE_ORDER.length; i++)
       {
@@ -0,0 +1,264 @@
+package org.werelate.gedcom;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.HttpMethod;
+import org.apache.commons.httpclient.HttpMethodBase;
+import org.apache.commons.httpclient.methods.EntityEnclosingMethod;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+
+/**
+ * Java Flight Recorder events for the hot paths of GEDCOM processing:
+ * parsing each level-0 record, data quality analysis of each person and family,
+ * printing each person and family, and each HTTP and database call.
+ *
+ * The events are only created when jfr_events=true is set in the properties,
+ * so they cost nothing otherwise. To record them, also start the JVM with e.g.
+ * -XX:StartFlightRecording=filename=gedcom.jfr,settings=profile
+ * and open the file in JDK Mission Control.
+ */
+public class GedcomEvents {
+   private static volatile boolean enabled = false;
+   private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+   // HttpMethodBase.setResponseStream, which is protected; null if it can't be called
+   private static final Method setResponseStream;
+   static
+   {
+      Method method = null;
+      try
+      {
+         method = HttpMethodBase.class.getDeclaredMethod("setResponseStream", InputStream.class);
+         method.setAccessible(true);
+      } catch (Exception e)
+      {
+         // the response sizes aren't recorded
+      }
+      setResponseStream = method;
+   }
+
+   /**
+    * @return whether the events should be created
+    */
+   public static boolean isEnabled() {
+      return enabled;
+   }
+
+   public static void setEnabled(boolean enabled) {
+      GedcomEvents.enabled = enabled;
+   }
+
+   @jdk.jfr.Name("org.werelate.gedcom.RecordParsed")
+   @Label("GEDCOM Record Parsed")
+   @Category({"WeRelate", "GEDCOM"})
+   @Description("Parsing of one level-0 record of the GEDCOM file")
+   public static class RecordParsed extends jdk.jfr.Event {
+      @Label("Record Type")
+      public String recordType;
+
+      @Label("Lines")
+      public int lines;
+
+      @Label("Size")
+      @DataAmount
+      public long chars;
+   }
+
+   @jdk.jfr.Name("org.werelate.gedcom.DqAnalysis")
+   @Label("Data Quality Analysis")
+   @Category({"WeRelate", "GEDCOM"})
+   @Description("Looking for problems in one person or family")
+   public static class DqAnalysis extends jdk.jfr.Event {
+      @Label("Kind")
+      public String kind;
+
+      @Label("ID")
+      public String id;
+   }
+
+   @jdk.jfr.Name("org.werelate.gedcom.Print")
+   @Label("Print")
+   @Category({"WeRelate", "GEDCOM"})
+   @Description("Printing one person or family to the in-process XML file")
+   public static class Print extends jdk.jfr.Event {
+      @Label("Kind")
+      public String kind;
+
+      @Label("ID")
+      public String id;
+
+      @Label("Allocated")
+      @DataAmount
+      public long allocatedBytes;
+   }
+
+   @jdk.jfr.Name("org.werelate.gedcom.HttpCall")
+   @Label("HTTP Call")
+   @Category({"WeRelate", "Network"})
+   @Description("One request to the wiki, match server or place server")
+   public static class HttpCall extends jdk.jfr.Event {
+      @Label("Endpoint")
+      public String endpoint;
+
+      @Label("Request Size")
+      @DataAmount
+      public long requestBytes;
+
+      @Label("Response Size")
+      @DataAmount
+      public long responseBytes;
+
+      @Label("Status")
+      public int status;
+   }
+
+   @jdk.jfr.Name("org.werelate.gedcom.DbCall")
+   @Label("Database Call")
+   @Category({"WeRelate", "Database"})
+   @Description("One attempt at a database operation; the stack trace shows which")
+   public static class DbCall extends jdk.jfr.Event {
+      @Label("Succeeded")
+      public boolean succeeded;
+   }
+
+   /**
+    * Executes the method, recording an HttpCall event if events are enabled.
+    * The response is left for the caller to read; the event counts the bytes read
+    * and is committed once the response has been read to the end or closed,
+    * e.g. by releaseConnection, so its duration includes reading the response.
+    * @param endpoint name of the server, e.g. wiki or place
+    * @return the HTTP status
+    * @throws IOException
+    */
+   public static int executeMethod(HttpClient client, HttpMethod m, String endpoint) throws IOException
+   {
+      if (!enabled)
+      {
+         return client.executeMethod(m);
+      }
+      HttpCall event = new HttpCall();
+      event.endpoint = endpoint + ' ' + m.getPath();
+      if (m instanceof EntityEnclosingMethod && ((EntityEnclosingMethod) m).getRequestEntity() != null)
+      {
+         event.requestBytes = ((EntityEnclosingMethod) m).getRequestEntity().getContentLength();
+      }
+      event.begin();
+      boolean counting = false;
+      try
+      {
+         event.status = client.executeMethod(m);
+         InputStream in = m.getResponseBodyAsStream();
+         if (in != null && setResponseStream != null && m instanceof HttpMethodBase)
+         {
+            setResponseStream.invoke(m, new CountingInputStream(in, event));
+            counting = true;
+         }
+         return event.status;
+      } catch (ReflectiveOperationException e)
+      {
+         return event.status;
+      } finally
+      {
+         if (!counting)
+         {
+            commit(event);
+         }
+      }
+   }
+
+   private static void commit(HttpCall event)
+   {
+      event.end();
+      if (event.shouldCommit())
+      {
+         event.commit();
+      }
+   }
+
+   // Counts the bytes of a response, and commits its event when the response is done
+   private static class CountingInputStream extends FilterInputStream {
+      private HttpCall event;
+
+      CountingInputStream(InputStream in, HttpCall event)
+      {
+         super(in);
+         this.event = event;
+      }
+
+      public int read() throws IOException
+      {
+         int b = super.read();
+         count(b < 0 ? -1 : 1);
+         return b;
+      }
+
+      public int read(byte[] b, int off, int len) throws IOException
+      {
+         int n = super.read(b, off, len);
+         count(n);
+         return n;
+      }
+
+      public long skip(long n) throws IOException
+      {
+         long skipped = super.skip(n);
+         if (event != null)
+         {
+            event.responseBytes += skipped;
+         }
+         return skipped;
+      }
+
+      public void close() throws IOException
+      {
+         try
+         {
+            super.close();
+         } finally
+         {
+            done();
+         }
+      }
+
+      // getResponseBody drops the stream once it reaches the end without closing it
+      private void count(long n)
+      {
+         if (n < 0)
+         {
+            done();
+         } else if (event != null)
+         {
+            event.responseBytes += n;
+         }
+      }
+
+      private void done()
+      {
+         if (event != null)
+         {
+            commit(event);
+            event = null;
+         }
+      }
+   }
+
+   /**
+    * @return the bytes allocated so far by this thread, or 0 if the JVM can't tell
+    */
+   public static long getAllocatedBytes()
+   {
+      if (threads instanceof com.sun.management.ThreadMXBean)
+      {
+         return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+      }
+      return 0;
+   }
+}
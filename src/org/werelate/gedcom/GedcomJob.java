@@ -0,0 +1,1212 @@
+package org.werelate.gedcom;
+
+import org.apache.commons.httpclient.NameValuePair;
+import org.apache.commons.httpclient.methods.PostMethod;
+import org.apache.commons.httpclient.methods.GetMethod;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.werelate.util.*;
+import org.w3c.dom.Node;
+import org.w3c.dom.Document;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXParseException;
+
+import java.sql.*;
+import java.util.*;
+import java.util.Date;
+import java.util.regex.Pattern;
+import java.util.regex.Matcher;
+import java.io.*;
+import java.text.SimpleDateFormat;
+
+import javax.xml.xpath.*;
+import javax.xml.transform.TransformerException;
+
+/**
+ * Processing of a single GEDCOM from the familytree_gedcom queue.
+ * All of the state of the GEDCOM being processed lives here,
+ * and each job talks to the wiki through its own UserTalker session,
+ * so several jobs can run at once in one JVM. Configuration, the
+ * database connection and the shared place and source services are
+ * provided by the Uploader.
+ */
+public class GedcomJob {
+   private static final Logger logger =
+         LogManager.getLogger("org.werelate.gedcom.Upload");
+
+   private Uploader uploader;
+   private UserTalker userTalker;
+
+   // id of the gedcom that we're processing
+   private int gedID;
+   // The status of the GEDCOM when it was taken from the queue
+   private int gedStatus;
+   //User name and id of the owner of the GEDCOM
+   private String userName;
+   private int userID;
+   // The tree the GEDCOM is being uploaded to
+   private int treeID;
+   private String treeName;
+   private String gedcomName;
+   // The default country of the GEDCOM
+   private String defaultCountry;
+   // Number of places standardized while parsing the GEDCOM
+   private int numPlaces = 0;
+
+   // Used to parse the responses of the match server
+   private XPathExpression findMatches;
+   private XPathExpression scoreExpression;
+   private XPathExpression titleExpression;
+
+   /**
+    * A GEDCOM's settings, read from a row of the queue query: fg_id, fg_status, ft_user,
+    * user_id, ft_tree_id, fg_gedcom_filename, ft_name, fg_default_country, fg_status_date.
+    * The rows of all of the GEDCOMs the scheduler chooses from are read while the
+    * Uploader's lock is held; a job is only made for the one that is claimed.
+    */
+   static class QueueRow {
+      int gedID, gedStatus, userID, treeID;
+      String userName, gedcomName, treeName, defaultCountry, statusDate;
+
+      QueueRow(ResultSet rs) throws IOException, SQLException
+      {
+         treeName = Uploader.rsReadString(rs, 7);
+         gedcomName = Uploader.rsReadString(rs, 6);
+         defaultCountry = rs.getString(8);
+         treeID = rs.getInt(5);
+         userID = rs.getInt(4);
+         userName = Uploader.rsReadString(rs, 3);
+         gedStatus = rs.getInt(2);
+         gedID = rs.getInt(1);
+         statusDate = rs.getString(9);
+      }
+   }
+
+   /**
+    * @param uploader provides configuration, the database and the shared services
+    * @param userTalker wiki session used by this job
+    * @param row the GEDCOM's row of the queue query
+    */
+   GedcomJob(Uploader uploader, UserTalker userTalker, QueueRow row)
+   {
+      this.uploader = uploader;
+      this.userTalker = userTalker;
+      treeName = row.treeName;
+      gedcomName = row.gedcomName;
+      defaultCountry = row.defaultCountry;
+      treeID = row.treeID;
+      userID = row.userID;
+      userName = row.userName;
+      gedStatus = row.gedStatus;
+      gedID = row.gedID;
+      try
+      {
+         XPath xpe = XPathFactory.newInstance().newXPath();
+         findMatches = xpe.compile("/response/result/doc");
+         scoreExpression = xpe.compile("float[@name='score']");
+         titleExpression = xpe.compile("str[@name='TitleStored']");
+      } catch (XPathExpressionException e)
+      {
+         throw new RuntimeException(e);
+      }
+   }
+
+   public int getGedID() {
+      return gedID;
+   }
+
+   public int getGedStatus() {
+      return gedStatus;
+   }
+
+   public String getUserName() {
+      return userName;
+   }
+
+   public String getGedcomName() {
+      return gedcomName;
+   }
+
+   public int getNumPlaces() {
+      return numPlaces;
+   }
+
+   private File getInProcessRecordFile()
+   {
+      return new File(uploader.getXml_inprocess(), gedID + PageRecordFile.EXTENSION);
+   }
+
+   // The in-process XML file, or the record file written from it if it hasn't been changed since.
+   // The XML's length and checksum are compared, not the files' modification times, which
+   // copying may not keep and which may only be to the second.
+   private String getInProcessPath()
+   {
+      File xmlFile = new File(uploader.getXml_inprocess(), gedID + ".xml");
+      File recordFile = getInProcessRecordFile();
+      if (uploader.isInProcessRecords())
+      {
+         try
+         {
+            if (PageRecordFile.isFromXML(recordFile, xmlFile))
+            {
+               return recordFile.getPath();
+            }
+         } catch (IOException e)
+         {
+            logger.warn("Could not check " + recordFile + ": " + e.getMessage());
+         }
+      }
+      return xmlFile.getPath();
+   }
+
+   // Request parameters for a call to the wiki's ajax api
+   private static NameValuePair [] ajaxParams(String rs, String rsargs)
+   {
+      return new NameValuePair [] {
+            new NameValuePair("rs", rs),
+            new NameValuePair("action", "ajax"),
+            new NameValuePair("rsargs", rsargs)
+      };
+   }
+
+   /**
+    * Processes the GEDCOM according to its status:
+    * parses and prints an uploaded GEDCOM to the in-process XML file,
+    * or reserves titles and generates the pages of a reviewed GEDCOM.
+    * The GEDCOM has already been claimed, which set its status to STATUS_PROCESSING or STATUS_GENERATING.
+    * @return false if the GEDCOM could not be processed yet
+    *    (its .ged or generated .xml file hasn't been copied to this server)
+    */
+   public boolean process() throws IOException, Uploader.GenerateException, InterruptedException, SQLException,
+         Gedcom.GedcomException, XPathException, TransformerException, SAXException
+   {
+      String xmlPath = uploader.getXml_output() + '/' + gedID + ".xml";
+      if (gedStatus == Uploader.STATUS_REGENERATE && !(new File(xmlPath)).exists())
+      {
+         // may not have been copied to this server yet; wait until next time
+         return false;
+      }
+      if (gedStatus == Uploader.STATUS_REGENERATE)
+      {
+         // Then we will just read in the gedcom from the path
+         // instead of reparsing and re-reserving IDs for all
+         // of the titles
+         if (!uploader.isUnitTesting())
+         {
+            // First we need to reload the XML file.
+            GedcomXML gedXML = new GedcomXML(uploader);
+            gedXML.setContentCacheSize(uploader.getContentCacheSize());
+            gedXML.setPrepareThreads(uploader.getPrepareThreads());
+            try
+            {
+               gedXML.parse(xmlPath);
+               readGedcomData(gedXML, true); // re-read gedcom data to set matchedIds and id2ReservedTitle
+               logger.info("Preparing the XML file to be generated");
+               JobMetrics.Timer timer = JobMetrics.start("prepareForGeneration");
+               gedXML.prepareForGeneration();
+               JobMetrics.stop(timer, gedXML.getPages().size());
+               logger.info("Updating the family tree with matched titles.");
+               addPagesToFamilyTree(gedXML.getMatchedPagesXML(treeID));
+               logger.info("Generating the updated XML file");
+               timer = JobMetrics.start("uploadXML");
+               uploadXML(gedXML.getPages());
+               JobMetrics.stop(timer, gedXML.getPages().size());
+               String primaryTitle = gedXML.getPrimaryPersonTitle();
+               if (primaryTitle != null)
+               {
+                  updatePrimaryPerson(primaryTitle);
+               }
+               logger.info("Done generating the XML file");
+            } catch (GedcomXML.GedcomXMLException e)
+            {
+               logger.warn(e.getMessage());
+               hadException(e);
+            }
+         }
+      } else if (gedStatus == Uploader.STATUS_CREATE_PAGES)
+      {
+         // Let's do each of the steps we need to.
+         // First let's read in the xml that we're going to process.
+         try
+         {
+            GedcomXML gedXml = new GedcomXML(uploader);
+            gedXml.setContentCacheSize(uploader.getContentCacheSize());
+            gedXml.setPrepareThreads(uploader.getPrepareThreads());
+            gedXml.setCompressOutput(uploader.isCompressOutputXML());
+            gedXml.parse(getInProcessPath());
+            readGedcomData(gedXml, false);
+
+            // Now that we're parsed, let's go ahead and reserve
+            // the titles.
+            reserveIDs(gedXml);
+
+            // Set existing titles in the XML file prior to saving so we can get them in case we need to regenerate
+            gedXml.setExistingTitles();
+
+            // Makes all citations of a mysource that only has a title simple the contents of
+            // the title as opposed to a link to the (now) excluded mysource
+            // gedXml.fixTitleOnlyMySourceReferences(); -- doesn't seem to work; let's not apply it  (perhaps it's not a good idea after all)
+
+            // Now let's go ahead and save the xml file.
+            // After we save the XML file, we will go ahead and
+            // generate the pages.
+            logger.info("Saving the updated XML file");
+            gedXml.save(new File(uploader.getXml_output() + '/' + gedID + ".xml"));
+
+            // this must be done before prepareForGeneration because that function deletes the mysource title field for some reason
+            if (!uploader.isUnitTesting()) {
+               logger.info("Add gedcom_source_matches");
+               addGedcomSourceMatches(gedXml.getPages());
+            }
+
+            logger.info("Preparing the XML file to be generated");
+            JobMetrics.Timer timer = JobMetrics.start("prepareForGeneration");
+            gedXml.prepareForGeneration();
+            JobMetrics.stop(timer, gedXml.getPages().size());
+
+            if (!uploader.isUnitTesting())
+            {
+               logger.info("Updating the family tree with matched titles.");
+               addPagesToFamilyTree(gedXml.getMatchedPagesXML(treeID));
+               logger.info("Generating the updated XML file");
+               timer = JobMetrics.start("uploadXML");
+               uploadXML(gedXml.getPages());
+               JobMetrics.stop(timer, gedXml.getPages().size());
+               String primaryTitle = gedXml.getPrimaryPersonTitle();
+               if (primaryTitle != null)
+               {
+                  updatePrimaryPerson(primaryTitle);
+               }
+               logger.info("Done generating the XML file");
+            }
+         } catch (GedcomXML.GedcomXMLException e)
+         {
+            logger.warn(e.getMessage());
+            hadException(e);
+         }
+         catch (XPathException e)
+         {
+            logger.warn ("XPath Exception: "+e.getMessage());
+            hadException(e);
+         }catch (SAXException e)
+         {
+            logger.warn ("SAX Exception: "+e.getMessage());
+            hadException(e);
+         } finally
+         {
+            // The pages are generated from the output XML from now on
+            getInProcessRecordFile().delete();
+         }
+      } else if (gedStatus == Uploader.STATUS_UPLOADED
+            || gedStatus==Uploader.STATUS_IGNORE_OVERLAP)
+      {
+         String gedPath = uploader.getGedcomDir() + '/' + gedID + ".ged";
+         if (!(new File(gedPath)).exists()) {
+            // may not have been copied to the gedcom processor server yet; wait until next time
+            return false;
+         }
+
+         try
+         {
+            String inprocessPath = uploader.getXml_inprocess() + '/' + gedID + ".xml";
+            StringBuffer placeXMLBuffer = new StringBuffer();
+            boolean isTrustedUploader = getIsTrustedUploader(userName, gedID);
+            Gedcom gedcom = new Gedcom(uploader, gedPath, userName,
+                                       uploader.getPlaceServer(), defaultCountry, treeID, isTrustedUploader,
+                                       uploader.isIgnoreUnexpectedTags(), placeXMLBuffer);
+            // If the GEDCOM appears to not be a GEDCOM,
+            if(gedcom.isInvalid())
+            {
+               doGedInvalid();
+            } else
+            {
+               numPlaces = gedcom.getNumPlacesQueried();
+               InProcessXML.prepare(gedcom);
+               PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(
+                     GzipFiles.openOutputStream(new File(inprocessPath), uploader.isCompressInProcessXML()), "UTF-8")));
+               InProcessXML.print(gedcom, placeXMLBuffer, out, uploader.isEncodeXML(), new InProcessXML.Matcher() {
+                  public void matchSource(Source source) throws InterruptedException {
+                     GedcomJob.this.matchSource(source);
+                  }
+
+                  public void findMatches(Family fam, Gedcom gedcom) throws Uploader.GenerateException {
+                     if (!uploader.isStubMatching())
+                     {
+                        GedcomJob.this.findMatches(fam, gedcom);
+                     }
+                  }
+               });
+               out.close();
+               // The user reviews the source matches, so they must all be sent first
+               uploader.getSourceMatcher().flush(gedID);
+               // If there are warnings, then we want to update the status
+               // of the GEDCOM and skip the page generation
+               if (gedcom.getNumWarnings() > 0)
+               {
+                  logger.warn(gedcom.getUserName() + ':' + gedcom.getFN() + " has "
+                        + gedcom.getNumWarnings() + " warning(s).");
+                  String reason;
+                  if (gedcom.isUnknownTag())
+                  {
+                     reason = "Unfamiliar tag(s) found in gedcom";
+                  } else
+                  {
+                     reason = "Post-processing exception occurred";
+                  }
+                  uploader.updateGedcom(Uploader.STATUS_ERROR, gedID, reason);
+                  userTalker.sendErrorMessage(userName, gedcomName, gedID);
+               } else
+               {
+                  // It's time to use the api to actually update the gedcom
+
+                  // First let's free up the memory taken up by the gedcom object:
+                  gedcom = null;
+
+                  // The record file is read instead of the XML when the pages are generated
+                  if (uploader.isInProcessRecords())
+                  {
+                     PageRecordFile.fromXML(new File(inprocessPath), getInProcessRecordFile());
+                  }
+
+                  // Let's update the GEDCOM's status so that the
+                  // user may review it.
+                  System.out.print('\n');
+                  uploader.updateGedcom(Uploader.STATUS_REVIEW, gedID, "");
+                  if (!uploader.isUnitTesting())
+                  {
+                     userTalker.sendGedcomReviewMessage(userName, gedcomName, gedID);
+                  }
+               }
+            }
+         } catch (SAXException e)
+         {
+            hadException(e);
+         }
+         catch (Gedcom.PostProcessException e)
+         {
+            logger.warn(e.getMessage());
+            //e.printStackTrace();
+            hadException(e);
+         } catch (GedcomElementWriter.ElementWriterException e)
+         {
+            logger.warn(e.getMessage());
+            hadException(e);
+         }
+         /*
+         // We no longer do this because too many GEDCOMs
+         // did not have UIDs.
+         catch (Gedcom.UIDException e)
+         {
+            uploader.updateGedcom(Uploader.STATUS_REJECTED, gedID, "UID not present for all INDI and FAM objects");
+         }*/
+      }
+      return true;
+   }
+
+   private static String printQueryPart(String fieldName, String name)
+   {
+      if (!PlaceUtils.isEmpty(name))
+      {
+         return fieldName + ":\"" + Utils.removeQuotesEtc(name) + "\" ";
+      } else
+      {
+         return "";
+      }
+   }
+
+   private static boolean bornBefore1600(List<String> personIds, Gedcom gedcom)
+   {
+      for (String personId : personIds)
+      {
+         Person spouse = gedcom.getPeople().get(personId);
+         if (spouse != null)
+         {
+            String birthDate = spouse.getBirthDate();
+            if (birthDate != null && Utils.dateIsBefore1600AD(birthDate)) {
+               return true;
+            }
+         }
+      }
+      return false;
+   }
+
+   private static String printPersonFields(String personType, List<String> personIds, Gedcom gedcom, boolean isMedieval)
+   {
+      String query = "";
+      for (String personId : personIds)
+      {
+         Person spouse = gedcom.getPeople().get(personId);
+         if (spouse != null && spouse.getName() != null)
+         {
+            if (!Utils.isEmpty(spouse.getName().getGiven()) && !spouse.getName().getGiven().toLowerCase().equals("unknown"))
+            {
+               query += printQueryPart(personType + "Givenname", spouse.getName().getFirstGiven());
+            }
+            if (!Utils.isEmpty(spouse.getName().getSurname()) && !spouse.getName().getSurname().toLowerCase().equals("unknown"))
+            {
+               query += printQueryPart(personType + "Surname", spouse.getName().getSurname());
+            }
+            boolean foundBirth = false;
+            boolean foundDeath = false;
+            for (Event event : spouse.getEvents())
+            {
+               if (!foundBirth && event.getType() == Event.Type.birth)
+               {
+                  foundBirth = true;
+                  query += printQueryPart(personType + "BirthDate", event.getAttribute("DATE"));
+               } else if (isMedieval && !foundDeath && event.getType() == Event.Type.death)
+               {
+                  foundDeath = true;
+                  query += printQueryPart(personType + "DeathDate", event.getAttribute("DATE"));
+               }
+            }
+            if (!foundBirth || (isMedieval && !foundDeath))
+            {
+               for (Event event : spouse.getEvents())
+               {
+                  if (!foundBirth && (event.getType() == Event.Type.christening || event.getType() == Event.Type.Baptism))
+                  {
+                     foundBirth = true;
+                     query += printQueryPart(personType + "BirthDate", event.getAttribute("DATE"));
+                  } else if (isMedieval && !foundDeath && event.getType() == Event.Type.burial)
+                  {
+                     foundDeath = true;
+                     query += printQueryPart(personType + "DeathDate", event.getAttribute("DATE"));
+                  }
+               }
+            }
+         }
+      }
+      return query;
+   }
+
+   // Pattern used to parse the primary person update response.
+   private static final Pattern pPrimaryResponse = Pattern.compile("<updateTreePrimary\\s+status=\"([^\"]+)\"/>");
+
+   private void updatePrimaryPerson(String title)
+   {
+      PostMethod m = null;
+      try
+      {
+         String url = uploader.getApiUrl();
+         m = new PostMethod(url);
+         String rsargs = "tree_id=" + treeID + "|primary=" + title;
+         m.setRequestBody(ajaxParams("wfUpdateTreePrimary", rsargs));
+         if (!uploader.executeHttpMethod(userTalker, m))
+         {
+            logger.warn("There was an error when executing the method to update the primary person");
+            String msg = "No longer can talk to the wiki server while updating the primary person";
+            uploader.updateGedcom(Uploader.STATUS_GENERATE_FAILED, gedID, msg);
+            userTalker.sendErrorMessage(userName, gedcomName, gedID);
+            throw new RuntimeException(msg);
+         }
+         String response = m.getResponseBodyAsString();
+         Matcher mPrimaryResponse = pPrimaryResponse.matcher(response);
+         if (mPrimaryResponse.find())
+         {
+            int status = Integer.parseInt(mPrimaryResponse.group(1));
+            if (status != 0)
+            {
+               // Throw an exception about a non-zero status.
+               // I think status -2 means you're not logged in.
+               throw new RuntimeException("Unrecognized status after attempting to update the primary person: " + status);
+            }
+         } else
+         {
+            throw new RuntimeException("Unrecognized response after attempting to update the primary person: " + response);
+         }
+      } catch (Exception e)
+      {
+         throw new RuntimeException(e);
+      } finally
+      {
+         m.releaseConnection();
+      }
+   }
+
+   private boolean getIsTrustedUploader(String userName, int gedID) throws SQLException, SAXException, IOException {
+      boolean isTrusted = false;
+      boolean foundResponse = false;
+      PostMethod m = null;
+      try
+      {
+         String url = uploader.getApiUrl();
+         m = new PostMethod(url);
+         m.setRequestBody(ajaxParams("wfIsTrustedUploader", "user_name=" + userName));
+         if (!uploader.executeHttpMethod(userTalker, m))
+         {
+            logger.warn("There was an error when executing the method wfIsTrustedUploader");
+            String msg = "No longer can talk to the wiki server while calling wfIsTrustedUploader";
+            uploader.updateGedcom(Uploader.STATUS_GENERATE_FAILED, gedID, msg);
+            userTalker.sendErrorMessage(userName, gedcomName, gedID);
+            throw new RuntimeException(msg);
+         }
+         String response = m.getResponseBodyAsString();
+         m.releaseConnection();
+
+         m = null;
+         Matcher mStatus = Uploader.pResponseStatus.matcher(response);
+         if (mStatus.find())
+         {
+            String status = mStatus.group(2);
+            if (!status.equals("0"))
+            {
+               String msg = "Response status for wfIsTrustedUploader is not 0, it is " + status;
+               uploader.updateGedcom(Uploader.STATUS_GENERATE_FAILED, gedID, msg);
+               userTalker.sendErrorMessage(userName, gedcomName, gedID);
+               throw new RuntimeException(msg + '\n' + response);
+            }
+
+            // Let's parse the response.
+            Document resultDoc = Uploader.getDocumentBuilder().parse(new InputSource(new StringReader(response)));
+            Node node = resultDoc.getFirstChild().getAttributes().getNamedItem("trusted");
+            if (node != null) {
+               foundResponse = true;
+               isTrusted = node.getNodeValue().equalsIgnoreCase("true");
+            }
+         }
+
+         if (!foundResponse) {
+            String msg = "Could not get a response status when calling wfIsTrustedUploader";
+            uploader.updateGedcom(Uploader.STATUS_GENERATE_FAILED, gedID, msg);
+            userTalker.sendErrorMessage(userName, gedcomName, gedID);
+            throw new RuntimeException(msg + ":\n" + response);
+         }
+
+      } catch (IOException e)
+      {
+         uploader.updateGedcom(Uploader.STATUS_GENERATE_FAILED, gedID, e.getMessage());
+         userTalker.sendErrorMessage(userName, gedcomName, gedID);
+         throw new RuntimeException(e);
+      } finally
+      {
+         if (m != null)
+         {
+            m.getResponseBodyAsString();
+            m.releaseConnection();
+         }
+      }
+
+      return isTrusted;
+   }
+
+   private void findMatches(Family fam, Gedcom gedcom)
+         throws Uploader.GenerateException
+   {
+      // First let's find potential matches for this
+      // family:
+      String response;
+      String url = "http://" + uploader.getMatchServer() + "/search";
+      GetMethod m = new GetMethod(url);
+      String query = "";
+
+      // We need to see if either husband or wife
+      // has a medieval birth date.
+      boolean isMedieval = bornBefore1600(fam.getHusbands(), gedcom) ||
+            bornBefore1600(fam.getWives(), gedcom);
+
+      query += printPersonFields("Husband", fam.getHusbands(), gedcom, isMedieval);
+      query += printPersonFields("Wife", fam.getWives(), gedcom, isMedieval);
+      // Let's put the marriage information in there.
+      for (Event event : fam.getEvents())
+      {
+         if (event.getType() == Event.Type.marriage)
+         {
+            String date = event.getAttribute("DATE");
+            String place = event.getAttribute("PLAC");
+            if (!PlaceUtils.isEmpty(date))
+            {
+               query += printQueryPart("MarriageDate", date);
+            }
+            if (!PlaceUtils.isEmpty(place))
+            {
+               query += printQueryPart("MarriagePlace", place);
+            }
+         }
+      }
+
+      // First let's see what the max score was.
+      // If it was not above the threshold, then we stop, because
+      // none of the matches are close enough.
+
+      // Build the source document. This is outside the scope of the XPath API, and
+      // is therefore Saxon-specific.
+
+      try
+      {
+         if (!Utils.isEmpty(query))
+         {            
+            NameValuePair [] nvp = {
+                  new NameValuePair("fl", "TitleStored,score"),
+                  new NameValuePair("rows", "3"),
+                  new NameValuePair("wt", "xml"),
+                  new NameValuePair("hl", "false"),
+                  new NameValuePair("q", query)
+            };
+            m.setQueryString(nvp);
+
+            if (uploader.executeMatchMethod(userTalker, m))
+            {
+               Document doc = Uploader.getDocumentBuilder().parse(m.getResponseBodyAsStream());
+               NodeList matches = (NodeList)findMatches.evaluate(doc, XPathConstants.NODESET);
+               if (matches != null && matches.getLength() > 0)
+               {
+                  String matchesString = "";
+                  for (int i = 0; i < matches.getLength(); i++)
+                  {
+                     Node docNode = matches.item(i);
+                     float score = Float.parseFloat((String) scoreExpression.evaluate(docNode, XPathConstants.STRING));
+                     String matchTitle = (String) titleExpression.evaluate(docNode, XPathConstants.STRING);
+                     if ((isMedieval && score > uploader.getMedievalMatchScore()) || (!isMedieval && score > uploader.getMinimumMatchScore()))
+                     {
+                        if (matchesString.length() > 0)
+                        {
+                           matchesString += '|';
+                        }
+                        matchesString += matchTitle;
+                     }
+                  }
+                  fam.setMatches(matchesString);
+               }
+            } else
+            {
+               String msg = "No longer can talk to wiki server when searching for matches";
+                  throw new Uploader.GenerateException(msg);
+            }
+         }
+      } catch (SAXParseException e)
+      {
+         // Let's print out what we got back from the server:
+         try
+         {
+            System.out.println("Query:\n");
+            System.out.println(query);
+            System.out.println("Response:\n");
+            System.out.println(m.getResponseBodyAsString());
+         } catch (IOException e2)
+         {
+
+         }
+         throw new RuntimeException(e);
+      }
+      catch (Exception e)
+      {
+         throw new RuntimeException(e);
+      } finally
+      {
+         m.releaseConnection();
+      }
+   }
+
+   private void hadException(Exception e) throws SQLException {
+      uploader.updateGedcom(Uploader.STATUS_ERROR, gedID, e.getMessage());
+      if (!uploader.isUnitTesting())
+      {
+         userTalker.sendErrorMessage(userName, gedcomName, gedID);
+      }
+   }
+
+   void doGedInvalid() throws SQLException {
+      uploader.updateGedcom(Uploader.STATUS_NOT_GEDCOM, gedID, "File does not appear to be a GEDCOM");
+      if (!uploader.isUnitTesting())
+      {
+         userTalker.sendNotGedcom(userName, gedcomName);
+      }
+   }
+
+   /**
+    *
+    * @param url of the machine to request the reservations from
+    * @param request the request string to send to the reservation machine
+    * @return the response received by the reservation machine
+    * @throws Uploader.GenerateException
+    * @throws IOException
+    */
+   public String sendIndexNumbersRequest (String url, String request)
+         throws Uploader.GenerateException, IOException
+   {
+      String response;
+      PostMethod m = new PostMethod(url);
+      m.setRequestBody(ajaxParams("wfReserveIndexNumbers", request));
+
+      if (uploader.executeHttpMethod(userTalker, m))
+      {
+         response = m.getResponseBodyAsString();
+         m.releaseConnection();
+         return response;
+      } else
+      {
+         String msg = "No longer can talk to wiki server when requesting title index numbers";
+            throw new Uploader.GenerateException(msg);
+      }
+   }
+   // Pattern used to parse the pIndexResponses
+   private static final Pattern pIndexResponse = Pattern.compile("<page[^>]+namespace=\"([^\"]+)\"[^>]+" +
+         "title=\"([^\"]+)\"[^>]+titleix=\"([^\"]+)\"[^>]*/>");
+
+   /**
+    * Returns reservations garnered from the reservation API
+    * @param requestsList reservation requests
+    * @return Map Uploader.ReservationRequest -> reservations matching the reservation request.
+    *   We must have a Queue of reservations for each reservationRequests, because
+    *   multiple people and families might have the same names, and we want to
+    *   assign such reservations to them one by one.
+    * @throws SQLException
+    * @throws IOException
+    * @throws Uploader.GenerateException thrown because of a problem interacting with the reservation API
+    */
+   private Map <Uploader.ReservationRequest, Queue <String>> getReservations (Uploader.RequestsList requestsList)
+         throws SQLException, IOException, Uploader.GenerateException
+   {
+      try
+      {
+         Map <Uploader.ReservationRequest, Queue <String>> rval = new HashMap<Uploader.ReservationRequest, Queue <String>>();
+         if (requestsList.size() > 0) {
+            for (StringBuffer requests : requestsList.getBuffers())
+            {
+               String responseString = sendIndexNumbersRequest(uploader.getApiUrl(),
+                     "<gedcom>\n" + requests.toString() + "</gedcom>");
+               Matcher m = pIndexResponse.matcher(responseString);
+               boolean foundResponse = false;
+               while (m.find())
+               {
+                  foundResponse = true;
+                  String namespace = m.group(1);
+                  String title = Utils.unencodeXML(m.group(2));
+                  String titleix = Utils.unencodeXML(m.group(3));
+                  Uploader.ReservationRequest rr = new Uploader.ReservationRequest(Integer.parseInt(namespace), title);
+                  // If the map already contains the reservation request,
+                  // we add the reservation to the queue for that reservation request
+                  if (rval.containsKey(rr))
+                  {
+                     Queue <String> queue = rval.get(rr);
+                     queue.add(titleix);
+                  }
+                  // If the map does not already contain the reservation request,
+                  // we put the reservation request into the map with a value
+                  // set as a new Queue with the current reservation as its
+                  // initial value.
+                  else
+                  {
+                     Queue <String> queue = new LinkedList <String>();
+                     queue.add(titleix);
+                     rval.put(rr, queue);
+                  }
+               }
+               if (!foundResponse)
+               {
+                  // If we didn't get a valid response, seomthing is wrong,
+                  // so we should stop reserving and uploading for now
+                  // by throwing a Generate exception, which will stop the
+                  // whole process.
+                  String msg = "Invalid response to my reservation request. Response = ";
+                  String exceptResponse;
+                  if (responseString.length() > 250)
+                  {
+                     exceptResponse = responseString.substring(0, 250);
+                  } else
+                  {
+                     exceptResponse = responseString;
+                  }
+                  throw new Uploader.GenerateException(msg + ":\n" + exceptResponse);
+               }
+            }
+         }
+         return rval;
+      } catch (Uploader.GenerateException e)
+      {
+         uploader.updateGedcom(Uploader.STATUS_ERROR, gedID, e.getMessage());
+         if (!uploader.isUnitTesting()) {
+            userTalker.sendErrorMessage(userName, gedcomName, gedID);
+         }
+         throw e;
+      }
+   }   
+
+   // Simulates the actions of the reservation server by assuming that
+   // the names for this GEDCOM have never been previously reserved.
+   // This is used for the unit testing mode.
+   // The output of this method is the "reservedNames" parameter.
+   // "values" must be a collection of EventContainer
+   // "namespace" of course is the namespace of the EventContainers in "values
+   private void stubReserveNames(Gedcom gedcom, Map<Integer, Set<String>> reservedNames, int namespace, Object values)
+         throws Gedcom.PostProcessException
+   {
+      Collection <EventContainer> ecc = (Collection <EventContainer>) values;
+      for (EventContainer ec : ecc)
+      {
+         Set<String> setReservedNames;
+         if (reservedNames.containsKey(namespace))
+         {
+            setReservedNames = reservedNames.get(namespace);
+         } else
+         {
+            setReservedNames = new TreeSet<String>();
+            reservedNames.put(namespace, setReservedNames);
+         }
+         int i = 1;
+         String candidateName;
+         do
+         {
+            candidateName = ec.getWikiTitle(gedcom) + " (" + i + ')';
+            i++;
+         } while(setReservedNames.contains(candidateName));
+         setReservedNames.add(candidateName);
+
+         //ec.setReservedTitle(candidateName);
+      }
+   }
+   // Method responsible for reserving IDs for all sources, people, and families
+   // in the parameter gedcom object
+
+   private void reserveIDs (GedcomXML gedXml) throws XPathExpressionException,
+         SQLException, IOException, Uploader.GenerateException, GedcomXML.GedcomXMLException
+   {
+      logger.info("Reserving IDs for people, families and sources in Gedcom");
+      Uploader.RequestsList requestsList = new Uploader.RequestsList();
+      // Add to the requestsList all the wikiTitles of all of the families and people in the
+      // gedcom
+      gedXml.addRequests(requestsList, userName);
+
+      if (requestsList.size() == 0)
+      {
+         logger.warn("There are no reservations to be made. There may be a problem with the GEDCOM.");
+      }
+      // From the reservation server ...
+      JobMetrics.Timer timer = JobMetrics.start("reservation");
+      Map <Uploader.ReservationRequest, Queue<String>> reservations = getReservations(requestsList);
+      // Now have the people and families eat the reservations garnered from the
+      // reservation server
+      gedXml.setReservedTitles(reservations);
+      JobMetrics.stop(timer, requestsList.size());
+      logger.info("Done reserving titles for people and families in Gedcom");
+      logger.info("Updating all gedcom ID references with the reserved titles");
+      timer = JobMetrics.start("updateContent");
+      gedXml.updateContent(uploader.getPlaceServer());
+      JobMetrics.stop(timer, gedXml.getPages().size());
+      logger.info("Done updating with reserved titles");
+   }
+
+   // Is also called for regenerate in order to set id2ExistingPageTitles
+   private void readGedcomData(GedcomXML gedXml, boolean regenerate) throws SQLException, IOException,
+         GedcomXML.GedcomXMLException, IOException,
+         XPathExpressionException, SAXException
+   {
+      PostMethod m = null;
+      try
+      {
+         String url = uploader.getApiUrl();
+         m = new PostMethod(url);
+         m.setRequestBody(ajaxParams("wfReadGedcomData", "gedcom_id=" + Integer.toString(gedID)));
+         if (!uploader.executeHttpMethod(userTalker, m))
+         {
+            logger.warn("There was an error when executing the method to read GEDCOM data");
+            String msg = "No longer can talk to the wiki server while reading GEDCOM data";
+            uploader.updateGedcom(Uploader.STATUS_GENERATE_FAILED, gedID, msg);
+            userTalker.sendErrorMessage(userName, gedcomName, gedID);
+            throw new RuntimeException(msg);
+         }
+         String response = m.getResponseBodyAsString();
+         m.releaseConnection();
+
+         m = null;
+         Matcher mStatus = Uploader.pResponseStatus.matcher(response);
+         if (mStatus.find())
+         {
+            //logger.warn("Found status: " + mStatus.group(2));
+            // If the command line argument statusToProcess is set to
+            // Uploader.STATUS_GENERATE_FAILED, then that means that we should
+            // ignore status(-5) errors received from the generate API
+            String status = mStatus.group(2);
+            if (!status.equals("0"))
+            {
+               String msg = "Response status for wfReadGedcomData is not 0, it is " + status;
+               uploader.updateGedcom(Uploader.STATUS_GENERATE_FAILED, gedID, msg);
+               userTalker.sendErrorMessage(userName, gedcomName, gedID);
+               throw new RuntimeException(msg + '\n' + response);
+            }
+         } else
+         {
+            String msg = "Could not get a response status when generating page";
+            uploader.updateGedcom(Uploader.STATUS_GENERATE_FAILED, gedID, msg);
+            userTalker.sendErrorMessage(userName, gedcomName, gedID);
+            throw new RuntimeException(msg + ":\n" + response);
+         }
+
+         // Let's parse the response.
+         gedXml.SetData(response, regenerate);
+      } catch (IOException e)
+      {
+         uploader.updateGedcom(Uploader.STATUS_GENERATE_FAILED, gedID, e.getMessage());
+         userTalker.sendErrorMessage(userName, gedcomName, gedID);
+         throw new RuntimeException(e);
+      } finally
+      {
+         if (m != null)
+         {
+            m.getResponseBodyAsString();
+            m.releaseConnection();
+         }
+      }
+   }
+
+   /**
+    * Queues a request to the wiki to match the source against existing
+    * Source pages. The request is sent in the background by the uploader.getSourceMatcher().
+    * @param source source being printed
+    */
+   public void matchSource(Source source) throws InterruptedException {
+      String author = Util.cleanGedcomSource(source.getAuthor());
+      String title = Util.cleanGedcomSource(source.getTitle());
+      String abbrev = Util.cleanGedcomSource(source.getAbbreviation());
+      uploader.getSourceMatcher().matchSource(userID, gedID, source.getID(), author, title, abbrev);
+   }
+
+   /**
+    * Queues a wfAddGedcomSourceMatches request for every mysource page that
+    * was matched to a Source page. The requests are sent in the background
+    * by the uploader.getSourceMatcher().
+    * @param pages pages of the GEDCOM
+    */
+   public void addGedcomSourceMatches (Collection<Node> pages) throws InterruptedException
+   {
+      logger.info("Adding Gedcom source matches for " + gedID);
+      for (Node page : pages)
+      {
+         if (page.getAttributes().getNamedItem("namespace") != null &&
+             page.getAttributes().getNamedItem("namespace").getNodeValue().equals("104") &&
+             page.getAttributes().getNamedItem("title") != null &&
+             page.getAttributes().getNamedItem("title").getNodeValue().length() > 0)
+         {
+            NodeList nodes = page.getChildNodes();
+            for (int i = 0; i < nodes.getLength(); i++) {
+               Node node = nodes.item(i);
+               if (node.getNodeType() == Node.ELEMENT_NODE && "content".equals(node.getNodeName())) {
+                  String content = node.getTextContent();
+                  Matcher mXmlContent = GedcomXML.pPageContentXml.matcher(content);
+                  if (mXmlContent.find())
+                  {
+                     String xmlContentString = mXmlContent.group(0);
+                     try {
+                        String author = "";
+                        String title = "";
+                        String abbrev = "";
+                        Document contentDocument = Uploader.getDocumentBuilder().parse(new InputSource(new StringReader(xmlContentString)));
+                        NodeList mysources = contentDocument.getChildNodes();
+                        for (int j = 0; j < mysources.getLength(); j++) {
+                           Node mysource = mysources.item(j);
+                           if (mysource.getNodeType() == Node.ELEMENT_NODE && "mysource".equals(mysource.getNodeName())) {
+                              NodeList fields = mysource.getChildNodes();
+                              for (int k = 0; k < fields.getLength(); k++) {
+                                 Node field = fields.item(k);
+                                 if (field.getNodeType() == Node.ELEMENT_NODE)
+                                 {
+                                    String nodeName = field.getNodeName();
+                                    String nodeText = Util.cleanGedcomSource(field.getTextContent());
+                                    if ("title".equals(nodeName)) {
+                                       title = nodeText;
+                                    }
+                                    else if ("author".equals(nodeName)) {
+                                       author = nodeText;
+                                    }
+                                    else if ("abbrev".equals(nodeName)) {
+                                       abbrev = nodeText;
+                                    }
+                                 }
+                              }
+                           }
+                        }
+                        if (title.length() > 0 || abbrev.length() > 0) {
+                           String pageTitle = page.getAttributes().getNamedItem("title").getNodeValue().replace(' ', '_');
+                           uploader.getSourceMatcher().addGedcomSourceMatch(userID, gedID, author, title, abbrev, pageTitle);
+                        }
+                     } catch (SAXException e) {
+                        // ignore
+                     } catch (IOException e) {
+                        // ignore
+                     }
+                  }
+               }
+            }
+         }
+      }
+   }
+
+   // This next method is responsible for sending the
+   // contents of the gedcom's xml file to the wikiserver
+   // generate API, page by page.
+   private void uploadXML (Collection<Node> pages) throws SQLException, IOException, TransformerException
+   {
+      BufferedReader in = null;
+      PostMethod m = null;
+      try
+      {
+
+         logger.info("Generating pages for " + gedID);
+         String pageString = "";
+         String url = uploader.getApiUrl();
+         int i=0;
+         for (Node page : pages)
+         {
+            if (page.getAttributes().getNamedItem("exclude") == null ||
+                  !page.getAttributes().getNamedItem("exclude").getNodeValue().equals("true"))
+            {
+               m = new PostMethod(url);
+               String xmlText = GedcomXML.serializeNode(page);
+               m.setRequestBody(ajaxParams("wfGenerateFamilyTreePage", xmlText));
+
+               if (!uploader.executeHttpMethod(userTalker, m))
+               {
+                  logger.warn("There was an error when executing method.");
+                  String msg = "No longer can talk to wiki server.";
+                  uploader.updateGedcom(Uploader.STATUS_GENERATE_FAILED, gedID, msg);
+                  userTalker.sendErrorMessage(userName, gedcomName, gedID);
+                  throw new RuntimeException(msg);
+               }
+               //logger.warn("Done executing method.");
+               String response = m.getResponseBodyAsString();
+               m.releaseConnection();
+               // Just to make sure that we don't
+               // try to release it again in the
+               // finally clause, we set m = null
+               m = null;
+               Matcher mStatus = Uploader.pResponseStatus.matcher(response);
+               if (mStatus.find())
+               {
+                  //logger.warn("Found status: " + mStatus.group(2));
+                  // If the command line argument statusToProcess is set to
+                  // Uploader.STATUS_GENERATE_FAILED, then that means that we should
+                  // ignore status(-5) errors received from the generate API
+                  String status = mStatus.group(2);
+                  if (!status.equals("0") && !(status.equals("-5") &&
+                        (gedStatus == Uploader.STATUS_REGENERATE)))
+                  {
+                     String msg = "Response status for wfGenerateFamilyTreePage is not 0, it is " + status;
+                     uploader.updateGedcom(Uploader.STATUS_GENERATE_FAILED, gedID, msg);
+                     userTalker.sendErrorMessage(userName, gedcomName, gedID);
+                     logger.warn("Received status "+status+" for page with title: \"" +
+                           page.getAttributes().getNamedItem("title").getTextContent() + "\"");
+                     throw new RuntimeException(msg + '\n' + page);
+                  } else if (status.equals("-5"))
+                  {
+                     logger.warn("Received status -5 for page with title: \"" +
+                           page.getAttributes().getNamedItem("title").getTextContent() + "\"");
+                  }
+               } else
+               {
+                  String msg = "Could not get a response status when generating page";
+                  uploader.updateGedcom(Uploader.STATUS_GENERATE_FAILED, gedID, msg);
+                  userTalker.sendErrorMessage(userName, gedcomName, gedID);
+                  throw new RuntimeException(msg + ":\n" + page);
+               }
+               i++;
+               if (i % 25 == 0)
+               {
+                  logger.info("Generated 25 pages time="+(new SimpleDateFormat("HH:mm:ss")).format(new Date()));
+                  System.out.print('.');
+               }
+               Utils.sleep(100); // pause just a little
+            }
+         }
+         System.out.print('\n');
+         uploader.updateGedcom(Uploader.STATUS_READY, gedID, "");
+         userTalker.sendSuccessfulMessage(userName, gedcomName, treeName);
+      } catch (FileNotFoundException e)
+      {
+         uploader.updateGedcom(Uploader.STATUS_GENERATE_FAILED, gedID, e.getMessage());
+         userTalker.sendErrorMessage(userName, gedcomName, gedID);
+         throw new RuntimeException(e);
+      } catch (IOException e)
+      {
+         uploader.updateGedcom(Uploader.STATUS_GENERATE_FAILED, gedID, e.getMessage());
+         userTalker.sendErrorMessage(userName, gedcomName, gedID);
+         throw new RuntimeException(e);
+      } finally
+      {
+         if (in != null)
+         {
+            in.close();
+         }
+         if (m != null)
+         {
+            m.getResponseBodyAsString();
+            m.releaseConnection();
+         }
+      }
+   }
+
+   // This next method is responsible for sending the
+   // contents of the gedcom's xml file to the wikiserver
+   // generate API, page by page.
+   private void addPagesToFamilyTree (String pagesXML) throws SQLException, IOException, TransformerException
+   {
+      BufferedReader in = null;
+      PostMethod m = null;
+      try
+      {
+
+         logger.info("Adding pages to family tree for " + gedID);
+         String url = uploader.getApiUrl();
+         m = new PostMethod(url);
+         m.setRequestBody(ajaxParams("wfAddPagesToTree", pagesXML));
+
+         //logger.warn("Executing Method.");
+         if (!uploader.executeHttpMethod(userTalker, m))
+         {
+            logger.warn("There was an error when executing method.");
+            String msg = "No longer can talk to wiki server.";
+            uploader.updateGedcom(Uploader.STATUS_GENERATE_FAILED, gedID, msg);
+            userTalker.sendErrorMessage(userName, gedcomName, gedID);
+            throw new RuntimeException(msg);
+         }
+         //logger.warn("Done executing method.");
+         String response = m.getResponseBodyAsString();
+         m.releaseConnection();
+         // Just to make sure that we don't
+         // try to release it again in the
+         // finally clause, we set m = null
+         m = null;
+         Matcher mStatus = Uploader.pResponseStatus.matcher(response);
+         if (mStatus.find())
+         {
+            //logger.warn("Found status: " + mStatus.group(2));
+            // If the command line argument statusToProcess is set to
+            // Uploader.STATUS_GENERATE_FAILED, then that means that we should
+            // ignore status(-5) errors received from the generate API
+            String status = mStatus.group(2);
+            if (!status.equals("0"))
+            {
+               String msg = "Response status for wfAddPagesToTree is not 0, it is " + status;
+               uploader.updateGedcom(Uploader.STATUS_GENERATE_FAILED, gedID, msg);
+               userTalker.sendErrorMessage(userName, gedcomName, gedID);
+               throw new RuntimeException(msg + '\n' + pagesXML);
+            }
+         } else
+         {
+            String msg = "Could not get a response status when adding pages to tree";
+            uploader.updateGedcom(Uploader.STATUS_GENERATE_FAILED, gedID, msg);
+            userTalker.sendErrorMessage(userName, gedcomName, gedID);
+            throw new RuntimeException(msg + ":\n" + pagesXML);
+         }
+      } catch (IOException e)
+      {
+         uploader.updateGedcom(Uploader.STATUS_GENERATE_FAILED, gedID, e.getMessage());
+         userTalker.sendErrorMessage(userName, gedcomName, gedID);
+         throw new RuntimeException(e);
+      } finally
+      {
+         if (in != null)
+         {
+            in.close();
+         }
+         if (m != null)
+         {
+            m.getResponseBodyAsString();
+            m.releaseConnection();
+         }
+      }
+   }
+
+}
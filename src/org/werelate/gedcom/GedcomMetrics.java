@@ -0,0 +1,254 @@
+package org.werelate.gedcom;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Adds up the JobMetrics of every GEDCOM job run by this process.
+ * The totals are registered with JMX as org.werelate.gedcom:type=GedcomMetrics,
+ * written in the Prometheus text format to metrics_file after each job,
+ * and a summary row of each job is appended to the CSV file metrics_csv.
+ */
+public class GedcomMetrics implements GedcomMetricsMBean {
+   private static final Logger logger =
+         LogManager.getLogger("org.werelate.gedcom.GedcomMetrics");
+
+   public static final String OBJECT_NAME = "org.werelate.gedcom:type=GedcomMetrics";
+   private static final double NANOS_PER_SECOND = 1e9;
+
+   private File prometheusFile = null;
+   private File csvFile = null;
+   // guarded by this
+   private long jobs = 0;
+   private JobMetrics.StageTotals totals = new JobMetrics.StageTotals();
+   private Map<String, JobMetrics.StageTotals> stages = new LinkedHashMap<String, JobMetrics.StageTotals>();
+
+   /**
+    * @param properties reads metrics_file and metrics_csv; either may be left out
+    */
+   public GedcomMetrics(Properties properties)
+   {
+      String fileName = properties.getProperty("metrics_file");
+      if (fileName != null && fileName.trim().length() > 0)
+      {
+         prometheusFile = new File(fileName.trim());
+      }
+      fileName = properties.getProperty("metrics_csv");
+      if (fileName != null && fileName.trim().length() > 0)
+      {
+         csvFile = new File(fileName.trim());
+      }
+      for (String stage : JobMetrics.STAGES)
+      {
+         stages.put(stage, new JobMetrics.StageTotals());
+      }
+   }
+
+   /**
+    * Registers the metrics with the platform MBean server
+    */
+   public void register()
+   {
+      try
+      {
+         ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(OBJECT_NAME));
+      } catch (JMException e)
+      {
+         logger.warn("Could not register " + OBJECT_NAME + ": " + e.getMessage());
+      }
+   }
+
+   /**
+    * Unregisters the metrics from the platform MBean server
+    */
+   public void unregister()
+   {
+      try
+      {
+         ManagementFactory.getPlatformMBeanServer().unregisterMBean(new ObjectName(OBJECT_NAME));
+      } catch (JMException e)
+      {
+         // wasn't registered
+      }
+   }
+
+   /**
+    * Adds the metrics of a finished job to the totals, and writes the
+    * Prometheus file and the job's CSV row
+    * @param job the job
+    * @param metrics its metrics, after JobMetrics.end
+    */
+   public void jobDone(GedcomJob job, JobMetrics metrics)
+   {
+      synchronized (this)
+      {
+         jobs++;
+         totals.add(metrics.getTotals());
+         for (Map.Entry<String, JobMetrics.StageTotals> e : metrics.getStages().entrySet())
+         {
+            JobMetrics.StageTotals t = stages.get(e.getKey());
+            if (t == null)
+            {
+               t = new JobMetrics.StageTotals();
+               stages.put(e.getKey(), t);
+            }
+            t.add(e.getValue());
+         }
+      }
+      try
+      {
+         if (prometheusFile != null)
+         {
+            writePrometheus(prometheusFile);
+         }
+         if (csvFile != null)
+         {
+            appendCsv(csvFile, job, metrics);
+         }
+      } catch (IOException e)
+      {
+         logger.warn("Could not write metrics: " + e.getMessage());
+      }
+   }
+
+   /**
+    * Writes the totals in the Prometheus text exposition format, replacing
+    * the file in one step so a scraper never reads half of it
+    * @throws IOException
+    */
+   public synchronized void writePrometheus(File file) throws IOException
+   {
+      File tmp = new File(file.getPath() + ".tmp");
+      PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8"));
+      try
+      {
+         out.println("# TYPE gedcom_jobs_total counter");
+         out.println("gedcom_jobs_total " + jobs);
+         out.println("# TYPE gedcom_job_wall_seconds_total counter");
+         out.println("gedcom_job_wall_seconds_total " + totals.getWallNanos() / NANOS_PER_SECOND);
+         printStages(out, "gedcom_stage_calls_total", 0);
+         printStages(out, "gedcom_stage_wall_seconds_total", 1);
+         printStages(out, "gedcom_stage_cpu_seconds_total", 2);
+         printStages(out, "gedcom_stage_allocated_bytes_total", 3);
+         printStages(out, "gedcom_stage_items_total", 4);
+      } finally
+      {
+         out.close();
+      }
+      if (!tmp.renameTo(file))
+      {
+         file.delete();
+         if (!tmp.renameTo(file))
+         {
+            throw new IOException("Could not rename " + tmp + " to " + file);
+         }
+      }
+   }
+
+   private void printStages(PrintWriter out, String name, int field)
+   {
+      out.println("# TYPE " + name + " counter");
+      for (Map.Entry<String, JobMetrics.StageTotals> e : stages.entrySet())
+      {
+         JobMetrics.StageTotals t = e.getValue();
+         String value;
+         switch (field)
+         {
+            case 0: value = Long.toString(t.getCalls()); break;
+            case 1: value = Double.toString(t.getWallNanos() / NANOS_PER_SECOND); break;
+            case 2: value = Double.toString(t.getCpuNanos() / NANOS_PER_SECOND); break;
+            case 3: value = Long.toString(t.getAllocatedBytes()); break;
+            default: value = Long.toString(t.getItems()); break;
+         }
+         out.println(name + "{stage=\"" + e.getKey() + "\"} " + value);
+      }
+   }
+
+   /**
+    * Appends a row with the job's totals and the wall time (ms) and items of each stage,
+    * writing the header first if the file is new
+    * @throws IOException
+    */
+   public synchronized void appendCsv(File file, GedcomJob job, JobMetrics metrics) throws IOException
+   {
+      boolean isNew = !file.exists() || file.length() == 0;
+      PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8"));
+      try
+      {
+         StringBuilder line = new StringBuilder();
+         if (isNew)
+         {
+            line.append("date,ged_id,user,status,wall_ms,cpu_ms,allocated_bytes");
+            for (String stage : JobMetrics.STAGES)
+            {
+               line.append(',').append(stage).append("_ms,").append(stage).append("_items");
+            }
+            out.println(line);
+            line.setLength(0);
+         }
+         JobMetrics.StageTotals t = metrics.getTotals();
+         line.append(Uploader.generateDateString()).append(',')
+               .append(job.getGedID()).append(',')
+               .append('"').append(job.getUserName().replace("\"", "\"\"")).append('"').append(',')
+               .append(job.getGedStatus()).append(',')
+               .append(t.getWallNanos() / 1000000).append(',')
+               .append(t.getCpuNanos() / 1000000).append(',')
+               .append(t.getAllocatedBytes());
+         for (String stage : JobMetrics.STAGES)
+         {
+            JobMetrics.StageTotals s = metrics.getStages().get(stage);
+            line.append(',').append(s.getWallNanos() / 1000000).append(',').append(s.getItems());
+         }
+         out.println(line);
+      } finally
+      {
+         out.close();
+      }
+   }
+
+   private synchronized JobMetrics.StageTotals getStage(String stage)
+   {
+      JobMetrics.StageTotals t = stages.get(stage);
+      return t == null ? new JobMetrics.StageTotals() : t;
+   }
+
+   public synchronized long getJobs() {
+      return jobs;
+   }
+
+   public synchronized long getTotalWallMillis() {
+      return totals.getWallNanos() / 1000000;
+   }
+
+   public synchronized String[] getStageNames() {
+      return stages.keySet().toArray(new String[stages.size()]);
+   }
+
+   public synchronized long getStageCalls(String stage) {
+      return getStage(stage).getCalls();
+   }
+
+   public synchronized long getStageWallMillis(String stage) {
+      return getStage(stage).getWallNanos() / 1000000;
+   }
+
+   public synchronized long getStageCpuMillis(String stage) {
+      return getStage(stage).getCpuNanos() / 1000000;
+   }
+
+   public synchronized long getStageAllocatedBytes(String stage) {
+      return getStage(stage).getAllocatedBytes();
+   }
+
+   public synchronized long getStageItems(String stage) {
+      return getStage(stage).getItems();
+   }
+}
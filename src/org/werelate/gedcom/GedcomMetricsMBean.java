@@ -0,0 +1,22 @@
+package org.werelate.gedcom;
+
+/**
+ * JMX view of the metrics of all of the GEDCOM jobs run by this process
+ */
+public interface GedcomMetricsMBean {
+   public long getJobs();
+
+   public long getTotalWallMillis();
+
+   public String[] getStageNames();
+
+   public long getStageCalls(String stage);
+
+   public long getStageWallMillis(String stage);
+
+   public long getStageCpuMillis(String stage);
+
+   public long getStageAllocatedBytes(String stage);
+
+   public long getStageItems(String stage);
+}
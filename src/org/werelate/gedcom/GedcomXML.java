@@ -6,19 +6,29 @@ import org.xml.sax.SAXException;
 import org.werelate.util.Utils;
 import org.werelate.util.PlaceUtils;
 import org.werelate.util.MultiMap;
-import org.werelate.util.ElementWriter;
+import org.werelate.util.GzipFiles;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 import javax.xml.xpath.*;
 import javax.xml.transform.*;
 import javax.xml.transform.dom.DOMSource;
 import javax.xml.transform.stream.StreamResult;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.zip.GZIPOutputStream;
 
 /**
  * Created by IntelliJ IDEA.
@@ -32,8 +42,16 @@ public class GedcomXML {
          LogManager.getLogger("org.werelate.gedcom.GedcomXML");
 
    private Map<String, Node> id2Page = new HashMap<String, Node>();
-   private Map<String, Document> id2Content = new HashMap<String, Document>();
+   private int contentCacheSize = DEFAULT_CONTENT_CACHE_SIZE;
+   private int prepareThreads = 1;
+   private boolean compressOutput = false;
+   private ContentCache contents = newContentCache();
    private Map<String, String> id2Text = new HashMap<String,String>();
+   // Pages whose content was replaced by SetData since it was last saved
+   private Set<String> replacedContentIds = new HashSet<String>();
+   // Set when a PageRecordFile was parsed; the pages whose content is still as it was recorded
+   private PageRecordFile records = null;
+   private Set<String> recordContentIds = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
    private Set<String> excludedIds = new HashSet<String>();
    private Set<String> livingIds = new HashSet<String>();
    private Set<String> matchedIds = new HashSet<String>();
@@ -44,6 +62,7 @@ public class GedcomXML {
    private Map<String, String> id2ReservedTitle = new HashMap<String, String>();
    private Map<String, String> placeText2Id = new HashMap<String, String>();
    private Map<String, String> placeId2Standardized = new HashMap<String, String>();
+   private Map<String, Node> placeId2Node = new HashMap<String, Node>();
    private Map<String, String> id2Uid = new HashMap<String,String>();
    private Map<String, Integer> id2Namespace = new HashMap<String, Integer>();
    private MultiMap<String,String> id2ExistingPageTitles = new MultiMap <String, String>();
@@ -63,7 +82,7 @@ public class GedcomXML {
    public void SetData(String resultString, boolean regenerate) throws XPathExpressionException, GedcomXMLException,
          SAXException, IOException
    {
-      Document resultDoc = Uploader.db.parse(new InputSource(new StringReader(resultString)));
+      Document resultDoc = Uploader.getDocumentBuilder().parse(new InputSource(new StringReader(resultString)));
       Node primaryNode = resultDoc.getFirstChild().getAttributes().getNamedItem("primary");
       if (!regenerate && primaryNode != null)
       {
@@ -94,6 +113,7 @@ public class GedcomXML {
             id2Text.remove(id);
             // We update the page's contents
             parseContent(result.getTextContent(), id);
+            replacedContentIds.add(id);
          }
 
          Node excludeNode = result.getAttributes().getNamedItem("exclude");
@@ -157,8 +177,7 @@ public class GedcomXML {
             {
                if (!regenerate) {
                   // We should also update the place node for this id.
-                  XPathExpression expression = xpe.compile("/gedcom/place[@key='" + id + "']");
-                  Node placeNode = (Node) expression.evaluate(doc, XPathConstants.NODE);
+                  Node placeNode = placeId2Node.get(id);
                   if (!match)
                   {
                      matchTitle = placeNode.getAttributes().getNamedItem("text").getNodeValue();
@@ -275,13 +294,10 @@ public class GedcomXML {
       {
          // Let's first determine if any of the
          // parents are currently living.
-         Node content = id2Content.get(id);
-         NodeList spouseIds = (NodeList) spouseIdExpression.evaluate(content, XPathConstants.NODESET);
-
+         Node content = contents.get(id);
          boolean hasLivingSpouse = false;
-         for (int i=0; i < spouseIds.getLength(); i++)
+         for (String spouseId : ContentPaths.getSpouseIds(content))
          {
-            String spouseId = spouseIds.item(i).getNodeValue();
             if (livingIds.contains(spouseId))
             {
                hasLivingSpouse = true;
@@ -303,62 +319,16 @@ public class GedcomXML {
       }
    }
 
-   private static XPathExpression pageExpression;
-   private static XPathExpression placeExpression;
-   public static XPathExpression namespaceExpression;
-   public static XPathExpression nameExpression;
-   public static XPathExpression idExpression;
-   public static XPathExpression excludedExpression;
-   public static XPathExpression livingExpression;
-   private static XPathExpression contentExpression;
-   private static XPathExpression husbandIdExpression;
-   private static XPathExpression wifeIdExpression;
-   private static XPathExpression spouseIdExpression;
-   private static XPathExpression sourceTitleExpression;
-   private static XPathExpression familyReferenceExpression;
-   private static XPathExpression personReferenceExpression;
-   private static XPathExpression personReferenceAttributeExpression;
-   private static XPathExpression childOfFamilyExpression;
-   private static XPathExpression sourceCitationExpression;
-   private static XPathExpression sourceIdExpression;
-   private static XPathExpression sourcesExpression;
-   private static XPathExpression placeAttributeExpression;
-   private static XPathExpression resultExpression;
-   private static XPathExpression eventExpression;
-   private static XPathExpression altNameExpression;
-   private static XPathExpression noteExpression;
-   private static XPathExpression uidExpression;
-   private static final XPath xpe = Uploader.xpe;
+   // The fixed paths inside page contents are read with ContentPaths
+   private XPathExpression resultExpression;
+   // XPath objects and compiled expressions aren't thread-safe,
+   // so each GedcomXML compiles its own
+   private final XPath xpe = XPathFactory.newInstance().newXPath();
 
-   static
    {
       try
       {
-         pageExpression = xpe.compile("/gedcom/page");
-         placeExpression = xpe.compile("/gedcom/place");
-         namespaceExpression = xpe.compile("@namespace");
-         idExpression = xpe.compile("@id");
-         uidExpression = xpe.compile("@uid");
-         excludedExpression = xpe.compile("@exclude");
-         livingExpression = xpe.compile("@living");
-         contentExpression = xpe.compile("content");
-         husbandIdExpression = xpe.compile("/family/husband[1]/@id");
-         wifeIdExpression = xpe.compile("/family/wife[1]/@id");
-         spouseIdExpression = xpe.compile("/family/husband/@id | /family/wife/@id");
-         sourceTitleExpression = xpe.compile("/mysource/title | /source/title");
-         familyReferenceExpression = xpe.compile("person/child_of_family | person/spouse_of_family");
-         personReferenceExpression = xpe.compile("family/husband | family/wife | family/child");
-         personReferenceAttributeExpression = xpe.compile("@child_of_family | @spouse_of_family");
-         childOfFamilyExpression = xpe.compile("person/child_of_family");
-         sourceCitationExpression = xpe.compile("person/source_citation | family/source_citation");
-         sourceIdExpression = xpe.compile("@source_id");
-         sourcesExpression = xpe.compile("person/name[@sources] | person/alt_name[@sources] | person/event_fact[@sources] | person/note[@sources] | family/name[@sources] | family/alt_name[@sources] | family/event_fact[@sources] | family/note[@sources]");
-         placeAttributeExpression = xpe.compile("//@place | //@birthplace | //@deathplace | //@chrplace | //@burialplace");
          resultExpression = xpe.compile("/readGedcomData/result");
-         eventExpression = xpe.compile("person/event_fact | family/event_fact");
-         nameExpression = xpe.compile("person/name");
-         altNameExpression = xpe.compile("person/alt_name");
-         noteExpression = xpe.compile("person/note | family/note");
          //textExpression = xpe.compile("@text");
          //titleExpression = xpe.compile("@title");
       } catch (XPathExpressionException e)
@@ -389,100 +359,312 @@ public class GedcomXML {
       return null;
    }
 
+   /**
+    * Reads an in-process XML file, which may be gzip-compressed, or a PageRecordFile written from one
+    */
    public void parse(String filename) throws XPathException, XPathExpressionException,
          SAXException, IOException, GedcomXMLException
    {
-      doc = Uploader.db.parse(new InputSource(new InputStreamReader(new FileInputStream(filename), "UTF-8")));
-      Node primaryPersonNode = doc.getFirstChild().getAttributes().getNamedItem("primary_person");
-      if (primaryPersonNode != null)
+      doc = Uploader.getDocumentBuilder().newDocument();
+      File file = new File(filename);
+      recordContentIds.clear();
+      try
       {
-         primaryPerson = primaryPersonNode.getNodeValue();
+         if (PageRecordFile.isPageRecordFile(file))
+         {
+            // the contents are built from their records when they are first needed,
+            // and serialized again when they are saved
+            records = PageRecordFile.open(file);
+            for (PageRecordFile.Page page : records.getPages())
+            {
+               if (page.hasContent())
+               {
+                  recordContentIds.add(page.getId());
+               }
+            }
+            readDocument(records.newReader(false));
+         } else
+         {
+            records = null;
+            InputStream in = GzipFiles.openInputStream(file);
+            try
+            {
+               readDocument(xmlInputFactory.createXMLStreamReader(in, "UTF-8"));
+            } finally
+            {
+               in.close();
+            }
+         }
+      } catch (XMLStreamException e)
+      {
+         throw new SAXException("Error reading " + filename + ": " + e.getMessage(), e);
       }
+   }
 
-      // First let's get the standardized places.
-      NodeList places = (NodeList) placeExpression.evaluate(doc, XPathConstants.NODESET);
-      for (int i = 0; i < places.getLength(); i++)
+   private void readDocument(XMLStreamReader reader)
+         throws XMLStreamException, SAXException, IOException, GedcomXMLException
+   {
+      // A single forward pass over the file: the place and page elements are read as they go by,
+      // and only the gedcom, place, page and content elements are kept as a DOM,
+      // since the pages are edited and written back out by save.
+      try
+      {
+         Node parent = doc;
+         while (reader.hasNext())
+         {
+            switch (reader.next())
+            {
+               case XMLStreamConstants.START_ELEMENT:
+                  Element element = doc.createElement(reader.getLocalName());
+                  for (int i = 0; i < reader.getAttributeCount(); i++)
+                  {
+                     element.setAttribute(reader.getAttributeLocalName(i), reader.getAttributeValue(i));
+                  }
+                  parent.appendChild(element);
+                  parent = element;
+                  break;
+               case XMLStreamConstants.END_ELEMENT:
+                  Node parentOfEnded = parent.getParentNode();
+                  if (parentOfEnded == doc)
+                  {
+                     readGedcomElement((Element) parent);
+                  } else if (parentOfEnded.getParentNode() == doc)
+                  {
+                     if (parent.getNodeName().equals("place"))
+                     {
+                        readPlace((Element) parent);
+                     } else if (parent.getNodeName().equals("page"))
+                     {
+                        readPage((Element) parent);
+                     }
+                  }
+                  parent = parentOfEnded;
+                  break;
+               case XMLStreamConstants.CHARACTERS:
+               case XMLStreamConstants.SPACE:
+                  if (parent != doc)
+                  {
+                     parent.appendChild(doc.createTextNode(reader.getText()));
+                  }
+                  break;
+               case XMLStreamConstants.CDATA:
+                  parent.appendChild(doc.createCDATASection(reader.getText()));
+                  break;
+               default:
+                  break;
+            }
+         }
+      } finally
       {
-         Node place = places.item(i);
-         String id = place.getAttributes().getNamedItem("key").getNodeValue();
-         String text = place.getAttributes().getNamedItem("text").getNodeValue();
-         placeText2Id.put(text, id);
-         Node titleNode = place.getAttributes().getNamedItem("title");  // can be null if the place standardizes to the empty string
-         placeId2Standardized.put(id, titleNode == null ? text : titleNode.getNodeValue());
+         reader.close();
       }
+   }
 
-      // We're going to go through all of the top level objects, and
-      // we're going to add those objects to appropriate maps.
-      NodeList pages = (NodeList) pageExpression.evaluate(doc, XPathConstants.NODESET);
-      //reserveIds(pages);
-      // We're going to load all of the pages into a set of maps:
+   private static final String REPORT_CDATA = "http://java.sun.com/xml/stream/properties/report-cdata-event";
+   // Factories are thread-safe once configured
+   static final XMLInputFactory xmlInputFactory = XMLInputFactory.newInstance();
+   static
+   {
+      xmlInputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+      xmlInputFactory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.FALSE);
+      // keep the content sections as CDATA, as the DOM parser does, so that pages that aren't
+      // rewritten are serialized as they were read
+      if (xmlInputFactory.isPropertySupported(REPORT_CDATA))
+      {
+         xmlInputFactory.setProperty(REPORT_CDATA, Boolean.TRUE);
+      }
+   }
 
-      for (int i= 0; i < pages.getLength(); i++)
+   private void readGedcomElement(Element gedcom)
+   {
+      if (gedcom.hasAttribute("primary_person"))
       {
-         Node page = pages.item(i);
-         int namespace = Integer.parseInt((String) namespaceExpression.evaluate(page, XPathConstants.STRING));
-         String id = (String) idExpression.evaluate(page, XPathConstants.STRING);
-         id2Page.put(id, page);
-         String uid = (String) uidExpression.evaluate(page, XPathConstants.STRING);
-         if (!PlaceUtils.isEmpty(uid))
-         {
-            id2Uid.put(id, uid);
-         }
-         id2Namespace.put(id, namespace);
+         primaryPerson = gedcom.getAttribute("primary_person");
+      }
+   }
 
-         // Now depending on the namespace, we need to generate the
-         // appropriate wiki title:
-         switch (namespace)
-         {
-            case Utils.PERSON_NAMESPACE:
-               personIds.add(id);
-               break;
-            case Utils.FAMILY_NAMESPACE:
-               familyIds.add(id);
-               break;
-            case Utils.MYSOURCE_NAMESPACE:
-               mysourceIds.add(id);
-               break;
-            default:
-               break;
-         }
+   private void readPlace(Element place)
+   {
+      String id = place.getAttribute("key");
+      String text = place.getAttribute("text");
+      placeText2Id.put(text, id);
+      placeId2Node.put(id, place);
+      // title can be missing if the place standardizes to the empty string
+      placeId2Standardized.put(id, place.hasAttribute("title") ? place.getAttribute("title") : text);
+   }
 
-         String excluded = (String) excludedExpression.evaluate(page, XPathConstants.STRING);
-         if (!PlaceUtils.isEmpty(excluded) && excluded.trim().toLowerCase().equals("true"))
-         {
-            excludedIds.add(id);
-         }
-         String living = (String) livingExpression.evaluate(page, XPathConstants.STRING);
-         if (!PlaceUtils.isEmpty(living) && living.trim().toLowerCase().equals("true"))
+   // Adds the page to the maps
+   private void readPage(Element page)
+         throws SAXException, IOException, GedcomXMLException
+   {
+      int namespace = Integer.parseInt(page.getAttribute("namespace"));
+      String id = page.getAttribute("id");
+      id2Page.put(id, page);
+      String uid = page.getAttribute("uid");
+      if (!PlaceUtils.isEmpty(uid))
+      {
+         id2Uid.put(id, uid);
+      }
+      id2Namespace.put(id, namespace);
+
+      // Now depending on the namespace, we need to generate the
+      // appropriate wiki title:
+      switch (namespace)
+      {
+         case Utils.PERSON_NAMESPACE:
+            personIds.add(id);
+            break;
+         case Utils.FAMILY_NAMESPACE:
+            familyIds.add(id);
+            break;
+         case Utils.MYSOURCE_NAMESPACE:
+            mysourceIds.add(id);
+            break;
+         default:
+            break;
+      }
+
+      String excluded = page.getAttribute("exclude");
+      if (!PlaceUtils.isEmpty(excluded) && excluded.trim().toLowerCase().equals("true"))
+      {
+         excludedIds.add(id);
+      }
+      String living = page.getAttribute("living");
+      if (!PlaceUtils.isEmpty(living) && living.trim().toLowerCase().equals("true"))
+      {
+         livingIds.add(id);
+      }
+
+      // We need to load the content node info:
+      // First let's get the XML portion:
+      if (recordContentIds.contains(id))
+      {
+         // the content element is left empty until the page is saved
+         id2Text.put(id, records.readText(id));
+      } else
+      {
+         Node contentNode = getContentNode(page);
+         parseContent(contentNode == null ? "" : contentNode.getTextContent(), id);
+      }
+   }
+
+   // Returns the page's first content element, or null
+   private static Node getContentNode(Node page)
+   {
+      for (Node child = page.getFirstChild(); child != null; child = child.getNextSibling())
+      {
+         if (child.getNodeType() == Node.ELEMENT_NODE && child.getNodeName().equals("content"))
          {
-            livingIds.add(id);
+            return child;
          }
-
-         // We need to load the content node info:
-         // First let's get the XML portion:
-         String content = (String) contentExpression.evaluate(page, XPathConstants.STRING);
-         parseContent(content, id);
       }
+      return null;
    }
 
+   // Sets the page's content; its XML portion is parsed when it is first needed
    private void parseContent(String content, String id)
          throws SAXException, IOException, GedcomXMLException
    {
       Matcher mXmlContent = pPageContentXml.matcher(content);
       if (mXmlContent.find())
       {
-         String xmlContentString = mXmlContent.group(0);
          String text = content.substring(mXmlContent.end()).trim();
-         // Now let's parse this into an Xml node:
-         Document contentDocument = Uploader.db.parse(new InputSource(new StringReader(xmlContentString)));
-         id2Content.put(id, contentDocument);
          id2Text.put(id, text);
+         Node page = id2Page.get(id);
+         Node contentNode = getContentNode(page);
+         if (contentNode == null)
+         {
+            contentNode = page.appendChild(doc.createElement("content"));
+         }
+         if (!content.equals(contentNode.getTextContent()))
+         {
+            recordContentIds.remove(id);
+            contentNode.setTextContent(content);
+         }
+         contents.written(id, true);
       } else
       {
          throw new GedcomXMLException("Could not find content section for id="+id);
       }
    }
 
+   /**
+    * Number of page contents kept parsed by default
+    */
+   public static final int DEFAULT_CONTENT_CACHE_SIZE = 20000;
+
+   /**
+    * Sets the number of page contents kept parsed at once; the others are parsed again when needed.
+    * Must be called before parse.
+    * @param contentCacheSize number of pages, or 0 to keep all of them
+    */
+   public void setContentCacheSize(int contentCacheSize) {
+      this.contentCacheSize = contentCacheSize;
+      contents = newContentCache();
+   }
+
+   /**
+    * @return the number of times a page's content was parsed
+    */
+   public int getNumContentReads() {
+      return contents.getNumReads();
+   }
+
+   private ContentCache newContentCache()
+   {
+      return new ContentCache(new ContentCache.Store() {
+         public Document read(String id) {
+            Node page = id2Page.get(id);
+            if (page == null)
+            {
+               return null;
+            }
+            if (recordContentIds.contains(id))
+            {
+               return records.readContent(id);
+            }
+            String text;
+            // the page document isn't safe to read while another thread writes it
+            synchronized (this)
+            {
+               text = getContentNode(page).getTextContent();
+            }
+            Matcher mXmlContent = pPageContentXml.matcher(text);
+            if (!mXmlContent.find())
+            {
+               throw new IllegalStateException("Could not find content section for id=" + id);
+            }
+            try
+            {
+               return Uploader.getDocumentBuilder().parse(new InputSource(new StringReader(mXmlContent.group(0))));
+            } catch (SAXException e)
+            {
+               throw new IllegalStateException("Could not parse content of id=" + id + ": " + e.getMessage(), e);
+            } catch (IOException e)
+            {
+               throw new IllegalStateException(e);
+            }
+         }
+
+         public void write(String id, Document content) {
+            String text = serializeContent(content) + '\n' + id2Text.get(id);
+            recordContentIds.remove(id);
+            synchronized (this)
+            {
+               getContentNode(id2Page.get(id)).setTextContent(text);
+            }
+         }
+      }, contentCacheSize);
+   }
+
+   // Returns the XML portion of a page's content
+   private static String serializeContent(Document content)
+   {
+      StringBuilder xmlBuffer = new StringBuilder();
+      PageSerializer.serializeContent(content, xmlBuffer);
+      return xmlBuffer.toString();
+   }
+
    // This method goes trough the xml page objects
    //  and adds their wikiTitle to
    // the list of reservation requests to be sent to the
@@ -496,7 +678,7 @@ public class GedcomXML {
       {
          if (!excludedIds.contains(id))
          {
-            Document content = id2Content.get(id);
+            Document content = contents.get(id);
             Name name = new Name();
             name.parseFromPersonXML(content, livingIds.contains(id));
             String title = Utils.prepareWikiTitle(Person.getWikiTitle(name));
@@ -516,19 +698,19 @@ public class GedcomXML {
       {
          if (!excludedIds.contains(id) && !matchedIds.contains(id))
          {
-            Document content = id2Content.get(id);
+            Document content = contents.get(id);
 
             ew.put("namespace", Integer.toString(Utils.FAMILY_NAMESPACE));
 
             // Now we need to get the ids of the husband and wife.
             String husbandTitle, wifeTitle;
 
-            String husbandId = (String)husbandIdExpression.evaluate(content, XPathConstants.STRING);
+            String husbandId = ContentPaths.getHusbandId(content);
             if (PlaceUtils.isEmpty(husbandId) || PlaceUtils.isEmpty(husbandTitle = id2Title.get(husbandId)))
             {
                husbandTitle = "Unknown";
             }
-            String wifeId = (String) wifeIdExpression.evaluate(content, XPathConstants.STRING);
+            String wifeId = ContentPaths.getWifeId(content);
             if (PlaceUtils.isEmpty(wifeId) || PlaceUtils.isEmpty(wifeTitle = id2Title.get(wifeId)))
             {
                wifeTitle = "Unknown";
@@ -548,9 +730,9 @@ public class GedcomXML {
       {
          if (!excludedIds.contains(id) && !matchedIds.contains(id))
          {
-            Document content = id2Content.get(id);
+            Document content = contents.get(id);
             // Now we need to get the source title out.
-            String title = username + '/' + sourceTitleExpression.evaluate(content, XPathConstants.STRING);
+            String title = username + '/' + ContentPaths.getSourceTitleText(content);
             title = Utils.prepareWikiTitle(title);
             id2Title.put(id, title);
             String reservedTitle = title;
@@ -580,7 +762,7 @@ public class GedcomXML {
          else if (!excludedIds.contains(id))
          {
             // Let's get the namespace:
-            int namespace = Integer.parseInt((String) namespaceExpression.evaluate(page, XPathConstants.STRING));
+            int namespace = Integer.parseInt(ContentPaths.getAttribute(page, "namespace"));
             String title = id2Title.get(id);
 
             if (!PlaceUtils.isEmpty(title))
@@ -642,61 +824,105 @@ public class GedcomXML {
       return place2displayName.get(text);
    }
 
-   private Uploader uploader = null;
+   private PlaceNames uploader = null;
 
    public void updateContent (String placeServer) throws XPathExpressionException, IOException
    {
-      updateCollectionContent(personIds, familyReferenceExpression, "Family", null, null);
-      updateCollectionContent(familyIds, personReferenceExpression, "Person", personReferenceAttributeExpression, "Family");
+      updateCollectionContent(personIds, false, "Family", null);
+      updateCollectionContent(familyIds, true, "Person", "Family");
 
       // Now let's update all of the places referenced.
-      // The first step ensures that each place has the correct Place page titlr
+      // Each page's content is walked once to collect the distinct place texts it references,
+      // and the new value of each distinct text is worked out once; then only the pages
+      // with a place to change are walked again to change it.
+      // The attribute nodes themselves aren't kept in between, since the content cache
+      // may drop a page's document and parse it again.
+      Map<String, Set<String>> pageId2PlaceTexts = new HashMap<String, Set<String>>();
+      for (String pageId : id2Page.keySet())
+      {
+         Set<String> texts = null;
+         for (Node placeNode : ContentPaths.getPlaceAttributes(contents.get(pageId)))
+         {
+            if (texts == null)
+            {
+               texts = new HashSet<String>();
+               pageId2PlaceTexts.put(pageId, texts);
+            }
+            texts.add(placeNode.getNodeValue());
+         }
+      }
+
+      // The first step ensures that each place has the correct Place page title
       // based on any changes the user made to place matching.
       // It also accumulates a list of all places to get standard display names for.
-      Set <String> placeNames = new HashSet <String>();
-      for (Map.Entry<String, Document> entry : id2Content.entrySet())
+      Map<String, String> text2Value = new HashMap<String, String>();
+      for (Set<String> texts : pageId2PlaceTexts.values())
       {
-         NodeList placeReferences = (NodeList) placeAttributeExpression.evaluate(entry.getValue(),
-               XPathConstants.NODESET);
-         for (int i=0; i < placeReferences.getLength(); i++)
+         for (String text : texts)
          {
-            Node placeNode = placeReferences.item(i);
-            String text = placeNode.getNodeValue();
-            String id = placeText2Id.get(text);
-            if (id != null)
+            if (!text2Value.containsKey(text))
             {
-               String placeTitle = placeId2Standardized.get(id);
-               if (placeTitle != null && !placeTitle.equals(text))
+               String value = text;
+               String id = placeText2Id.get(text);
+               if (id != null)
                {
-                  placeNode.setTextContent(placeTitle + '|' + text);
+                  String placeTitle = placeId2Standardized.get(id);
+                  if (placeTitle != null && !placeTitle.equals(text))
+                  {
+                     value = placeTitle + '|' + text;
+                  }
                }
+               text2Value.put(text, value);
             }
-            placeNames.add(placeNode.getNodeValue().replace('|','^'));     // use ^ as a stand-in for the pipe
          }
       }
+      Set <String> placeNames = new HashSet <String>();
+      for (String value : text2Value.values())
+      {
+         placeNames.add(value.replace('|','^'));     // use ^ as a stand-in for the pipe
+      }
 
       // The second step is to refine display names. This can't be done before
       // the first step, since the first step matches on the place text
       // as it was in the gedcom file.
       uploader.getPlaceDisplayNames(placeServer, placeNames, place2displayName);
-      for (Map.Entry<String, Document> entry : id2Content.entrySet())
+      Map<String, String> text2NewValue = new HashMap<String, String>();
+      for (Map.Entry<String, String> entry : text2Value.entrySet())
+      {
+         String displayName = getPlace2displayName(entry.getValue());
+         if (displayName != null)
+         {
+            text2NewValue.put(entry.getKey(), displayName);
+         } else if (!entry.getValue().equals(entry.getKey()))
+         {
+            text2NewValue.put(entry.getKey(), entry.getValue());
+         }
+      }
+
+      for (Map.Entry<String, Set<String>> entry : pageId2PlaceTexts.entrySet())
       {
-         NodeList placeReferences = (NodeList) placeAttributeExpression.evaluate(entry.getValue(),
-               XPathConstants.NODESET);
-         for (int i=0; i < placeReferences.getLength(); i++)
+         if (Collections.disjoint(entry.getValue(), text2NewValue.keySet()))
+         {
+            continue;
+         }
+         String pageId = entry.getKey();
+         Document content = contents.get(pageId);
+         for (Node placeNode : ContentPaths.getPlaceAttributes(content))
          {
-            Node placeNode = placeReferences.item(i);
-            String text = placeNode.getNodeValue();
-            String displayName = getPlace2displayName(text);
-            if (displayName != null) {
-               placeNode.setTextContent(displayName);
+            String newValue = text2NewValue.get(placeNode.getNodeValue());
+            if (newValue != null)
+            {
+               placeNode.setNodeValue(newValue);
             }
          }
+         contents.changed(pageId, content);
       }
    }
 
-   private void updateCollectionContent(Set<String> collection, XPathExpression expression,
-                                        String referenceNamespacePrefix, XPathExpression attributeExpression,
+   // Families reference people, and their references have attributes that reference families;
+   // people reference families
+   private void updateCollectionContent(Set<String> collection, boolean families,
+                                        String referenceNamespacePrefix,
                                         String attributeNamespacePrefix) throws XPathExpressionException
    {
       // Now that we've reserved the IDs, we need
@@ -708,13 +934,13 @@ public class GedcomXML {
       // the reference.
       for (String pageId : collection)
       {
-         Document content = id2Content.get(pageId);
+         Document content = contents.get(pageId);
 
-         NodeList references = (NodeList) expression.evaluate(content, XPathConstants.NODESET);
-         for (int i= 0; i < references.getLength(); i++)
+         List<Element> references = families ? ContentPaths.getPersonReferences(content) :
+                                    ContentPaths.getFamilyReferences(content);
+         for (Element reference : references)
          {
-            Node reference = references.item(i);
-            String id = (String) idExpression.evaluate(reference, XPathConstants.STRING);
+            String id = ContentPaths.getAttribute(reference, "id");
             if (id2ReservedTitle.containsKey(id))
             {
                Node titleNode = content.createAttribute("title");
@@ -726,12 +952,10 @@ public class GedcomXML {
                titleNode.setNodeValue(title);
                reference.getAttributes().setNamedItem(titleNode);
             }
-            if (attributeExpression != null)
+            if (families)
             {
-               NodeList attributes = (NodeList) attributeExpression.evaluate(reference, XPathConstants.NODESET);
-               for (int j=0; j < attributes.getLength(); j++)
+               for (Node attribute : ContentPaths.getFamilyReferenceAttributes(reference))
                {
-                  Node attribute = attributes.item(j);
                   String refId = attribute.getNodeValue();
                   if (excludedIds.contains(refId)) {
                      // remove this attribute (the hard way)
@@ -751,6 +975,7 @@ public class GedcomXML {
             }
          }
          updateSourceCitations(content);
+         contents.changed(pageId, content);
       }
    }
 
@@ -790,12 +1015,11 @@ public class GedcomXML {
    public void fixTitleOnlyMySourceReferences()
    {
       Map <String,String> titleOnlyMySource2Title = new HashMap<String,String>();
-      for (Map.Entry<String, Document> entry : id2Content.entrySet())
+      for (String id : id2Page.keySet())
       {
-         String id = entry.getKey();
          if (this.id2Namespace.get(id) == Utils.MYSOURCE_NAMESPACE)
          {
-            Document content = entry.getValue();
+            Document content = contents.get(id);
 
             // Now we need to determine if the mysource contains only a title
             // attribute.
@@ -832,14 +1056,13 @@ public class GedcomXML {
       // Ok. Now that we've found all of the applicable mysources, we just
       // need to fix all of the references.
 
-      for (Map.Entry<String, Document> entry : id2Content.entrySet())
+      for (String id : id2Page.keySet())
       {
-         String id = entry.getKey();
          int namespace = id2Namespace.get(id);
          if (namespace == Utils.FAMILY_NAMESPACE ||
                namespace == Utils.PERSON_NAMESPACE)
          {
-            Document content = entry.getValue();
+            Document content = contents.get(id);
             Node personFamilyNode = content.getFirstChild();
             NodeList childList = personFamilyNode.getChildNodes();
             for (int i= 0; i < childList.getLength(); i++)
@@ -856,6 +1079,7 @@ public class GedcomXML {
                      Node newTitleAttribute = content.createAttribute("title");
                      newTitleAttribute.setNodeValue(titleOnlyMySource2Title.get(citationId));
                      node.getAttributes().setNamedItem(newTitleAttribute);
+                     contents.changed(id, content);
                   }
                }
             }
@@ -863,9 +1087,20 @@ public class GedcomXML {
       }
    }
 
+   /**
+    * Sets the number of threads that prepare the page contents for generation at once;
+    * 1 prepares them in the calling thread
+    */
+   public void setPrepareThreads(int prepareThreads) {
+      this.prepareThreads = Math.max(1, prepareThreads);
+   }
+
    public void prepareForGeneration()
          throws XPathExpressionException, TransformerException, GedcomXMLException
    {
+      // The pages all belong to one document, so they are changed here;
+      // each page's content is a document of its own, so those may be changed by several threads
+      List<String> ids = new ArrayList<String>();
       for (Map.Entry<String, Node> entry : id2Page.entrySet())
       {
          String id = entry.getKey();
@@ -880,241 +1115,309 @@ public class GedcomXML {
                // exclude this page from generation.
                excludePage(page);
             }
-            // We need to update the content of this page.
-            Document content = id2Content.get(id);
+            ids.add(id);
+         }
+      }
 
-            if (livingIds.contains(id))
+      Set<String> excluded = Collections.unmodifiableSet(new HashSet<String>(excludedIds));
+      Set<String> living = Collections.unmodifiableSet(new HashSet<String>(livingIds));
+      if (prepareThreads > 1 && ids.size() > PREPARE_BATCH_SIZE)
+      {
+         ForkJoinPool pool = new ForkJoinPool(prepareThreads);
+         try
+         {
+            pool.invoke(new PrepareContents(ids, 0, ids.size(), excluded, living, JobMetrics.current()));
+         } finally
+         {
+            pool.shutdown();
+         }
+      } else
+      {
+         for (String id : ids)
+         {
+            prepareContent(id, excluded, living);
+         }
+      }
+
+      updatePageContent();
+   }
+
+   private static final int PREPARE_BATCH_SIZE = 256;
+
+   // Prepares the contents of ids[from, to), splitting larger ranges in two
+   private class PrepareContents extends RecursiveAction {
+      private static final long serialVersionUID = 1L;
+
+      private final List<String> ids;
+      private final int from;
+      private final int to;
+      private final Set<String> excluded;
+      private final Set<String> living;
+      // the job's metrics, to which the batches add what they use of the pool's threads
+      private final transient JobMetrics metrics;
+
+      private PrepareContents(List<String> ids, int from, int to, Set<String> excluded, Set<String> living,
+                              JobMetrics metrics)
+      {
+         this.ids = ids;
+         this.from = from;
+         this.to = to;
+         this.excluded = excluded;
+         this.living = living;
+         this.metrics = metrics;
+      }
+
+      protected void compute() {
+         if (to - from <= PREPARE_BATCH_SIZE)
+         {
+            JobMetrics.Helper helper = JobMetrics.startHelper(metrics);
+            try
             {
-               // Then we need to get rid of all events:
-               NodeList events = (NodeList) eventExpression.evaluate(content, XPathConstants.NODESET);
-               for (int i=0; i < events.getLength(); i++)
+               for (int i = from; i < to; i++)
                {
-                  removeNode(events.item(i));
+                  prepareContent(ids.get(i), excluded, living);
                }
+            } finally
+            {
+               JobMetrics.stopHelper(helper);
+            }
+         } else
+         {
+            int mid = (from + to) >>> 1;
+            invokeAll(new PrepareContents(ids, from, mid, excluded, living, metrics),
+                      new PrepareContents(ids, mid, to, excluded, living, metrics));
+         }
+      }
+   }
+
+   // Removes what shouldn't be generated from the page's content.
+   // Only reads the sets passed in, so it may be called for different pages at once
+   private void prepareContent(String id, Set<String> excludedIds, Set<String> livingIds)
+   {
+      // We need to update the content of this page.
+      Document content = contents.get(id);
+
+      if (livingIds.contains(id))
+      {
+         // Then we need to get rid of all events:
+         for (Element event : ContentPaths.getEvents(content))
+         {
+            removeNode(event);
+         }
 
-               // If this is a person, then we also need to get rid of the
-               // name, etc.
-               NodeList names = (NodeList) nameExpression.evaluate(content, XPathConstants.NODESET);
-               if (names.getLength() > 0)
+         // If this is a person, then we also need to get rid of the
+         // name, etc.
+         List<Element> names = ContentPaths.getNames(content);
+         if (names.size() > 0)
+         {
+            // Let's get the surname.
+            String surname = null;
+            Node name;
+            for (int i=0; i < names.size() -1; i++)
+            {
+               name = names.get(i);
+               if (Utils.isEmpty(surname) && name.getAttributes().getNamedItem("surname") != null)
                {
-                  // Let's get the surname.
-                  String surname = null;
-                  Node name;
-                  for (int i=0; i < names.getLength() -1; i++)
-                  {
-                     name = names.item(i);
-                     if (Utils.isEmpty(surname) && name.getAttributes().getNamedItem("surname") != null)
-                     {
-                        surname = name.getAttributes().getNamedItem("surname").getNodeValue();
-                     }
-                     removeNode(names.item(i));
-                  }
-                  name = names.item(names.getLength() -1);
-                  if (Utils.isEmpty(surname) && name.getAttributes().getNamedItem("surname") != null)
-                  {
-                     surname = name.getAttributes().getNamedItem("surname").getNodeValue();
-                  }
-                  // Let's replace the node.
-                  Node replacement = content.createElement("name");
-                  Node givenNode = content.createAttribute("given");
-                  givenNode.setNodeValue("Living");
-                  replacement.getAttributes().setNamedItem(givenNode);
-                  if (!Utils.isEmpty(surname))
-                  {
-                     Node surnameNode = content.createAttribute("surname");
-                     surnameNode.setNodeValue(surname);
-                     replacement.getAttributes().setNamedItem(surnameNode);
-                  }
-                  name.getParentNode().replaceChild(replacement, name);
+                  surname = name.getAttributes().getNamedItem("surname").getNodeValue();
                }
-
-               removeNodes(content, altNameExpression);
-               removeNodes(content, sourceCitationExpression);
-               removeNodes(content, noteExpression);
+               removeNode(names.get(i));
             }
+            name = names.get(names.size() -1);
+            if (Utils.isEmpty(surname) && name.getAttributes().getNamedItem("surname") != null)
+            {
+               surname = name.getAttributes().getNamedItem("surname").getNodeValue();
+            }
+            // Let's replace the node.
+            Node replacement = content.createElement("name");
+            Node givenNode = content.createAttribute("given");
+            givenNode.setNodeValue("Living");
+            replacement.getAttributes().setNamedItem(givenNode);
+            if (!Utils.isEmpty(surname))
+            {
+               Node surnameNode = content.createAttribute("surname");
+               surnameNode.setNodeValue(surname);
+               replacement.getAttributes().setNamedItem(surnameNode);
+            }
+            name.getParentNode().replaceChild(replacement, name);
+         }
+
+         removeNodes(ContentPaths.getAltNames(content));
+         removeNodes(ContentPaths.getSourceCitations(content));
+         removeNodes(ContentPaths.getNotes(content));
+      }
+
+      // Let's remove all of the ids for person/family references
+      if (content.getFirstChild().getNodeName().equals("person"))
+      {
+         removeIdReferences(ContentPaths.getFamilyReferences(content), excludedIds);
+      } else if (content.getFirstChild().getNodeName().equals("family"))
+      {
+         // Ok -- if the person referenced is living, then we need to remove everything except for
+         // the title.
+         for (Element personReference : ContentPaths.getPersonReferences(content))
+         {
+            // let's get the title, because that's the only thing we're going to
+            // preserve.
+            String refId = personReference.getAttributes().getNamedItem("id").getNodeValue();
 
-            // Let's remove all of the ids for person/family references
-            if (content.getFirstChild().getNodeName().equals("person"))
+            if (excludedIds.contains(refId))
             {
-               removeIdReferences((NodeList) familyReferenceExpression.evaluate(content, XPathConstants.NODESET));
-            } else if (content.getFirstChild().getNodeName().equals("family"))
+               // We need to remove the family reference.
+               removeNode(personReference);
+            } else if (livingIds.contains(refId))
             {
-               NodeList personReferences = (NodeList) personReferenceExpression.evaluate(content, XPathConstants.NODESET);
-               // Ok -- if the person referenced is living, then we need to remove everything except for
-               // the title.
-               for (int i=0; i < personReferences.getLength(); i++)
+               // Then let's remove everything except for the title.
+               int j = 0;
+               while (j < personReference.getAttributes().getLength())
                {
-                  Node personReference = personReferences.item(i);
-                  // let's get the title, because that's the only thing we're going to
-                  // preserve.
-                  String refId = personReference.getAttributes().getNamedItem("id").getNodeValue();
-
-                  if (excludedIds.contains(refId))
-                  {
-                     // We need to remove the family reference.
-                     removeNode(personReference);
-                  } else if (livingIds.contains(refId))
+                  String nodeName = personReference.getAttributes().item(j).getNodeName();
+                  if (nodeName.equals("title"))
                   {
-                     // Then let's remove everything except for the title.
-                     int j = 0;
-                     while (j < personReference.getAttributes().getLength())
-                     {
-                        String nodeName = personReference.getAttributes().item(j).getNodeName();
-                        if (nodeName.equals("title"))
-                        {
-                           j++;
-                        }else
-                        {
-                           personReference.getAttributes().removeNamedItem(personReference.getAttributes().item(j).getNodeName());
-                        }
-                     }
-                     // Now let's add in the given = "Living"
-                     Node givenNode = content.createAttribute("given");
-                     givenNode.setNodeValue("Living");
-                     personReference.getAttributes().setNamedItem(givenNode);
-                  } else
+                     j++;
+                  }else
                   {
-                     personReference.getAttributes().removeNamedItem("id");
+                     personReference.getAttributes().removeNamedItem(personReference.getAttributes().item(j).getNodeName());
                   }
                }
-            } else if (content.getFirstChild().getNodeName().equals("mysource") ||
-                  content.getFirstChild().getNodeName().equals("source"))
+               // Now let's add in the given = "Living"
+               Node givenNode = content.createAttribute("given");
+               givenNode.setNodeValue("Living");
+               personReference.getAttributes().setNamedItem(givenNode);
+            } else
             {
-               // Let's get rid of the title nodes for all of the
-               // source (mysource) top-level objects
-               Node titleNode = (Node) sourceTitleExpression.evaluate(content, XPathConstants.NODE);
-               if (titleNode != null)
-               {
-                  removeNode(titleNode);
-               }
+               personReference.getAttributes().removeNamedItem("id");
             }
+         }
+      } else if (content.getFirstChild().getNodeName().equals("mysource") ||
+            content.getFirstChild().getNodeName().equals("source"))
+      {
+         // Let's get rid of the title nodes for all of the
+         // source (mysource) top-level objects
+         Node titleNode = ContentPaths.getSourceTitle(content);
+         if (titleNode != null)
+         {
+            removeNode(titleNode);
+         }
+      }
 
-            if (content.getFirstChild().getNodeName().equals("person") ||
-                  content.getFirstChild().getNodeName().equals("family"))
+      if (content.getFirstChild().getNodeName().equals("person") ||
+            content.getFirstChild().getNodeName().equals("family"))
+      {
+         // Let's remove mysource ids from source citations, and remove
+         // any source citations and references to them if the mysource has
+         // been excluded.
+         List<Element> sourceCitations = ContentPaths.getSourceCitations(content);
+         // Let's redo the existingIds in the form of a stack:
+         Set<String> removedIds = new HashSet<String>();
+         // map from the old (higher numbered) ids to the new ones, because
+         // we are moving some higher ids to replace numbered ones which are
+         // lower.
+         Map<String, String> high2Low = new HashMap<String, String>();
+
+         // First let's remove the nodes that point to sources which are excluded.
+
+         // First removed specifies the first removed / moved sourceCitation id
+         // which hasn't already been replaced by a subsequent id.
+         // -1 indicates that there are no previous citations which
+         // haven't already been filled in by a subsequent id.
+         int firstRemoved = -1;
+         boolean removedCitation = false;
+         for (Element sourceCitation : sourceCitations)
+         {
+            String citationId = ContentPaths.getAttribute(sourceCitation, "id");
+            String sourceId = ContentPaths.getAttribute(sourceCitation, "source_id");
+            if (excludedIds.contains(sourceId) ||
+                  // If this source has nothing but a citation id, let's just go ahead and remove it.
+                  (!Utils.isEmpty(citationId) && sourceCitation.getAttributes().getLength() <= 1 && Utils.isEmpty(sourceCitation.getTextContent())))
             {
-               // Let's remove mysource ids from source citations, and remove
-               // any source citations and references to them if the mysource has
-               // been excluded.
-               NodeList sourceCitations = (NodeList) sourceCitationExpression.evaluate(content, XPathConstants.NODESET);
-               // Let's redo the existingIds in the form of a stack:
-               Set<String> removedIds = new HashSet<String>();
-               // map from the old (higher numbered) ids to the new ones, because
-               // we are moving some higher ids to replace numbered ones which are
-               // lower.
-               Map<String, String> high2Low = new HashMap<String, String>();
-
-               // First let's remove the nodes that point to sources which are excluded.
-
-               // First removed specifies the first removed / moved sourceCitation id
-               // which hasn't already been replaced by a subsequent id.
-               // -1 indicates that there are no previous citations which
-               // haven't already been filled in by a subsequent id.
-               int firstRemoved = -1;
-               boolean removedCitation = false;
-               for (int i=0; i < sourceCitations.getLength(); i++)
+               // We need to remove the citation, and all references to it.
+               removeNode(sourceCitation);
+               removedIds.add(citationId);
+               if (firstRemoved == -1)
                {
-                  Node sourceCitation = sourceCitations.item(i);
-                  String citationId = (String) idExpression.evaluate(sourceCitation, XPathConstants.STRING);
-                  String sourceId = (String) sourceIdExpression.evaluate(sourceCitation, XPathConstants.STRING);
-                  if (excludedIds.contains(sourceId) ||
-                        // If this source has nothing but a citation id, let's just go ahead and remove it.
-                        (!Utils.isEmpty(citationId) && sourceCitation.getAttributes().getLength() <= 1 && Utils.isEmpty(sourceCitation.getTextContent())))
-                  {
-                     // We need to remove the citation, and all references to it.
-                     removeNode(sourceCitation);
-                     removedIds.add(citationId);
-                     if (firstRemoved == -1)
-                     {
-                        firstRemoved = Integer.parseInt(citationId.substring(1));
-                     }
-                     removedCitation = true;
-                  } else
-                  {
-                     if (!Utils.isEmpty(sourceId))
-                     {
-                        sourceCitation.getAttributes().removeNamedItem("source_id");
-                     }
+                  firstRemoved = Integer.parseInt(citationId.substring(1));
+               }
+               removedCitation = true;
+            } else
+            {
+               if (!Utils.isEmpty(sourceId))
+               {
+                  sourceCitation.getAttributes().removeNamedItem("source_id");
+               }
 
-                     // Ok. This ID has not been removed, so let's move the id
-                     // back to fill in any gaps immediately before it.
-                     if (firstRemoved > 0)
-                     {
-                        // let's move this id to fill in the gap.
-                        String firstRemovedId = "S" + firstRemoved;
-                        sourceCitation.getAttributes().getNamedItem("id").setNodeValue(firstRemovedId);
-                        high2Low.put(citationId, firstRemovedId);
-                        firstRemoved++;
-                     }
-                  }
+               // Ok. This ID has not been removed, so let's move the id
+               // back to fill in any gaps immediately before it.
+               if (firstRemoved > 0)
+               {
+                  // let's move this id to fill in the gap.
+                  String firstRemovedId = "S" + firstRemoved;
+                  sourceCitation.getAttributes().getNamedItem("id").setNodeValue(firstRemovedId);
+                  high2Low.put(citationId, firstRemovedId);
+                  firstRemoved++;
                }
+            }
+         }
 
-               if (removedCitation)
+         if (removedCitation)
+         {
+            // Now we need to find all references to citation ids, and replace or remove them when necessary.
+            for (Element sourcesAttributeParent : ContentPaths.getSourcesParents(content))
+            {
+               Node sourcesAttribute = sourcesAttributeParent.getAttributes().getNamedItem("sources");
+               // We need to find all references to the citationId, and remove
+               // the reference.
+               // probably the simplest way of doing that is to split up the
+               // list, remove all references to the item, and then print the
+               // list back out.
+               if (!Utils.isEmpty(sourcesAttribute.getNodeValue()))
                {
-                  // Now we need to find all references to citation ids, and replace or remove them when necessary.
-                  NodeList sourcesAttributeParents = (NodeList) sourcesExpression.evaluate(content, XPathConstants.NODESET);
-                  for (int j=0; j < sourcesAttributeParents.getLength(); j++)
+                  String [] split = sourcesAttribute.getNodeValue().split("\\s*,\\s*");
+                  List <String> newIds = new ArrayList<String>();
+                  for (String item : split)
                   {
-                     Node sourcesAttributeParent = sourcesAttributeParents.item(j);
-                     Node sourcesAttribute = sourcesAttributeParent.getAttributes().getNamedItem("sources");
-                     // We need to find all references to the citationId, and remove
-                     // the reference.
-                     // probably the simplest way of doing that is to split up the
-                     // list, remove all references to the item, and then print the
-                     // list back out.
-                     if (!Utils.isEmpty(sourcesAttribute.getNodeValue()))
+                     if (!removedIds.contains(item))
                      {
-                        String [] split = sourcesAttribute.getNodeValue().split("\\s*,\\s*");
-                        List <String> newIds = new ArrayList<String>();
-                        for (String item : split)
-                        {
-                           if (!removedIds.contains(item))
-                           {
-                              if (high2Low.containsKey(item))
-                              {
-                                 newIds.add(high2Low.get(item));
-                              } else
-                              {
-                                 newIds.add(item);
-                              }
-                           }
-                        }
-
-                        // Now let's print it back out:
-                        if (newIds.size() > 0)
+                        if (high2Low.containsKey(item))
                         {
-                           String newCitationList = newIds.get(0);
-                           for (int i = 1; i < newIds.size(); i++)
-                           {
-                              newCitationList += ", " + newIds.get(i);
-                           }
-                           sourcesAttribute.setNodeValue(newCitationList);
+                           newIds.add(high2Low.get(item));
                         } else
                         {
-                           sourcesAttributeParent.getAttributes().removeNamedItem("sources");
+                           newIds.add(item);
                         }
                      }
                   }
+
+                  // Now let's print it back out:
+                  if (newIds.size() > 0)
+                  {
+                     String newCitationList = newIds.get(0);
+                     for (int i = 1; i < newIds.size(); i++)
+                     {
+                        newCitationList += ", " + newIds.get(i);
+                     }
+                     sourcesAttribute.setNodeValue(newCitationList);
+                  } else
+                  {
+                     sourcesAttributeParent.getAttributes().removeNamedItem("sources");
+                  }
                }
             }
          }
       }
-
-      updatePageContent();
+      contents.changed(id, content);
    }
 
-   private static void removeNodes(Document content, XPathExpression expression) throws XPathExpressionException {
-      NodeList removeNodes = (NodeList) expression.evaluate(content, XPathConstants.NODESET);
-      for (int i=0; i < removeNodes.getLength(); i++)
+   private static void removeNodes(List<Element> nodes) {
+      for (Element node : nodes)
       {
-         removeNode(removeNodes.item(i));
+         removeNode(node);
       }
    }
 
-   private void removeIdReferences(NodeList references) throws XPathExpressionException {
-      for (int i= 0; i < references.getLength(); i++)
+   private static void removeIdReferences(List<Element> references, Set<String> excludedIds) {
+      for (Element reference : references)
       {
-         Node reference = references.item(i);
-         String referenceId = (String) idExpression.evaluate(reference, XPathConstants.STRING);
+         String referenceId = ContentPaths.getAttribute(reference, "id");
          if (excludedIds.contains(referenceId))
          {
             // We need to remove the family reference.
@@ -1132,12 +1435,9 @@ public class GedcomXML {
    }
 
    private void updateSourceCitations(Document content) throws XPathExpressionException {
-      NodeList sourceCitations = (NodeList) sourceCitationExpression.evaluate(content, XPathConstants.NODESET);
-
-      for (int i=0; i < sourceCitations.getLength(); i++)
+      for (Element sourceCitation : ContentPaths.getSourceCitations(content))
       {
-         Node sourceCitation = sourceCitations.item(i);
-         String id = (String) sourceIdExpression.evaluate(sourceCitation, XPathConstants.STRING);
+         String id = ContentPaths.getAttribute(sourceCitation, "source_id");
 
          if (id2ReservedTitle.containsKey(id))
          {
@@ -1155,72 +1455,127 @@ public class GedcomXML {
          }
       }
    }
+   private static final int SAVE_BUFFER_SIZE = 65536;
    private static TransformerFactory xformFactory = TransformerFactory.newInstance();
-   public static Transformer idTransform;
-   static
-   {
-      try
-      {
-         idTransform = xformFactory.newTransformer();
-      } catch (TransformerConfigurationException e)
-      {
-         throw new RuntimeException (e);
+   // Transformers aren't thread-safe, so each thread gets its own
+   private static final ThreadLocal<Transformer> idTransform = new ThreadLocal<Transformer>() {
+      protected Transformer initialValue() {
+         try
+         {
+            synchronized (xformFactory)
+            {
+               return xformFactory.newTransformer();
+            }
+         } catch (TransformerConfigurationException e)
+         {
+            throw new RuntimeException (e);
+         }
       }
+   };
+   /**
+    * Sets whether save gzips the file it writes; parse reads either kind
+    */
+   public void setCompressOutput(boolean compressOutput) {
+      this.compressOutput = compressOutput;
    }
+
+   /**
+    * Writes the document, in UTF-8, to a temporary file next to outputFile, which then replaces outputFile,
+    * so a reader never sees half of it
+    */
    public void save(File outputFile) throws
          TransformerException, XPathExpressionException,
          FileNotFoundException, IOException,
          GedcomXMLException
    {
       updatePageContent();
-      javax.xml.transform.Source input;
-      Result output;
-      // Ok, now that we've reset the content values of all the nodes,
-      // let's go ahead and write the entire document out to a file.
-      input = new DOMSource(doc);
-      FileOutputStream outputStream = new FileOutputStream(outputFile);
-      output = new StreamResult(new PrintWriter(outputStream));
-      idTransform.transform(input, output);
-      outputStream.close();
+      File tmp = new File(outputFile.getPath() + ".tmp");
+      FileOutputStream outputStream = new FileOutputStream(tmp);
+      try
+      {
+         FileChannel channel = outputStream.getChannel();
+         GZIPOutputStream gzip = compressOutput ? new GZIPOutputStream(Channels.newOutputStream(channel), SAVE_BUFFER_SIZE) : null;
+         Writer out = newSaveWriter(channel, gzip);
+         if (!PageSerializer.serialize(doc, out))
+         {
+            // Ok, the document has something only the transformer writes,
+            // so let's go ahead and write the entire document out with it instead.
+            out.flush();
+            channel.truncate(0);
+            channel.position(0);
+            gzip = compressOutput ? new GZIPOutputStream(Channels.newOutputStream(channel), SAVE_BUFFER_SIZE) : null;
+            out = newSaveWriter(channel, gzip);
+            idTransform.get().transform(new DOMSource(doc), new StreamResult(out));
+         }
+         out.flush();
+         if (gzip != null)
+         {
+            // closing it would close the channel
+            gzip.finish();
+         }
+         channel.force(false);
+      } finally
+      {
+         outputStream.close();
+      }
+      if (!tmp.renameTo(outputFile))
+      {
+         outputFile.delete();
+         if (!tmp.renameTo(outputFile))
+         {
+            throw new IOException("Could not rename " + tmp + " to " + outputFile);
+         }
+      }
    }
 
+   // Writes to the channel, through gzip if it isn't null
+   private static Writer newSaveWriter(FileChannel channel, GZIPOutputStream gzip) throws IOException
+   {
+      return new BufferedWriter(gzip != null ? new OutputStreamWriter(gzip, "UTF-8") : Channels.newWriter(channel, "UTF-8"),
+                                SAVE_BUFFER_SIZE);
+   }
+
+   // Sets the text of each page's content node to its XML and additional text as they are to be saved.
+   // Only contents replaced by SetData, and those still in a PageRecordFile, are serialized again; the XML
+   // of the others was written by a GedcomElementWriter, either before parsing or when it was written back
+   // from the cache, so it is kept as it is.
    private Transformer updatePageContent()
          throws XPathExpressionException, GedcomXMLException
    {
+      contents.flush();
+      StringBuilder xmlBuffer = new StringBuilder();
       for (Map.Entry<String, Node> entry : id2Page.entrySet())
       {
          String id = entry.getKey();
          Node page = entry.getValue();
          // Now that we've serialized the content, let's go ahead
          // and set the pages content.
-         Node contentNode = (Node) contentExpression.evaluate(page, XPathConstants.NODE);
+         Node contentNode = getContentNode(page);
          if (id2Text.containsKey(id))
          {
-            StringBuffer xmlBuffer = new StringBuffer();
-            Node firstChild = id2Content.get(id).getFirstChild();
-            ElementWriter ew = new GedcomElementWriter(firstChild.getNodeName());
-            StringBuffer subBuffer = new StringBuffer();
-            for (int i=0; i < firstChild.getChildNodes().getLength(); i++)
+            xmlBuffer.setLength(0);
+            if (replacedContentIds.contains(id))
+            {
+               PageSerializer.serializeContent(contents.get(id), xmlBuffer);
+            } else if (recordContentIds.contains(id))
+            {
+               // PageRecordFile only keeps contents that serialize back to the XML they were read from
+               PageSerializer.serializeContent(records.readContent(id), xmlBuffer);
+            } else
             {
-               Node child = firstChild.getChildNodes().item(i);
-               if (child.getNodeType() != Node.TEXT_NODE)
+               Matcher mXmlContent = pPageContentXml.matcher(contentNode.getTextContent());
+               if (!mXmlContent.find())
                {
-                  serializeContent(child, subBuffer);
+                  throw new GedcomXMLException("Could not find content section for id=" + id);
                }
-            }
-            ew.setSubXML(subBuffer.toString());
-            ew.write(xmlBuffer);
-            String additionalText = id2Text.get(id);
-            if (additionalText.startsWith("\n"))
-            {
-               additionalText = additionalText.substring(1);
+               xmlBuffer.append(mXmlContent.group(0)).append('\n');
             }
             if (livingIds.contains(id))
             {
                xmlBuffer.append("<show_sources_images_notes/>");
             } else
             {
-               xmlBuffer.append(additionalText.trim());
+               xmlBuffer.append(id2Text.get(id));
             }
             contentNode.setTextContent(xmlBuffer.toString().trim());
          } else
@@ -1228,18 +1583,92 @@ public class GedcomXML {
             throw new GedcomXMLException("id2Text doesn't contain: " + id);
          }
       }
-      return idTransform;
+      replacedContentIds.clear();
+      return idTransform.get();
+   }
+
+   // What a reference to a person in a family's content is given from the person's content
+   private static class PersonSummary {
+      // attribute name -> value, for the name, dates and places
+      private final Map<String, String> attributes = new LinkedHashMap<String, String>();
+      private Element childOfFamily;
+   }
+
+   private PersonSummary summarizePerson(String id) throws XPathExpressionException
+   {
+      PersonSummary summary = new PersonSummary();
+      Document personContent = contents.get(id);
+
+      // Let's put the name elements:
+
+      Name name = new Name();
+      name.parseFromPersonXML(personContent, livingIds.contains(id));
+      if (!Utils.isEmpty(name.getPrefix()))
+      {
+         summary.attributes.put("title_prefix", name.getPrefix());
+      }
+      if (!Utils.isEmpty(name.getSuffix()))
+      {
+         summary.attributes.put("title_suffix", name.getSuffix());
+      }
+      if (!Utils.isEmpty(name.getGiven()))
+      {
+         summary.attributes.put("given", name.getGiven());
+      }
+      if (!Utils.isEmpty(name.getSurname()))
+      {
+         summary.attributes.put("surname", name.getSurname());
+      }
+
+      // First let's loop through the events, and get any birth or death dates.
+      for (Element event : ContentPaths.getEvents(personContent))
+      {
+         String typeStr = event.getAttributes().getNamedItem("type").getNodeValue();
+         String typeName = null;
+
+         if (typeStr.equals("Birth"))
+         {
+            typeName = "birth";
+         } else if (typeStr.equals("Christening"))
+         {
+            typeName = "chr";
+         } else if (typeStr.equals("Death"))
+         {
+            typeName = "death";
+         } else if (typeStr.equals("Burial"))
+         {
+            typeName = "burial";
+         }
+
+         if (typeName!= null)
+         {
+            Node dateNode = event.getAttributes().getNamedItem("date");
+            if (dateNode != null)
+            {
+               summary.attributes.put(typeName + "date", dateNode.getNodeValue());
+            }
+            Node placeNode = event.getAttributes().getNamedItem("place");
+            if (placeNode != null)
+            {
+               summary.attributes.put(typeName + "place", placeNode.getNodeValue());
+            }
+         }
+      }
+      summary.childOfFamily = ContentPaths.getChildOfFamily(personContent);
+      return summary;
    }
 
    private void recalculateFamilyPersonReferences() throws XPathExpressionException
    {
+      // Each person is summarized once, however many families refer to them.
+      // Only family contents change below, so the summaries stay current;
+      // they're made again on the next call, after SetData has replaced any contents.
+      Map<String, PersonSummary> id2Summary = new HashMap<String, PersonSummary>();
       for (String familyId : familyIds)
       {
-         Document content = id2Content.get(familyId);
-         NodeList personReferences = (NodeList) personReferenceExpression.evaluate(content, XPathConstants.NODESET);
-         for (int i =0; i < personReferences.getLength(); i++)
+         Document content = contents.get(familyId);
+         for (Element personReference : ContentPaths.getPersonReferences(content))
          {
-            Node personReference = personReferences.item(i);
             String id = personReference.getAttributes().getNamedItem("id").getNodeValue();
             // First let's remove all of the attributes.
             int j = 0;
@@ -1256,102 +1685,46 @@ public class GedcomXML {
             }
 
             // now let's add all of the attributes back in that we need to.
-            Document personContent = id2Content.get(id);
-
-            // Let's put the name elements:
-
-            Name name = new Name();
-            name.parseFromPersonXML(personContent, livingIds.contains(id));
-            Node att;
-            if (!Utils.isEmpty(name.getPrefix()))
+            PersonSummary summary = id2Summary.get(id);
+            if (summary == null)
             {
-               att = content.createAttribute("title_prefix");
-               att.setNodeValue(name.getPrefix());
-               personReference.getAttributes().setNamedItem(att);
+               summary = summarizePerson(id);
+               id2Summary.put(id, summary);
             }
-            if (!Utils.isEmpty(name.getSuffix()))
+            for (Map.Entry<String, String> attribute : summary.attributes.entrySet())
             {
-               att = content.createAttribute("title_suffix");
-               att.setNodeValue(name.getSuffix());
-               personReference.getAttributes().setNamedItem(att);
-            }
-            if (!Utils.isEmpty(name.getGiven()))
-            {
-               att = content.createAttribute("given");
-               att.setNodeValue(name.getGiven());
-               personReference.getAttributes().setNamedItem(att);
-            }
-            if (!Utils.isEmpty(name.getSurname()))
-            {
-               att = content.createAttribute("surname");
-               att.setNodeValue(name.getSurname());
-               personReference.getAttributes().setNamedItem(att);
-            }
-
-            // We need to make sure that they are added in the right order,
-            // First let's loop through the events, and get any birth or death dates.
-            NodeList events = (NodeList)eventExpression.evaluate(personContent, XPathConstants.NODESET);
-            for (j=0; j < events.getLength(); j++)
-            {
-               Node event = events.item(j);
-               String typeStr = event.getAttributes().getNamedItem("type").getNodeValue();
-               String typeName = null;
-
-               if (typeStr.equals("Birth"))
-               {
-                  typeName = "birth";
-               } else if (typeStr.equals("Christening"))
-               {
-                  typeName = "chr";
-               } else if (typeStr.equals("Death"))
-               {
-                  typeName = "death";
-               } else if (typeStr.equals("Burial"))
-               {
-                  typeName = "burial";
-               }
-
-               if (typeName!= null)
-               {
-                  Node dateNode = event.getAttributes().getNamedItem("date");
-                  if (dateNode != null)
-                  {
-                     att = content.createAttribute(typeName + "date");
-                     att.setNodeValue(dateNode.getNodeValue());
-                     personReference.getAttributes().setNamedItem(att);
-                  }
-                  Node placeNode = event.getAttributes().getNamedItem("place");
-                  if (placeNode != null)
-                  {
-                     att = content.createAttribute(typeName + "place");
-                     att.setNodeValue(placeNode.getNodeValue());
-                     personReference.getAttributes().setNamedItem(att);
-                  }
-               }
+               personReference.setAttribute(attribute.getKey(), attribute.getValue());
             }
 
             if (!personReference.getNodeName().startsWith("child"))
             {
-               Node childOfFamily = (Node) childOfFamilyExpression.evaluate(personContent, XPathConstants.NODE);
-               if (childOfFamily != null)
+               if (summary.childOfFamily != null)
                {
-                  att = content.createAttribute("child_of_family");
-                  att.setNodeValue(childOfFamily.getAttributes().getNamedItem("id").getNodeValue());
-                  personReference.getAttributes().setNamedItem(att);
+                  personReference.setAttribute("child_of_family",
+                        summary.childOfFamily.getAttributes().getNamedItem("id").getNodeValue());
                }
             }
          }
+         contents.changed(familyId, content);
       }
    }
 
    public static String serializeNode(Node node) throws TransformerException
    {
+      if (node.getNodeType() == Node.ELEMENT_NODE)
+      {
+         StringBuilder buf = new StringBuilder();
+         if (PageSerializer.serialize((Element) node, buf))
+         {
+            return buf.toString();
+         }
+      }
       javax.xml.transform.Source input;
       Result output;
       input = new DOMSource(node);
       StringWriter contentStringWriter = new StringWriter();
       output = new StreamResult(contentStringWriter);
-      idTransform.transform(input, output);
+      idTransform.get().transform(input, output);
       String returnValue = contentStringWriter.toString();
       returnValue = returnValue.replaceAll("<\\?xml\\s+version=\"1.0\"\\s+encoding=\"UTF-8\"(\\s+standalone=\"no\")?\\?>", "");
       return returnValue;
@@ -1359,42 +1732,16 @@ public class GedcomXML {
 
    public static void serializeContent(Node node, StringBuffer buf)
    {
-      ElementWriter ew = new GedcomElementWriter(node.getNodeName());
-      if (node.getAttributes() != null)
-      {
-         for (int i=0; i < node.getAttributes().getLength(); i++)
-         {
-            Node attribute = node.getAttributes().item(i);
-            ew.put(attribute.getNodeName(), attribute.getNodeValue());
-         }
-      }
-      StringBuffer subBuf = new StringBuffer();
-      StringBuffer subText = new StringBuffer();
-      for (int i=0; i < node.getChildNodes().getLength(); i++)
-      {
-         Node childNode = node.getChildNodes().item(i);
-         if (childNode.getNodeType() == Node.TEXT_NODE)
-         {
-            subText.append(childNode.getTextContent().trim());
-         } else
-         {
-            serializeContent(childNode, subBuf);
-         }
-      }
-      if (node.getNodeValue() != null && !node.getNodeValue().trim().equals(""))
-      {
-         subBuf.append(node.getNodeValue());
-      }
-      ew.setSubXML(subBuf.toString());
-      ew.setSubText(subText.toString());
-      ew.write(buf);
+      StringBuilder xmlBuffer = new StringBuilder();
+      PageSerializer.serializeContent(node, xmlBuffer);
+      buf.append(xmlBuffer);
    }
 
    /**
     * Constructor
-    * @param uploader uploader object which is controlling this GEDCOM
+    * @param uploader uploader object which is controlling this GEDCOM, or other place name standardizer
     */
-   public GedcomXML(Uploader uploader)
+   public GedcomXML(PlaceNames uploader)
    {
       this.uploader = uploader;
    }
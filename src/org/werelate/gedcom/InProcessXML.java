@@ -0,0 +1,233 @@
+package org.werelate.gedcom;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.werelate.util.MultiMap;
+
+import java.io.PrintWriter;
+import java.util.Map;
+
+/**
+ * Writes the in-process XML file of a parsed GEDCOM: the place elements,
+ * then a page for each source, person and family, audited for problems
+ * as they are printed. The user reviews this file before its pages are generated.
+ * Used by GedcomJob for uploaded GEDCOMs and by the ConvertGedcoms script.
+ */
+public class InProcessXML {
+   private static final Logger logger =
+         LogManager.getLogger("org.werelate.gedcom.Upload");
+
+   /**
+    * Looks for existing wiki pages that match the GEDCOM's sources and families
+    */
+   public interface Matcher {
+      /**
+       * Called for each source that is printed, before it is printed
+       */
+      public void matchSource(Source source) throws InterruptedException;
+
+      /**
+       * Called for each family that will be printed, before any family is printed;
+       * sets the family's matches
+       */
+      public void findMatches(Family fam, Gedcom gedcom) throws Uploader.GenerateException;
+   }
+
+   /**
+    * Matches nothing, for when there are no servers to ask
+    */
+   public static final Matcher NO_MATCHES = new Matcher() {
+      public void matchSource(Source source) {
+      }
+
+      public void findMatches(Family fam, Gedcom gedcom) {
+      }
+   };
+
+   /**
+    * Sets who is living, hides the names of the living, and sets who was born before the cutoff
+    */
+   public static void prepare(Gedcom gedcom) throws Gedcom.PostProcessException
+   {
+      logger.info("Setting isLiving");
+      JobMetrics.Timer timer = JobMetrics.start("setLiving");
+      Person.setLiving(gedcom);
+      JobMetrics.stop(timer, gedcom.getPeople().size());
+      logger.info("Done setting isLiving");
+      // don't do this anymore
+      //gedcom.propagatePrimaryPerson();
+      logger.info("Changing names from living to unknown");
+      Person.setUnknownName(gedcom);
+      logger.info("Done changing names");
+      logger.info("Setting isBornBeforeCutoff");
+      timer = JobMetrics.start("setAllBornBeforeCutoff");
+      Person.setAllBornBeforeCutoff(gedcom);
+      JobMetrics.stop(timer, gedcom.getPeople().size());
+      logger.info("Done setting isBornBeforeCutoff");
+   }
+
+   /**
+    * Prints the prepared GEDCOM
+    * @param gedcom GEDCOM that has been through prepare
+    * @param placeXMLBuffer place elements written while the GEDCOM was parsed
+    * @param out where to print; not closed
+    * @param encodeXML whether to encode the page contents as XML
+    * @param matcher finds the matches of sources and families
+    */
+   public static void print(Gedcom gedcom, StringBuffer placeXMLBuffer, PrintWriter out, boolean encodeXML,
+                            Matcher matcher)
+         throws InterruptedException, Uploader.GenerateException, Gedcom.PostProcessException
+   {
+      int numCitationOnlySources = 0;
+      for (Source source : gedcom.getSources().values()) {
+         if (!source.shouldPrint(gedcom)) {
+            numCitationOnlySources++;
+         }
+      }
+      out.print("<gedcom citation_only_sources=\""+numCitationOnlySources+"\"");
+      if (gedcom.getPrimaryPerson() != null)
+      {
+         out.print(" primary_person=\"" + gedcom.getPrimaryPerson().getID() + "\"");
+      }
+      out.println(">");
+      out.print(placeXMLBuffer);
+      logger.info("Printing sources");
+      JobMetrics.Timer timer = JobMetrics.start("printSources");
+      int numPrinted = 0;
+      // Print out souces to the xml file
+      for (Map.Entry entry : gedcom.getSources().entrySet()) {
+         // When adding new sources to the source map
+         // (when parsing the GEDCOM),
+         // we check to see if there is another existing
+         // source which already has the same contents as
+         // the source we are about to add.
+         // If there is such an existing source, then
+         // we make the id we are about to add point to the
+         // existing source.
+         //
+         // This has the consequence that when we iterate
+         // through all of the sources in the source map
+         // to print them out,
+         // we need to make sure that the key (id number)
+         // equals the value (Source)'s id number,
+         // so that we only print out each unique source
+         // once.
+         Source source = (Source) entry.getValue();
+         if (entry.getKey().equals(source.getID()))
+         {
+            try
+            {
+               if (source.shouldPrint(gedcom)) {
+                  // set matching source page title
+                  matcher.matchSource(source);
+                  source.print(gedcom, out, encodeXML);
+                  numPrinted++;
+               }
+            } catch (Uploader.PrintException e)
+            {
+               logger.warn(e);
+            }
+         }
+      }
+
+      JobMetrics.stop(timer, numPrinted);
+
+      logger.info("Printing people while auditing for problems");
+      timer = JobMetrics.start("printPeople");
+      // Print out all of the people to the xml file
+      for(Person person : gedcom.getPeople().values())
+      {
+         try
+         {
+            if (GedcomEvents.isEnabled())
+            {
+               findProblemsAndPrint(person, gedcom, out, encodeXML);
+            } else
+            {
+               person.findProblems();
+               person.print(gedcom, out, encodeXML);
+            }
+         } catch (Uploader.PrintException e)
+         {
+            logger.warn(e);
+         }
+      }
+      JobMetrics.stop(timer, gedcom.getPeople().size());
+      // Print out all of the families to the xml file
+      MultiMap<String, Family> familyNames2Families = new MultiMap<String, Family>();
+      // Let's fill the multimap with the families:
+      logger.info("Finding possible matches for families");
+      timer = JobMetrics.start("findMatches");
+      for (Family fam : gedcom.getFamilies().values())
+      {
+         if (fam.shouldPrint(gedcom))
+         {
+            matcher.findMatches(fam, gedcom);
+         }
+         familyNames2Families.put(fam.getWikiTitle(gedcom), fam);
+      }
+      JobMetrics.stop(timer, gedcom.getFamilies().size());
+      logger.info("Printing families while auditing for problems");
+      timer = JobMetrics.start("printFamilies");
+      for(Family fam : gedcom.getFamilies().values())
+      {
+         try
+         {
+            if (GedcomEvents.isEnabled())
+            {
+               findProblemsAndPrint(fam, familyNames2Families, gedcom, out, encodeXML);
+            } else
+            {
+               fam.findProblems(familyNames2Families, gedcom);
+               fam.print(gedcom, out, encodeXML);
+            }
+         } catch (Uploader.PrintException e)
+         {
+            logger.warn(e);
+         }
+      }
+      JobMetrics.stop(timer, gedcom.getFamilies().size());
+      out.println("</gedcom>");
+   }
+
+   // Audits and prints the person, recording DqAnalysis and Print events
+   private static void findProblemsAndPrint(Person person, Gedcom gedcom, PrintWriter out, boolean encodeXML)
+         throws Uploader.PrintException, Gedcom.PostProcessException
+   {
+      GedcomEvents.DqAnalysis dq = new GedcomEvents.DqAnalysis();
+      dq.kind = "person";
+      dq.id = person.getID();
+      dq.begin();
+      person.findProblems();
+      dq.commit();
+      GedcomEvents.Print print = new GedcomEvents.Print();
+      print.kind = "person";
+      print.id = person.getID();
+      print.begin();
+      long allocated = GedcomEvents.getAllocatedBytes();
+      person.print(gedcom, out, encodeXML);
+      print.allocatedBytes = GedcomEvents.getAllocatedBytes() - allocated;
+      print.commit();
+   }
+
+   // Audits and prints the family, recording DqAnalysis and Print events
+   private static void findProblemsAndPrint(Family fam, MultiMap<String, Family> familyNames2Families,
+                                            Gedcom gedcom, PrintWriter out, boolean encodeXML)
+         throws Uploader.PrintException, Gedcom.PostProcessException
+   {
+      GedcomEvents.DqAnalysis dq = new GedcomEvents.DqAnalysis();
+      dq.kind = "family";
+      dq.id = fam.getID();
+      dq.begin();
+      fam.findProblems(familyNames2Families, gedcom);
+      dq.commit();
+      GedcomEvents.Print print = new GedcomEvents.Print();
+      print.kind = "family";
+      print.id = fam.getID();
+      print.begin();
+      long allocated = GedcomEvents.getAllocatedBytes();
+      fam.print(gedcom, out, encodeXML);
+      print.allocatedBytes = GedcomEvents.getAllocatedBytes() - allocated;
+      print.commit();
+   }
+}
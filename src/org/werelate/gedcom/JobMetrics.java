@@ -0,0 +1,261 @@
+package org.werelate.gedcom;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Wall time, CPU time, allocated bytes and item counts of each stage of one GEDCOM job.
+ * The metrics of the job being processed are kept for the worker thread,
+ * so code anywhere in the job can time a stage:
+ * <pre>
+ *    JobMetrics.Timer t = JobMetrics.start("parse");
+ *    ...
+ *    JobMetrics.stop(t, numLines);
+ * </pre>
+ * Timing does nothing when the thread isn't processing a job. Stages may be
+ * nested (placeStandardization is part of postProcess), so the stage times
+ * of a job don't add up to its total time.
+ *
+ * Work the job hands to other threads (the place standardization chunks and the
+ * prepareForGeneration pool) is measured on those threads with startHelper and
+ * stopHelper, and its CPU time and allocated bytes are added to the stages
+ * running on the job's thread meanwhile:
+ * <pre>
+ *    JobMetrics metrics = JobMetrics.current();    // on the job's thread
+ *    ...
+ *    JobMetrics.Helper h = JobMetrics.startHelper(metrics);    // on the helper thread
+ *    ...
+ *    JobMetrics.stopHelper(h);
+ * </pre>
+ */
+public class JobMetrics {
+   /**
+    * The stages that are timed, in the order they are run
+    */
+   public static final String[] STAGES = {
+         "encodingDetection", "parse", "postProcess", "placeStandardization", "setLiving",
+         "setAllBornBeforeCutoff", "printSources", "printPeople", "findMatches", "printFamilies",
+         "reservation", "updateContent", "prepareForGeneration", "uploadXML"
+   };
+
+   /**
+    * Totals for one stage
+    */
+   public static class StageTotals {
+      long calls, wallNanos, cpuNanos, allocatedBytes, items;
+
+      void add(StageTotals other)
+      {
+         calls += other.calls;
+         wallNanos += other.wallNanos;
+         cpuNanos += other.cpuNanos;
+         allocatedBytes += other.allocatedBytes;
+         items += other.items;
+      }
+
+      public long getCalls() {
+         return calls;
+      }
+
+      public long getWallNanos() {
+         return wallNanos;
+      }
+
+      public long getCpuNanos() {
+         return cpuNanos;
+      }
+
+      /**
+       * @return bytes allocated by the job's thread and its helpers, or 0 if the JVM can't measure it
+       */
+      public long getAllocatedBytes() {
+         return allocatedBytes;
+      }
+
+      public long getItems() {
+         return items;
+      }
+   }
+
+   /**
+    * A stage that has been started
+    */
+   public static class Timer {
+      private JobMetrics metrics;
+      private String stage;
+      private long wall, cpu, allocated;
+
+      private Timer(JobMetrics metrics, String stage)
+      {
+         this.metrics = metrics;
+         this.stage = stage;
+         wall = System.nanoTime();
+         cpu = getCpuTime() + metrics.helperCpuNanos.get();
+         allocated = getAllocatedBytes() + metrics.helperAllocatedBytes.get();
+      }
+   }
+
+   /**
+    * Work done for a job on a helper thread
+    */
+   public static class Helper {
+      private JobMetrics metrics;
+      private long cpu, allocated;
+
+      private Helper(JobMetrics metrics)
+      {
+         this.metrics = metrics;
+         cpu = getCpuTime();
+         allocated = getAllocatedBytes();
+      }
+   }
+
+   private static final ThreadLocal<JobMetrics> current = new ThreadLocal<JobMetrics>();
+   private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+   private int gedID;
+   private Timer total;
+   private StageTotals totals = new StageTotals();
+   private Map<String, StageTotals> stages = new LinkedHashMap<String, StageTotals>();
+   // CPU time and bytes allocated so far by the job's helper threads
+   private final AtomicLong helperCpuNanos = new AtomicLong();
+   private final AtomicLong helperAllocatedBytes = new AtomicLong();
+
+   private JobMetrics(int gedID)
+   {
+      this.gedID = gedID;
+      for (String stage : STAGES)
+      {
+         stages.put(stage, new StageTotals());
+      }
+   }
+
+   /**
+    * Starts collecting the metrics of a job on this thread
+    */
+   public static JobMetrics begin(int gedID)
+   {
+      JobMetrics metrics = new JobMetrics(gedID);
+      metrics.total = new Timer(metrics, null);
+      current.set(metrics);
+      return metrics;
+   }
+
+   /**
+    * Stops collecting the metrics of the job on this thread
+    */
+   public static void end()
+   {
+      JobMetrics metrics = current.get();
+      if (metrics != null)
+      {
+         metrics.totals = metrics.measure(metrics.total, 0);
+         current.remove();
+      }
+   }
+
+   /**
+    * @return the metrics of the job on this thread, or null
+    */
+   public static JobMetrics current()
+   {
+      return current.get();
+   }
+
+   /**
+    * Starts timing a stage of the job on this thread
+    * @return the timer to pass to stop, or null if no job is being processed
+    */
+   public static Timer start(String stage)
+   {
+      JobMetrics metrics = current.get();
+      return metrics == null ? null : new Timer(metrics, stage);
+   }
+
+   /**
+    * Adds the time since start to the stage
+    * @param timer returned by start
+    * @param items number of records, people, pages, etc. handled in the stage
+    */
+   public static void stop(Timer timer, long items)
+   {
+      if (timer == null)
+      {
+         return;
+      }
+      StageTotals measured = timer.metrics.measure(timer, items);
+      StageTotals stageTotals = timer.metrics.stages.get(timer.stage);
+      if (stageTotals == null)
+      {
+         stageTotals = new StageTotals();
+         timer.metrics.stages.put(timer.stage, stageTotals);
+      }
+      stageTotals.add(measured);
+   }
+
+   /**
+    * Starts measuring work done for a job on this thread, which isn't the job's thread
+    * @param metrics the job's metrics, as returned by current() on the job's thread; may be null
+    * @return the helper to pass to stopHelper, or null if metrics is null
+    */
+   public static Helper startHelper(JobMetrics metrics)
+   {
+      return metrics == null ? null : new Helper(metrics);
+   }
+
+   /**
+    * Adds the CPU time and bytes allocated on this thread since startHelper to the job
+    * @param helper returned by startHelper
+    */
+   public static void stopHelper(Helper helper)
+   {
+      if (helper == null)
+      {
+         return;
+      }
+      helper.metrics.helperCpuNanos.addAndGet(Math.max(0, getCpuTime() - helper.cpu));
+      helper.metrics.helperAllocatedBytes.addAndGet(Math.max(0, getAllocatedBytes() - helper.allocated));
+   }
+
+   private StageTotals measure(Timer timer, long items)
+   {
+      StageTotals t = new StageTotals();
+      t.calls = 1;
+      t.wallNanos = System.nanoTime() - timer.wall;
+      t.cpuNanos = Math.max(0, getCpuTime() + helperCpuNanos.get() - timer.cpu);
+      t.allocatedBytes = Math.max(0, getAllocatedBytes() + helperAllocatedBytes.get() - timer.allocated);
+      t.items = items;
+      return t;
+   }
+
+   private static long getCpuTime()
+   {
+      return threads.isCurrentThreadCpuTimeSupported() ? threads.getCurrentThreadCpuTime() : 0;
+   }
+
+   private static long getAllocatedBytes()
+   {
+      return GedcomEvents.getAllocatedBytes();
+   }
+
+   public int getGedID() {
+      return gedID;
+   }
+
+   /**
+    * @return the totals of the whole job, once it has ended
+    */
+   public StageTotals getTotals() {
+      return totals;
+   }
+
+   /**
+    * @return stage name -> totals, for the stages in STAGES and any others that were timed
+    */
+   public Map<String, StageTotals> getStages() {
+      return stages;
+   }
+}
@@ -0,0 +1,381 @@
+package org.werelate.gedcom;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.lang.management.ManagementFactory;
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Lets several workers, in this JVM or on other machines, take GEDCOMs
+ * from the familytree_gedcom queue without processing the same one twice.
+ *
+ * A worker claims a GEDCOM by changing its status with a conditional
+ * UPDATE (WHERE fg_id = ? AND fg_status = ?); only the worker whose update
+ * changed the row owns the GEDCOM. The owner also takes a lease in
+ * familytree_gedcom_lease, which it renews while it is running. If a worker
+ * dies, its lease expires and the GEDCOM is put back in the queue with its
+ * previous status, or marked as an error once it has been claimed
+ * maxClaims times without finishing. Only parsing is retried: page generation
+ * can't be safely re-run part way through, so a GEDCOM whose generation didn't
+ * finish is marked STATUS_GENERATE_FAILED for an administrator to look at.
+ *
+ * Lease expiry times are in milliseconds of the database's clock, so the clocks
+ * of the machines sharing the queue don't need to agree.
+ *
+ * The lease table is created by sql/familytree_gedcom_lease.sql.
+ */
+public class JobQueue {
+   private static final Logger logger =
+         LogManager.getLogger("org.werelate.gedcom.Upload");
+
+   public static final long DEFAULT_LEASE_TIME = 10 * 60 * 1000;
+   public static final int DEFAULT_MAX_CLAIMS = 3;
+   // How long the lease row of a GEDCOM put back in the queue is kept to count its claims,
+   // waiting for the GEDCOM to be claimed again
+   private static final long CLAIMS_KEEP_TIME = 24 * 60 * 60 * 1000L;
+
+   // The current time, in milliseconds, on the database server
+   private static final String DB_NOW = "ROUND(UNIX_TIMESTAMP(NOW(3)) * 1000)";
+
+   private Connection conn;
+   private String owner;
+   private long leaseTime;
+   private int maxClaims;
+   private PreparedStatement sClaim = null,
+                     sSelectLease = null,
+                     sReplaceLease = null,
+                     sRenewLeases = null,
+                     sDeleteLease = null,
+                     sAbandonLease = null,
+                     sSelectExpired = null,
+                     sDeleteExpired = null;
+
+   /**
+    * @param conn connection to the wikidb
+    * @param owner identifies this process in the lease table
+    * @param leaseTime milliseconds a lease lasts unless it is renewed
+    * @param maxClaims number of times a GEDCOM may be claimed before it is marked as an error
+    * @throws SQLException
+    */
+   public JobQueue(Connection conn, String owner, long leaseTime, int maxClaims) throws SQLException
+   {
+      this.conn = conn;
+      this.owner = owner;
+      this.leaseTime = leaseTime;
+      this.maxClaims = maxClaims;
+      sClaim = conn.prepareStatement("UPDATE familytree_gedcom " +
+                                     "SET fg_status = ?, fg_status_date = ?, fg_status_reason = ? " +
+                                     "WHERE fg_id = ? AND fg_status = ?");
+      sSelectLease = conn.prepareStatement("SELECT fgl_claims FROM familytree_gedcom_lease WHERE fgl_fg_id = ?");
+      sReplaceLease = conn.prepareStatement("REPLACE INTO familytree_gedcom_lease " +
+                                            "(fgl_fg_id, fgl_owner, fgl_prev_status, fgl_status, fgl_expires, fgl_claims) " +
+                                            "VALUES (?, ?, ?, ?, " + DB_NOW + " + ?, ?)");
+      sRenewLeases = conn.prepareStatement("UPDATE familytree_gedcom_lease SET fgl_expires = " + DB_NOW + " + ? " +
+                                           "WHERE fgl_owner = ? AND fgl_expires > 0");
+      sDeleteLease = conn.prepareStatement("DELETE FROM familytree_gedcom_lease WHERE fgl_fg_id = ? AND fgl_owner = ?");
+      sAbandonLease = conn.prepareStatement("UPDATE familytree_gedcom_lease SET fgl_expires = 0 WHERE fgl_fg_id = ? AND fgl_owner = ?");
+      sSelectExpired = conn.prepareStatement("SELECT fgl_fg_id, fgl_owner, fgl_prev_status, fgl_status, fgl_claims " +
+                                             "FROM familytree_gedcom_lease WHERE fgl_expires < " + DB_NOW);
+      sDeleteExpired = conn.prepareStatement("DELETE FROM familytree_gedcom_lease " +
+                                             "WHERE fgl_fg_id = ? AND fgl_owner = ? AND fgl_expires < " + DB_NOW);
+   }
+
+   /**
+    * @return an owner name that is unique to this process on this machine
+    */
+   public static String getDefaultOwner()
+   {
+      // of the form pid@hostname
+      return ManagementFactory.getRuntimeMXBean().getName();
+   }
+
+   /**
+    * Changes the status of the GEDCOM from fromStatus to toStatus,
+    * unless another worker has already changed it, and takes a lease on it.
+    * Both are done in one transaction, so a claimed GEDCOM always has a lease.
+    * @return true if this worker now owns the GEDCOM
+    * @throws SQLException
+    */
+   public boolean claim(int gedID, int fromStatus, int toStatus) throws SQLException
+   {
+      boolean committed = false;
+      conn.setAutoCommit(false);
+      try
+      {
+         if (!updateStatus(gedID, fromStatus, toStatus, ""))
+         {
+            return false;
+         }
+         int claims = 0;
+         sSelectLease.setInt(1, gedID);
+         ResultSet rs = sSelectLease.executeQuery();
+         if (rs.next())
+         {
+            claims = rs.getInt(1);
+         }
+         rs.close();
+         sReplaceLease.setInt(1, gedID);
+         sReplaceLease.setString(2, owner);
+         sReplaceLease.setInt(3, fromStatus);
+         sReplaceLease.setInt(4, toStatus);
+         sReplaceLease.setLong(5, leaseTime);
+         sReplaceLease.setInt(6, claims + 1);
+         sReplaceLease.execute();
+         conn.commit();
+         committed = true;
+         return true;
+      } finally
+      {
+         if (!committed)
+         {
+            conn.rollback();
+         }
+         conn.setAutoCommit(true);
+      }
+   }
+
+   // Conditional status update; returns whether the row was changed
+   private boolean updateStatus(int gedID, int fromStatus, int toStatus, String reason) throws SQLException
+   {
+      sClaim.setInt(1, toStatus);
+      sClaim.setString(2, Uploader.generateDateString());
+      sClaim.setString(3, reason);
+      sClaim.setInt(4, gedID);
+      sClaim.setInt(5, fromStatus);
+      return sClaim.executeUpdate() == 1;
+   }
+
+   /**
+    * Extends all of the leases held by this process
+    * @throws SQLException
+    */
+   public void renewLeases() throws SQLException
+   {
+      sRenewLeases.setLong(1, leaseTime);
+      sRenewLeases.setString(2, owner);
+      sRenewLeases.execute();
+   }
+
+   /**
+    * Gives up the lease on a GEDCOM this worker has finished with
+    * @throws SQLException
+    */
+   public void release(int gedID) throws SQLException
+   {
+      sDeleteLease.setInt(1, gedID);
+      sDeleteLease.setString(2, owner);
+      sDeleteLease.execute();
+   }
+
+   /**
+    * Puts a claimed GEDCOM back in the queue with the status it had before
+    * it was claimed, e.g. because its file isn't on this server yet.
+    * Nothing is done if the status has changed since the claim.
+    * @return true if the GEDCOM was put back in the queue
+    * @throws SQLException
+    */
+   public boolean unclaim(int gedID, int claimedStatus, int prevStatus) throws SQLException
+   {
+      if (!updateStatus(gedID, claimedStatus, prevStatus, ""))
+      {
+         return false;
+      }
+      release(gedID);
+      return true;
+   }
+
+   /**
+    * Expires the lease on a GEDCOM whose processing failed part way through,
+    * so the next reclaimExpired retries it or marks it as failed.
+    * @throws SQLException
+    */
+   public void abandon(int gedID) throws SQLException
+   {
+      sAbandonLease.setInt(1, gedID);
+      sAbandonLease.setString(2, owner);
+      sAbandonLease.execute();
+   }
+
+   /**
+    * Gives up the lease on a GEDCOM whose job failed with an unexpected exception
+    * and changes its status from claimedStatus to failedStatus, in one transaction.
+    * Nothing is done if the lease is no longer this worker's, e.g. because another
+    * worker has already reclaimed it.
+    * @return true if the GEDCOM was marked as failed
+    * @throws SQLException
+    */
+   public boolean fail(int gedID, int claimedStatus, int failedStatus, String reason) throws SQLException
+   {
+      boolean committed = false;
+      conn.setAutoCommit(false);
+      try
+      {
+         sDeleteLease.setInt(1, gedID);
+         sDeleteLease.setString(2, owner);
+         if (sDeleteLease.executeUpdate() != 1)
+         {
+            return false;
+         }
+         boolean failed = updateStatus(gedID, claimedStatus, failedStatus, reason);
+         conn.commit();
+         committed = true;
+         return failed;
+      } finally
+      {
+         if (!committed)
+         {
+            conn.rollback();
+         }
+         conn.setAutoCommit(true);
+      }
+   }
+
+   /**
+    * Puts the GEDCOMs whose leases have expired back in the queue.
+    * A GEDCOM is only put back if its status hasn't changed since it
+    * was claimed; a GEDCOM that has been claimed maxClaims times
+    * is marked as an error instead, and one whose pages were being
+    * generated is marked STATUS_GENERATE_FAILED. The rows kept to count
+    * the claims of GEDCOMs put back in the queue are deleted once they
+    * haven't been claimed again for a day.
+    * @return the number of expired leases that were reclaimed
+    * @throws SQLException
+    */
+   public int reclaimExpired() throws SQLException
+   {
+      int numReclaimed = 0;
+      for (ExpiredLease lease : selectExpired())
+      {
+         if (reclaim(lease))
+         {
+            numReclaimed++;
+         }
+      }
+      return numReclaimed;
+   }
+
+   // A lease that had expired when it was selected
+   static class ExpiredLease {
+      int gedID, prevStatus, status, claims;
+      String owner;
+   }
+
+   // The leases that have expired
+   List<ExpiredLease> selectExpired() throws SQLException
+   {
+      List<ExpiredLease> expired = new ArrayList<ExpiredLease>();
+      ResultSet rs = sSelectExpired.executeQuery();
+      try
+      {
+         while (rs.next())
+         {
+            ExpiredLease lease = new ExpiredLease();
+            lease.gedID = rs.getInt(1);
+            lease.owner = rs.getString(2);
+            lease.prevStatus = rs.getInt(3);
+            lease.status = rs.getInt(4);
+            lease.claims = rs.getInt(5);
+            expired.add(lease);
+         }
+      } finally
+      {
+         rs.close();
+      }
+      return expired;
+   }
+
+   // Takes the lease from its owner, if it is still theirs and still expired, and only
+   // then changes the GEDCOM's status, in one transaction. Another worker may have
+   // reclaimed the lease since it was selected, and the GEDCOM may even have been
+   // claimed again; then the lease isn't ours to take and the status is left alone.
+   // Returns whether this worker reclaimed the lease.
+   boolean reclaim(ExpiredLease lease) throws SQLException
+   {
+      boolean committed = false;
+      conn.setAutoCommit(false);
+      try
+      {
+         sDeleteExpired.setInt(1, lease.gedID);
+         sDeleteExpired.setString(2, lease.owner);
+         if (sDeleteExpired.executeUpdate() != 1)
+         {
+            return false;
+         }
+         if (lease.owner.length() == 0)
+         {
+            // A GEDCOM put back in the queue that hasn't been claimed again
+         } else if (!isRetryable(lease.status))
+         {
+            // Some of the pages may have been created already; running it again would create them twice
+            if (updateStatus(lease.gedID, lease.status, Uploader.STATUS_GENERATE_FAILED,
+                             "Page generation did not finish; check the pages created before regenerating"))
+            {
+               logger.warn("Gedcom " + lease.gedID + " was not finished generating by " + lease.owner + "; marking it as failed");
+            }
+         } else if (lease.claims >= maxClaims)
+         {
+            if (updateStatus(lease.gedID, lease.status, Uploader.STATUS_ERROR,
+                             "Processing did not finish after " + lease.claims + " attempts"))
+            {
+               logger.warn("Gedcom " + lease.gedID + " was not finished by " + lease.owner + "; giving up after " + lease.claims + " attempts");
+            }
+         } else if (updateStatus(lease.gedID, lease.status, lease.prevStatus, ""))
+         {
+            logger.warn("Gedcom " + lease.gedID + " was not finished by " + lease.owner + "; putting it back in the queue");
+            // Keep a row without an owner for a while so the next claim knows how many times it has been tried
+            sReplaceLease.setInt(1, lease.gedID);
+            sReplaceLease.setString(2, "");
+            sReplaceLease.setInt(3, lease.prevStatus);
+            sReplaceLease.setInt(4, lease.status);
+            sReplaceLease.setLong(5, CLAIMS_KEEP_TIME);
+            sReplaceLease.setInt(6, lease.claims);
+            sReplaceLease.execute();
+         }
+         conn.commit();
+         committed = true;
+         return true;
+      } finally
+      {
+         if (!committed)
+         {
+            conn.rollback();
+         }
+         conn.setAutoCommit(true);
+      }
+   }
+
+   public String getOwner() {
+      return owner;
+   }
+
+   // Whether a GEDCOM left with this status by a worker may simply be claimed again
+   private static boolean isRetryable(int claimedStatus)
+   {
+      return claimedStatus == Uploader.STATUS_PROCESSING;
+   }
+
+   /**
+    * closes the prepared statements
+    */
+   public void close()
+   {
+      PreparedStatement [] statements = {sClaim, sSelectLease, sReplaceLease, sRenewLeases, sDeleteLease, sAbandonLease, sSelectExpired, sDeleteExpired};
+      for (PreparedStatement s : statements)
+      {
+         try
+         {
+            if (s != null)
+            {
+               s.close();
+            }
+         } catch (SQLException e)
+         {
+            logger.warn("There was an exception when closing a prepared statement");
+            logger.warn(e);
+         }
+      }
+   }
+}
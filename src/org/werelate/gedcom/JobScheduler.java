@@ -0,0 +1,257 @@
+package org.werelate.gedcom;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.*;
+
+/**
+ * Decides which of the queued GEDCOMs a worker should take next.
+ * Jobs are ordered shortest expected job first, where the expected time
+ * comes from the size of the .ged file and whether the job parses the
+ * GEDCOM or generates its pages. A job's score is reduced by the time it
+ * has been waiting (times the aging factor) so large GEDCOMs still get their
+ * turn, and a user may have at most maxUserJobs GEDCOMs processed at once.
+ *
+ * The time per KB of each kind of job is learned from the jobs that finish,
+ * and the expected and actual times are logged so the settings can be tuned.
+ */
+public class JobScheduler {
+   private static final Logger logger =
+         LogManager.getLogger("org.werelate.gedcom.JobScheduler");
+
+   public static final int DEFAULT_MAX_USER_JOBS = 2;
+   public static final double DEFAULT_AGING = 1.0;
+   public static final double DEFAULT_PARSE_MILLIS_PER_KB = 30;
+   public static final double DEFAULT_GENERATE_MILLIS_PER_KB = 100;
+   // Fixed cost of any job, and the size assumed when the .ged file isn't here
+   private static final long JOB_OVERHEAD_MILLIS = 10000;
+   private static final long UNKNOWN_SIZE = 1024 * 1024;
+   // Weight of a finished job when updating the time per KB
+   private static final double LEARNING_RATE = 0.2;
+
+   /**
+    * A GEDCOM in the queue that a worker could take
+    */
+   public static class Candidate {
+      private int gedID;
+      private String userName;
+      private boolean generate;
+      private long size;
+      private long queuedAt;
+      private long expectedMillis;
+      private double score;
+
+      /**
+       * @param gedID GEDCOM id
+       * @param userName user who uploaded the GEDCOM
+       * @param generate true if the job generates pages, false if it parses the GEDCOM
+       * @param size size of the .ged file in bytes, or -1 if it isn't on this server
+       * @param queuedAt when the GEDCOM was given its current status, in milliseconds
+       */
+      public Candidate(int gedID, String userName, boolean generate, long size, long queuedAt)
+      {
+         this.gedID = gedID;
+         this.userName = userName;
+         this.generate = generate;
+         this.size = size;
+         this.queuedAt = queuedAt;
+      }
+
+      public int getGedID() {
+         return gedID;
+      }
+
+      public String getUserName() {
+         return userName;
+      }
+
+      public boolean isGenerate() {
+         return generate;
+      }
+
+      public long getSize() {
+         return size;
+      }
+
+      public long getExpectedMillis() {
+         return expectedMillis;
+      }
+
+      public double getScore() {
+         return score;
+      }
+   }
+
+   // A job that has been started
+   private static class Running {
+      Candidate candidate;
+      long startedAt;
+
+      Running(Candidate candidate, long startedAt)
+      {
+         this.candidate = candidate;
+         this.startedAt = startedAt;
+      }
+   }
+
+   private int maxUserJobs;
+   private double aging;
+   private double parseMillisPerKB;
+   private double generateMillisPerKB;
+   // guarded by this
+   private Map<Integer, Running> running = new HashMap<Integer, Running>();
+   private Map<String, Integer> userJobs = new HashMap<String, Integer>();
+
+   /**
+    * @param properties reads schedule_max_user_jobs, schedule_aging,
+    *    schedule_parse_ms_per_kb and schedule_generate_ms_per_kb
+    */
+   public JobScheduler(Properties properties)
+   {
+      this(Integer.parseInt(properties.getProperty("schedule_max_user_jobs", Integer.toString(DEFAULT_MAX_USER_JOBS))),
+           Double.parseDouble(properties.getProperty("schedule_aging", Double.toString(DEFAULT_AGING))),
+           Double.parseDouble(properties.getProperty("schedule_parse_ms_per_kb", Double.toString(DEFAULT_PARSE_MILLIS_PER_KB))),
+           Double.parseDouble(properties.getProperty("schedule_generate_ms_per_kb", Double.toString(DEFAULT_GENERATE_MILLIS_PER_KB))));
+   }
+
+   public JobScheduler(int maxUserJobs, double aging, double parseMillisPerKB, double generateMillisPerKB)
+   {
+      this.maxUserJobs = Math.max(1, maxUserJobs);
+      this.aging = aging;
+      this.parseMillisPerKB = parseMillisPerKB;
+      this.generateMillisPerKB = generateMillisPerKB;
+   }
+
+   /**
+    * @return how long a job of this kind and size is expected to take, in milliseconds
+    */
+   public synchronized long getExpectedMillis(boolean generate, long size)
+   {
+      double kb = (size < 0 ? UNKNOWN_SIZE : size) / 1024.0;
+      return JOB_OVERHEAD_MILLIS + (long) (kb * (generate ? generateMillisPerKB : parseMillisPerKB));
+   }
+
+   /**
+    * Orders the candidates in which they should be tried. Candidates whose
+    * user already has maxUserJobs GEDCOMs running, and GEDCOMs to parse whose
+    * .ged file isn't on this server yet, are left out.
+    * @param candidates GEDCOMs in the queue
+    * @param now current time in milliseconds
+    * @return the candidates to try, best first
+    */
+   public synchronized List<Candidate> order(List<Candidate> candidates, long now)
+   {
+      List<Candidate> result = new ArrayList<Candidate>();
+      for (Candidate c : candidates)
+      {
+         if (!c.generate && c.size < 0)
+         {
+            continue;
+         }
+         Integer count = userJobs.get(c.userName);
+         if (count != null && count >= maxUserJobs)
+         {
+            continue;
+         }
+         c.expectedMillis = getExpectedMillis(c.generate, c.size);
+         c.score = c.expectedMillis - aging * Math.max(0, now - c.queuedAt);
+         result.add(c);
+      }
+      Collections.sort(result, new Comparator<Candidate>() {
+         public int compare(Candidate c1, Candidate c2) {
+            if (c1.score != c2.score)
+            {
+               return c1.score < c2.score ? -1 : 1;
+            }
+            return c1.queuedAt < c2.queuedAt ? -1 : (c1.queuedAt > c2.queuedAt ? 1 : 0);
+         }
+      });
+      return result;
+   }
+
+   /**
+    * Records that a worker has taken the candidate
+    * @param numCandidates number of candidates it was chosen from, for the log
+    */
+   public synchronized void started(Candidate c, int numCandidates, long now)
+   {
+      running.put(c.gedID, new Running(c, now));
+      Integer count = userJobs.get(c.userName);
+      userJobs.put(c.userName, count == null ? 1 : count + 1);
+      logger.info("Scheduled gedcom " + c.gedID + " of " + c.userName + " (" + (c.generate ? "generate" : "parse") +
+                  ", " + (c.size < 0 ? "unknown size" : (c.size / 1024) + " KB") +
+                  ", expected " + c.expectedMillis + "ms, waited " + Math.max(0, now - c.queuedAt) +
+                  "ms) from " + numCandidates + " candidates");
+   }
+
+   /**
+    * Records that the GEDCOM is done, logs its expected and actual times,
+    * and learns the time per KB from it
+    * @param completed false if the job stopped early, in which case its time isn't learned from
+    */
+   public synchronized void finished(int gedID, boolean completed, long now)
+   {
+      Running r = running.remove(gedID);
+      if (r == null)
+      {
+         return;
+      }
+      Candidate c = r.candidate;
+      Integer count = userJobs.get(c.userName);
+      if (count == null || count <= 1)
+      {
+         userJobs.remove(c.userName);
+      } else
+      {
+         userJobs.put(c.userName, count - 1);
+      }
+      long actual = now - r.startedAt;
+      logger.info("Gedcom " + gedID + " (" + (c.generate ? "generate" : "parse") + ") took " + actual +
+                  "ms, expected " + c.expectedMillis + "ms");
+      if (completed && c.size > 0)
+      {
+         double observed = Math.max(0, actual - JOB_OVERHEAD_MILLIS) / (c.size / 1024.0);
+         if (c.generate)
+         {
+            generateMillisPerKB += LEARNING_RATE * (observed - generateMillisPerKB);
+         } else
+         {
+            parseMillisPerKB += LEARNING_RATE * (observed - parseMillisPerKB);
+         }
+      }
+   }
+
+   /**
+    * @return the number of GEDCOMs of this user being processed
+    */
+   public synchronized int getUserJobs(String userName)
+   {
+      Integer count = userJobs.get(userName);
+      return count == null ? 0 : count;
+   }
+
+   /**
+    * @param date fg_status_date, in yyyyMMddHHmmss GMT
+    * @param defaultValue returned if the date can't be read
+    * @return the date in milliseconds
+    */
+   public static long parseStatusDate(String date, long defaultValue)
+   {
+      if (date == null)
+      {
+         return defaultValue;
+      }
+      SimpleDateFormat format = new SimpleDateFormat("yyyyMMddHHmmss");
+      format.setTimeZone(TimeZone.getTimeZone("GMT"));
+      try
+      {
+         return format.parse(date.trim()).getTime();
+      } catch (ParseException e)
+      {
+         return defaultValue;
+      }
+   }
+}
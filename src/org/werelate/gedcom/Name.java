@@ -13,10 +13,7 @@ import java.io.PrintWriter;
 import java.io.FileWriter;
 import java.io.IOException;
 
-import javax.xml.xpath.XPathExpression;
-import javax.xml.xpath.XPath;
 import javax.xml.xpath.XPathExpressionException;
-import javax.xml.xpath.XPathConstants;
 
 /**
  * Created by IntelliJ IDEA.
@@ -111,40 +108,19 @@ public class Name extends ReferenceContainer {
 
    }
 
-   private static final XPath xpe = Uploader.xpe;
-   private static XPathExpression nameExpression;
-   private static XPathExpression givenExpression;
-   private static XPathExpression surnameExpression;
-   private static XPathExpression titlePrefixExpression;
-   private static XPathExpression titleSuffixExpression;
-   static
-   {
-      try
-      {
-         nameExpression = xpe.compile("person/name");
-         givenExpression = xpe.compile("@given");
-         surnameExpression = xpe.compile("@surname");
-         titlePrefixExpression = xpe.compile("@title_prefix");
-         titleSuffixExpression = xpe.compile("@title_suffix");
-      } catch (XPathExpressionException e)
-      {
-
-      }
-   }
-
    public void parseFromPersonXML(Document personContentXML, boolean living) throws XPathExpressionException
    {
-      Node name = (Node) nameExpression.evaluate(personContentXML, XPathConstants.NODE);
+      Node name = ContentPaths.getName(personContentXML);
       if (living) {
          setGiven("Living");
       }
       if (name != null) {
          if (!living) {
-            setGiven((String) givenExpression.evaluate(name, XPathConstants.STRING));
-            setPrefix((String) titlePrefixExpression.evaluate(name, XPathConstants.STRING));
-            setSuffix((String) titleSuffixExpression.evaluate(name, XPathConstants.STRING));
+            setGiven(ContentPaths.getAttribute(name, "given"));
+            setPrefix(ContentPaths.getAttribute(name, "title_prefix"));
+            setSuffix(ContentPaths.getAttribute(name, "title_suffix"));
          }
-         setSurname((String) surnameExpression.evaluate(name, XPathConstants.STRING));
+         setSurname(ContentPaths.getAttribute(name, "surname"));
       }
    }
 
@@ -0,0 +1,258 @@
+package org.werelate.gedcom;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.Set;
+
+/**
+ * A MinHash signature of the set of names in a GEDCOM, used to estimate
+ * how much two GEDCOMs overlap without reading both files again.
+ * The signature keeps the smallest value of each of NUM_HASHES hash
+ * functions over the names, plus the number of names, and is saved
+ * next to the GEDCOM as &lt;id&gt;.sig.
+ */
+public class NameSignature {
+   public static final int NUM_HASHES = 128;
+   /**
+    * Overlap estimates of GEDCOMs whose sizes differ by more than this ratio aren't reliable
+    */
+   public static final double MIN_SIZE_RATIO = 0.2;
+   private static final int VERSION = 1;
+   private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+   private static final long FNV_PRIME = 0x100000001b3L;
+   private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+
+   private int size;
+   private long[] mins;
+
+   private NameSignature(int size, long[] mins)
+   {
+      this.size = size;
+      this.mins = mins;
+   }
+
+   /**
+    * @param names the names in a GEDCOM, as made by Uploader.generateNameSet
+    * @return the signature of the names
+    */
+   public static NameSignature fromNames(Set<String> names)
+   {
+      long[] mins = new long[NUM_HASHES];
+      Arrays.fill(mins, Long.MAX_VALUE);
+      for (String name : names)
+      {
+         long h = hash(name);
+         for (int i = 0; i < NUM_HASHES; i++)
+         {
+            long v = mix(h + (i + 1) * GOLDEN_GAMMA);
+            if (v < mins[i])
+            {
+               mins[i] = v;
+            }
+         }
+      }
+      return new NameSignature(names.size(), mins);
+   }
+
+   // 64-bit FNV-1a of the string's characters
+   private static long hash(String s)
+   {
+      long h = FNV_OFFSET;
+      for (int i = 0; i < s.length(); i++)
+      {
+         h ^= s.charAt(i);
+         h *= FNV_PRIME;
+      }
+      return h;
+   }
+
+   // splitmix64 finalizer; gives a different hash function for each offset
+   private static long mix(long z)
+   {
+      z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+      z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+      return z ^ (z >>> 31);
+   }
+
+   /**
+    * @return the number of names in the GEDCOM
+    */
+   public int getSize() {
+      return size;
+   }
+
+   /**
+    * @return estimated Jaccard similarity |A and B| / |A or B| of the two name sets
+    */
+   public double estimateJaccard(NameSignature other)
+   {
+      if (size == 0 || other.size == 0)
+      {
+         return 0;
+      }
+      int numEqual = 0;
+      for (int i = 0; i < NUM_HASHES; i++)
+      {
+         if (mins[i] == other.mins[i])
+         {
+            numEqual++;
+         }
+      }
+      return (double) numEqual / NUM_HASHES;
+   }
+
+   /**
+    * Estimates the percentage of the names in this GEDCOM that are also in the other,
+    * which is what Uploader.getExactOverlapPercentage measures.
+    * The estimate is only good when the two GEDCOMs have similar sizes; see isSizeSkewed
+    * and getOverlapErrorBound.
+    */
+   public int estimateOverlapPercentage(NameSignature other)
+   {
+      double j = estimateJaccard(other);
+      if (j == 0)
+      {
+         return 0;
+      }
+      // |A and B| = J * |A or B| = J * (|A| + |B|) / (1 + J)
+      double intersection = j * (size + other.size) / (1 + j);
+      return (int) Math.min(100, intersection * 100 / size);
+   }
+
+   /**
+    * A small GEDCOM inside a much larger one has a small Jaccard similarity, which the
+    * signature can't tell from zero, so its overlap estimate can be far too low
+    * @return true if the smaller of the two GEDCOMs has less than MIN_SIZE_RATIO
+    *    of the names of the larger
+    */
+   public boolean isSizeSkewed(NameSignature other)
+   {
+      int min = Math.min(size, other.size);
+      int max = Math.max(size, other.size);
+      return max > 0 && min < max * MIN_SIZE_RATIO;
+   }
+
+   /**
+    * @return about two standard errors of estimateOverlapPercentage, in percentage points.
+    *    The Jaccard estimate's error is sqrt(J(1-J)/NUM_HASHES), and it grows
+    *    by (|A| + |B|) / (|A| (1 + J)^2) when turned into a percentage of this GEDCOM
+    */
+   public int getOverlapErrorBound(NameSignature other)
+   {
+      if (size == 0 || other.size == 0)
+      {
+         return 0;
+      }
+      // an estimate of 0 only means that J is probably below 1 / NUM_HASHES
+      double j = Math.max(estimateJaccard(other), 1.0 / NUM_HASHES);
+      double jaccardError = Math.sqrt(j * (1 - j) / NUM_HASHES);
+      double slope = (double) (size + other.size) / (size * (1 + j) * (1 + j));
+      return (int) Math.ceil(2 * jaccardError * slope * 100);
+   }
+
+   /**
+    * @return a hash of the rows of the signature in the band, for locality-sensitive hashing;
+    *    signatures that agree on all of the band's rows have the same band hash
+    */
+   public long getBandHash(int band, int rowsPerBand)
+   {
+      long h = FNV_OFFSET ^ band;
+      for (int i = band * rowsPerBand; i < (band + 1) * rowsPerBand; i++)
+      {
+         h = mix(h ^ mins[i]) * FNV_PRIME;
+      }
+      return h;
+   }
+
+   public boolean equals(Object o) {
+      if (this == o) return true;
+      if (o == null || getClass() != o.getClass()) return false;
+
+      final NameSignature that = (NameSignature) o;
+      return size == that.size && Arrays.equals(mins, that.mins);
+   }
+
+   public int hashCode() {
+      return 29 * size + Arrays.hashCode(mins);
+   }
+
+   /**
+    * Saves the signature to the file, through a temporary file that then replaces it,
+    * so that workers writing and reading the same signature at once don't see half of it
+    * @throws IOException
+    */
+   public void write(File file) throws IOException
+   {
+      File tmp = File.createTempFile(file.getName(), ".tmp", file.getAbsoluteFile().getParentFile());
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+      try
+      {
+         out.writeInt(VERSION);
+         writeTo(out);
+      } finally
+      {
+         out.close();
+      }
+      if (!tmp.renameTo(file))
+      {
+         file.delete();
+         if (!tmp.renameTo(file))
+         {
+            tmp.delete();
+            throw new IOException("Could not rename " + tmp + " to " + file);
+         }
+      }
+   }
+
+   /**
+    * Writes the size and hashes, without the version
+    * @throws IOException
+    */
+   public void writeTo(DataOutput out) throws IOException
+   {
+      out.writeInt(size);
+      out.writeInt(mins.length);
+      for (long min : mins)
+      {
+         out.writeLong(min);
+      }
+   }
+
+   /**
+    * @return the signature saved in the file, or null if the file was written
+    *    by a different version or with a different number of hashes
+    * @throws IOException
+    */
+   public static NameSignature read(File file) throws IOException
+   {
+      DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+      try
+      {
+         if (in.readInt() != VERSION)
+         {
+            return null;
+         }
+         return readFrom(in);
+      } finally
+      {
+         in.close();
+      }
+   }
+
+   /**
+    * Reads a signature written by writeTo
+    * @return the signature, or null if it has a different number of hashes
+    * @throws IOException
+    */
+   public static NameSignature readFrom(DataInput in) throws IOException
+   {
+      int size = in.readInt();
+      int numHashes = in.readInt();
+      long[] mins = new long[numHashes];
+      for (int i = 0; i < numHashes; i++)
+      {
+         mins[i] = in.readLong();
+      }
+      return numHashes == NUM_HASHES ? new NameSignature(size, mins) : null;
+   }
+}
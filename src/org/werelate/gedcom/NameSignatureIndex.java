@@ -0,0 +1,291 @@
+package org.werelate.gedcom;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * A locality-sensitive hashing index over the name signatures of all
+ * uploaded GEDCOMs, used to find GEDCOMs that are near-duplicates of a new
+ * upload, whoever uploaded them, without comparing it to every GEDCOM.
+ *
+ * The signature's hashes are split into NUM_BANDS bands of ROWS_PER_BAND hashes, and
+ * two GEDCOMs become candidates when all of the hashes of any band agree. Each hash
+ * agrees with a probability of the GEDCOMs' Jaccard similarity J, so they become
+ * candidates with a probability of 1 - (1 - J^4)^32, an S-curve that rises around
+ * J = (1/32)^(1/4), about 0.42:
+ *
+ *    J            0.1    0.2    0.3    0.4    0.5    0.6    0.7
+ *    candidate    0.3%   5%     23%    56%    87%    98.8%  99.98%
+ *
+ * So the same export uploaded by several relatives is almost always a candidate, and
+ * GEDCOMs that only share common names rarely are. Candidates are then checked with
+ * the signatures themselves, keeping those whose overlap may reach the threshold
+ * within the estimate's error.
+ *
+ * A duplicate is a GEDCOM that contains most of the names of the one looked up, which
+ * may be larger. A GEDCOM holding all of the names of one 60% of its size is 60% alike
+ * and almost always found, but one holding a GEDCOM half its size is only found 87% of
+ * the time, and a third of its size 23%; more bands of fewer rows would find those,
+ * but would make most GEDCOMs that share a few hundred common names candidates too.
+ * GEDCOMs whose sizes differ by more than NameSignature.MIN_SIZE_RATIO are never
+ * compared, since their overlap can't be estimated from the signatures.
+ *
+ * The index is an append-only file of length-prefixed (gedID, user, signature) records.
+ * Records appended by other processes are read before each lookup; a later
+ * record for the same GEDCOM replaces the earlier one. Adding the signature that
+ * the index already has for a GEDCOM writes nothing, so GEDCOMs may be added again
+ * each time they are claimed, and BuildDuplicateIndex may be run again.
+ */
+public class NameSignatureIndex {
+   private static final Logger logger =
+         LogManager.getLogger("org.werelate.gedcom.NameSignatureIndex");
+
+   public static final int NUM_BANDS = 32;
+   public static final int ROWS_PER_BAND = 4;
+   private static final String INDEX_FILE = "signatures.idx";
+
+   /**
+    * A GEDCOM that may duplicate the one looked up
+    */
+   public static class Match {
+      private int gedID;
+      private String userName;
+      private int overlapPercent;
+
+      Match(int gedID, String userName, int overlapPercent)
+      {
+         this.gedID = gedID;
+         this.userName = userName;
+         this.overlapPercent = overlapPercent;
+      }
+
+      public int getGedID() {
+         return gedID;
+      }
+
+      public String getUserName() {
+         return userName;
+      }
+
+      /**
+       * @return estimated percentage of the looked-up GEDCOM's names that are in this one
+       */
+      public int getOverlapPercent() {
+         return overlapPercent;
+      }
+
+      public String toString() {
+         return gedID + " (" + userName + ", " + overlapPercent + "%)";
+      }
+   }
+
+   // An indexed GEDCOM
+   private static class Entry {
+      String userName;
+      NameSignature sig;
+
+      Entry(String userName, NameSignature sig)
+      {
+         this.userName = userName;
+         this.sig = sig;
+      }
+   }
+
+   private File file;
+   // How much of the file has been read
+   private long fileOffset = 0;
+   private Map<Integer, Entry> entries = new HashMap<Integer, Entry>();
+   // band hash -> GEDCOMs with that hash, one map per band
+   private List<Map<Long, Set<Integer>>> buckets = new ArrayList<Map<Long, Set<Integer>>>();
+
+   /**
+    * Opens the index in the directory, creating the directory if necessary
+    * @throws IOException
+    */
+   public NameSignatureIndex(File dir) throws IOException
+   {
+      if (!dir.exists() && !dir.mkdirs())
+      {
+         throw new IOException("Could not create " + dir);
+      }
+      file = new File(dir, INDEX_FILE);
+      for (int i = 0; i < NUM_BANDS; i++)
+      {
+         buckets.add(new HashMap<Long, Set<Integer>>());
+      }
+      refresh();
+   }
+
+   // Reads the records added to the file since it was last read
+   private void refresh() throws IOException
+   {
+      if (!file.exists() || file.length() <= fileOffset)
+      {
+         return;
+      }
+      RandomAccessFile in = new RandomAccessFile(file, "r");
+      try
+      {
+         long length = in.length();
+         in.seek(fileOffset);
+         // Each record is its length followed by the record
+         while (fileOffset + 4 <= length)
+         {
+            int recordLength = in.readInt();
+            if (fileOffset + 4 + recordLength > length)
+            {
+               // still being written
+               break;
+            }
+            byte[] record = new byte[recordLength];
+            in.readFully(record);
+            fileOffset += 4 + recordLength;
+            DataInputStream recordIn = new DataInputStream(new ByteArrayInputStream(record));
+            int gedID = recordIn.readInt();
+            String userName = recordIn.readUTF();
+            NameSignature sig = NameSignature.readFrom(recordIn);
+            if (sig != null)
+            {
+               put(gedID, new Entry(userName, sig));
+            }
+         }
+      } finally
+      {
+         in.close();
+      }
+   }
+
+   private void put(int gedID, Entry entry)
+   {
+      Entry old = entries.put(gedID, entry);
+      for (int band = 0; band < NUM_BANDS; band++)
+      {
+         Map<Long, Set<Integer>> bandBuckets = buckets.get(band);
+         if (old != null)
+         {
+            Set<Integer> ids = bandBuckets.get(old.sig.getBandHash(band, ROWS_PER_BAND));
+            if (ids != null)
+            {
+               ids.remove(gedID);
+            }
+         }
+         long key = entry.sig.getBandHash(band, ROWS_PER_BAND);
+         Set<Integer> ids = bandBuckets.get(key);
+         if (ids == null)
+         {
+            ids = new HashSet<Integer>();
+            bandBuckets.put(key, ids);
+         }
+         ids.add(gedID);
+      }
+   }
+
+   /**
+    * Adds the GEDCOM's signature to the index, replacing any earlier one.
+    * GEDCOMs without names are not indexed.
+    * @return false if the index already had this signature for the GEDCOM, or it has no names
+    * @throws IOException
+    */
+   public synchronized boolean add(int gedID, String userName, NameSignature sig) throws IOException
+   {
+      if (sig.getSize() == 0)
+      {
+         return false;
+      }
+      refresh();
+      Entry old = entries.get(gedID);
+      if (old != null && old.userName.equals(userName) && old.sig.equals(sig))
+      {
+         return false;
+      }
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      DataOutputStream record = new DataOutputStream(bytes);
+      record.writeInt(0);
+      record.writeInt(gedID);
+      record.writeUTF(userName);
+      sig.writeTo(record);
+      record.close();
+      byte[] data = bytes.toByteArray();
+      int recordLength = data.length - 4;
+      data[0] = (byte) (recordLength >>> 24);
+      data[1] = (byte) (recordLength >>> 16);
+      data[2] = (byte) (recordLength >>> 8);
+      data[3] = (byte) recordLength;
+      // One write per record, so records appended by several processes don't interleave
+      FileOutputStream out = new FileOutputStream(file, true);
+      try
+      {
+         out.write(data);
+      } finally
+      {
+         out.close();
+      }
+      // Other processes may have appended records before this one
+      refresh();
+      return true;
+   }
+
+   /**
+    * Finds the indexed GEDCOMs that share a band with the signature and
+    * may contain at least minOverlapPercent of its names
+    * @param gedID GEDCOM being looked up, which is left out of the results
+    * @param sig its signature
+    * @param minOverlapPercent smallest overlap to return, which the estimate
+    *    plus its error bound must reach
+    * @return the matches, largest overlap first
+    * @throws IOException
+    */
+   public synchronized List<Match> findDuplicates(int gedID, NameSignature sig, int minOverlapPercent) throws IOException
+   {
+      Set<Integer> candidates = findCandidates(sig);
+      candidates.remove(gedID);
+      List<Match> matches = new ArrayList<Match>();
+      for (int id : candidates)
+      {
+         Entry entry = entries.get(id);
+         if (sig.isSizeSkewed(entry.sig))
+         {
+            continue;
+         }
+         int overlap = sig.estimateOverlapPercentage(entry.sig);
+         if (overlap + sig.getOverlapErrorBound(entry.sig) >= minOverlapPercent)
+         {
+            matches.add(new Match(id, entry.userName, overlap));
+         }
+      }
+      Collections.sort(matches, new Comparator<Match>() {
+         public int compare(Match m1, Match m2) {
+            return m2.overlapPercent - m1.overlapPercent;
+         }
+      });
+      logger.debug("Gedcom " + gedID + ": " + candidates.size() + " candidates, " + matches.size() + " duplicates");
+      return matches;
+   }
+
+   // The indexed GEDCOMs that share a band with the signature
+   synchronized Set<Integer> findCandidates(NameSignature sig) throws IOException
+   {
+      refresh();
+      Set<Integer> candidates = new HashSet<Integer>();
+      for (int band = 0; band < NUM_BANDS; band++)
+      {
+         Set<Integer> ids = buckets.get(band).get(sig.getBandHash(band, ROWS_PER_BAND));
+         if (ids != null)
+         {
+            candidates.addAll(ids);
+         }
+      }
+      return candidates;
+   }
+
+   /**
+    * @return the number of GEDCOMs in the index
+    */
+   public synchronized int size()
+   {
+      return entries.size();
+   }
+}
@@ -0,0 +1,43 @@
+package org.werelate.gedcom;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Stands in for the place server: each place name is standardized to itself
+ * and is its own display name. Used where there is no place server,
+ * e.g. in benchmarks, so that parsing and printing can be measured alone.
+ */
+public class OfflinePlaceNames implements PlaceNames {
+   private int numStandardized = 0;
+
+   public synchronized void getStandardizedPlaceNames(String placeServer, Set<String> names, String defaultCountry,
+                                                      StringBuffer placeXMLBuffer)
+   {
+      List<PlaceStandardizer.Result> results = new ArrayList<PlaceStandardizer.Result>(names.size());
+      for (String name : names)
+      {
+         results.add(new PlaceStandardizer.Result(name, name, null));
+      }
+      Uploader.writePlaceElements(results, placeXMLBuffer);
+      numStandardized += names.size();
+   }
+
+   public synchronized void getPlaceDisplayNames(String placeServer, Set<String> names, Map<String, String> placeMap)
+   {
+      for (String name : names)
+      {
+         placeMap.put(name.replace('^', '|'), name.replace('^', '|'));
+      }
+      numStandardized += names.size();
+   }
+
+   /**
+    * @return the number of names standardized so far
+    */
+   public synchronized int getNumStandardized() {
+      return numStandardized;
+   }
+}
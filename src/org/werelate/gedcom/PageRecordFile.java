@@ -0,0 +1,958 @@
+package org.werelate.gedcom;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.werelate.util.GzipFiles;
+
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.util.StreamReaderDelegate;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.zip.CRC32;
+
+/**
+ * A binary form of an in-process XML file, which GedcomXML reads in place of the XML.
+ * The file holds the same elements, attributes, text and CDATA sections as the XML, as tokens:
+ * a byte giving the kind of token, then its element and attribute names as indexes into a table of names,
+ * and its strings as their length followed by their UTF-8 bytes; numbers are written 7 bits to a byte.
+ * The text of each page's content element is replaced by a content record: the XML section of the content,
+ * already parsed into tokens, and the text before and after it. The content can then be built straight
+ * into a Document, without parsing it, when it is first needed, and its text is serialized again,
+ * as a GedcomElementWriter wrote it, only when it is saved. A content whose text doesn't come back
+ * exactly that way is kept as text instead.
+ * At the end is the table of names and a directory of the pages, giving each page's id, namespace,
+ * whether it is excluded or living, and the offsets of its tokens and its content record.
+ * <pre>
+ * "WRPR" version(int) directoryOffset(long) xmlLength(long) xmlCrc32(long)
+ * tokens ... (a content element's text may be CONTENT kind before after length bytes)
+ * numNames name... numPages (id namespace flags pageOffset contentOffset+1)...
+ * </pre>
+ * The header gives the length and CRC-32 of the XML file the records were written from, which
+ * isFromXML checks, so that records aren't read in place of an XML file that has been changed
+ * since; until the records are complete they are zero.
+ * The file is memory-mapped, so it must be smaller than 2 GB. Files are written from the XML
+ * by fromXML and written back to XML by toXML; the scripts.ConvertInProcess script does both.
+ * Once opened, a PageRecordFile may be read by any number of threads at once.
+ */
+public class PageRecordFile {
+   /**
+    * Extension of the record file written next to an in-process XML file
+    */
+   public static final String EXTENSION = ".records";
+
+   private static final byte[] MAGIC = {'W', 'R', 'P', 'R'};
+   private static final int VERSION = 3;
+   private static final int HEADER_SIZE = MAGIC.length + 4 + 8 + 8 + 8;
+   private static final Charset UTF8 = Charset.forName("UTF-8");
+
+   private static final int TOKEN_START_ELEMENT = 1;
+   private static final int TOKEN_END_ELEMENT = 2;
+   private static final int TOKEN_TEXT = 3;
+   private static final int TOKEN_CDATA = 4;
+   private static final int TOKEN_COMMENT = 5;
+   private static final int TOKEN_CONTENT = 6;
+
+   private static final int EXCLUDED = 1;
+   private static final int LIVING = 2;
+
+   /**
+    * A page in the directory
+    */
+   public static class Page {
+      private final String id;
+      private final int namespace;
+      private final int flags;
+      private final long pageOffset;
+      private final long contentOffset;
+
+      private Page(String id, int namespace, int flags, long pageOffset, long contentOffset)
+      {
+         this.id = id;
+         this.namespace = namespace;
+         this.flags = flags;
+         this.pageOffset = pageOffset;
+         this.contentOffset = contentOffset;
+      }
+
+      public String getId() {
+         return id;
+      }
+
+      public int getNamespace() {
+         return namespace;
+      }
+
+      public boolean isExcluded() {
+         return (flags & EXCLUDED) != 0;
+      }
+
+      public boolean isLiving() {
+         return (flags & LIVING) != 0;
+      }
+
+      /**
+       * @return whether the page's content was parsed into a record
+       */
+      public boolean hasContent() {
+         return contentOffset >= 0;
+      }
+   }
+
+   private final ByteBuffer buffer;
+   private final long directoryOffset;
+   private final String[] names;
+   private final Map<String, Page> id2Page = new LinkedHashMap<String, Page>();
+
+   private PageRecordFile(ByteBuffer buffer) throws IOException
+   {
+      this.buffer = buffer;
+      Input in = new Input(buffer, 0);
+      for (byte b : MAGIC)
+      {
+         if (in.buf.get() != b)
+         {
+            throw new IOException("Not a page record file");
+         }
+      }
+      int version = in.buf.getInt();
+      if (version != VERSION)
+      {
+         throw new IOException("Unsupported page record file version: " + version);
+      }
+      directoryOffset = in.buf.getLong();
+      in.buf.position((int) directoryOffset);
+      names = new String[in.readInt()];
+      for (int i = 0; i < names.length; i++)
+      {
+         names[i] = in.readString();
+      }
+      int numPages = in.readInt();
+      for (int i = 0; i < numPages; i++)
+      {
+         Page page = new Page(in.readString(), in.readInt(), in.readInt(), in.readLong(), in.readLong() - 1);
+         id2Page.put(page.id, page);
+      }
+   }
+
+   /**
+    * @return whether the file starts as a page record file does
+    * @throws IOException
+    */
+   public static boolean isPageRecordFile(File file) throws IOException
+   {
+      InputStream in = new FileInputStream(file);
+      try
+      {
+         byte[] magic = new byte[MAGIC.length];
+         return in.read(magic) == magic.length && Arrays.equals(magic, MAGIC);
+      } finally
+      {
+         in.close();
+      }
+   }
+
+   /**
+    * @return whether the record file was written by fromXML from the XML file as it is now,
+    *    judged by the length and CRC-32 of the XML file, which are kept in the record file's header;
+    *    false if either file is missing or the record file is incomplete or of another version
+    * @throws IOException
+    */
+   public static boolean isFromXML(File recordFile, File xmlFile) throws IOException
+   {
+      if (!recordFile.exists() || !xmlFile.exists())
+      {
+         return false;
+      }
+      long xmlLength, xmlCrc;
+      DataInputStream in = new DataInputStream(new FileInputStream(recordFile));
+      try
+      {
+         byte[] magic = new byte[MAGIC.length];
+         in.readFully(magic);
+         if (!Arrays.equals(magic, MAGIC) || in.readInt() != VERSION || in.readLong() == 0)
+         {
+            return false;
+         }
+         xmlLength = in.readLong();
+         xmlCrc = in.readLong();
+      } catch (EOFException e)
+      {
+         return false;
+      } finally
+      {
+         in.close();
+      }
+      return xmlLength == xmlFile.length() && xmlCrc == checksum(xmlFile);
+   }
+
+   // CRC-32 of the file's bytes
+   private static long checksum(File file) throws IOException
+   {
+      CRC32 crc = new CRC32();
+      InputStream in = new FileInputStream(file);
+      try
+      {
+         byte[] buf = new byte[GzipFiles.BUFFER_SIZE];
+         for (int n; (n = in.read(buf)) > 0; )
+         {
+            crc.update(buf, 0, n);
+         }
+      } finally
+      {
+         in.close();
+      }
+      return crc.getValue();
+   }
+
+   /**
+    * Maps the file into memory
+    * @throws IOException if the file can't be read or isn't a page record file
+    */
+   public static PageRecordFile open(File file) throws IOException
+   {
+      RandomAccessFile raf = new RandomAccessFile(file, "r");
+      try
+      {
+         FileChannel channel = raf.getChannel();
+         if (channel.size() > Integer.MAX_VALUE)
+         {
+            throw new IOException(file + " is too large to map");
+         }
+         // the mapping stays valid after the file is closed
+         MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+         return new PageRecordFile(buffer);
+      } finally
+      {
+         raf.close();
+      }
+   }
+
+   /**
+    * @return the pages in the order they are in the file
+    */
+   public Collection<Page> getPages()
+   {
+      return Collections.unmodifiableCollection(id2Page.values());
+   }
+
+   /**
+    * @return the page, or null if there is no such page
+    */
+   public Page getPage(String id)
+   {
+      return id2Page.get(id);
+   }
+
+   /**
+    * Reads the file as a reader of the XML it was written from would. Only the methods that
+    * GedcomXML and toXML call are supported: next, hasNext, getLocalName, getAttributeCount,
+    * getAttributeLocalName, getAttributeValue, getText and close.
+    * The text outside the root element isn't kept.
+    * @param withContents whether the text of the contents kept as records is serialized again;
+    *    if not, their content elements are empty, and the contents are read with readContent and readText
+    */
+   public XMLStreamReader newReader(final boolean withContents)
+   {
+      final Input in = new Input(buffer, HEADER_SIZE);
+      return new StreamReaderDelegate() {
+         private int event = XMLStreamConstants.START_DOCUMENT;
+         private String name;
+         private final LinkedList<String> openNames = new LinkedList<String>();
+         private String[] attributes = new String[16];
+         private int numAttributes;
+         private String text;
+
+         public boolean hasNext() {
+            return event != XMLStreamConstants.END_DOCUMENT;
+         }
+
+         public int next() throws XMLStreamException {
+            if (in.buf.position() >= directoryOffset)
+            {
+               return event = XMLStreamConstants.END_DOCUMENT;
+            }
+            int token = in.buf.get();
+            while (token == TOKEN_CONTENT && !withContents)
+            {
+               skipContent(in);
+               token = in.buf.get();
+            }
+            switch (token)
+            {
+               case TOKEN_START_ELEMENT:
+                  name = names[in.readInt()];
+                  openNames.addFirst(name);
+                  numAttributes = in.readInt();
+                  if (attributes.length < 2 * numAttributes)
+                  {
+                     attributes = new String[2 * numAttributes];
+                  }
+                  for (int i = 0; i < numAttributes; i++)
+                  {
+                     attributes[2 * i] = names[in.readInt()];
+                     attributes[2 * i + 1] = in.readString();
+                  }
+                  return event = XMLStreamConstants.START_ELEMENT;
+               case TOKEN_END_ELEMENT:
+                  name = openNames.removeFirst();
+                  numAttributes = 0;
+                  return event = XMLStreamConstants.END_ELEMENT;
+               case TOKEN_TEXT:
+                  text = in.readString();
+                  return event = XMLStreamConstants.CHARACTERS;
+               case TOKEN_CDATA:
+                  text = in.readString();
+                  return event = XMLStreamConstants.CDATA;
+               case TOKEN_CONTENT:
+                  int kind = in.readInt();
+                  text = readContentText(in);
+                  return event = (kind == TOKEN_CDATA ? XMLStreamConstants.CDATA : XMLStreamConstants.CHARACTERS);
+               default:
+                  throw new XMLStreamException("Unexpected token " + token + " at " + (in.buf.position() - 1));
+            }
+         }
+
+         public int getEventType() {
+            return event;
+         }
+
+         public String getLocalName() {
+            return name;
+         }
+
+         public int getAttributeCount() {
+            return numAttributes;
+         }
+
+         public String getAttributeLocalName(int index) {
+            return attributes[2 * index];
+         }
+
+         public String getAttributeValue(int index) {
+            return attributes[2 * index + 1];
+         }
+
+         public String getText() {
+            return text;
+         }
+
+         public void close() {
+         }
+      };
+   }
+
+   /**
+    * Builds the XML section of the page's content from its record
+    * @return the content, as Uploader's DocumentBuilder parses it, or null if the page has no content record
+    */
+   public Document readContent(String id)
+   {
+      Page page = id2Page.get(id);
+      if (page == null || page.contentOffset < 0)
+      {
+         return null;
+      }
+      Input in = new Input(buffer, page.contentOffset);
+      in.readInt();
+      in.readString();
+      in.readString();
+      return readContentTokens(in, id);
+   }
+
+   /**
+    * @return the text after the XML section of the page's content, trimmed, as GedcomXML keeps it,
+    *    or null if the page has no content record
+    */
+   public String readText(String id)
+   {
+      Page page = id2Page.get(id);
+      if (page == null || page.contentOffset < 0)
+      {
+         return null;
+      }
+      Input in = new Input(buffer, page.contentOffset);
+      in.readInt();
+      in.readString();
+      return in.readString().trim();
+   }
+
+   // Skips the content record after a CONTENT token
+   private static void skipContent(Input in)
+   {
+      in.readInt();
+      in.skipString();
+      in.skipString();
+      int length = in.readInt();
+      in.buf.position(in.buf.position() + length);
+   }
+
+   // Serializes the text of the content record after the kind of a CONTENT token
+   private String readContentText(Input in)
+   {
+      String before = in.readString();
+      String after = in.readString();
+      StringBuilder text = new StringBuilder(before);
+      PageSerializer.serializeContent(readContentTokens(in, null), text);
+      return text.append(after).toString();
+   }
+
+   // Builds a Document from the length and tokens of a content record
+   private Document readContentTokens(Input in, String id)
+   {
+      Document content = Uploader.getDocumentBuilder().newDocument();
+      int length = in.readInt();
+      int end = in.buf.position() + length;
+      Node parent = content;
+      while (in.buf.position() < end)
+      {
+         int token = in.buf.get();
+         switch (token)
+         {
+            case TOKEN_START_ELEMENT:
+               Element element = content.createElement(names[in.readInt()]);
+               int numAttributes = in.readInt();
+               for (int i = 0; i < numAttributes; i++)
+               {
+                  element.setAttribute(names[in.readInt()], in.readString());
+               }
+               parent.appendChild(element);
+               parent = element;
+               break;
+            case TOKEN_END_ELEMENT:
+               parent = parent.getParentNode();
+               break;
+            case TOKEN_TEXT:
+               parent.appendChild(content.createTextNode(in.readString()));
+               break;
+            case TOKEN_CDATA:
+               parent.appendChild(content.createCDATASection(in.readString()));
+               break;
+            case TOKEN_COMMENT:
+               parent.appendChild(content.createComment(in.readString()));
+               break;
+            default:
+               throw new IllegalStateException("Unexpected token " + token + " in a content record" +
+                                               (id == null ? "" : " of id=" + id));
+         }
+      }
+      return content;
+   }
+
+   /**
+    * Writes a page record file from an in-process XML file, which may be gzip-compressed
+    * @throws IOException
+    */
+   public static void fromXML(File xmlFile, File recordFile) throws IOException
+   {
+      long xmlLength = xmlFile.length();
+      long xmlCrc = checksum(xmlFile);
+      InputStream in = GzipFiles.openInputStream(xmlFile);
+      Output out = new Output(new BufferedOutputStream(new FileOutputStream(recordFile), 65536));
+      try
+      {
+         out.out.write(MAGIC);
+         new DataOutputStream(out.out).writeInt(VERSION);
+         // the directory offset and the XML's length and CRC are filled in once the directory is written
+         new DataOutputStream(out.out).writeLong(0);
+         new DataOutputStream(out.out).writeLong(0);
+         new DataOutputStream(out.out).writeLong(0);
+         out.position = HEADER_SIZE;
+         List<Page> pages = new ArrayList<Page>();
+         XMLStreamReader reader = GedcomXML.xmlInputFactory.createXMLStreamReader(in, "UTF-8");
+         try
+         {
+            writeTokens(reader, out, pages);
+         } finally
+         {
+            reader.close();
+         }
+         long directoryOffset = out.position;
+         out.writeInt(out.nameList.size());
+         for (String name : out.nameList)
+         {
+            out.writeString(name);
+         }
+         out.writeInt(pages.size());
+         for (Page page : pages)
+         {
+            out.writeString(page.id);
+            out.writeInt(page.namespace);
+            out.writeInt(page.flags);
+            out.writeLong(page.pageOffset);
+            out.writeLong(page.contentOffset + 1);
+         }
+         out.flushBuf();
+         out.out.close();
+         RandomAccessFile raf = new RandomAccessFile(recordFile, "rw");
+         try
+         {
+            raf.seek(MAGIC.length + 4);
+            raf.writeLong(directoryOffset);
+            raf.writeLong(xmlLength);
+            raf.writeLong(xmlCrc);
+         } finally
+         {
+            raf.close();
+         }
+      } catch (XMLStreamException e)
+      {
+         throw new IOException("Error reading " + xmlFile + ": " + e.getMessage(), e);
+      } finally
+      {
+         in.close();
+         out.out.close();
+      }
+   }
+
+   // Writes the tokens of the XML, with the text of each page's first content element as a content record
+   private static void writeTokens(XMLStreamReader reader, Output out, List<Page> pages)
+         throws XMLStreamException, IOException
+   {
+      int depth = 0;
+      long pageOffset = 0;
+      long contentOffset = -1;
+      Map<String, String> pageAttributes = new HashMap<String, String>();
+      // the text of the page's first content element, until it ends
+      List<String> contentTexts = null;
+      int contentKind = 0;
+      boolean pageHasContent = false;
+      while (reader.hasNext())
+      {
+         switch (reader.next())
+         {
+            case XMLStreamConstants.START_ELEMENT:
+               String name = reader.getLocalName();
+               if (contentTexts != null)
+               {
+                  // a content with elements in it is kept as it is
+                  writeTexts(out, contentKind, contentTexts);
+                  contentTexts = null;
+               }
+               if (depth == 1 && name.equals("page"))
+               {
+                  pageOffset = out.position;
+                  contentOffset = -1;
+                  pageAttributes.clear();
+                  for (int i = 0; i < reader.getAttributeCount(); i++)
+                  {
+                     pageAttributes.put(reader.getAttributeLocalName(i), reader.getAttributeValue(i));
+                  }
+                  pageHasContent = false;
+               } else if (depth == 2 && name.equals("content") && pageOffset > 0 && !pageHasContent)
+               {
+                  contentTexts = new ArrayList<String>();
+                  contentKind = 0;
+                  pageHasContent = true;
+               }
+               out.buf.write(TOKEN_START_ELEMENT);
+               out.writeName(name);
+               out.writeInt(reader.getAttributeCount());
+               for (int i = 0; i < reader.getAttributeCount(); i++)
+               {
+                  out.writeName(reader.getAttributeLocalName(i));
+                  out.writeString(reader.getAttributeValue(i));
+               }
+               out.flushBuf();
+               depth++;
+               break;
+            case XMLStreamConstants.END_ELEMENT:
+               depth--;
+               if (contentTexts != null)
+               {
+                  contentOffset = writeContent(out, contentKind, contentTexts);
+                  contentTexts = null;
+               }
+               out.buf.write(TOKEN_END_ELEMENT);
+               out.flushBuf();
+               if (depth == 1 && pageOffset > 0)
+               {
+                  pages.add(newPage(pageOffset, pageAttributes, contentOffset));
+                  pageOffset = 0;
+               }
+               break;
+            case XMLStreamConstants.CHARACTERS:
+            case XMLStreamConstants.SPACE:
+            case XMLStreamConstants.CDATA:
+               // GedcomXML doesn't keep the text outside the root element
+               if (depth > 0)
+               {
+                  int kind = reader.getEventType() == XMLStreamConstants.CDATA ? TOKEN_CDATA : TOKEN_TEXT;
+                  if (contentTexts != null && (contentKind == 0 || contentKind == kind))
+                  {
+                     contentKind = kind;
+                     contentTexts.add(reader.getText());
+                  } else
+                  {
+                     if (contentTexts != null)
+                     {
+                        // text and CDATA mixed together are kept as they are
+                        writeTexts(out, contentKind, contentTexts);
+                        contentTexts = null;
+                     }
+                     out.buf.write(kind);
+                     out.writeString(reader.getText());
+                     out.flushBuf();
+                  }
+               }
+               break;
+            default:
+               break;
+         }
+      }
+   }
+
+   private static Page newPage(long pageOffset, Map<String, String> attributes, long contentOffset) throws IOException
+   {
+      String id = attributes.get("id");
+      int namespace;
+      try
+      {
+         namespace = Integer.parseInt(attributes.get("namespace"));
+      } catch (NumberFormatException e)
+      {
+         throw new IOException("Page id=" + id + " has no namespace");
+      }
+      int flags = 0;
+      if ("true".equals(lowerTrim(attributes.get("exclude"))))
+      {
+         flags |= EXCLUDED;
+      }
+      if ("true".equals(lowerTrim(attributes.get("living"))))
+      {
+         flags |= LIVING;
+      }
+      return new Page(id, namespace, flags, pageOffset, contentOffset);
+   }
+
+   private static void writeTexts(Output out, int kind, List<String> texts) throws IOException
+   {
+      for (String text : texts)
+      {
+         out.buf.write(kind);
+         out.writeString(text);
+         out.flushBuf();
+      }
+   }
+
+   // Writes the text of a content element as a content record, if its XML section parses
+   // into nodes a record can hold and serializes back to the same text, or else as it is.
+   // A CDATA section split around "]]>" is written back the same way by toXML.
+   // @return the offset of the content record, or -1 if there isn't one
+   private static long writeContent(Output out, int kind, List<String> texts) throws IOException
+   {
+      StringBuilder text = new StringBuilder();
+      for (String t : texts)
+      {
+         text.append(t);
+      }
+      Matcher mXmlContent = GedcomXML.pPageContentXml.matcher(text);
+      if (mXmlContent.find())
+      {
+         try
+         {
+            Document content = Uploader.getDocumentBuilder().parse(new InputSource(new StringReader(mXmlContent.group(0))));
+            StringBuilder xml = new StringBuilder();
+            PageSerializer.serializeContent(content, xml);
+            int xmlEnd = mXmlContent.start() + xml.length();
+            if (writeNodes(content, out) && text.length() >= xmlEnd &&
+                text.substring(mXmlContent.start(), xmlEnd).equals(xml.toString()) &&
+                text.substring(xmlEnd).trim().equals(text.substring(mXmlContent.end()).trim()))
+            {
+               byte[] tokens = out.buf.toByteArray();
+               out.buf.reset();
+               out.buf.write(TOKEN_CONTENT);
+               out.flushBuf();
+               long contentOffset = out.position;
+               out.writeInt(kind);
+               out.writeString(text.substring(0, mXmlContent.start()));
+               out.writeString(text.substring(xmlEnd));
+               out.writeInt(tokens.length);
+               out.buf.write(tokens);
+               out.flushBuf();
+               return contentOffset;
+            }
+         } catch (SAXException e)
+         {
+            // GedcomXML reports this when it parses the content from the page
+         } catch (RuntimeException e)
+         {
+            // the serializer can't write it as GedcomElementWriter did
+         } finally
+         {
+            out.buf.reset();
+         }
+      }
+      writeTexts(out, kind, texts);
+      return -1;
+   }
+
+   private static String lowerTrim(String s)
+   {
+      return s == null ? null : s.trim().toLowerCase();
+   }
+
+   // Writes the tokens of the node's children into out.buf
+   // @return false if there is a node a record can't hold
+   private static boolean writeNodes(Node parent, Output out) throws IOException
+   {
+      for (Node child = parent.getFirstChild(); child != null; child = child.getNextSibling())
+      {
+         switch (child.getNodeType())
+         {
+            case Node.ELEMENT_NODE:
+               out.buf.write(TOKEN_START_ELEMENT);
+               out.writeName(child.getNodeName());
+               NamedNodeMap attributes = child.getAttributes();
+               out.writeInt(attributes.getLength());
+               for (int i = 0; i < attributes.getLength(); i++)
+               {
+                  out.writeName(attributes.item(i).getNodeName());
+                  out.writeString(attributes.item(i).getNodeValue());
+               }
+               if (!writeNodes(child, out))
+               {
+                  return false;
+               }
+               out.buf.write(TOKEN_END_ELEMENT);
+               break;
+            case Node.TEXT_NODE:
+               out.buf.write(TOKEN_TEXT);
+               out.writeString(child.getNodeValue());
+               break;
+            case Node.CDATA_SECTION_NODE:
+               out.buf.write(TOKEN_CDATA);
+               out.writeString(child.getNodeValue());
+               break;
+            case Node.COMMENT_NODE:
+               out.buf.write(TOKEN_COMMENT);
+               out.writeString(child.getNodeValue());
+               break;
+            default:
+               return false;
+         }
+      }
+      return true;
+   }
+
+   /**
+    * Writes the XML the page record file was written from, without the text outside the root element
+    * @throws IOException
+    */
+   public static void toXML(File recordFile, File xmlFile) throws IOException
+   {
+      XMLStreamReader reader = open(recordFile).newReader(true);
+      Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(xmlFile), UTF8), 65536);
+      try
+      {
+         // an element's start tag is closed when something is written inside it
+         boolean open = false;
+         while (reader.hasNext())
+         {
+            int event = reader.next();
+            if (open && event != XMLStreamConstants.END_ELEMENT)
+            {
+               out.write('>');
+               open = false;
+            }
+            switch (event)
+            {
+               case XMLStreamConstants.START_ELEMENT:
+                  out.write('<');
+                  out.write(reader.getLocalName());
+                  for (int i = 0; i < reader.getAttributeCount(); i++)
+                  {
+                     out.write(' ');
+                     out.write(reader.getAttributeLocalName(i));
+                     out.write("=\"");
+                     writeEscaped(reader.getAttributeValue(i), true, out);
+                     out.write('"');
+                  }
+                  open = true;
+                  break;
+               case XMLStreamConstants.END_ELEMENT:
+                  if (open)
+                  {
+                     out.write("/>");
+                     open = false;
+                  } else
+                  {
+                     out.write("</");
+                     out.write(reader.getLocalName());
+                     out.write('>');
+                  }
+                  break;
+               case XMLStreamConstants.CHARACTERS:
+                  writeEscaped(reader.getText(), false, out);
+                  break;
+               case XMLStreamConstants.CDATA:
+                  out.write("<![CDATA[");
+                  out.write(reader.getText().replace("]]>", "]]]]><![CDATA[>"));
+                  out.write("]]>");
+                  break;
+               default:
+                  break;
+            }
+         }
+         out.write('\n');
+      } catch (XMLStreamException e)
+      {
+         throw new IOException("Error reading " + recordFile + ": " + e.getMessage(), e);
+      } finally
+      {
+         out.close();
+      }
+   }
+
+   private static void writeEscaped(String s, boolean attribute, Writer out) throws IOException
+   {
+      for (int i = 0; i < s.length(); i++)
+      {
+         char c = s.charAt(i);
+         switch (c)
+         {
+            case '&':
+               out.write("&amp;");
+               break;
+            case '<':
+               out.write("&lt;");
+               break;
+            case '>':
+               out.write("&gt;");
+               break;
+            case '"':
+               out.write(attribute ? "&quot;" : "\"");
+               break;
+            case '\r':
+               out.write("&#13;");
+               break;
+            case '\n':
+            case '\t':
+               if (attribute)
+               {
+                  out.write("&#" + (int) c + ';');
+               } else
+               {
+                  out.write(c);
+               }
+               break;
+            default:
+               out.write(c);
+               break;
+         }
+      }
+   }
+
+   // Reads numbers and strings from a duplicate of the mapped buffer, so each reader has its own position
+   private static class Input {
+      private final ByteBuffer buf;
+      private byte[] bytes = new byte[256];
+
+      private Input(ByteBuffer buffer, long position)
+      {
+         buf = buffer.duplicate();
+         buf.position((int) position);
+      }
+
+      private long readLong()
+      {
+         long value = 0;
+         int shift = 0;
+         byte b;
+         do
+         {
+            b = buf.get();
+            value |= (long) (b & 0x7f) << shift;
+            shift += 7;
+         } while ((b & 0x80) != 0);
+         return value;
+      }
+
+      private int readInt()
+      {
+         return (int) readLong();
+      }
+
+      private void skipString()
+      {
+         int length = readInt();
+         buf.position(buf.position() + length);
+      }
+
+      private String readString()
+      {
+         int length = readInt();
+         if (bytes.length < length)
+         {
+            bytes = new byte[Math.max(length, 2 * bytes.length)];
+         }
+         buf.get(bytes, 0, length);
+         return new String(bytes, 0, length, UTF8);
+      }
+   }
+
+   // Writes numbers, names and strings into buf, which is then flushed to out
+   private static class Output {
+      private final OutputStream out;
+      private final ByteArrayOutputStream buf = new ByteArrayOutputStream();
+      private long position = 0;
+      private final Map<String, Integer> name2Index = new HashMap<String, Integer>();
+      private final List<String> nameList = new ArrayList<String>();
+
+      private Output(OutputStream out)
+      {
+         this.out = out;
+      }
+
+      private void writeLong(long value)
+      {
+         while ((value & ~0x7fL) != 0)
+         {
+            buf.write((int) (value & 0x7f) | 0x80);
+            value >>>= 7;
+         }
+         buf.write((int) value);
+      }
+
+      private void writeInt(int value)
+      {
+         writeLong(value & 0xffffffffL);
+      }
+
+      private void writeString(String s) throws IOException
+      {
+         byte[] bytes = s.getBytes(UTF8);
+         writeInt(bytes.length);
+         buf.write(bytes);
+      }
+
+      private void writeName(String name)
+      {
+         Integer index = name2Index.get(name);
+         if (index == null)
+         {
+            index = nameList.size();
+            name2Index.put(name, index);
+            nameList.add(name);
+         }
+         writeInt(index);
+      }
+
+      private void flushBuf() throws IOException
+      {
+         buf.writeTo(out);
+         position += buf.size();
+         buf.reset();
+      }
+   }
+}
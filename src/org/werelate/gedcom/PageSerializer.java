@@ -0,0 +1,455 @@
+package org.werelate.gedcom;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.werelate.util.ElementWriter;
+import org.werelate.util.Utils;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Map;
+
+/**
+ * Writes pages and page contents straight into a StringBuilder.
+ * serialize writes what the identity Transformer writes for a page, without the XML declaration,
+ * and serializeContent writes what nested GedcomElementWriters write for a page's content,
+ * so that GedcomXML can use these in place of them without changing its output.
+ */
+public class PageSerializer {
+   private static final String LINE_SEPARATOR = System.getProperty("line.separator");
+   private static final String XML_DECLARATION = "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"no\"?>";
+
+   private PageSerializer()
+   {
+   }
+
+   // Thrown when a page has something serialize doesn't write as the Transformer would
+   private static class UnsupportedNodeException extends RuntimeException {
+      private static final long serialVersionUID = 1L;
+   }
+
+   /**
+    * Writes the element as the identity Transformer does, without the XML declaration.
+    * Only elements, text and CDATA sections are written; for anything else
+    * (comments, namespace declarations, unpaired surrogates, control characters in CDATA) nothing is written
+    * and false is returned, so the caller can use the Transformer instead.
+    * @return whether the element was written
+    */
+   public static boolean serialize(Element element, StringBuilder buf)
+   {
+      int start = buf.length();
+      try
+      {
+         serializeElement(element, buf, null);
+         return true;
+      } catch (UnsupportedNodeException e)
+      {
+         buf.setLength(start);
+         return false;
+      } catch (IOException e)
+      {
+         // only writing to a Writer can fail
+         throw new IllegalStateException(e);
+      }
+   }
+
+   /**
+    * Writes the document as the identity Transformer does, with the XML declaration.
+    * The root element's children are written to out as they are serialized,
+    * so the whole document is never held in memory as a string.
+    * @return whether the document was written; if not, part of it may have been written to out
+    * @throws IOException
+    */
+   public static boolean serialize(Document document, Writer out) throws IOException
+   {
+      for (Node child = document.getFirstChild(); child != null; child = child.getNextSibling())
+      {
+         if (child.getNodeType() != Node.ELEMENT_NODE)
+         {
+            return false;
+         }
+      }
+      StringBuilder buf = new StringBuilder(XML_DECLARATION);
+      try
+      {
+         serializeElement(document.getDocumentElement(), buf, out);
+      } catch (UnsupportedNodeException e)
+      {
+         return false;
+      }
+      out.append(buf);
+      return true;
+   }
+
+   // Writes the element to buf; if out isn't null, buf is emptied to out after each child
+   private static void serializeElement(Node element, StringBuilder buf, Writer out) throws IOException
+   {
+      String name = element.getNodeName();
+      buf.append('<').append(name);
+      NamedNodeMap attributes = element.getAttributes();
+      for (int i = 0; i < attributes.getLength(); i++)
+      {
+         Node attribute = attributes.item(i);
+         if (attribute.getNodeName().startsWith("xmlns"))
+         {
+            throw new UnsupportedNodeException();
+         }
+         buf.append(' ').append(attribute.getNodeName()).append("=\"");
+         appendAttributeValue(attribute.getNodeValue(), buf);
+         buf.append('"');
+      }
+      // the start tag is closed when something is written inside it; empty text and CDATA don't count
+      boolean open = true;
+      for (Node child = element.getFirstChild(); child != null; child = child.getNextSibling())
+      {
+         short type = child.getNodeType();
+         if (type != Node.ELEMENT_NODE && type != Node.TEXT_NODE && type != Node.CDATA_SECTION_NODE)
+         {
+            throw new UnsupportedNodeException();
+         }
+         if (type != Node.ELEMENT_NODE && child.getNodeValue().length() == 0)
+         {
+            continue;
+         }
+         if (open)
+         {
+            buf.append('>');
+            open = false;
+         }
+         if (type == Node.ELEMENT_NODE)
+         {
+            serializeElement(child, buf, null);
+         } else if (type == Node.TEXT_NODE)
+         {
+            appendText(child.getNodeValue(), buf);
+         } else
+         {
+            appendCDATA(child.getNodeValue(), buf);
+         }
+         if (out != null)
+         {
+            out.append(buf);
+            buf.setLength(0);
+         }
+      }
+      if (open)
+      {
+         buf.append("/>");
+      } else
+      {
+         buf.append("</").append(name).append('>');
+      }
+   }
+
+   private static boolean isSurrogate(char c)
+   {
+      return c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE;
+   }
+
+   // Appends the code point at i as a character reference, returning the index of its last char
+   private static int appendSupplementary(String s, int i, StringBuilder buf)
+   {
+      if (!Character.isHighSurrogate(s.charAt(i)) || i + 1 == s.length() || !Character.isLowSurrogate(s.charAt(i + 1)))
+      {
+         throw new UnsupportedNodeException();
+      }
+      buf.append("&#").append(s.codePointAt(i)).append(';');
+      return i + 1;
+   }
+
+   private static void appendText(String text, StringBuilder buf)
+   {
+      for (int i = 0; i < text.length(); i++)
+      {
+         char c = text.charAt(i);
+         switch (c)
+         {
+            case '&':
+               buf.append("&amp;");
+               break;
+            case '<':
+               buf.append("&lt;");
+               break;
+            case '>':
+               buf.append("&gt;");
+               break;
+            case '\n':
+               buf.append(LINE_SEPARATOR);
+               break;
+            case '\t':
+               buf.append(c);
+               break;
+            default:
+               if (c < 0x20 || (c >= 0x7f && c <= 0x9f))
+               {
+                  buf.append("&#").append((int) c).append(';');
+               } else if (isSurrogate(c))
+               {
+                  i = appendSupplementary(text, i, buf);
+               } else
+               {
+                  buf.append(c);
+               }
+               break;
+         }
+      }
+   }
+
+   // "]]>" is split across two sections. The Transformer writes control characters and surrogates
+   // in CDATA sections in ways that aren't worth copying, so they are left to it
+   private static void appendCDATA(String data, StringBuilder buf)
+   {
+      buf.append("<![CDATA[");
+      for (int i = 0; i < data.length(); i++)
+      {
+         char c = data.charAt(i);
+         if ((c < 0x20 && c != '\t' && c != '\n' && c != '\r') || isSurrogate(c))
+         {
+            throw new UnsupportedNodeException();
+         }
+         if (c == '\n')
+         {
+            buf.append(LINE_SEPARATOR);
+         } else if (c == ']' && data.startsWith("]]>", i))
+         {
+            buf.append("]]]]><![CDATA[>");
+            i += 2;
+         } else
+         {
+            buf.append(c);
+         }
+      }
+      buf.append("]]>");
+   }
+
+   private static void appendAttributeValue(String value, StringBuilder buf)
+   {
+      for (int i = 0; i < value.length(); i++)
+      {
+         char c = value.charAt(i);
+         switch (c)
+         {
+            case '&':
+               buf.append("&amp;");
+               break;
+            case '<':
+               buf.append("&lt;");
+               break;
+            case '>':
+               buf.append("&gt;");
+               break;
+            case '"':
+               buf.append("&quot;");
+               break;
+            default:
+               if (c < 0x20)
+               {
+                  buf.append("&#").append((int) c).append(';');
+               } else if (isSurrogate(c))
+               {
+                  i = appendSupplementary(value, i, buf);
+               } else
+               {
+                  buf.append(c);
+               }
+               break;
+         }
+      }
+   }
+
+   /**
+    * Writes the XML portion of a page's content: its root element, without attributes or text,
+    * and the elements inside it
+    */
+   public static void serializeContent(Document content, StringBuilder buf)
+   {
+      Node root = content.getFirstChild();
+      int start = buf.length();
+      buf.append('<').append(root.getNodeName()).append('>');
+      int body = buf.length();
+      buf.append('\n');
+      for (Node child = root.getFirstChild(); child != null; child = child.getNextSibling())
+      {
+         if (child.getNodeType() != Node.TEXT_NODE)
+         {
+            serializeContent(child, buf);
+         }
+      }
+      endElement(root.getNodeName(), start, body, null, buf);
+   }
+
+   /**
+    * Writes the node as a GedcomElementWriter does: attributes in the order of GedcomElementWriter
+    * (or alphabetical), without empty ones, and trimmed text after the child elements
+    */
+   public static void serializeContent(Node node, StringBuilder buf)
+   {
+      String name = node.getNodeName();
+      int start = buf.length();
+      buf.append('<').append(name);
+      if (node.getAttributes() != null)
+      {
+         appendContentAttributes(name, node.getAttributes(), buf);
+      }
+      buf.append('>');
+      int body = buf.length();
+      buf.append('\n');
+      StringBuilder text = null;
+      for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling())
+      {
+         if (child.getNodeType() == Node.TEXT_NODE)
+         {
+            String childText = child.getNodeValue().trim();
+            if (childText.length() > 0)
+            {
+               if (text == null)
+               {
+                  text = new StringBuilder();
+               }
+               text.append(childText);
+            }
+         } else
+         {
+            serializeContent(child, buf);
+         }
+      }
+      String value = node.getNodeValue();
+      if (value != null && value.trim().length() > 0)
+      {
+         buf.append(value);
+      }
+      endElement(name, start, body, text, buf);
+   }
+
+   // Ends the element whose start tag began at start, and whose body (after '>' and a newline) began at body
+   private static void endElement(String name, int start, int body, CharSequence text, StringBuilder buf)
+   {
+      boolean hasSubXML = !isBlank(buf, body + 1, buf.length());
+      boolean hasText = text != null;
+      if (!hasSubXML && !hasText)
+      {
+         buf.setLength(body - 1);
+         buf.append("/>\n");
+         return;
+      }
+      if (!hasSubXML)
+      {
+         // no newline before the text
+         buf.setLength(body);
+      }
+      if (hasText)
+      {
+         appendEncoded(text, buf);
+      }
+      buf.append("</").append(name).append(">\n");
+   }
+
+   private static boolean isBlank(CharSequence s, int from, int to)
+   {
+      for (int i = from; i < to; i++)
+      {
+         if (s.charAt(i) > ' ')
+         {
+            return false;
+         }
+      }
+      return true;
+   }
+
+   private static void appendContentAttributes(String elementName, NamedNodeMap attributes, StringBuilder buf)
+   {
+      Map<String, Integer> order = GedcomElementWriter.getAttributeOrder(elementName);
+      int n = attributes.getLength();
+      String[] names = new String[n];
+      String[] values = new String[n];
+      int[] ranks = new int[n];
+      int count = 0;
+      for (int i = 0; i < n; i++)
+      {
+         Node attribute = attributes.item(i);
+         String name = attribute.getNodeName();
+         String value = attribute.getNodeValue();
+         boolean empty = value == null || isBlank(value, 0, value.length());
+         Integer rank = null;
+         if (order != null)
+         {
+            rank = order.get(name);
+            // ElementWriter fails when it compares an attribute that isn't in the order
+            if (rank == null && (count > 0 || !empty))
+            {
+               throw new ElementWriter.ElementWriterException("Null pointer exception " +
+                     "encountered while writing page");
+            }
+         }
+         if (!empty && !isBlank(name, 0, name.length()))
+         {
+            // insertion sort; elements have only a few attributes
+            int j = count++;
+            while (j > 0 && (order != null ? ranks[j - 1] > rank : names[j - 1].compareTo(name) > 0))
+            {
+               names[j] = names[j - 1];
+               values[j] = values[j - 1];
+               ranks[j] = ranks[j - 1];
+               j--;
+            }
+            names[j] = name;
+            values[j] = value;
+            ranks[j] = order != null ? rank : 0;
+         }
+      }
+      for (int i = 0; i < count; i++)
+      {
+         buf.append(' ');
+         appendEncoded(names[i], buf);
+         buf.append("=\"");
+         appendEncoded(formatAttributeValue(values[i]), buf);
+         buf.append('"');
+      }
+   }
+
+   // As ElementWriter formats attribute values
+   private static String formatAttributeValue(String value)
+   {
+      if (value.indexOf('\n') >= 0)
+      {
+         value = value.replace('\n', ' ');
+      }
+      if (value.indexOf('\u00ab') >= 0)
+      {
+         value = Utils.replaceHTMLFormatting(value);
+      }
+      return value;
+   }
+
+   // As Utils.encodeXML
+   private static void appendEncoded(CharSequence text, StringBuilder buf)
+   {
+      for (int i = 0; i < text.length(); i++)
+      {
+         char c = text.charAt(i);
+         switch (c)
+         {
+            case '&':
+               buf.append("&amp;");
+               break;
+            case '<':
+               buf.append("&lt;");
+               break;
+            case '>':
+               buf.append("&gt;");
+               break;
+            case '"':
+               buf.append("&quot;");
+               break;
+            case '\'':
+               buf.append("&apos;");
+               break;
+            default:
+               buf.append(c);
+               break;
+         }
+      }
+   }
+}
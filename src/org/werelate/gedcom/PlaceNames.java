@@ -0,0 +1,33 @@
+package org.werelate.gedcom;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Standardizes the place names of a GEDCOM.
+ * The Uploader asks the place server; OfflinePlaceNames stands in
+ * for it where there is no place server, e.g. in benchmarks.
+ */
+public interface PlaceNames {
+   /**
+    * Standardizes the names and appends a place element for each to placeXMLBuffer
+    * @param placeServer location of the place search server
+    * @param names place names to standardize
+    * @param defaultCountry country to use when a place name doesn't include a country
+    * @param placeXMLBuffer buffer to populate
+    * @throws IOException
+    */
+   public void getStandardizedPlaceNames(String placeServer, Set<String> names, String defaultCountry,
+                                         StringBuffer placeXMLBuffer) throws IOException;
+
+   /**
+    * Maps each name to its refined display name
+    * @param placeServer location of the place search server
+    * @param names place names to get standardized display names for
+    * @param placeMap map to populate
+    * @throws IOException
+    */
+   public void getPlaceDisplayNames(String placeServer, Set<String> names, Map<String, String> placeMap)
+         throws IOException;
+}
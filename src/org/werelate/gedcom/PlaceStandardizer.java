@@ -0,0 +1,407 @@
+package org.werelate.gedcom;
+
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
+import org.apache.commons.httpclient.NameValuePair;
+import org.apache.commons.httpclient.methods.PostMethod;
+import org.apache.commons.httpclient.params.HttpMethodParams;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.werelate.util.Retrier;
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Sends place names to the place standardization server.
+ * Large sets of names are split into size-bounded chunks which
+ * are sent concurrently, and each response is stream-parsed
+ * rather than read into a String and DOM-parsed. Results are
+ * returned in the same order the names were given, so callers
+ * can number them exactly as if one request had been made.
+ */
+public class PlaceStandardizer {
+   private static final Logger logger =
+         LogManager.getLogger("org.werelate.gedcom.PlaceStandardizer");
+
+   // Defaults used when the properties file does not override them
+   public static final int DEFAULT_CHUNK_NAMES = 1000;
+   public static final int DEFAULT_CHUNK_CHARS = 64 * 1024;
+   public static final int DEFAULT_THREADS = 4;
+
+   /**
+    * Standardization result for a single place name
+    */
+   public static class Result {
+      private String q;
+      private String placeTitle;
+      private String error;
+
+      public Result(String q, String placeTitle, String error)
+      {
+         this.q = q;
+         this.placeTitle = placeTitle;
+         this.error = error;
+      }
+
+      /**
+       * @return the place text as it was sent to the server
+       */
+      public String getQ() {
+         return q;
+      }
+
+      /**
+       * @return the standardized title, possibly followed by ^ and a display name
+       */
+      public String getPlaceTitle() {
+         return placeTitle;
+      }
+
+      public String getError() {
+         return error;
+      }
+   }
+
+   private int maxChunkNames;
+   private int maxChunkChars;
+   private HttpClient client;
+   private ExecutorService executor;
+   private Retrier retrier;
+
+   /**
+    * @param properties reads place_chunk_names, place_chunk_chars and place_threads,
+    *                   and the retry settings for the "place" endpoint
+    */
+   public PlaceStandardizer(Properties properties)
+   {
+      this(Integer.parseInt(properties.getProperty("place_chunk_names", Integer.toString(DEFAULT_CHUNK_NAMES))),
+           Integer.parseInt(properties.getProperty("place_chunk_chars", Integer.toString(DEFAULT_CHUNK_CHARS))),
+           Integer.parseInt(properties.getProperty("place_threads", Integer.toString(DEFAULT_THREADS))),
+           Retrier.fromProperties("place", properties));
+   }
+
+   public PlaceStandardizer(int maxChunkNames, int maxChunkChars, int numThreads)
+   {
+      this(maxChunkNames, maxChunkChars, numThreads, Retrier.fromProperties("place", new Properties()));
+   }
+
+   public PlaceStandardizer(int maxChunkNames, int maxChunkChars, int numThreads, Retrier retrier)
+   {
+      this.retrier = retrier;
+      this.maxChunkNames = Math.max(1, maxChunkNames);
+      this.maxChunkChars = Math.max(1, maxChunkChars);
+      numThreads = Math.max(1, numThreads);
+      MultiThreadedHttpConnectionManager connectionManager = new MultiThreadedHttpConnectionManager();
+      connectionManager.getParams().setDefaultMaxConnectionsPerHost(numThreads);
+      connectionManager.getParams().setMaxTotalConnections(numThreads);
+      client = new HttpClient(connectionManager);
+      client.getParams().setParameter("http.protocol.content-charset", "UTF-8");
+      client.getParams().setParameter("http.socket.timeout", 600000);
+      client.getParams().setParameter("http.connection.timeout", 600000);
+      executor = Executors.newFixedThreadPool(numThreads, new ThreadFactory() {
+         private int threadNum = 0;
+         public synchronized Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "place-standardizer-" + (++threadNum));
+            t.setDaemon(true);
+            return t;
+         }
+      });
+   }
+
+   /**
+    * Splits the names into chunks holding at most maxChunkNames names
+    * and (unless a single name is longer) at most maxChunkChars characters
+    * once joined with '|'.
+    * @param names place names in the order they should be sent
+    * @return list of chunks, in order
+    */
+   public List<List<String>> chunk(Collection<String> names)
+   {
+      List<List<String>> chunks = new ArrayList<List<String>>();
+      List<String> curr = new ArrayList<String>();
+      int currChars = 0;
+      for (String name : names)
+      {
+         int len = name.length() + (curr.size() > 0 ? 1 : 0);
+         if (curr.size() > 0 && (curr.size() >= maxChunkNames || currChars + len > maxChunkChars))
+         {
+            chunks.add(curr);
+            curr = new ArrayList<String>();
+            currChars = 0;
+            len = name.length();
+         }
+         curr.add(name);
+         currChars += len;
+      }
+      if (curr.size() > 0)
+      {
+         chunks.add(curr);
+      }
+      return chunks;
+   }
+
+   /**
+    * Standardizes the names, sending the chunks concurrently.
+    * @param placeServer host (and path) of the place server
+    * @param names place names to standardize
+    * @param defaultCountry country to use when a place name doesn't include a country
+    * @return the server's results, in the order of the names passed in
+    * @throws IOException
+    */
+   public List<Result> standardize(final String placeServer, Collection<String> names, final String defaultCountry)
+         throws IOException
+   {
+      List<List<String>> chunks = chunk(names);
+      logger.info("Standardizing " + names.size() + " place names in " + chunks.size() + " request(s)");
+      List<Future<List<Result>>> futures = new ArrayList<Future<List<Result>>>(chunks.size());
+      final JobMetrics metrics = JobMetrics.current();
+      for (final List<String> chunk : chunks)
+      {
+         futures.add(executor.submit(new Callable<List<Result>>() {
+            public List<Result> call() throws Exception {
+               JobMetrics.Helper helper = JobMetrics.startHelper(metrics);
+               try
+               {
+                  return requestChunk(placeServer, chunk, defaultCountry);
+               } finally
+               {
+                  JobMetrics.stopHelper(helper);
+               }
+            }
+         }));
+      }
+      List<Result> results = new ArrayList<Result>(names.size());
+      try
+      {
+         for (Future<List<Result>> future : futures)
+         {
+            results.addAll(future.get());
+         }
+      } catch (InterruptedException e)
+      {
+         Thread.currentThread().interrupt();
+         throw new RuntimeException(e);
+      } catch (ExecutionException e)
+      {
+         Throwable cause = e.getCause();
+         if (cause instanceof IOException)
+         {
+            throw (IOException) cause;
+         } else if (cause instanceof RuntimeException)
+         {
+            throw (RuntimeException) cause;
+         }
+         throw new RuntimeException(cause);
+      } finally
+      {
+         for (Future<List<Result>> future : futures)
+         {
+            future.cancel(true);
+         }
+      }
+      return results;
+   }
+
+   // Sends one chunk to the place server, retrying if the server can't be reached.
+   private List<Result> requestChunk(String placeServer, final List<String> names, final String defaultCountry)
+         throws IOException
+   {
+      final StringBuffer query = new StringBuffer();
+      for (String name : names)
+      {
+         if (query.length() > 0)
+         {
+            query.append('|');
+         }
+         query.append(name);
+      }
+      final String url = "http://" + placeServer + "/placestandardize";
+      try
+      {
+         return retrier.execute(new Retrier.Attempt<List<Result>>() {
+            public List<Result> call() throws Exception {
+               PostMethod m = new PostMethod(url);
+               try
+               {
+                  NameValuePair [] nvp = {
+                        new NameValuePair("q", query.toString()),
+                        new NameValuePair("defaultCountry", defaultCountry),
+                        new NameValuePair("wt", "xml")
+                  };
+                  m.setRequestBody(nvp);
+                  HttpMethodParams params = new HttpMethodParams();
+                  params.setContentCharset("UTF-8");
+                  params.setHttpElementCharset("UTF-8");
+                  params.setParameter("http.protocol.content-charset", "UTF-8");
+                  m.setParams(params);
+                  m.setRequestHeader("Content-Type", "application/x-www-form-urlencoded; charset=UTF-8");
+                  int status = GedcomEvents.executeMethod(client, m, retrier.getName());
+                  if (status >= 400)
+                  {
+                     if (Retrier.isRetryableHttpStatus(status))
+                     {
+                        throw new IOException("HTTP status " + status + " from place server");
+                     }
+                     throw new Retrier.FatalException("HTTP status " + status + " from place server");
+                  }
+                  return parseResponse(new InputSource(new InputStreamReader(m.getResponseBodyAsStream(), m.getResponseCharSet())));
+               } finally
+               {
+                  m.releaseConnection();
+               }
+            }
+
+            public void beforeRetry(Exception e) {
+               logger.warn("Exception while standardizing " + names.size() + " place names: " + e.getMessage());
+            }
+         });
+      } catch (InterruptedException e)
+      {
+         Thread.currentThread().interrupt();
+         throw new RuntimeException(e);
+      } catch (RuntimeException e)
+      {
+         throw e;
+      } catch (Exception e)
+      {
+         throw new RuntimeException("Can no longer talk to http server while getting standard names.", e);
+      }
+   }
+
+   private static final SAXParserFactory spf = SAXParserFactory.newInstance();
+
+   /**
+    * Stream-parses a place server response of the form
+    * &lt;response&gt;&lt;arr&gt;&lt;lst&gt;&lt;str name="q"&gt;...
+    * @param in response
+    * @return one result per lst element
+    * @throws IOException
+    */
+   public static List<Result> parseResponse(InputSource in) throws IOException
+   {
+      ResponseHandler handler = new ResponseHandler();
+      try
+      {
+         SAXParser parser;
+         synchronized (spf)
+         {
+            parser = spf.newSAXParser();
+         }
+         parser.parse(in, handler);
+      } catch (ParserConfigurationException e)
+      {
+         throw new RuntimeException(e);
+      } catch (SAXException e)
+      {
+         throw new RuntimeException("Invalid search results returned from the place search server. " +
+               "Please ensure that the url specified for the search server is valid.", e);
+      }
+      if (!handler.isValid())
+      {
+         throw new RuntimeException("Invalid search results returned from the place search server. " +
+               "Please ensure that the url specified for the search server is valid.");
+      }
+      return handler.getResults();
+   }
+
+   // Collects /response/arr/lst/str[@name='q' | @name='PlaceTitle' | @name='error']
+   private static class ResponseHandler extends DefaultHandler {
+      private List<Result> results = new ArrayList<Result>();
+      private boolean valid = false;
+      private int depth = 0;
+      private boolean inResponse = false, inArr = false, inLst = false;
+      private String strName = null;
+      private StringBuffer text = new StringBuffer();
+      private String q, placeTitle, error;
+
+      public void startElement(String uri, String localName, String qName, Attributes attributes)
+      {
+         depth++;
+         if (depth == 1)
+         {
+            inResponse = qName.equals("response");
+         } else if (depth == 2)
+         {
+            inArr = inResponse && qName.equals("arr");
+         } else if (depth == 3)
+         {
+            inLst = inArr && qName.equals("lst");
+            q = placeTitle = error = null;
+         } else if (depth == 4 && inLst && qName.equals("str"))
+         {
+            strName = attributes.getValue("name");
+            text.setLength(0);
+         }
+      }
+
+      public void characters(char[] ch, int start, int length)
+      {
+         if (strName != null)
+         {
+            text.append(ch, start, length);
+         }
+      }
+
+      public void endElement(String uri, String localName, String qName)
+      {
+         if (depth == 4 && strName != null)
+         {
+            // Like the XPath string() function, only the first matching element counts
+            if (strName.equals("q") && q == null)
+            {
+               q = text.toString();
+            } else if (strName.equals("PlaceTitle") && placeTitle == null)
+            {
+               placeTitle = text.toString();
+            } else if (strName.equals("error") && error == null)
+            {
+               error = text.toString();
+            }
+            strName = null;
+         } else if (depth == 3 && inLst)
+         {
+            results.add(new Result(q == null ? "" : q, placeTitle == null ? "" : placeTitle,
+                                   error == null ? "" : error));
+            inLst = false;
+         } else if (depth == 1)
+         {
+            valid = inResponse;
+         }
+         depth--;
+      }
+
+      public boolean isValid() {
+         return valid;
+      }
+
+      public List<Result> getResults() {
+         return results;
+      }
+   }
+
+   /**
+    * @return the retrier used for requests to the place server
+    */
+   public Retrier getRetrier() {
+      return retrier;
+   }
+
+   /**
+    * Stops the request threads
+    */
+   public void shutdown()
+   {
+      executor.shutdownNow();
+      ((MultiThreadedHttpConnectionManager) client.getHttpConnectionManager()).shutdown();
+   }
+}
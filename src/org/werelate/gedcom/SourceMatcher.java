@@ -0,0 +1,269 @@
+package org.werelate.gedcom;
+
+import org.apache.commons.httpclient.NameValuePair;
+import org.apache.commons.httpclient.methods.PostMethod;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Sends wfMatchSource and wfAddGedcomSourceMatches calls to the wiki
+ * off the thread that is printing or generating the GEDCOM.
+ * Requests go into a bounded queue (so a slow wiki applies back-pressure
+ * instead of letting the backlog grow without limit) and are drained by
+ * worker threads, each with its own wiki session. Every wfMatchSource call
+ * is sent, since the match is recorded per source; a wfAddGedcomSourceMatches
+ * call that repeats one already queued for the GEDCOM (the same cleaned
+ * author/title/abbrev/page) is not sent again.
+ */
+public class SourceMatcher {
+   private static final Logger logger =
+         LogManager.getLogger("org.werelate.gedcom.SourceMatcher");
+
+   public static final int DEFAULT_BACKLOG = 1000;
+   public static final int DEFAULT_THREADS = 2;
+
+   // wfMatchSource and wfAddGedcomSourceMatches answer with a single element named
+   // after the function, which carries the status, e.g. <match status="0"></match>
+   static final Pattern pStatus = Pattern.compile("<(\\w+)[^>]*\\sstatus=\"([^\">]*)\"");
+
+   // One queued call to the wiki
+   private static class Request {
+      int gedID;
+      String rs;
+      String rsargs;
+
+      Request(int gedID, String rs, String rsargs)
+      {
+         this.gedID = gedID;
+         this.rs = rs;
+         this.rsargs = rsargs;
+      }
+   }
+
+   private Uploader uploader;
+   private BlockingQueue<Request> queue;
+   // gedID -> number of requests queued or in flight; guarded by this
+   private Map<Integer, Integer> pending = new HashMap<Integer, Integer>();
+   // gedID -> keys of the wfAddGedcomSourceMatches requests already queued for that GEDCOM; guarded by this
+   private Map<Integer, Set<String>> queued = new HashMap<Integer, Set<String>>();
+   private List<Thread> workers = new ArrayList<Thread>();
+   private int numSent = 0, numDuplicates = 0;
+
+   /**
+    * @param uploader used to execute the calls against the wiki
+    * @param properties reads source_match_backlog and source_match_threads,
+    *                   and the wiki login used by each worker's session
+    */
+   public SourceMatcher(Uploader uploader, Properties properties)
+   {
+      this.uploader = uploader;
+      int backlog = Integer.parseInt(properties.getProperty("source_match_backlog", Integer.toString(DEFAULT_BACKLOG)));
+      int numThreads = Integer.parseInt(properties.getProperty("source_match_threads", Integer.toString(DEFAULT_THREADS)));
+      queue = new ArrayBlockingQueue<Request>(Math.max(1, backlog));
+      for (int i = 0; i < Math.max(1, numThreads); i++)
+      {
+         Thread t = new Thread(new Worker(new UserTalker(properties)), "source-matcher-" + (i + 1));
+         t.setDaemon(true);
+         t.start();
+         workers.add(t);
+      }
+   }
+
+   /**
+    * Queues a wfMatchSource call for a source being printed to the in-process XML.
+    * The strings must already be cleaned with Util.cleanGedcomSource.
+    */
+   public void matchSource(int userID, int gedID, String gedcomKey, String author, String title, String abbrev)
+         throws InterruptedException
+   {
+      // The match is recorded per source, so sources with the same author/title/abbrev each need their own call
+      submit(gedID, null, "wfMatchSource",
+             "userID=" + userID + "|gedcomID=" + gedID + "|gedcomKey=" + gedcomKey +
+             "|author=" + author + "|title=" + title + "|abbrev=" + abbrev);
+   }
+
+   /**
+    * Queues a wfAddGedcomSourceMatches call for a mysource page matched to a source.
+    * The strings must already be cleaned with Util.cleanGedcomSource.
+    */
+   public void addGedcomSourceMatch(int userID, int gedID, String author, String title, String abbrev, String pageTitle)
+         throws InterruptedException
+   {
+      submit(gedID, author + '|' + title + '|' + abbrev + '|' + pageTitle, "wfAddGedcomSourceMatches",
+             "userID=" + userID + "|author=" + author + "|title=" + title + "|abbrev=" + abbrev +
+             "|pageTitle=" + pageTitle);
+   }
+
+   /**
+    * @param key identifies a request that needs to be sent only once per GEDCOM; null to always send it
+    */
+   private void submit(int gedID, String key, String rs, String rsargs) throws InterruptedException
+   {
+      synchronized (this)
+      {
+         if (key != null)
+         {
+            Set<String> keys = queued.get(gedID);
+            if (keys == null)
+            {
+               keys = new HashSet<String>();
+               queued.put(gedID, keys);
+            }
+            if (!keys.add(key))
+            {
+               numDuplicates++;
+               return;
+            }
+         }
+         Integer count = pending.get(gedID);
+         pending.put(gedID, count == null ? 1 : count + 1);
+      }
+      // Blocks when the backlog is full
+      queue.put(new Request(gedID, rs, rsargs));
+   }
+
+   private synchronized void done(int gedID)
+   {
+      Integer count = pending.get(gedID);
+      if (count == null || count <= 1)
+      {
+         pending.remove(gedID);
+      } else
+      {
+         pending.put(gedID, count - 1);
+      }
+      numSent++;
+      notifyAll();
+   }
+
+   /**
+    * Waits until every request queued for the GEDCOM has been sent.
+    * @param gedID GEDCOM whose requests we are waiting for
+    */
+   public synchronized void flush(int gedID) throws InterruptedException
+   {
+      while (pending.containsKey(gedID))
+      {
+         wait();
+      }
+   }
+
+   /**
+    * Waits for the GEDCOM's requests and forgets which ones were sent,
+    * so the GEDCOM can be processed again later.
+    * @param gedID GEDCOM that is done being processed
+    */
+   public synchronized void endJob(int gedID) throws InterruptedException
+   {
+      flush(gedID);
+      queued.remove(gedID);
+      logger.info("Source match requests sent=" + numSent + " duplicate additions skipped=" + numDuplicates);
+   }
+
+   /**
+    * Stops the worker threads; requests still in the queue are dropped
+    */
+   public void shutdown()
+   {
+      for (Thread t : workers)
+      {
+         t.interrupt();
+      }
+   }
+
+   /**
+    * @return the status of a wfMatchSource or wfAddGedcomSourceMatches response,
+    *         or null if the response doesn't have one, as when the wiki fails with an error page
+    */
+   static String getResponseStatus(String response)
+   {
+      Matcher mStatus = pStatus.matcher(response);
+      return mStatus.find() ? mStatus.group(2) : null;
+   }
+
+   /**
+    * Logs a warning unless the response reports success
+    * @return whether the call succeeded
+    */
+   static boolean checkResponse(String rs, int gedID, String rsargs, String response)
+   {
+      String status = getResponseStatus(response);
+      if (status == null)
+      {
+         logger.warn("Response for " + rs + " has no status for gedcom " + gedID + ": " + rsargs);
+         return false;
+      } else if (!status.equals("0"))
+      {
+         logger.warn("Response status for " + rs + " is " + status + " for gedcom " + gedID + ": " + rsargs);
+         return false;
+      }
+      return true;
+   }
+
+   // Drains the queue using its own wiki session
+   private class Worker implements Runnable {
+      private UserTalker userTalker;
+
+      Worker(UserTalker userTalker)
+      {
+         this.userTalker = userTalker;
+      }
+
+      public void run()
+      {
+         try
+         {
+            while (true)
+            {
+               Request request = queue.take();
+               try
+               {
+                  send(request);
+               } catch (RuntimeException e)
+               {
+                  logger.warn("Exception while sending " + request.rs + ": " + e.getMessage());
+               } finally
+               {
+                  done(request.gedID);
+               }
+            }
+         } catch (InterruptedException e)
+         {
+            // shutting down
+         }
+      }
+
+      private void send(Request request)
+      {
+         PostMethod m = new PostMethod(uploader.getApiUrl());
+         try
+         {
+            NameValuePair [] nvp = {
+                  new NameValuePair("rs", request.rs),
+                  new NameValuePair("action", "ajax"),
+                  new NameValuePair("rsargs", request.rsargs)
+            };
+            m.setRequestBody(nvp);
+            if (!uploader.executeHttpMethod(userTalker, m, pStatus))
+            {
+               logger.warn("There was an error when executing " + request.rs + " for gedcom " + request.gedID);
+               return;
+            }
+            checkResponse(request.rs, request.gedID, request.rsargs, m.getResponseBodyAsString());
+         } catch (IOException e)
+         {
+            // ignore, like the synchronous calls did
+         } finally
+         {
+            m.releaseConnection();
+         }
+      }
+   }
+}
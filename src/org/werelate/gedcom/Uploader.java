@@ -2,25 +2,15 @@ package org.werelate.gedcom;
 
 
 import org.apache.commons.cli.*;
-import org.apache.commons.httpclient.NameValuePair;
-import org.apache.commons.httpclient.HttpException;
 import org.apache.commons.httpclient.HttpMethod;
-import org.apache.commons.httpclient.params.HttpMethodParams;
-import org.apache.commons.httpclient.methods.PostMethod;
-import org.apache.commons.httpclient.methods.GetMethod;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.werelate.util.*;
-import org.w3c.dom.Node;
-import org.w3c.dom.Document;
-import org.w3c.dom.NodeList;
 import org.xml.sax.SAXException;
-import org.xml.sax.InputSource;
-import org.xml.sax.SAXParseException;
 
 import java.sql.*;
 import java.util.*;
-import java.util.Date;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Pattern;
 import java.util.regex.Matcher;
 import java.io.*;
@@ -39,7 +29,7 @@ import javax.xml.transform.TransformerException;
  * It is also the class that has overall
  * responsibility for uploading GEDCOM files
  */
-public class Uploader {
+public class Uploader implements PlaceNames {
    private static final Logger logger =
          LogManager.getLogger("org.werelate.gedcom.Upload");
    // The source directory for Gedcoms
@@ -86,6 +76,39 @@ public class Uploader {
 
    private boolean ignoreUnexpectedTags = false;
 
+   // In daemon mode the workers wait for more GEDCOMs instead of
+   // returning when the queue is empty
+   private boolean daemon = false;
+   private volatile boolean stopping = false;
+   // How long an idle worker waits before looking at the queue again;
+   // the wait doubles each time the queue is still empty
+   private long idleMinWait = 5000;
+   private long idleMaxWait = 300000;
+   // Workers look at the queue right away when this file appears
+   private File wakeFile = null;
+   // Incremented, and the waiting workers notified, each time the wake file is seen; guarded by idleLock
+   private int numWakeUps = 0;
+   private final Object idleLock = new Object();
+
+   /**
+    * Sets whether the workers keep waiting for GEDCOMs when the queue is empty,
+    * until stop is called
+    */
+   public void setDaemon(boolean daemon) {
+      this.daemon = daemon;
+   }
+
+   /**
+    * Tells the workers to return once their current GEDCOMs are done
+    */
+   public void stop() {
+      stopping = true;
+      synchronized (idleLock)
+      {
+         idleLock.notifyAll();
+      }
+   }
+
    public boolean isIgnoreUnexpectedTags() {
       return ignoreUnexpectedTags;
    }
@@ -183,6 +206,46 @@ public class Uploader {
    // Contains the properties parsed from the java properties file
    private Properties properties = null;
    private UserTalker userTalker = null;
+   private PlaceStandardizer placeStandardizer = null;
+   private SourceMatcher sourceMatcher = null;
+   // Retry with backoff behind a circuit breaker, one per endpoint
+   private Retrier wikiRetrier = null;
+   private Retrier matchRetrier = null;
+   private Retrier dbRetrier = null;
+   // Number of GEDCOMs processed at once, each by its own worker thread
+   private int numWorkers = 1;
+   // When set, separate pools of workers parse uploaded GEDCOMs and generate
+   // the pages of reviewed ones, so the two kinds of job overlap
+   private int numParseWorkers = 0;
+   private int numGenerateWorkers = 0;
+
+   /**
+    * The kinds of job a worker takes from the queue
+    */
+   public enum Stage {
+      /** parse, decide living, print and match an uploaded GEDCOM */
+      PARSE,
+      /** reserve titles, update the family tree and generate the pages */
+      GENERATE,
+      /** either kind */
+      ANY
+   }
+   // Number of places queried by all of the jobs
+   private AtomicInteger numPlaces = new AtomicInteger();
+   // Claims GEDCOMs so that workers on other machines don't process them too
+   private JobQueue jobQueue = null;
+   private String jobOwner = null;
+   private long leaseTime = JobQueue.DEFAULT_LEASE_TIME;
+   private int leaseMaxClaims = JobQueue.DEFAULT_MAX_CLAIMS;
+   // Renews the leases of the GEDCOMs being processed
+   private Timer leaseTimer = null;
+   // Chooses which queued GEDCOM to take next
+   private JobScheduler scheduler = null;
+   // Adds up the per-stage metrics of the jobs
+   private GedcomMetrics metrics = null;
+   // Name signatures of every user's GEDCOMs, to find duplicates uploaded by different users
+   private NameSignatureIndex duplicateIndex = null;
+   private int duplicateThreshold = 80;
 
    /**
     * Sets up all of the initial variables so that
@@ -200,10 +263,48 @@ public class Uploader {
          SQLException, IOException, XPathFactoryConfigurationException
    {
       this.properties = properties;
+      wikiRetrier = Retrier.fromProperties("wiki", properties);
+      matchRetrier = Retrier.fromProperties("match", properties);
+      dbRetrier = Retrier.fromProperties("db", properties);
+      numWorkers = Math.max(1, Integer.parseInt(properties.getProperty("workers", "1")));
+      numParseWorkers = Integer.parseInt(properties.getProperty("parse_workers", "0"));
+      numGenerateWorkers = Integer.parseInt(properties.getProperty("generate_workers", "0"));
+      if ((numParseWorkers > 0) != (numGenerateWorkers > 0))
+      {
+         // otherwise the GEDCOMs of the other stage would wait forever
+         logger.warn("parse_workers and generate_workers should be set together; running 1 " +
+               (numParseWorkers > 0 ? "generate" : "parse") + " worker");
+         numParseWorkers = Math.max(1, numParseWorkers);
+         numGenerateWorkers = Math.max(1, numGenerateWorkers);
+      }
+      jobOwner = JobQueue.getDefaultOwner() + '/' + System.currentTimeMillis();
+      leaseTime = Long.parseLong(properties.getProperty("lease_time", Long.toString(JobQueue.DEFAULT_LEASE_TIME)));
+      leaseMaxClaims = Integer.parseInt(properties.getProperty("lease_max_claims", Integer.toString(JobQueue.DEFAULT_MAX_CLAIMS)));
+      scheduler = new JobScheduler(properties);
+      metrics = new GedcomMetrics(properties);
+      GedcomEvents.setEnabled(Boolean.parseBoolean(properties.getProperty("jfr_events", "false")));
+      metrics.register();
+      idleMinWait = Long.parseLong(properties.getProperty("idle_min_wait", Long.toString(idleMinWait)));
+      idleMaxWait = Long.parseLong(properties.getProperty("idle_max_wait", Long.toString(idleMaxWait)));
+      if (!Utils.isEmpty(properties.getProperty("duplicate_index_dir")))
+      {
+         duplicateIndex = new NameSignatureIndex(new File(properties.getProperty("duplicate_index_dir")));
+         duplicateThreshold = Integer.parseInt(properties.getProperty("duplicate_threshold", Integer.toString(duplicateThreshold)));
+      }
+      if (!Utils.isEmpty(properties.getProperty("wake_file")))
+      {
+         wakeFile = new File(properties.getProperty("wake_file"));
+      }
       Class.forName("com.mysql.jdbc.Driver").newInstance();
       dbConnect();
+      startLeaseTimer();
       xml_output = properties.getProperty("xml_output");
       xml_inprocess = properties.getProperty("xml_inprocess");
+      contentCacheSize = Integer.parseInt(properties.getProperty("content_cache_size", Integer.toString(contentCacheSize)));
+      prepareThreads = Integer.parseInt(properties.getProperty("prepare_threads", Integer.toString(prepareThreads)));
+      inProcessRecords = Boolean.parseBoolean(properties.getProperty("inprocess_records", "false"));
+      compressOutputXML = Boolean.parseBoolean(properties.getProperty("compress_output_xml", "false"));
+      compressInProcessXML = Boolean.parseBoolean(properties.getProperty("compress_inprocess_xml", "false"));
       PageEdit.SetWerelateAgent(properties);
       encodeXML = true;
       // The directory which contain the source gedcoms
@@ -216,6 +317,10 @@ public class Uploader {
       // Creates a new userTalker to send messages to users. The sysop user
       // specified here will receive notifications when there are problems with the GEDCOMs.
       userTalker = new UserTalker(properties);
+      // Sends source matching requests in the background
+      sourceMatcher = new SourceMatcher(this, properties);
+      // Standardizes place names in concurrent, size-bounded chunks
+      placeStandardizer = new PlaceStandardizer(properties);
 
       // The minimum match score to use as a threshold for the setting the potential
       // match attributes of the family elements
@@ -230,124 +335,80 @@ public class Uploader {
       String url = properties.getProperty("db_url");
       conn = DriverManager.getConnection(url, userName, password);
       initializePreparedStatements();
+      jobQueue = new JobQueue(conn, jobOwner, leaseTime, leaseMaxClaims);
       logger.info("Database connection established");
    }
 
-   // gedID is updated to the id of the gedcom
-   // that we're currently processing
-   private int gedID = -1;
-   // The status of the GEDCOM we're going to process.
-   private int gedStatus = -1;
-   // The default country of the GEDCOM we're going to process
-   private String defaultCountry = "";
-
    // The hostname of the server to which we're uploading the
    // pages
    private String wikiServer = null;
 
-   private static String printQueryPart(String fieldName, String name)
-   {
-      if (!PlaceUtils.isEmpty(name))
-      {
-         return fieldName + ":\"" + Utils.removeQuotesEtc(name) + "\" ";
-      } else
-      {
-         return "";
-      }
+   private float minimumMatchScore = 3.15f;
+   private float medievalMatchScore = 2.35f;
+
+   /**
+    * @return the lowest match score at which a family is considered a potential match
+    */
+   public float getMinimumMatchScore() {
+      return minimumMatchScore;
    }
 
-   private static boolean bornBefore1600(List<String> personIds, Gedcom gedcom)
-   {
-      for (String personId : personIds)
-      {
-         Person spouse = gedcom.getPeople().get(personId);
-         if (spouse != null)
-         {
-            String birthDate = spouse.getBirthDate();
-            if (birthDate != null && Utils.dateIsBefore1600AD(birthDate)) {
-               return true;
-            }
-         }
-      }
-      return false;
+   /**
+    * @return the lowest match score for families where a spouse was born before 1600
+    */
+   public float getMedievalMatchScore() {
+      return medievalMatchScore;
    }
 
-   private static String printPersonFields(String personType, List<String> personIds, Gedcom gedcom, boolean isMedieval)
-   {
-      String query = "";
-      for (String personId : personIds)
-      {
-         Person spouse = gedcom.getPeople().get(personId);
-         if (spouse != null && spouse.getName() != null)
+   public String getGedcomDir() {
+      return gedcomDir;
+   }
+
+   public String getPlaceServer() {
+      return placeServer;
+   }
+
+   public String getMatchServer() {
+      return matchServer;
+   }
+
+   public boolean isStubMatching() {
+      return stubMatching;
+   }
+
+   SourceMatcher getSourceMatcher() {
+      return sourceMatcher;
+   }
+
+   private static final DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
+   // DocumentBuilders aren't thread-safe, so each thread gets its own
+   private static final ThreadLocal<DocumentBuilder> documentBuilder = new ThreadLocal<DocumentBuilder>() {
+      protected DocumentBuilder initialValue() {
+         try
          {
-            if (!Utils.isEmpty(spouse.getName().getGiven()) && !spouse.getName().getGiven().toLowerCase().equals("unknown"))
-            {
-               query += printQueryPart(personType + "Givenname", spouse.getName().getFirstGiven());
-            }
-            if (!Utils.isEmpty(spouse.getName().getSurname()) && !spouse.getName().getSurname().toLowerCase().equals("unknown"))
-            {
-               query += printQueryPart(personType + "Surname", spouse.getName().getSurname());
-            }
-            boolean foundBirth = false;
-            boolean foundDeath = false;
-            for (Event event : spouse.getEvents())
+            synchronized (dbf)
             {
-               if (!foundBirth && event.getType() == Event.Type.birth)
-               {
-                  foundBirth = true;
-                  query += printQueryPart(personType + "BirthDate", event.getAttribute("DATE"));
-               } else if (isMedieval && !foundDeath && event.getType() == Event.Type.death)
-               {
-                  foundDeath = true;
-                  query += printQueryPart(personType + "DeathDate", event.getAttribute("DATE"));
-               }
-            }
-            if (!foundBirth || (isMedieval && !foundDeath))
-            {
-               for (Event event : spouse.getEvents())
-               {
-                  if (!foundBirth && (event.getType() == Event.Type.christening || event.getType() == Event.Type.Baptism))
-                  {
-                     foundBirth = true;
-                     query += printQueryPart(personType + "BirthDate", event.getAttribute("DATE"));
-                  } else if (isMedieval && !foundDeath && event.getType() == Event.Type.burial)
-                  {
-                     foundDeath = true;
-                     query += printQueryPart(personType + "DeathDate", event.getAttribute("DATE"));
-                  }
-               }
+               return dbf.newDocumentBuilder();
             }
+         } catch (ParserConfigurationException e)
+         {
+            throw new RuntimeException(e);
          }
       }
-      return query;
-   }
+   };
 
-   private float minimumMatchScore = 3.15f;
-   private float medievalMatchScore = 2.35f;
-
-   private static final DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-   public static DocumentBuilder db;
-   static
+   /**
+    * @return a DocumentBuilder that may only be used by the calling thread
+    */
+   public static DocumentBuilder getDocumentBuilder()
    {
-         try {
-            //Using factory get an instance of document builder
-            db = dbf.newDocumentBuilder();
-         }catch(ParserConfigurationException pce) {
-            pce.printStackTrace();
-         }
+      return documentBuilder.get();
    }
 
-   // Following is specific to Saxon: should be in a properties file
-
+   // Only used to compile expressions when classes are loaded;
+   // XPath objects may not be shared between threads.
    public static XPath xpe;
    private static XPathFactory xpf;
-   private static XPathExpression findMatches;
-   private static XPathExpression scoreExpression;
-   private static XPathExpression titleExpression;
-   private static XPathExpression lstExpression;
-   private static XPathExpression queryExpression;
-   private static XPathExpression placeTitleExpression;
-   private static XPathExpression errorExpression;
 
    static
    {
@@ -355,143 +416,20 @@ public class Uploader {
       {
          xpf = XPathFactory.newInstance();
          xpe = xpf.newXPath();
-         findMatches = xpe.compile("/response/result/doc");
-         scoreExpression = xpe.compile("float[@name='score']");
-         titleExpression = xpe.compile("str[@name='TitleStored']");
-         lstExpression = xpe.compile("/response/arr/lst");
-         queryExpression = xpe.compile("./str[@name='q']");
-         placeTitleExpression = xpe.compile("./str[@name='PlaceTitle']");
-         errorExpression = xpe.compile("./str[@name='error']");
-      } catch (Exception e)
-      {
-         throw new RuntimeException(e);
-      }
-   }
-
-   // Pattern used to parse the primary person update response.
-   private static final Pattern pPrimaryResponse = Pattern.compile("<updateTreePrimary\\s+status=\"([^\"]+)\"/>");
-
-   private void updatePrimaryPerson(String title)
-   {
-      PostMethod m = null;
-      try
-      {
-         String url = getApiUrl();
-         m = new PostMethod(url);
-         String rsargs = "tree_id=" + treeID + "|primary=" + title;
-         uploadNVP[0].setName("rs");
-         uploadNVP[0].setValue("wfUpdateTreePrimary");
-         uploadNVP[1].setName("action");
-         uploadNVP[1].setValue("ajax");
-         uploadNVP[2].setName("rsargs");
-         uploadNVP[2].setValue(rsargs);         
-         m.setRequestBody(uploadNVP);
-         if (!executeHttpMethod(m))
-         {
-            logger.warn("There was an error when executing the method to update the primary person");
-            String msg = "No longer can talk to the wiki server while updating the primary person";
-            updateGedcom(STATUS_GENERATE_FAILED, gedID, msg);
-            userTalker.sendErrorMessage(userName, gedcomName, gedID);
-            throw new RuntimeException(msg);
-         }
-         String response = m.getResponseBodyAsString();
-         Matcher mPrimaryResponse = pPrimaryResponse.matcher(response);
-         if (mPrimaryResponse.find())
-         {
-            int status = Integer.parseInt(mPrimaryResponse.group(1));
-            if (status != 0)
-            {
-               // Throw an exception about a non-zero status.
-               // I think status -2 means you're not logged in.
-               throw new RuntimeException("Unrecognized status after attempting to update the primary person: " + status);
-            }
-         } else
-         {
-            throw new RuntimeException("Unrecognized response after attempting to update the primary person: " + response);
-         }
       } catch (Exception e)
       {
          throw new RuntimeException(e);
-      } finally
-      {
-         m.releaseConnection();
-      }
-   }
-
-   private boolean getIsTrustedUploader(String userName, int gedID) throws SQLException, SAXException, IOException {
-      boolean isTrusted = false;
-      boolean foundResponse = false;
-      PostMethod m = null;
-      try
-      {
-         String url = getApiUrl();
-         m = new PostMethod(url);
-         uploadNVP[0].setName("rs");
-         uploadNVP[0].setValue("wfIsTrustedUploader");
-         uploadNVP[1].setName("action");
-         uploadNVP[1].setValue("ajax");
-         uploadNVP[2].setName("rsargs");
-         uploadNVP[2].setValue("user_name=" + userName);
-         m.setRequestBody(uploadNVP);
-         if (!executeHttpMethod(m))
-         {
-            logger.warn("There was an error when executing the method wfIsTrustedUploader");
-            String msg = "No longer can talk to the wiki server while calling wfIsTrustedUploader";
-            updateGedcom(STATUS_GENERATE_FAILED, gedID, msg);
-            userTalker.sendErrorMessage(userName, gedcomName, gedID);
-            throw new RuntimeException(msg);
-         }
-         String response = m.getResponseBodyAsString();
-         m.releaseConnection();
-
-         m = null;
-         Matcher mStatus = pResponseStatus.matcher(response);
-         if (mStatus.find())
-         {
-            String status = mStatus.group(2);
-            if (!status.equals("0"))
-            {
-               String msg = "Response status for wfIsTrustedUploader is not 0, it is " + status;
-               updateGedcom(Uploader.STATUS_GENERATE_FAILED, gedID, msg);
-               userTalker.sendErrorMessage(userName, gedcomName, gedID);
-               throw new RuntimeException(msg + '\n' + response);
-            }
-
-            // Let's parse the response.
-            Document resultDoc = Uploader.db.parse(new InputSource(new StringReader(response)));
-            Node node = resultDoc.getFirstChild().getAttributes().getNamedItem("trusted");
-            if (node != null) {
-               foundResponse = true;
-               isTrusted = node.getNodeValue().equalsIgnoreCase("true");
-            }
-         }
-
-         if (!foundResponse) {
-            String msg = "Could not get a response status when calling wfIsTrustedUploader";
-            updateGedcom(STATUS_GENERATE_FAILED, gedID, msg);
-            userTalker.sendErrorMessage(userName, gedcomName, gedID);
-            throw new RuntimeException(msg + ":\n" + response);
-         }
-
-      } catch (IOException e)
-      {
-         updateGedcom(STATUS_GENERATE_FAILED, gedID, e.getMessage());
-         userTalker.sendErrorMessage(userName, gedcomName, gedID);
-         throw new RuntimeException(e);
-      } finally
-      {
-         if (m != null)
-         {
-            m.getResponseBodyAsString();
-            m.releaseConnection();
-         }
       }
-
-      return isTrusted;
    }
 
    /**
     * This is the main loop for the GEDCOM uploader.
+    * It runs the number of workers given by the workers property;
+    * each worker processes one GEDCOM at a time (see GedcomJob).
+    * If parse_workers and generate_workers are set, that many workers
+    * only parse uploaded GEDCOMs, or only generate pages, instead
+    * (if only one is set, the other defaults to 1),
+    * so a CPU-bound parse can run while pages are sent to the wiki.
     * This is a summary of what this method does:
     * 1. Gets the next gedcom to be processes
     * 2. If the GEDCOM is valid, then it is processed,
@@ -517,293 +455,138 @@ public class Uploader {
     */
    public void loop() throws IOException, Uploader.GenerateException, InterruptedException, SQLException
    {
-      try
+      if (numParseWorkers <= 0 && numGenerateWorkers <= 0 && numWorkers <= 1)
       {
-         int numPlaces = 0;
-         // Sets the gedID and gedStatus and defaultCountry values.
-         getNextGedcomID();
-         while (gedID > -1) {
-            String xmlPath = getXml_output() + '/' + gedID + ".xml";
-            if (gedStatus == Uploader.STATUS_REGENERATE && (new File(xmlPath)).exists())
-            {
-               // Then we will just read in the gedcom from the path
-               // instead of reparsing and re-reserving IDs for all
-               // of the titles
-               updateGedcom(STATUS_GENERATING, gedID, "");
-               if (!isUnitTesting())
-               {
-                  // First we need to reload the XML file.
-                  GedcomXML gedXML = new GedcomXML(this);
+         work(userTalker, Stage.ANY);
+      } else
+      {
+         // Each worker takes a GEDCOM from the queue and processes it
+         // end to end with its own wiki session
+         List<Stage> stages = new ArrayList<Stage>();
+         if (numParseWorkers <= 0 && numGenerateWorkers <= 0)
+         {
+            stages.addAll(Collections.nCopies(numWorkers, Stage.ANY));
+         } else
+         {
+            stages.addAll(Collections.nCopies(Math.max(0, numParseWorkers), Stage.PARSE));
+            stages.addAll(Collections.nCopies(Math.max(0, numGenerateWorkers), Stage.GENERATE));
+         }
+         final List<Exception> failures = Collections.synchronizedList(new ArrayList<Exception>());
+         List<Thread> threads = new ArrayList<Thread>();
+         for (int i=0; i < stages.size(); i++)
+         {
+            final UserTalker workerTalker = (i == 0 ? userTalker : new UserTalker(properties));
+            final Stage stage = stages.get(i);
+            Thread t = new Thread(new Runnable() {
+               public void run() {
                   try
                   {
-                     gedXML.parse(xmlPath);
-                     readGedcomData(gedXML, true); // re-read gedcom data to set matchedIds and id2ReservedTitle
-                     logger.info("Preparing the XML file to be generated");
-                     gedXML.prepareForGeneration();
-                     logger.info("Updating the family tree with matched titles.");
-                     addPagesToFamilyTree(gedXML.getMatchedPagesXML(treeID));
-                     logger.info("Generating the updated XML file");
-                     uploadXML(gedXML.getPages());
-                     String primaryTitle = gedXML.getPrimaryPersonTitle();
-                     if (primaryTitle != null)
-                     {
-                        updatePrimaryPerson(primaryTitle);
-                     }
-                     logger.info("Done generating the XML file");
-                  } catch (GedcomXML.GedcomXMLException e)
+                     work(workerTalker, stage);
+                  } catch (Exception e)
                   {
-                     logger.warn(e.getMessage());
-                     hadException(e);
+                     logger.error("Worker stopped because of an exception", e);
+                     failures.add(e);
                   }
                }
-            } else if (gedStatus == STATUS_CREATE_PAGES)
-            {
-               // Let's do each of the steps we need to.
-               // First let's read in the xml that we're going to process.
-               try
-               {
-                  updateGedcom(STATUS_GENERATING, gedID, "");
-                  GedcomXML gedXml = new GedcomXML(this);
-                  gedXml.parse(getXml_inprocess() + '/' + gedID + ".xml");
-                  readGedcomData(gedXml, false);
-
-                  // Now that we're parsed, let's go ahead and reserve
-                  // the titles.
-                  reserveIDs(gedXml);
-
-                  // Set existing titles in the XML file prior to saving so we can get them in case we need to regenerate
-                  gedXml.setExistingTitles();
-
-                  // Makes all citations of a mysource that only has a title simple the contents of
-                  // the title as opposed to a link to the (now) excluded mysource
-                  // gedXml.fixTitleOnlyMySourceReferences(); -- doesn't seem to work; let's not apply it  (perhaps it's not a good idea after all)
-
-                  // Now let's go ahead and save the xml file.
-                  // After we save the XML file, we will go ahead and
-                  // generate the pages.
-                  logger.info("Saving the updated XML file");
-                  gedXml.save(new File(getXml_output() + '/' + gedID + ".xml"));
-
-                  // this must be done before prepareForGeneration because that function deletes the mysource title field for some reason
-                  if (!isUnitTesting()) {
-                     logger.info("Add gedcom_source_matches");
-                     addGedcomSourceMatches(gedXml.getPages());
-                  }
-
-                  logger.info("Preparing the XML file to be generated");
-                  gedXml.prepareForGeneration();
+            }, "gedcom-" + stage.name().toLowerCase() + "-worker-" + (i + 1));
+            t.start();
+            threads.add(t);
+         }
+         for (Thread t : threads)
+         {
+            t.join();
+         }
+         if (failures.size() > 0)
+         {
+            Exception e = failures.get(0);
+            if (e instanceof IOException) throw (IOException) e;
+            if (e instanceof SQLException) throw (SQLException) e;
+            if (e instanceof GenerateException) throw (GenerateException) e;
+            if (e instanceof InterruptedException) throw (InterruptedException) e;
+            if (e instanceof RuntimeException) throw (RuntimeException) e;
+            throw new RuntimeException(e);
+         }
+      }
+      logger.info("Total number of places queried = " + numPlaces.get());
+   }
 
-                  if (!isUnitTesting())
-                  {
-                     logger.info("Updating the family tree with matched titles.");
-                     addPagesToFamilyTree(gedXml.getMatchedPagesXML(treeID));
-                     logger.info("Generating the updated XML file");
-                     uploadXML(gedXml.getPages());
-                     String primaryTitle = gedXml.getPrimaryPersonTitle();
-                     if (primaryTitle != null)
-                     {
-                        updatePrimaryPerson(primaryTitle);
-                     }
-                     logger.info("Done generating the XML file");
-                  }
-               } catch (GedcomXML.GedcomXMLException e)
-               {
-                  logger.warn(e.getMessage());
-                  hadException(e);
-               }
-               catch (XPathException e)
-               {
-                  logger.warn ("XPath Exception: "+e.getMessage());
-                  hadException(e);
-               }catch (SAXException e)
-               {
-                  logger.warn ("SAX Exception: "+e.getMessage());
-                  hadException(e);
-               }
-            } else if (gedStatus == STATUS_UPLOADED
-                  || gedStatus==STATUS_IGNORE_OVERLAP)
+   // Processes GEDCOMs from the queue until there are no more for this worker.
+   // In daemon mode, waits for more instead, until stop is called.
+   // While the wikidb can't be reached, waits longer and longer and tries again.
+   private void work(UserTalker userTalker, Stage stage) throws IOException, Uploader.GenerateException, InterruptedException, SQLException
+   {
+      int numIdle = 0, numOutages = 0;
+      while (!stopping)
+      {
+         try
+         {
+            if (workUntilIdle(userTalker, stage))
             {
-               String gedPath = gedcomDir + '/' + gedID + ".ged";
-               if (!(new File(gedPath)).exists()) {
-                  // may not have been copied to the gedcom processor server yet; wait until next time
-                  break;
-               }
-
-               try
-               {
-                  updateGedcom(STATUS_PROCESSING, gedID, "");
-                  String inprocessPath = this.getXml_inprocess() + '/' + gedID + ".xml";
-                  StringBuffer placeXMLBuffer = new StringBuffer();
-                  boolean isTrustedUploader = getIsTrustedUploader(userName, gedID);
-                  Gedcom gedcom = new Gedcom(this, gedPath, userName,
-                                             placeServer, defaultCountry, treeID, isTrustedUploader,
-                                             isIgnoreUnexpectedTags(), placeXMLBuffer);
-                  // If the GEDCOM appears to not be a GEDCOM,
-                  if(gedcom.isInvalid())
-                  {
-                     doGedInvalid();
-                  } else
-                  {
-                     numPlaces += gedcom.getNumPlacesQueried();
-                     logger.info("Setting isLiving");
-                     Person.setLiving(gedcom);
-                     logger.info("Done setting isLiving");
-                     // don't do this anymore
-                     //gedcom.propagatePrimaryPerson();
-                     logger.info("Changing names from living to unknown");
-                     Person.setUnknownName(gedcom);
-                     logger.info("Done changing names");
-                     logger.info("Setting isBornBeforeCutoff");
-                     Person.setAllBornBeforeCutoff(gedcom);
-                     logger.info("Done setting isBornBeforeCutoff");
-                     PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(inprocessPath), "UTF-8"));
-                     int numCitationOnlySources = 0;
-                     for (Source source : gedcom.getSources().values()) {
-                        if (!source.shouldPrint(gedcom)) {
-                           numCitationOnlySources++;
-                        }
-                     }
-                     out.print("<gedcom citation_only_sources=\""+numCitationOnlySources+"\"");
-                     if (gedcom.getPrimaryPerson() != null)
-                     {
-                        out.print(" primary_person=\"" + gedcom.getPrimaryPerson().getID() + "\"");
-                     }
-                     out.println(">");
-                     out.print(placeXMLBuffer);
-                     logger.info("Printing sources");
-                     // Print out souces to the xml file
-                     for (Map.Entry entry : gedcom.getSources().entrySet()) {
-                        // When adding new sources to the source map
-                        // (when parsing the GEDCOM),
-                        // we check to see if there is another existing
-                        // source which already has the same contents as
-                        // the source we are about to add.
-                        // If there is such an existing source, then
-                        // we make the id we are about to add point to the
-                        // existing source.
-                        //
-                        // This has the consequence that when we iterate
-                        // through all of the sources in the source map
-                        // to print them out,
-                        // we need to make sure that the key (id number)
-                        // equals the value (Source)'s id number,
-                        // so that we only print out each unique source
-                        // once.
-                        Source source = (Source) entry.getValue();
-                        if (entry.getKey().equals(source.getID()))
-                        {
-                           try
-                           {
-                              if (source.shouldPrint(gedcom)) {
-                                 // set matching source page title
-                                 matchSource(source);
-                                 source.print(gedcom, out, isEncodeXML());
-                              }
-                           } catch (PrintException e)
-                           {
-                              logger.warn(e);
-                           }
-                        }
-                     }
+               numIdle = 0;
+            }
+            numOutages = 0;
+         } catch (DbUnavailableException e)
+         {
+            long wait = getIdleWait(numOutages++);
+            logger.error(e.getMessage() + "; trying again in " + wait + " ms", e.getCause());
+            waitForWork(wait);
+            continue;
+         }
+         if (!daemon)
+         {
+            break;
+         }
+         waitForWork(getIdleWait(numIdle++));
+      }
+   }
 
-                     logger.info("Printing people while auditing for problems");
-                     // Print out all of the people to the xml file
-                     for(Person person : gedcom.getPeople().values())
-                     {
-                        try
-                        {
-                           person.findProblems();
-                           person.print(gedcom, out, isEncodeXML());
-                        } catch (PrintException e)
-                        {
-                           logger.warn(e);
-                        }
-                     }
-                     // Print out all of the families to the xml file
-                     MultiMap<String, Family> familyNames2Families = new MultiMap<String, Family>();
-                     // Let's fill the multimap with the families:
-                     logger.info("Finding possible matches for families");
-                     for (Family fam : gedcom.getFamilies().values())
-                     {
-                        if (!stubMatching && fam.shouldPrint(gedcom))
-                        {
-                           findMatches(fam, gedcom);
-                        }
-                        familyNames2Families.put(fam.getWikiTitle(gedcom), fam);
-                     }
-                     logger.info("Printing families while auditing for problems");
-                     for(Family fam : gedcom.getFamilies().values())
-                     {
-                        try
-                        {
-                           fam.findProblems(familyNames2Families, gedcom);
-                           fam.print(gedcom, out, isEncodeXML());
-                        } catch (PrintException e)
-                        {
-                           logger.warn(e);
-                        }
-                     }
-                     out.println("</gedcom>");
-                     out.close();
-                     // If there are warnings, then we want to update the status
-                     // of the GEDCOM and skip the page generation
-                     if (gedcom.getNumWarnings() > 0)
-                     {
-                        logger.warn(gedcom.getUserName() + ':' + gedcom.getFN() + " has "
-                              + gedcom.getNumWarnings() + " warning(s).");
-                        String reason;
-                        if (gedcom.isUnknownTag())
-                        {
-                           reason = "Unfamiliar tag(s) found in gedcom";
-                        } else
-                        {
-                           reason = "Post-processing exception occurred";
-                        }
-                        updateGedcom(STATUS_ERROR, gedID, reason);
-                        userTalker.sendErrorMessage(userName, gedcomName, gedID);
-                     } else
-                     {
-                        // It's time to use the api to actually update the gedcom
-
-                        // First let's free up the memory taken up by the gedcom object:
-                        gedcom = null;
-
-                        // Let's update the GEDCOM's status so that the
-                        // user may review it.
-                        System.out.print('\n');
-                        updateGedcom(Uploader.STATUS_REVIEW, gedID, "");
-                        if (!this.isUnitTesting())
-                        {
-                           userTalker.sendGedcomReviewMessage(userName, gedcomName, gedID);
-                        }
-                     }
-                  }
-               } catch (SAXException e)
-               {
-                  hadException(e);
-               }
-               catch (Gedcom.PostProcessException e)
-               {
-                  logger.warn(e.getMessage());
-                  //e.printStackTrace();
-                  hadException(e);
-               } catch (GedcomElementWriter.ElementWriterException e)
+   // Processes GEDCOMs until the queue is empty; returns whether any GEDCOM was taken
+   private boolean workUntilIdle(UserTalker userTalker, Stage stage) throws IOException, Uploader.GenerateException, InterruptedException, SQLException
+   {
+      boolean foundJob = false;
+      try
+      {
+         GedcomJob job;
+         while (!stopping && (job = getNextJob(userTalker, stage)) != null)
+         {
+            foundJob = true;
+            boolean finished = false, processed = false;
+            RuntimeException failure = null;
+            JobMetrics jobMetrics = JobMetrics.begin(job.getGedID());
+            try
+            {
+               processed = job.process();
+               finished = true;
+            } catch (DbUnavailableException e)
+            {
+               // not the GEDCOM's fault; its lease is retried once the wikidb is back
+               throw e;
+            } catch (RuntimeException e)
+            {
+               failure = e;
+            } finally
+            {
+               sourceMatcher.endJob(job.getGedID());
+               JobMetrics.end();
+               if (processed)
                {
-                  logger.warn(e.getMessage());
-                  hadException(e);
+                  metrics.jobDone(job, jobMetrics);
                }
-               /*
-               // We no longer do this because too many GEDCOMs
-               // did not have UIDs.
-               catch (Gedcom.UIDException e)
-               {
-                  updateGedcom(STATUS_REJECTED, gedID, "UID not present for all INDI and FAM objects");
-               }*/
+               jobDone(job, finished, processed);
+            }
+            if (failure != null)
+            {
+               jobFailed(job, failure);
+               continue;
+            }
+            if (!processed)
+            {
+               break;
             }
-            logger.info("Done with gedcom " + gedID);
-            getNextGedcomID();
+            numPlaces.addAndGet(job.getNumPlaces());
+            logRetryMetrics();
+            logger.info("Done with gedcom " + job.getGedID());
          }
-         logger.info("Total number of places queried = " + numPlaces);
       } catch (Gedcom.GedcomException e)
       {
          logger.error("Unhandled Gedcom exception");
@@ -821,142 +604,37 @@ public class Uploader {
          logger.error("Unhandled SAX Exception");
          logger.error(e);
       }
+      return foundJob;
    }
 
-   private void findMatches(Family fam, Gedcom gedcom)
-         throws GenerateException
+   // Doubles the wait from idle_min_wait up to idle_max_wait
+   private long getIdleWait(int numIdle)
    {
-      // First let's find potential matches for this
-      // family:
-      String response;
-      String url = "http://" + matchServer + "/search";
-      GetMethod m = new GetMethod(url);
-      uploadNVP[0].setName("fl");
-      uploadNVP[0].setValue("TitleStored,score");
-      uploadNVP[1].setName("rows");
-      uploadNVP[1].setValue("3");
-      uploadNVP[2].setName("wt");
-      uploadNVP[2].setValue("xml");
-      uploadNVP[3].setName("hl");
-      uploadNVP[3].setValue("false");
-      uploadNVP[4].setName("q");
-      String query = "";
-
-      // We need to see if either husband or wife
-      // has a medieval birth date.
-      boolean isMedieval = bornBefore1600(fam.getHusbands(), gedcom) ||
-            bornBefore1600(fam.getWives(), gedcom);
-
-      query += printPersonFields("Husband", fam.getHusbands(), gedcom, isMedieval);
-      query += printPersonFields("Wife", fam.getWives(), gedcom, isMedieval);
-      // Let's put the marriage information in there.
-      for (Event event : fam.getEvents())
-      {
-         if (event.getType() == Event.Type.marriage)
-         {
-            String date = event.getAttribute("DATE");
-            String place = event.getAttribute("PLAC");
-            if (!PlaceUtils.isEmpty(date))
-            {
-               query += printQueryPart("MarriageDate", date);
-            }
-            if (!PlaceUtils.isEmpty(place))
-            {
-               query += printQueryPart("MarriagePlace", place);
-            }
-         }
-      }
-
-      // First let's see what the max score was.
-      // If it was not above the threshold, then we stop, because
-      // none of the matches are close enough.
-
-      // Build the source document. This is outside the scope of the XPath API, and
-      // is therefore Saxon-specific.
+      long wait = idleMinWait << Math.min(numIdle, 30);
+      return (wait <= 0 || wait > idleMaxWait) ? idleMaxWait : wait;
+   }
 
-      try
+   // Waits until the time is up, the wake file appears or stop is called
+   private void waitForWork(long wait) throws InterruptedException
+   {
+      long end = System.currentTimeMillis() + wait;
+      synchronized (idleLock)
       {
-         if (!Utils.isEmpty(query))
-         {            
-            uploadNVP[4].setValue(query);
-            m.setQueryString(uploadNVP);
-
-            if (executeHttpMethod(m))
-            {
-               Document doc = db.parse(m.getResponseBodyAsStream());
-               NodeList matches = (NodeList)findMatches.evaluate(doc, XPathConstants.NODESET);
-               if (matches != null && matches.getLength() > 0)
-               {
-                  String matchesString = "";
-                  for (int i = 0; i < matches.getLength(); i++)
-                  {
-                     Node docNode = matches.item(i);
-                     float score = Float.parseFloat((String) scoreExpression.evaluate(docNode, XPathConstants.STRING));
-                     String matchTitle = (String) titleExpression.evaluate(docNode, XPathConstants.STRING);
-                     if ((isMedieval && score > medievalMatchScore) || (!isMedieval && score > minimumMatchScore))
-                     {
-                        if (matchesString.length() > 0)
-                        {
-                           matchesString += '|';
-                        }
-                        matchesString += matchTitle;
-                     }
-                  }
-                  fam.setMatches(matchesString);
-               }
-            } else
+         int wakeUps = numWakeUps;
+         long remaining;
+         while (!stopping && numWakeUps == wakeUps && (remaining = end - System.currentTimeMillis()) > 0)
+         {
+            if (wakeFile != null && wakeFile.exists())
             {
-               String msg = "No longer can talk to wiki server when searching for matches";
-                  throw new GenerateException(msg);
+               logger.info("Woken up by " + wakeFile);
+               wakeFile.delete();
+               numWakeUps++;
+               idleLock.notifyAll();
+               break;
             }
+            // look for the wake file every second
+            idleLock.wait(wakeFile == null ? remaining : Math.min(remaining, 1000));
          }
-      } catch (SAXParseException e)
-      {
-         // Let's print out what we got back from the server:
-         try
-         {
-            System.out.println("Query:\n");
-            System.out.println(query);
-            System.out.println("Response:\n");
-            System.out.println(m.getResponseBodyAsString());
-         } catch (IOException e2)
-         {
-
-         }
-         throw new RuntimeException(e);
-      }
-      catch (Exception e)
-      {
-         throw new RuntimeException(e);
-      } finally
-      {
-         m.releaseConnection();
-      }
-   }
-
-   private void hadException(Exception e) throws SQLException {
-      updateGedcom(STATUS_ERROR, gedID, e.getMessage());
-      if (!isUnitTesting())
-      {
-         userTalker.sendErrorMessage(userName, gedcomName, gedID);
-      }
-   }
-
-   private void doGedInvalid() throws SQLException {
-      updateGedcom(STATUS_NOT_GEDCOM, gedID, "File does not appear to be a GEDCOM");
-      if (!isUnitTesting())
-      {
-         userTalker.sendNotGedcom(userName, gedcomName);
-      }
-   }
-
-   // NameValuePair array used for reserving ids.
-   private static NameValuePair [] uploadNVP = new NameValuePair[5];
-   static
-   {
-      for (int i=0; i < uploadNVP.length; i++)
-      {
-         uploadNVP[i] = new NameValuePair();
       }
    }
 
@@ -971,42 +649,6 @@ public class Uploader {
       }
    }
 
-   /**
-    *
-    * @param url of the machine to request the reservations from
-    * @param request the request string to send to the reservation machine
-    * @return the response received by the reservation machine
-    * @throws GenerateException
-    * @throws IOException
-    */
-   public String sendIndexNumbersRequest (String url, String request)
-         throws GenerateException, IOException
-   {
-      String response;
-      PostMethod m = new PostMethod(url);
-      uploadNVP[0].setName("rs");
-      uploadNVP[0].setValue("wfReserveIndexNumbers");
-      uploadNVP[1].setName("action");
-      uploadNVP[1].setValue("ajax");
-      uploadNVP[2].setName("rsargs");
-      uploadNVP[2].setValue(request);
-      m.setRequestBody(uploadNVP);
-
-      if (executeHttpMethod(m))
-      {
-         response = m.getResponseBodyAsString();
-         m.releaseConnection();
-         return response;
-      } else
-      {
-         String msg = "No longer can talk to wiki server when requesting title index numbers";
-            throw new GenerateException(msg);
-      }
-   }
-   // Pattern used to parse the pIndexResponses
-   private static final Pattern pIndexResponse = Pattern.compile("<page[^>]+namespace=\"([^\"]+)\"[^>]+" +
-         "title=\"([^\"]+)\"[^>]+titleix=\"([^\"]+)\"[^>]*/>");
-
    private static final int MAX_NUM_RESERVATIONS = 5000;
    // Class defined mostly so that we can insure that
    // only a limited number of reservation requests are
@@ -1075,590 +717,105 @@ public class Uploader {
       }
    }
 
-   /**
-    * Returns reservations garnered from the reservation API
-    * @param requestsList reservation requests
-    * @return Map ReservationRequest -> reservations matching the reservation request.
-    *   We must have a Queue of reservations for each reservationRequests, because
-    *   multiple people and families might have the same names, and we want to
-    *   assign such reservations to them one by one.
-    * @throws SQLException
-    * @throws IOException
-    * @throws GenerateException thrown because of a problem interacting with the reservation API
-    */
-   private Map <ReservationRequest, Queue <String>> getReservations (RequestsList requestsList)
-         throws SQLException, IOException, GenerateException
-   {
-      try
-      {
-         Map <ReservationRequest, Queue <String>> rval = new HashMap<ReservationRequest, Queue <String>>();
-         if (requestsList.size() > 0) {
-            for (StringBuffer requests : requestsList.getBuffers())
-            {
-               String responseString = sendIndexNumbersRequest((wikiServer.startsWith("http") ? "" : "https://") + wikiServer + "/w/index.php",
-                     "<gedcom>\n" + requests.toString() + "</gedcom>");
-               Matcher m = pIndexResponse.matcher(responseString);
-               boolean foundResponse = false;
-               while (m.find())
-               {
-                  foundResponse = true;
-                  String namespace = m.group(1);
-                  String title = Utils.unencodeXML(m.group(2));
-                  String titleix = Utils.unencodeXML(m.group(3));
-                  ReservationRequest rr = new ReservationRequest(Integer.parseInt(namespace), title);
-                  // If the map already contains the reservation request,
-                  // we add the reservation to the queue for that reservation request
-                  if (rval.containsKey(rr))
-                  {
-                     Queue <String> queue = rval.get(rr);
-                     queue.add(titleix);
-                  }
-                  // If the map does not already contain the reservation request,
-                  // we put the reservation request into the map with a value
-                  // set as a new Queue with the current reservation as its
-                  // initial value.
-                  else
-                  {
-                     Queue <String> queue = new LinkedList <String>();
-                     queue.add(titleix);
-                     rval.put(rr, queue);
-                  }
-               }
-               if (!foundResponse)
-               {
-                  // If we didn't get a valid response, seomthing is wrong,
-                  // so we should stop reserving and uploading for now
-                  // by throwing a Generate exception, which will stop the
-                  // whole process.
-                  String msg = "Invalid response to my reservation request. Response = ";
-                  String exceptResponse;
-                  if (responseString.length() > 250)
-                  {
-                     exceptResponse = responseString.substring(0, 250);
-                  } else
-                  {
-                     exceptResponse = responseString;
-                  }
-                  throw new GenerateException(msg + ":\n" + exceptResponse);
-               }
-            }
-         }
-         return rval;
-      } catch (GenerateException e)
-      {
-         this.updateGedcom(Uploader.STATUS_ERROR, gedID, e.getMessage());
-         if (!isUnitTesting()) {
-            userTalker.sendErrorMessage(userName, gedcomName, gedID);
-         }
-         throw e;
-      }
-   }   
-
-   // Simulates the actions of the reservation server by assuming that
-   // the names for this GEDCOM have never been previously reserved.
-   // This is used for the unit testing mode.
-   // The output of this method is the "reservedNames" parameter.
-   // "values" must be a collection of EventContainer
-   // "namespace" of course is the namespace of the EventContainers in "values
-   private void stubReserveNames(Gedcom gedcom, Map<Integer, Set<String>> reservedNames, int namespace, Object values)
-         throws Gedcom.PostProcessException
-   {
-      Collection <EventContainer> ecc = (Collection <EventContainer>) values;
-      for (EventContainer ec : ecc)
-      {
-         Set<String> setReservedNames;
-         if (reservedNames.containsKey(namespace))
-         {
-            setReservedNames = reservedNames.get(namespace);
-         } else
-         {
-            setReservedNames = new TreeSet<String>();
-            reservedNames.put(namespace, setReservedNames);
-         }
-         int i = 1;
-         String candidateName;
-         do
-         {
-            candidateName = ec.getWikiTitle(gedcom) + " (" + i + ')';
-            i++;
-         } while(setReservedNames.contains(candidateName));
-         setReservedNames.add(candidateName);
-
-         //ec.setReservedTitle(candidateName);
-      }
-   }
-   // Method responsible for reserving IDs for all sources, people, and families
-   // in the parameter gedcom object
-
-   private void reserveIDs (GedcomXML gedXml) throws XPathExpressionException,
-         SQLException, IOException, GenerateException, GedcomXML.GedcomXMLException
-   {
-      logger.info("Reserving IDs for people, families and sources in Gedcom");
-      RequestsList requestsList = new RequestsList();
-      // Add to the requestsList all the wikiTitles of all of the families and people in the
-      // gedcom
-      gedXml.addRequests(requestsList, userName);
-
-      if (requestsList.size() == 0)
-      {
-         logger.warn("There are no reservations to be made. There may be a problem with the GEDCOM.");
-      }
-      // From the reservation server ...
-      Map <ReservationRequest, Queue<String>> reservations = getReservations(requestsList);
-      // Now have the people and families eat the reservations garnered from the
-      // reservation server
-      gedXml.setReservedTitles(reservations);
-      logger.info("Done reserving titles for people and families in Gedcom");
-      logger.info("Updating all gedcom ID references with the reserved titles");
-      gedXml.updateContent(placeServer);
-      logger.info("Done updating with reserved titles");
-   }
-
-   private String getApiUrl()
+   String getApiUrl()
    {
       return (wikiServer.startsWith("http") ? "" : "https://") + wikiServer + "/w/index.php";
    }
 
-   // Is also called for regenerate in order to set id2ExistingPageTitles
-   private void readGedcomData(GedcomXML gedXml, boolean regenerate) throws SQLException, IOException,
-         GedcomXML.GedcomXMLException, IOException,
-         XPathExpressionException, SAXException
-   {
-      PostMethod m = null;
-      try
-      {
-         String url = getApiUrl();
-         m = new PostMethod(url);
-         uploadNVP[0].setName("rs");
-         uploadNVP[0].setValue("wfReadGedcomData");
-         uploadNVP[1].setName("action");
-         uploadNVP[1].setValue("ajax");
-         uploadNVP[2].setName("rsargs");
-         uploadNVP[2].setValue("gedcom_id=" + Integer.toString(gedID));
-         m.setRequestBody(uploadNVP);
-         if (!executeHttpMethod(m))
-         {
-            logger.warn("There was an error when executing the method to read GEDCOM data");
-            String msg = "No longer can talk to the wiki server while reading GEDCOM data";
-            updateGedcom(STATUS_GENERATE_FAILED, gedID, msg);
-            userTalker.sendErrorMessage(userName, gedcomName, gedID);
-            throw new RuntimeException(msg);
-         }
-         String response = m.getResponseBodyAsString();
-         m.releaseConnection();
-
-         m = null;
-         Matcher mStatus = pResponseStatus.matcher(response);
-         if (mStatus.find())
-         {
-            //logger.warn("Found status: " + mStatus.group(2));
-            // If the command line argument statusToProcess is set to
-            // STATUS_GENERATE_FAILED, then that means that we should
-            // ignore status(-5) errors received from the generate API
-            String status = mStatus.group(2);
-            if (!status.equals("0"))
-            {
-               String msg = "Response status for wfReadGedcomData is not 0, it is " + status;
-               updateGedcom(Uploader.STATUS_GENERATE_FAILED, gedID, msg);
-               userTalker.sendErrorMessage(userName, gedcomName, gedID);
-               throw new RuntimeException(msg + '\n' + response);
-            }
-         } else
-         {
-            String msg = "Could not get a response status when generating page";
-            updateGedcom(STATUS_GENERATE_FAILED, gedID, msg);
-            userTalker.sendErrorMessage(userName, gedcomName, gedID);
-            throw new RuntimeException(msg + ":\n" + response);
-         }
-
-         // Let's parse the response.
-         gedXml.SetData(response, regenerate);
-      } catch (IOException e)
-      {
-         updateGedcom(STATUS_GENERATE_FAILED, gedID, e.getMessage());
-         userTalker.sendErrorMessage(userName, gedcomName, gedID);
-         throw new RuntimeException(e);
-      } finally
-      {
-         if (m != null)
-         {
-            m.getResponseBodyAsString();
-            m.releaseConnection();
-         }
-      }
+   static final Pattern pResponseStatus = Pattern.compile("<(add|generate|reserve|readGedcomData|updateTreePrimary|trustedUploader)[^>]+status=\"([^\">]+)\"");
+   // This method helps us to retry if there is a
+   // problem so that we can stay connected to the wikiServer.
+   // Executes the method using the login session of the userTalker passed in
+   boolean executeHttpMethod(UserTalker userTalker, HttpMethod m) {
+      return executeHttpMethod(wikiRetrier, userTalker, m, pResponseStatus);
    }
 
-   public void matchSource(Source source) {
-      String apiURL = getApiUrl();
-      PostMethod m = null;
-      try {
-         String author = Util.cleanGedcomSource(source.getAuthor());
-         String title = Util.cleanGedcomSource(source.getTitle());
-         String abbrev = Util.cleanGedcomSource(source.getAbbreviation());
-         m = new PostMethod(apiURL);
-         uploadNVP[0].setName("rs");
-         uploadNVP[0].setValue("wfMatchSource");
-         uploadNVP[1].setName("action");
-         uploadNVP[1].setValue("ajax");
-         uploadNVP[2].setName("rsargs");
-         uploadNVP[2].setValue("userID="+userID+"|gedcomID="+gedID+"|gedcomKey="+source.getID()+
-                 "|author="+author+"|title="+title+"|abbrev="+abbrev);
-         m.setRequestBody(uploadNVP);
-
-         if (!executeHttpMethod(m))
-         {
-            logger.warn("There was an error when executing method.");
-            return;
-         }
-         m.getResponseBodyAsString();
-         m.releaseConnection();
-         m = null;
-      } catch (IOException e) {
-         // ignore
-      } finally
-      {
-         if (m != null)
-         {
-            try {
-               m.getResponseBodyAsString();
-            } catch (IOException e) {
-               // ignore
-            }
-            m.releaseConnection();
-         }
-      }
+   // Same, for wiki functions whose response status is found by pStatus,
+   // whose second group is the status
+   boolean executeHttpMethod(UserTalker userTalker, HttpMethod m, Pattern pStatus) {
+      return executeHttpMethod(wikiRetrier, userTalker, m, pStatus);
    }
 
-   public void addGedcomSourceMatches (Collection<Node> pages)
-   {
-      String apiURL = getApiUrl();
-      PostMethod m = null;
-      try
-      {
-         logger.info("Adding Gedcom source matches for " + gedID);
-         for (Node page : pages)
-         {
-            if (page.getAttributes().getNamedItem("namespace") != null &&
-                page.getAttributes().getNamedItem("namespace").getNodeValue().equals("104") &&
-                page.getAttributes().getNamedItem("title") != null &&
-                page.getAttributes().getNamedItem("title").getNodeValue().length() > 0)
-            {
-               NodeList nodes = page.getChildNodes();
-               for (int i = 0; i < nodes.getLength(); i++) {
-                  Node node = nodes.item(i);
-                  if (node.getNodeType() == Node.ELEMENT_NODE && "content".equals(node.getNodeName())) {
-                     String content = node.getTextContent();
-                     Matcher mXmlContent = GedcomXML.pPageContentXml.matcher(content);
-                     if (mXmlContent.find())
-                     {
-                        String xmlContentString = mXmlContent.group(0);
-                        try {
-                           String author = "";
-                           String title = "";
-                           String abbrev = "";
-                           Document contentDocument = db.parse(new InputSource(new StringReader(xmlContentString)));
-                           NodeList mysources = contentDocument.getChildNodes();
-                           for (int j = 0; j < mysources.getLength(); j++) {
-                              Node mysource = mysources.item(j);
-                              if (mysource.getNodeType() == Node.ELEMENT_NODE && "mysource".equals(mysource.getNodeName())) {
-                                 NodeList fields = mysource.getChildNodes();
-                                 for (int k = 0; k < fields.getLength(); k++) {
-                                    Node field = fields.item(k);
-                                    if (field.getNodeType() == Node.ELEMENT_NODE)
-                                    {
-                                       String nodeName = field.getNodeName();
-                                       String nodeText = Util.cleanGedcomSource(field.getTextContent());
-                                       if ("title".equals(nodeName)) {
-                                          title = nodeText;
-                                       }
-                                       else if ("author".equals(nodeName)) {
-                                          author = nodeText;
-                                       }
-                                       else if ("abbrev".equals(nodeName)) {
-                                          abbrev = nodeText;
-                                       }
-                                    }
-                                 }
-                              }
-                           }
-                           if (title.length() > 0 || abbrev.length() > 0) {
-                              String pageTitle = page.getAttributes().getNamedItem("title").getNodeValue().replace(' ', '_');
-                              m = new PostMethod(apiURL);
-                              uploadNVP[0].setName("rs");
-                              uploadNVP[0].setValue("wfAddGedcomSourceMatches");
-                              uploadNVP[1].setName("action");
-                              uploadNVP[1].setValue("ajax");
-                              uploadNVP[2].setName("rsargs");
-                              uploadNVP[2].setValue("userID="+userID+"|author="+author+"|title="+title+"|abbrev="+abbrev+"|pageTitle="+pageTitle);
-                              m.setRequestBody(uploadNVP);
-
-                              if (!executeHttpMethod(m))
-                              {
-                                 logger.warn("There was an error when executing method.");
-                                 return;
-                              }
-                              m.getResponseBodyAsString();
-                              m.releaseConnection();
-                              m = null;
-                           }
-                        } catch (SAXException e) {
-                           // ignore
-                        }
-                     }
-                  }
-               }
-            }
-         }
-      } catch (IOException e) {
-         // ignore
-      } finally
-      {
-         if (m != null)
-         {
-            try {
-               m.getResponseBodyAsString();
-            } catch (IOException e) {
-               // ignore
-            }
-            m.releaseConnection();
-         }
-      }
+   // Executes a request to the match server using the login session of the userTalker passed in
+   boolean executeMatchMethod(UserTalker userTalker, HttpMethod m) {
+      return executeHttpMethod(matchRetrier, userTalker, m, pResponseStatus);
    }
 
-   private static final Pattern pResponseStatus = Pattern.compile("<(add|generate|reserve|readGedcomData|updateTreePrimary|trustedUploader)[^>]+status=\"([^\">]+)\"");
-   // This next method is responsible for sending the
-   // contents of the gedcom's xml file to the wikiserver
-   // generate API, page by page.
-   private void uploadXML (Collection<Node> pages) throws SQLException, IOException, TransformerException
-   {
-      BufferedReader in = null;
-      PostMethod m = null;
+   // Executes the method, retrying according to the retrier for the method's endpoint.
+   // A -2 response status means our session expired, so we log in again and resend
+   // right away; if that still fails, the attempt is retried after a backoff.
+   private boolean executeHttpMethod(final Retrier retrier, final UserTalker userTalker, final HttpMethod m,
+                                     final Pattern pStatus) {
       try
       {
-
-         logger.info("Generating pages for " + gedID);
-         String pageString = "";
-         String url = getApiUrl();
-         int i=0;
-         for (Node page : pages)
-         {
-            if (page.getAttributes().getNamedItem("exclude") == null ||
-                  !page.getAttributes().getNamedItem("exclude").getNodeValue().equals("true"))
-            {
-               m = new PostMethod(url);
-               uploadNVP[0].setName("rs");
-               uploadNVP[0].setValue("wfGenerateFamilyTreePage");
-               uploadNVP[1].setName("action");
-               uploadNVP[1].setValue("ajax");
-               uploadNVP[2].setName("rsargs");
-               String xmlText = GedcomXML.serializeNode(page);
-               uploadNVP[2].setValue(xmlText);
-               m.setRequestBody(uploadNVP);
-
-               if (!executeHttpMethod(m))
+         return retrier.execute(new Retrier.Attempt<Boolean>() {
+            public Boolean call() throws Exception {
+               if (!userTalker.isLoggedIn() && !userTalker.setLogin())
                {
-                  logger.warn("There was an error when executing method.");
-                  String msg = "No longer can talk to wiki server.";
-                  updateGedcom(STATUS_GENERATE_FAILED, gedID, msg);
-                  userTalker.sendErrorMessage(userName, gedcomName, gedID);
-                  throw new RuntimeException(msg);
+                  throw new IOException("Unable to log in to " + retrier.getName());
                }
-               //logger.warn("Done executing method.");
-               String response = m.getResponseBodyAsString();
-               m.releaseConnection();
-               // Just to make sure that we don't
-               // try to release it again in the
-               // finally clause, we set m = null
-               m = null;
-               Matcher mStatus = pResponseStatus.matcher(response);
-               if (mStatus.find())
+               GedcomEvents.executeMethod(userTalker.getClient(), m, retrier.getName());
+               checkHttpStatus(m);
+               Matcher mStatus = pStatus.matcher(m.getResponseBodyAsString());
+               if (mStatus.find() && mStatus.group(2).equals("-2"))
                {
-                  //logger.warn("Found status: " + mStatus.group(2));
-                  // If the command line argument statusToProcess is set to
-                  // STATUS_GENERATE_FAILED, then that means that we should
-                  // ignore status(-5) errors received from the generate API
-                  String status = mStatus.group(2);
-                  if (!status.equals("0") && !(status.equals("-5") &&
-                        (gedStatus == Uploader.STATUS_REGENERATE)))
+                  if (!userTalker.setLogin())
                   {
-                     String msg = "Response status for wfGenerateFamilyTreePage is not 0, it is " + status;
-                     updateGedcom(STATUS_GENERATE_FAILED, gedID, msg);
-                     userTalker.sendErrorMessage(userName, gedcomName, gedID);
-                     logger.warn("Received status "+status+" for page with title: \"" +
-                           page.getAttributes().getNamedItem("title").getTextContent() + "\"");
-                     throw new RuntimeException(msg + '\n' + page);
-                  } else if (status.equals("-5"))
+                     throw new IOException("Unable to log in again to " + retrier.getName());
+                  }
+                  GedcomEvents.executeMethod(userTalker.getClient(), m, retrier.getName());
+                  checkHttpStatus(m);
+                  mStatus = pStatus.matcher(m.getResponseBodyAsString());
+                  if (mStatus.find() && mStatus.group(2).equals("-2"))
                   {
-                     logger.warn("Received status -5 for page with title: \"" +
-                           page.getAttributes().getNamedItem("title").getTextContent() + "\"");
+                     userTalker.setLoggedIn(false);
+                     throw new IOException("Still not logged in after logging in again");
                   }
-               } else
-               {
-                  String msg = "Could not get a response status when generating page";
-                  updateGedcom(STATUS_GENERATE_FAILED, gedID, msg);
-                  userTalker.sendErrorMessage(userName, gedcomName, gedID);
-                  throw new RuntimeException(msg + ":\n" + page);
                }
-               i++;
-               if (i % 25 == 0)
-               {
-                  logger.info("Generated 25 pages time="+(new SimpleDateFormat("HH:mm:ss")).format(new Date()));
-                  System.out.print('.');
-               }
-               Utils.sleep(100); // pause just a little
+               return Boolean.TRUE;
             }
-         }
-         System.out.print('\n');
-         updateGedcom(STATUS_READY, gedID, "");
-         userTalker.sendSuccessfulMessage(userName, gedcomName, treeName);
-      } catch (FileNotFoundException e)
-      {
-         updateGedcom(STATUS_GENERATE_FAILED, gedID, e.getMessage());
-         userTalker.sendErrorMessage(userName, gedcomName, gedID);
-         throw new RuntimeException(e);
-      } catch (IOException e)
+
+            public void beforeRetry(Exception e) {
+               userTalker.setLoggedIn(false);
+               m.releaseConnection();
+               userTalker.resetClient();
+            }
+         });
+      } catch (InterruptedException e)
       {
-         updateGedcom(STATUS_GENERATE_FAILED, gedID, e.getMessage());
-         userTalker.sendErrorMessage(userName, gedcomName, gedID);
-         throw new RuntimeException(e);
-      } finally
+         Thread.currentThread().interrupt();
+         logger.warn("Interrupted while executing HttpMethod");
+      } catch (Exception e)
       {
-         if (in != null)
-         {
-            in.close();
-         }
-         if (m != null)
-         {
-            m.getResponseBodyAsString();
-            m.releaseConnection();
-         }
+         logger.warn("Unable to execute HttpMethod against " + retrier.getName() + ": " + e.getMessage());
       }
+      m.releaseConnection();
+      return false;
    }
 
-   // This next method is responsible for sending the
-   // contents of the gedcom's xml file to the wikiserver
-   // generate API, page by page.
-   private void addPagesToFamilyTree (String pagesXML) throws SQLException, IOException, TransformerException
+   // Server errors, timeouts and throttling are worth retrying; other errors are not
+   private static void checkHttpStatus(HttpMethod m) throws IOException, Retrier.FatalException
    {
-      BufferedReader in = null;
-      PostMethod m = null;
-      try
+      int status = m.getStatusCode();
+      if (status >= 400)
       {
-
-         logger.info("Adding pages to family tree for " + gedID);
-         String url = getApiUrl();
-         m = new PostMethod(url);
-         uploadNVP[0].setName("rs");
-         uploadNVP[0].setValue("wfAddPagesToTree");
-         uploadNVP[1].setName("action");
-         uploadNVP[1].setValue("ajax");
-         uploadNVP[2].setName("rsargs");
-         uploadNVP[2].setValue(pagesXML);
-         m.setRequestBody(uploadNVP);
-
-         //logger.warn("Executing Method.");
-         if (!executeHttpMethod(m))
+         if (Retrier.isRetryableHttpStatus(status))
          {
-            logger.warn("There was an error when executing method.");
-            String msg = "No longer can talk to wiki server.";
-            updateGedcom(STATUS_GENERATE_FAILED, gedID, msg);
-            userTalker.sendErrorMessage(userName, gedcomName, gedID);
-            throw new RuntimeException(msg);
-         }
-         //logger.warn("Done executing method.");
-         String response = m.getResponseBodyAsString();
-         m.releaseConnection();
-         // Just to make sure that we don't
-         // try to release it again in the
-         // finally clause, we set m = null
-         m = null;
-         Matcher mStatus = pResponseStatus.matcher(response);
-         if (mStatus.find())
-         {
-            //logger.warn("Found status: " + mStatus.group(2));
-            // If the command line argument statusToProcess is set to
-            // STATUS_GENERATE_FAILED, then that means that we should
-            // ignore status(-5) errors received from the generate API
-            String status = mStatus.group(2);
-            if (!status.equals("0"))
-            {
-               String msg = "Response status for wfAddPagesToTree is not 0, it is " + status;
-               updateGedcom(STATUS_GENERATE_FAILED, gedID, msg);
-               userTalker.sendErrorMessage(userName, gedcomName, gedID);
-               throw new RuntimeException(msg + '\n' + pagesXML);
-            }
-         } else
-         {
-            String msg = "Could not get a response status when adding pages to tree";
-            updateGedcom(STATUS_GENERATE_FAILED, gedID, msg);
-            userTalker.sendErrorMessage(userName, gedcomName, gedID);
-            throw new RuntimeException(msg + ":\n" + pagesXML);
-         }
-      } catch (IOException e)
-      {
-         updateGedcom(STATUS_GENERATE_FAILED, gedID, e.getMessage());
-         userTalker.sendErrorMessage(userName, gedcomName, gedID);
-         throw new RuntimeException(e);
-      } finally
-      {
-         if (in != null)
-         {
-            in.close();
-         }
-         if (m != null)
-         {
-            m.getResponseBodyAsString();
-            m.releaseConnection();
+            throw new IOException("HTTP status " + status + " from " + m.getPath());
          }
+         throw new Retrier.FatalException("HTTP status " + status + " from " + m.getPath());
       }
    }
 
-   // This method helps us to retry if there is a
-   // problem so that we can stay connected to the wikiServer
-   private boolean executeHttpMethod(HttpMethod m) {
-      boolean executed = false;
-      for (int i=0; i < 5; i++)
-      {
-         try
-         {
-            if (!userTalker.isLoggedIn())
-            {
-               userTalker.setLogin();
-            }
-            if (userTalker.isLoggedIn())
-            {
-               //System.out.println("Before");
-               userTalker.getClient().executeMethod(m);
-               //System.out.println("After");
-               Matcher mStatus = pResponseStatus.matcher(m.getResponseBodyAsString());
-               if (mStatus.find() && mStatus.group(2).equals("-2"))
-               {
-                  if (userTalker.setLogin())
-                  {
-                     userTalker.getClient().executeMethod(m);
-                  }
-               }
-               if (userTalker.isLoggedIn())
-               {
-                  executed = true;
-                  break;
-               }
-            }
-         } catch(HttpException e) {
-            logger.warn("HttpException exception while attempting to execute HttpMethod in Uploader.");
-            logger.warn(e.getMessage());
-            userTalker.setLoggedIn(false);
-         } catch (IOException e){
-            logger.warn("IO exception while attempting to execute HttpMethod ");
-            logger.warn(e.getMessage());
-            userTalker.setLoggedIn(false);
-         }
-         m.releaseConnection();
-         userTalker.resetClient();
-         Utils.sleep(60000);
-      }
-      return executed;
+   // Logs how often each endpoint had to be retried
+   private void logRetryMetrics()
+   {
+      logger.info("Retries " + wikiRetrier);
+      logger.info("Retries " + matchRetrier);
+      logger.info("Retries " + dbRetrier);
+      logger.info("Retries " + placeStandardizer.getRetrier());
    }
+
    /**
     * Was used for underscoring a title so that
     * we could reserve title ids using the older
@@ -1724,8 +881,9 @@ public class Uploader {
    // Prepared statements used for accessing and updating the
    // familytree_gedcom table in the wikidb
    protected PreparedStatement sUpdateFamilyTreeGedcom = null,
-                     sSelectGedcomUploaded = null,
                      sSelectFamilyTreeGedcom = null,
+                     sSelectGedcomToParse = null,
+                     sSelectGedcomToGenerate = null,
                      sSelectGedcomIDOfUser = null;
 
    private void initializePreparedStatements() throws SQLException {
@@ -1733,26 +891,37 @@ public class Uploader {
       sUpdateFamilyTreeGedcom = conn.prepareStatement("UPDATE familytree_gedcom " +
                                                       "SET fg_status = ?, fg_status_date = ?, " +
                                                       "fg_status_reason = ? WHERE fg_id = ?");
-      sSelectGedcomUploaded = conn.prepareStatement("SELECT fg_id, fg_status, ft_user, user_id, ft_tree_id, fg_gedcom_filename, ft_name, fg_default_country" +
+      // The scheduler picks from the oldest NUM_CANDIDATES GEDCOMs;
+      // the rest wait until these have been taken
+      sSelectFamilyTreeGedcom = conn.prepareStatement("SELECT fg_id, fg_status, ft_user, user_id, ft_tree_id, fg_gedcom_filename, ft_name, fg_default_country, fg_status_date" +
                                                       " FROM familytree_gedcom " +
                                                       "INNER JOIN familytree ON fg_tree_id = ft_tree_id " +
                                                       "INNER JOIN user ON ft_user = user_name " +
                                                       "WHERE fg_status = " +
-                                                      STATUS_UPLOADED +
+                                                      STATUS_UPLOADED + " OR fg_status = " +
+                                                      STATUS_CREATE_PAGES + " OR fg_status = " +
+                                                      STATUS_REGENERATE + " OR fg_status = " +
+                                                      STATUS_IGNORE_OVERLAP +
                                                       " ORDER BY fg_status_date " +
-                                                      "LIMIT 1");
-
-      sSelectFamilyTreeGedcom = conn.prepareStatement("SELECT fg_id, fg_status, ft_user, user_id, ft_tree_id, fg_gedcom_filename, ft_name, fg_default_country" +
+                                                      "LIMIT " + NUM_CANDIDATES);
+      sSelectGedcomToParse = conn.prepareStatement("SELECT fg_id, fg_status, ft_user, user_id, ft_tree_id, fg_gedcom_filename, ft_name, fg_default_country, fg_status_date" +
                                                       " FROM familytree_gedcom " +
                                                       "INNER JOIN familytree ON fg_tree_id = ft_tree_id " +
                                                       "INNER JOIN user ON ft_user = user_name " +
                                                       "WHERE fg_status = " +
                                                       STATUS_UPLOADED + " OR fg_status = " +
-                                                      STATUS_CREATE_PAGES + " OR fg_status = " +
-                                                      STATUS_REGENERATE + " OR fg_status = " +
                                                       STATUS_IGNORE_OVERLAP +
                                                       " ORDER BY fg_status_date " +
-                                                      "LIMIT 1");
+                                                      "LIMIT " + NUM_CANDIDATES);
+      sSelectGedcomToGenerate = conn.prepareStatement("SELECT fg_id, fg_status, ft_user, user_id, ft_tree_id, fg_gedcom_filename, ft_name, fg_default_country, fg_status_date" +
+                                                      " FROM familytree_gedcom " +
+                                                      "INNER JOIN familytree ON fg_tree_id = ft_tree_id " +
+                                                      "INNER JOIN user ON ft_user = user_name " +
+                                                      "WHERE fg_status = " +
+                                                      STATUS_CREATE_PAGES + " OR fg_status = " +
+                                                      STATUS_REGENERATE +
+                                                      " ORDER BY fg_status_date " +
+                                                      "LIMIT " + NUM_CANDIDATES);
       sSelectGedcomIDOfUser = conn.prepareStatement(
                "SELECT fg_id, fg_status, fg_gedcom_filename from familytree_gedcom  " +
                "INNER JOIN familytree ON fg_tree_id = ft_tree_id " +
@@ -1766,32 +935,112 @@ public class Uploader {
     * us keep the connection active.
     * @param query to execute on the wikidb
     */
-   public void executeQuery(String query)
+   public void executeQuery(final String query)
    {
-      // We'll assume that we're already connected
-      boolean connected = true;
-      for (int i=0; i < 5; i++)
-      {
-         try
+      executeDb(new DbAttempt<Object>() {
+         protected Object query() throws SQLException {
+            Statement s = getConn().createStatement();
+            s.execute(query);
+            s.close();
+            return null;
+         }
+      });
+   }
+
+   /**
+    * One attempt at a database operation. If the previous attempt failed,
+    * the connection has been closed and is reopened first. SQL errors
+    * that reconnecting can't fix are not retried.
+    * The attempt holds dbLock, which the retrier's wait before the next attempt doesn't.
+    */
+   private abstract class DbAttempt<T> extends Retrier.Attempt<T> {
+      // the connection the last attempt used
+      private Connection attemptConn;
+
+      public T call() throws Exception {
+         synchronized (dbLock)
+         {
+            if (conn == null)
+            {
+               dbConnect();
+               logger.info("Reconnected to database");
+            }
+            attemptConn = conn;
+            GedcomEvents.DbCall event = null;
+            if (GedcomEvents.isEnabled())
+            {
+               event = new GedcomEvents.DbCall();
+               event.begin();
+            }
+            try
+            {
+               T result = query();
+               if (event != null)
+               {
+                  event.succeeded = true;
+               }
+               return result;
+            } catch (SQLException e)
+            {
+               if (Retrier.isFatal(e))
+               {
+                  throw new Retrier.FatalException(e);
+               }
+               throw e;
+            } finally
+            {
+               if (event != null)
+               {
+                  event.commit();
+               }
+            }
+         }
+      }
+
+      protected abstract T query() throws SQLException, IOException;
+
+      public void beforeRetry(Exception e) {
+         logger.warn("SQL exception: " + e.getMessage());
+         synchronized (dbLock)
          {
-            if (!connected)
+            // unless another thread has already reconnected
+            if (conn == attemptConn)
             {
-               dbConnect();
-               logger.info("Reconnected to database inside of executeQuery()");
+               close();
             }
-            Statement s = getConn().createStatement();
-            s.execute(query);
-            s.close();
-            return;
-         } catch (SQLException e)
-         {
-            close();
-            connected = false;
-            // We should reset the connection
-            Utils.sleep(60000);
          }
       }
-      throw new RuntimeException("I can no longer talk to the wikidb");
+   }
+
+   // Runs the database operation with the db retrier. Only the attempts hold dbLock,
+   // so other threads may use the database while this one waits to retry.
+   private <T> T executeDb(DbAttempt<T> attempt)
+   {
+      try
+      {
+         return dbRetrier.execute(attempt);
+      } catch (Retrier.FatalException e)
+      {
+         throw new RuntimeException("SQL error: " + e.getMessage(), e.getCause());
+      } catch (InterruptedException e)
+      {
+         Thread.currentThread().interrupt();
+         throw new RuntimeException("Interrupted while talking to the wikidb", e);
+      } catch (RuntimeException e)
+      {
+         throw e;
+      } catch (Exception e)
+      {
+         throw new DbUnavailableException(e);
+      }
+   }
+
+   // Thrown by executeDb when the wikidb still can't be reached after all of the retries
+   private static class DbUnavailableException extends RuntimeException {
+      public DbUnavailableException(Exception cause)
+      {
+         super("I can no longer talk to the wikidb", cause);
+      }
    }
 
    /**
@@ -1801,18 +1050,6 @@ public class Uploader {
    public static final Pattern pSearchResult = Pattern.compile(
          "<search q=\"([^\"]+?)\"><result><title>([^<]+?)</title>"
    );
-   // Used for talking to the Place search engine
-   private static NameValuePair [] nvp = new NameValuePair[3];
-
-   static {
-      nvp[0] = new NameValuePair();
-      nvp[1] = new NameValuePair();
-      nvp[2] = new NameValuePair();
-   }
-
-   private static Pattern pBeginSearchResults = Pattern.compile("^<response>", Pattern.MULTILINE);
-   private static Pattern pEndSearchResults = Pattern.compile("</response>$", Pattern.MULTILINE);
-
    /**
     * Produces a map from the names passed in to WeRelate Place page names
     * as returned by the PlaceSearch server. If the server was not able to
@@ -1829,38 +1066,36 @@ public class Uploader {
    {
       if (names.size() > 0)
       {
-         String s = standardizePlaceNames(placeServer, names, defaultCountry);
+         List<PlaceStandardizer.Result> results = placeStandardizer.standardize(placeServer, names, defaultCountry);
          logger.info("Parsing place results");
-         // Now let's create an input source for our XPaths (used in the user
-         // interface to show mapping of gedcom place names to Place pages).
-         try
-         {
-            Document doc = db.parse(new InputSource(new StringReader(s)));
-            NodeList lstNodes = (NodeList) lstExpression.evaluate(doc, XPathConstants.NODESET);
-            for (int i=0; i < lstNodes.getLength(); i++)
-            {
-               Node node = lstNodes.item(i);
-               String q = (String) queryExpression.evaluate(node, XPathConstants.STRING);
-               String placeTitle = (String)placeTitleExpression.evaluate(node, XPathConstants.STRING);
-               String splitTitle[] = placeTitle.split("\\^", 2);    // remove the stand-in pipe (^) and display name
-               placeTitle = splitTitle[0];
-               String error = (String) errorExpression.evaluate(node, XPathConstants.STRING);
-               ElementWriter ew = new GedcomElementWriter("place");
-               ew.put("key", String.format("WRP%03d", i));
-               ew.put("text", q);
-               ew.put("title", placeTitle);
-               Node errorNode = node.getAttributes().getNamedItem("error");
-               if (!Utils.isEmpty(error))
-               {
-                  ew.put("error", error);
-               }
-               ew.write(placeXMLBuffer);
-            }
-         } catch (Exception e)
+         writePlaceElements(results, placeXMLBuffer);
+         logger.info("Done parsing results");
+      }
+   }
+
+   /**
+    * Creates the place elements (used in the user interface to show
+    * mapping of gedcom place names to Place pages).
+    * The keys are numbered across all of the results.
+    * @param results standardized place names
+    * @param placeXMLBuffer buffer to populate
+    */
+   public static void writePlaceElements(List<PlaceStandardizer.Result> results, StringBuffer placeXMLBuffer)
+   {
+      for (int i=0; i < results.size(); i++)
+      {
+         PlaceStandardizer.Result result = results.get(i);
+         String splitTitle[] = result.getPlaceTitle().split("\\^", 2);    // remove the stand-in pipe (^) and display name
+         String placeTitle = splitTitle[0];
+         ElementWriter ew = new GedcomElementWriter("place");
+         ew.put("key", String.format("WRP%03d", i));
+         ew.put("text", result.getQ());
+         ew.put("title", placeTitle);
+         if (!Utils.isEmpty(result.getError()))
          {
-            throw new RuntimeException(e);
+            ew.put("error", result.getError());
          }
-         logger.info("Done parsing results");
+         ew.write(placeXMLBuffer);
       }
    }
 
@@ -1878,97 +1113,17 @@ public class Uploader {
 logger.info("getPlaceDisplayNames: placeServer=" + placeServer + " # place names=" + names.size());      
       if (names.size() > 0)
       {
-         String s = standardizePlaceNames(placeServer, names, "");
+         List<PlaceStandardizer.Result> results = placeStandardizer.standardize(placeServer, names, "");
          logger.info("Create place display name map");
          // The placeMap maps each gedcom place name to place name with standardized display name.
-         try
-         {
-            Document doc = db.parse(new InputSource(new StringReader(s)));
-            NodeList lstNodes = (NodeList) lstExpression.evaluate(doc, XPathConstants.NODESET);
-            for (int i=0; i < lstNodes.getLength(); i++)
-            {
-               Node node = lstNodes.item(i);
-               String q = (String) queryExpression.evaluate(node, XPathConstants.STRING);
-               String placeString = (String)placeTitleExpression.evaluate(node, XPathConstants.STRING);
-//logger.warn("getPlaceDisplayNames: q=" + q + "placeString=" + placeString);
-               placeMap.put(q.replace('^', '|'), placeString.replace('^', '|'));    // replace stand-in pipe (^)
-            }
-         } catch (Exception e)
+         for (PlaceStandardizer.Result result : results)
          {
-            throw new RuntimeException(e);
+            placeMap.put(result.getQ().replace('^', '|'), result.getPlaceTitle().replace('^', '|'));    // replace stand-in pipe (^)
          }
          logger.info("Done creating place display name map");
       }
    }
 
-   /**
-    * Executes a query to standardize place names and display names.
-    * @param placeServer the name of the server where the query is run
-    * @param names place names to standardize
-    * @param defaultCountry country to use when a place name doesn't include a country
-    * @throws IOException
-    */   
-   private String standardizePlaceNames(String placeServer, Set<String> names, String defaultCountry) 
-         throws IOException 
-   {
-         boolean started = false;
-         logger.info("Creating place standardization query");
-         StringBuffer query = new StringBuffer();
-         for (String name : names)
-         {
-            if (started)
-            {
-               query.append('|');
-            } else
-            {
-               started = true;
-            }
-            query.append(name);
-         }
-         logger.info("Done creating place standardization query");
-         String url = "http://" + placeServer + "/placestandardize";
-         PostMethod m = new PostMethod(url);
-
-         logger.info("Setting request body");
-         nvp[0].setName("q");
-         nvp[0].setValue(query.toString());
-         //nvp[0].setValue("Fort Collins, Colorado");
-         nvp[1].setName("defaultCountry");
-         nvp[1].setValue(defaultCountry);
-         nvp[2].setName("wt");
-         nvp[2].setValue("xml");
-         m.setRequestBody(nvp);
-         HttpMethodParams params = new HttpMethodParams();
-         params.setContentCharset("UTF-8");
-         params.setHttpElementCharset("UTF-8");
-         params.setParameter("http.protocol.content-charset", "UTF-8");
-         m.setParams(params);
-         m.setRequestHeader("Content-Type", "application/x-www-form-urlencoded; charset=UTF-8");
-         logger.info("Done setting request body");
-         logger.info("Executing method");
-         if(!executeHttpMethod(m))
-         {
-            String msg = "Can no longer talk to http server while getting standard names.";
-            throw new RuntimeException(msg);
-         }
-
-         String charSet = m.getResponseCharSet();
-         String s = m.getResponseBodyAsString();
-
-         // Check to make sure that we got a valid response back.
-         Matcher mBeginSearchResults = pBeginSearchResults.matcher(s);
-         Matcher mEndSearchResults = pEndSearchResults.matcher(s);
-         if (!(mBeginSearchResults.find() && mEndSearchResults.find()))
-
-         {
-            throw new RuntimeException("Invalid search results returned from the place search server. " +
-                  "Please ensure that the url specified for the search server is valid.");
-         }
-
-         logger.info("Done executing method, got back valid string");
-         return s;
-   }
-
    /**
     * Defined for use in cases where we have an exception,
     * while we are printing or doing something related
@@ -1989,10 +1144,15 @@ logger.info("getPlaceDisplayNames: placeServer=" + placeServer + " # place names
    protected void close()
    {
       try {
-         if (this.sSelectGedcomUploaded != null)
+         if (this.sSelectGedcomToParse != null)
+         {
+            sSelectGedcomToParse.close();
+            sSelectGedcomToParse = null;
+         }
+         if (this.sSelectGedcomToGenerate != null)
          {
-            sSelectGedcomUploaded.close();
-            sSelectGedcomUploaded = null;
+            sSelectGedcomToGenerate.close();
+            sSelectGedcomToGenerate = null;
          }
          if (this.sSelectGedcomIDOfUser != null)
          {
@@ -2009,6 +1169,11 @@ logger.info("getPlaceDisplayNames: placeServer=" + placeServer + " # place names
             sUpdateFamilyTreeGedcom.close();
             sUpdateFamilyTreeGedcom = null;
          }
+         if (jobQueue != null)
+         {
+            jobQueue.close();
+            jobQueue = null;
+         }
          if (conn != null)
          {
             conn.close();
@@ -2023,6 +1188,25 @@ logger.info("getPlaceDisplayNames: placeServer=" + placeServer + " # place names
       }
    }
 
+   /**
+    * closes the database connection and stops the
+    * threads used to talk to the place server
+    */
+   public void shutdown()
+   {
+      synchronized (dbLock)
+      {
+         close();
+      }
+      placeStandardizer.shutdown();
+      sourceMatcher.shutdown();
+      metrics.unregister();
+      if (leaseTimer != null)
+      {
+         leaseTimer.cancel();
+      }
+   }
+
    /**
     * Used to print a simple tag of this form:
     * <tag_name>value</tag_name>\n
@@ -2081,6 +1265,46 @@ logger.info("getPlaceDisplayNames: placeServer=" + placeServer + " # place names
    }
    private String xml_output = null;
    private String xml_inprocess = null;
+   private int contentCacheSize = GedcomXML.DEFAULT_CONTENT_CACHE_SIZE;
+
+   /**
+    * @return the number of page contents each GedcomXML keeps parsed at once
+    */
+   public int getContentCacheSize() {
+      return contentCacheSize;
+   }
+   private int prepareThreads = 1;
+
+   /**
+    * @return the number of threads each GedcomXML prepares its page contents for generation with
+    */
+   public int getPrepareThreads() {
+      return prepareThreads;
+   }
+   private boolean inProcessRecords = false;
+
+   /**
+    * @return whether a PageRecordFile is written next to each in-process XML file, and read in its place
+    */
+   public boolean isInProcessRecords() {
+      return inProcessRecords;
+   }
+   private boolean compressOutputXML = false;
+
+   /**
+    * @return whether the output XML files are written gzip-compressed
+    */
+   public boolean isCompressOutputXML() {
+      return compressOutputXML;
+   }
+   private boolean compressInProcessXML = false;
+
+   /**
+    * @return whether the in-process XML files, which the wiki reads during review, are written gzip-compressed
+    */
+   public boolean isCompressInProcessXML() {
+      return compressInProcessXML;
+   }
    /**
     * @return boolean indicating
     * whether to encode the xml
@@ -2094,6 +1318,8 @@ logger.info("getPlaceDisplayNames: placeServer=" + placeServer + " # place names
 
    // Used to interact with the database.
    private Connection conn = null;
+   // Guards conn, its statements and the jobQueue
+   private final Object dbLock = new Object();
    /**
     *
     * @return connection to wikidb
@@ -2102,87 +1328,205 @@ logger.info("getPlaceDisplayNames: placeServer=" + placeServer + " # place names
       return conn;
    }
 
-   //User name and id to access the wikidb
-   protected String userName = null;
-   protected int userID = 0;
-   // The tree id of the current gedcom
-   protected int treeID = -1;
-   protected String treeName = null;
-
-   private static int NUM_DB_RETRIES = 5;
-   // in milliseconds
-   private static int DB_WAIT = 60000;
-   // retrieves the next Gedcom ID to be processed
-   // from the wikidb
-   private String gedcomName = null;
-
-   protected void getNextGedcomID () throws SQLException,
-                                                     IOException,
-                                                     InterruptedException,
-                                                     Gedcom.GedcomException
+   // Number of queued GEDCOMs the scheduler chooses from
+   private static final int NUM_CANDIDATES = 100;
+
+   /**
+    * Claims the next GEDCOM in the queue, as chosen by the scheduler. The GEDCOM's status is changed to
+    * STATUS_PROCESSING or STATUS_GENERATING so that no other worker, on this
+    * machine or another one, takes it too. GEDCOMs left by workers that died
+    * are put back in the queue first. Only reading the queue and claiming hold
+    * the Uploader's lock; the GEDCOM files are looked at for the scheduler and read
+    * for the overlap and duplicate checks, and the job is made, after it is released,
+    * so they don't hold up other workers or the lease renewal.
+    * @param userTalker wiki session of the worker that will process the GEDCOM
+    * @param stage the kind of job the worker takes
+    * @return the job, or null if there is nothing for this worker to process
+    */
+   protected GedcomJob getNextJob(final UserTalker userTalker, final Stage stage) throws SQLException,
+                                                     IOException
    {
-      // We'll assume that we're already connected
-      boolean connected = true;
-      gedID = -1;
-      for (int i=0; i < NUM_DB_RETRIES; i++)
-      {
-         try
-         {
-            if (!connected)
+      List<GedcomJob.QueueRow> rows = executeDb(new DbAttempt<List<GedcomJob.QueueRow>>() {
+         protected List<GedcomJob.QueueRow> query() throws SQLException, IOException {
+            jobQueue.reclaimExpired();
+            if (stage == Stage.PARSE)
             {
-               dbConnect();
+               return selectQueued(sSelectGedcomToParse);
             }
-            sSelectGedcomUploaded.execute();
-            ResultSet rs = sSelectGedcomUploaded.getResultSet();
-            if (rs.next())
-            {
-               setGedcomSettings(rs);
-            } else
+            else if (stage == Stage.GENERATE)
             {
-               sSelectFamilyTreeGedcom.execute();
-               rs = sSelectFamilyTreeGedcom.getResultSet();
-               if(rs.next())
-               {
-                  setGedcomSettings(rs);
-               }
+               return selectQueued(sSelectGedcomToGenerate);
+            }
+            return selectQueued(sSelectFamilyTreeGedcom);
+         }
+      });
+      GedcomJob job = claimJob(rows, userTalker);
+      if (job == null)
+      {
+         return null;
+      }
+      if (job.getGedcomName().toLowerCase().trim().endsWith(".pdf"))
+      {
+         job.doGedInvalid();
+         releaseJob(job.getGedID());
+         return null;
+      }
+      else if (job.getGedStatus() != STATUS_IGNORE_OVERLAP &&
+            job.getGedStatus() != STATUS_REGENERATE &&
+            job.getGedStatus() != STATUS_CREATE_PAGES)
+      {
+         if (checkOverlap(job, userTalker) < 0)
+         {
+            releaseJob(job.getGedID());
+            return null;
+         }
+      }
+      if (job.getGedStatus() == STATUS_UPLOADED || job.getGedStatus() == STATUS_IGNORE_OVERLAP)
+      {
+         flagDuplicates(job);
+      }
+      return job;
+   }
+
+   // Reads the rows of the GEDCOMs returned by the queue query
+   private static List<GedcomJob.QueueRow> selectQueued(PreparedStatement ps) throws SQLException, IOException
+   {
+      List<GedcomJob.QueueRow> rows = new ArrayList<GedcomJob.QueueRow>();
+      ps.execute();
+      ResultSet rs = ps.getResultSet();
+      while (rs.next())
+      {
+         rows.add(new GedcomJob.QueueRow(rs));
+      }
+      rs.close();
+      return rows;
+   }
+
+   // Returns a job for the best of the queued GEDCOMs that this worker managed to claim.
+   // Each claim holds the Uploader's lock; ordering the candidates and making the job don't.
+   private GedcomJob claimJob(List<GedcomJob.QueueRow> rows, UserTalker userTalker)
+   {
+      long now = System.currentTimeMillis();
+      Map<Integer, GedcomJob.QueueRow> queued = new HashMap<Integer, GedcomJob.QueueRow>();
+      List<JobScheduler.Candidate> candidates = new ArrayList<JobScheduler.Candidate>();
+      for (GedcomJob.QueueRow row : rows)
+      {
+         File gedFile = new File(gedcomDir + '/' + row.gedID + ".ged");
+         queued.put(row.gedID, row);
+         candidates.add(new JobScheduler.Candidate(row.gedID, row.userName,
+               getClaimedStatus(row.gedStatus) == STATUS_GENERATING,
+               gedFile.exists() ? gedFile.length() : -1,
+               JobScheduler.parseStatusDate(row.statusDate, now)));
+      }
+      for (JobScheduler.Candidate c : scheduler.order(candidates, now))
+      {
+         final GedcomJob.QueueRow row = queued.get(c.getGedID());
+         boolean claimed = executeDb(new DbAttempt<Boolean>() {
+            protected Boolean query() throws SQLException {
+               return jobQueue.claim(row.gedID, row.gedStatus, getClaimedStatus(row.gedStatus));
             }
-            return;
-         } catch (SQLException e)
+         });
+         if (claimed)
          {
-            logger.warn("SQL exception while attempting to get the next GEDCOM ID. ");
-            logger.warn(e.getMessage());
-            e.printStackTrace();
-            connected = false;
-            Utils.sleep(DB_WAIT);
+            scheduler.started(c, candidates.size(), now);
+            return new GedcomJob(this, userTalker, row);
          }
       }
-      throw new RuntimeException("I can no longer talk to the wikidb");
+      return null;
    }
 
-   private void setGedcomSettings(ResultSet rs) throws IOException, SQLException {
-      treeName = rsReadString(rs, 7);
-      gedcomName = rsReadString(rs, 6);
-      defaultCountry = rs.getString(8);
-      treeID = rs.getInt(5);
-      userID = rs.getInt(4);
-      userName = rsReadString(rs, 3);
-      gedStatus = rs.getInt(2);
-      gedID = rs.getInt(1);
+   // The status a GEDCOM has while it is being worked on
+   private static int getClaimedStatus(int status)
+   {
+      return (status == STATUS_CREATE_PAGES || status == STATUS_REGENERATE) ? STATUS_GENERATING : STATUS_PROCESSING;
+   }
 
-      if (gedcomName.toLowerCase().trim().endsWith(".pdf"))
+   // Gives up this worker's claim on the GEDCOM. If the job couldn't be processed yet
+   // it goes back in the queue; if it failed with an exception, its lease is expired
+   // so it is retried (up to lease_max_claims times) or marked as an error, or, if its
+   // pages were being generated, marked as generate-failed.
+   private void jobDone(final GedcomJob job, final boolean finished, final boolean processed)
+   {
+      scheduler.finished(job.getGedID(), finished && processed, System.currentTimeMillis());
+      try
+      {
+         executeDb(new DbAttempt<Object>() {
+            protected Object query() throws SQLException {
+               if (!finished)
+               {
+                  jobQueue.abandon(job.getGedID());
+               }
+               else if (processed ||
+                     !jobQueue.unclaim(job.getGedID(), getClaimedStatus(job.getGedStatus()), job.getGedStatus()))
+               {
+                  jobQueue.release(job.getGedID());
+               }
+               return null;
+            }
+         });
+      } catch (RuntimeException e)
       {
-         doGedInvalid();
-         gedID = -1;
+         logger.warn("Could not release gedcom " + job.getGedID() + ": " + e.getMessage());
       }
-      else if (gedStatus != STATUS_IGNORE_OVERLAP &&
-            gedStatus != STATUS_REGENERATE &&
-            gedStatus != STATUS_CREATE_PAGES)
+   }
+
+   // Marks a GEDCOM whose job failed with an unexpected exception as an error, or, if its
+   // pages were being generated, as generate-failed, so that it isn't retried
+   private void jobFailed(final GedcomJob job, final RuntimeException failure)
+   {
+      logger.error("Gedcom " + job.getGedID() + " failed with an unexpected exception", failure);
+      final int claimedStatus = getClaimedStatus(job.getGedStatus());
+      final String reason = (failure.getMessage() == null ? failure.toString() : failure.getMessage());
+      try
+      {
+         executeDb(new DbAttempt<Object>() {
+            protected Object query() throws SQLException {
+               jobQueue.fail(job.getGedID(), claimedStatus,
+                     claimedStatus == STATUS_GENERATING ? STATUS_GENERATE_FAILED : STATUS_ERROR, reason);
+               return null;
+            }
+         });
+      } catch (RuntimeException e)
       {
-         gedID= checkOverlap(gedID);
+         logger.warn("Could not mark gedcom " + job.getGedID() + " as failed: " + e.getMessage());
       }
    }
 
-   private String rsReadString(ResultSet rs, int index) throws IOException, SQLException {
+   private void releaseJob(final int gedID)
+   {
+      scheduler.finished(gedID, false, System.currentTimeMillis());
+      executeDb(new DbAttempt<Object>() {
+         protected Object query() throws SQLException {
+            jobQueue.release(gedID);
+            return null;
+         }
+      });
+   }
+
+   // Renews this process's leases every third of the lease time
+   private void startLeaseTimer()
+   {
+      leaseTimer = new Timer("lease-renewer", true);
+      long period = Math.max(1, leaseTime / 3);
+      leaseTimer.schedule(new TimerTask() {
+         public void run() {
+            try
+            {
+               executeDb(new DbAttempt<Object>() {
+                  protected Object query() throws SQLException {
+                     jobQueue.renewLeases();
+                     return null;
+                  }
+               });
+            } catch (RuntimeException e)
+            {
+               logger.warn("Could not renew leases: " + e.getMessage());
+            }
+         }
+      }, period, period);
+   }
+
+   static String rsReadString(ResultSet rs, int index) throws IOException, SQLException {
       String rval;
       String line;
       BufferedReader in = new BufferedReader(new InputStreamReader(rs.getAsciiStream(index), "UTF-8"));
@@ -2196,6 +1540,9 @@ logger.info("getPlaceDisplayNames: placeServer=" + placeServer + " # place names
    }
 
    private static final int OVERLAP_PERCENT_THRESHOLD = 30;
+   // Overlap estimated from name signatures this close to the threshold
+   // is measured exactly instead
+   private static final int OVERLAP_EXACT_MARGIN = 10;
 
    // Controls whether we should check for overlap
    // with a user's existing GEDCOMs before uploading the
@@ -2221,11 +1568,15 @@ logger.info("getPlaceDisplayNames: placeServer=" + placeServer + " # place names
 
    private static Pattern pIndiStart = Pattern.compile("0\\s+@[^@]+@\\s+INDI");
    private static Pattern pNonIndiStart = Pattern.compile("0\\s+@[^@]+@\\s+(SOUR|SOURCE|REPOSITORY|REPO|FAM|FAMILY)");
-   private String currGiven = null, currSurname = null;
+   // Given name and surname of the INDI currently being read
+   private static class IndiName {
+      String given = null, surname = null;
+   }
 
    private Set <String> generateNameSet (int idNum)
    {
       Set <String> nameSet = new HashSet <String>();
+      IndiName curr = new IndiName();
       try
       {
          BufferedReader in = new BufferedReader (new FileReader(this.gedcomDir + '/' + idNum + ".ged"));
@@ -2239,13 +1590,13 @@ logger.info("getPlaceDisplayNames: placeServer=" + placeServer + " # place names
             {
                // We are potentially ending the
                // current INDI tag.
-               addGivnSurn(nameSet);
+               addGivnSurn(nameSet, curr);
                // Now let's skip ahead until we
                // get to the next INDI tag.
                skipToIndi(in);
             } else if (pIndiStart.matcher(line).find())
             {
-               addGivnSurn(nameSet);
+               addGivnSurn(nameSet, curr);
             } else if (line.startsWith("1 NAME "))
             {
                line = line.substring(7);
@@ -2256,32 +1607,32 @@ logger.info("getPlaceDisplayNames: placeServer=" + placeServer + " # place names
             } else if (line.startsWith("1 GIVN ") ||
                   line.startsWith("2 GIVN "))
             {
-               if (Utils.isEmpty(currGiven))
+               if (Utils.isEmpty(curr.given))
                {
                   if (line.length() > 7)
                   {
-                     currGiven = line.substring(7);
+                     curr.given = line.substring(7);
                   }
                } else
                {
-                  addGivnSurn(nameSet);
+                  addGivnSurn(nameSet, curr);
                }
             } else if (line.startsWith("1 SURN") ||
                   line.startsWith("2 SURN"))
             {
-               if (Utils.isEmpty(currSurname))
+               if (Utils.isEmpty(curr.surname))
                {
                   if (line.length() > 7)
                   {
-                     currSurname = line.substring(7);
+                     curr.surname = line.substring(7);
                   }
                } else
                {
-                  addGivnSurn(nameSet);
+                  addGivnSurn(nameSet, curr);
                }
             }
          }
-         addGivnSurn(nameSet);
+         addGivnSurn(nameSet, curr);
       } catch (FileNotFoundException e)
       {
          logger.warn("When checking for warnings, a file not found exception was thrown.");
@@ -2292,6 +1643,43 @@ logger.info("getPlaceDisplayNames: placeServer=" + placeServer + " # place names
       }
    }
 
+   /**
+    * Reads the name signature saved next to the GEDCOM, or makes it from the
+    * GEDCOM's names and saves it if it is missing or older than the GEDCOM
+    * @param idNum GEDCOM id
+    */
+   public NameSignature getNameSignature(int idNum)
+   {
+      File gedFile = new File(this.gedcomDir + '/' + idNum + ".ged");
+      File sigFile = new File(this.gedcomDir + '/' + idNum + ".sig");
+      if (sigFile.exists() && sigFile.lastModified() >= gedFile.lastModified())
+      {
+         try
+         {
+            NameSignature sig = NameSignature.read(sigFile);
+            if (sig != null)
+            {
+               return sig;
+            }
+         } catch (IOException e)
+         {
+            logger.warn("Could not read " + sigFile + ": " + e.getMessage());
+         }
+      }
+      NameSignature sig = NameSignature.fromNames(generateNameSet(idNum));
+      if (gedFile.exists())
+      {
+         try
+         {
+            sig.write(sigFile);
+         } catch (IOException e)
+         {
+            logger.warn("Could not save " + sigFile + ": " + e.getMessage());
+         }
+      }
+      return sig;
+   }
+
    private void skipToIndi(BufferedReader in) throws IOException {
       String line;
       while((line = in.readLine()) != null && !pIndiStart.matcher(line).find())
@@ -2300,16 +1688,88 @@ logger.info("getPlaceDisplayNames: placeServer=" + placeServer + " # place names
       }
    }
 
+   // Logs the GEDCOMs of any user that the GEDCOM may duplicate,
+   // and adds the GEDCOM to the duplicate index
+   private void flagDuplicates(GedcomJob job)
+   {
+      if (duplicateIndex == null)
+      {
+         return;
+      }
+      try
+      {
+         NameSignature sig = getNameSignature(job.getGedID());
+         List<NameSignatureIndex.Match> matches = duplicateIndex.findDuplicates(job.getGedID(), sig, duplicateThreshold);
+         if (matches.size() > 0)
+         {
+            logger.warn("Gedcom " + job.getGedID() + " of " + job.getUserName() + " may duplicate gedcoms " + matches);
+         }
+         duplicateIndex.add(job.getGedID(), job.getUserName(), sig);
+      } catch (IOException e)
+      {
+         logger.warn("Could not check gedcom " + job.getGedID() + " for duplicates: " + e.getMessage());
+      }
+   }
+
+   /**
+    * Adds the GEDCOMs of every user that have been imported (STATUS_READY or
+    * STATUS_DOWNLOADED), and whose files are on this server, to the duplicate index.
+    * GEDCOMs that the index already has are skipped, so this may be run again.
+    * @return the number of GEDCOMs added to the index
+    * @throws IOException
+    */
+   public int buildDuplicateIndex() throws IOException
+   {
+      if (duplicateIndex == null)
+      {
+         throw new IllegalStateException("duplicate_index_dir is not set");
+      }
+      final Map<Integer, String> gedcoms = new TreeMap<Integer, String>();
+      executeDb(new DbAttempt<Object>() {
+         protected Object query() throws SQLException {
+            gedcoms.clear();
+            Statement s = conn.createStatement();
+            try
+            {
+               ResultSet rs = s.executeQuery("SELECT fg_id, ft_user FROM familytree_gedcom " +
+                     "INNER JOIN familytree ON fg_tree_id = ft_tree_id " +
+                     "WHERE fg_status = " + STATUS_READY + " OR fg_status = " + STATUS_DOWNLOADED);
+               while (rs.next())
+               {
+                  gedcoms.put(rs.getInt(1), rs.getString(2));
+               }
+               rs.close();
+            } finally
+            {
+               s.close();
+            }
+            return null;
+         }
+      });
+      int numAdded = 0;
+      for (Map.Entry<Integer, String> e : gedcoms.entrySet())
+      {
+         if (new File(gedcomDir + '/' + e.getKey() + ".ged").exists() &&
+             duplicateIndex.add(e.getKey(), e.getValue(), getNameSignature(e.getKey())))
+         {
+            numAdded++;
+         }
+      }
+      logger.info("Added " + numAdded + " of " + gedcoms.size() + " imported gedcoms to the duplicate index");
+      return numAdded;
+   }
+
    // Returns the gedID if there is no overlap between the
-   // gedcom with the gedID passed in and another GEDCOM
+   // gedcom of the job passed in and another GEDCOM
    // already uploaded by the same user.
-   // If there is overlap, then -1 is returned, otherwise,
+   // If there is overlap, then -2 is returned, otherwise,
    // the gedID is returned.
-   private int checkOverlap(int gedID) throws IOException
+   private int checkOverlap(GedcomJob job, UserTalker userTalker) throws IOException, SQLException
    {
+      final int gedID = job.getGedID();
+      final String userName = job.getUserName();
       if (shouldCheckOverlap)
       {
-         ResultSet rs;
          // Now we need to make sure that the GEDCOM we got does
          // not significantly overlap with another GEDCOM that
          // this user has uploaded. Therefore, let's execute
@@ -2317,56 +1777,75 @@ logger.info("getPlaceDisplayNames: placeServer=" + placeServer + " # place names
          logger.debug("Checking overlap between this gedcom (" + gedID +
                ") and other gedcoms uploaded by user.");
 
-         // We'll assume that we're already connected
-         boolean connected = true;
-         // We will try up to five times in
-         // row to conduct the database operations.
-         for (int i=0; i < NUM_DB_RETRIES; i++)
-         {
-            try
-            {
-               if (!connected)
-               {
-                  dbConnect();
-               }
+         // Read the other GEDCOMs first, so that comparing the files
+         // and notifying the user are not repeated if the database fails
+         final Map<Integer, String> otherGedcoms = new LinkedHashMap<Integer, String>();
+         executeDb(new DbAttempt<Object>() {
+            protected Object query() throws SQLException, IOException {
+               otherGedcoms.clear();
                psSetString(sSelectGedcomIDOfUser, 1, userName);
                sSelectGedcomIDOfUser.execute();
-               rs = sSelectGedcomIDOfUser.getResultSet();
+               ResultSet rs = sSelectGedcomIDOfUser.getResultSet();
                while (rs.next())
                {
                   int otherId = rs.getInt(1);
                   int otherStatus = rs.getInt(2);
                   String realGedcomName = rsReadString(rs, 3);
-                  if (otherId != gedID &&
-                      otherStatus >= 1 &&
-                      otherStatus <= 99)
+                  if (otherStatus >= 1 && otherStatus <= 99)
                   {
-                     int overlapPercent = getOverlapPercentage(otherId, gedID);
-
-                     if (overlapPercent > OVERLAP_PERCENT_THRESHOLD)
-                     {
-                        updateGedcom(Uploader.STATUS_OVERLAP_DETECTED, gedID, "May overlap with " + realGedcomName);
-                        userTalker.sendOverlapMessage(userName, gedcomName);
-                        return -2;
-                     }
+                     otherGedcoms.put(otherId, realGedcomName);
                   }
                }
-               return gedID;
-            } catch (SQLException e)
+               return null;
+            }
+         });
+         for (Map.Entry<Integer, String> other : otherGedcoms.entrySet())
+         {
+            int otherId = other.getKey();
+            if (otherId != gedID)
             {
-               connected = false;
-               Utils.sleep(DB_WAIT);
+               int overlapPercent = getOverlapPercentage(otherId, gedID);
+
+               if (overlapPercent > OVERLAP_PERCENT_THRESHOLD)
+               {
+                  updateGedcom(Uploader.STATUS_OVERLAP_DETECTED, gedID, "May overlap with " + other.getValue());
+                  userTalker.sendOverlapMessage(userName, job.getGedcomName());
+                  return -2;
+               }
             }
          }
-         throw new RuntimeException (
-            "Could no longer communicate with database while checking GEDCOM overlap");
+         return gedID;
       } else
       {
          return gedID;
       }
    }
 
+   /**
+    * Estimates the percentage of the names in GEDCOM gedID that are also in GEDCOM otherId
+    * from their name signatures, reading the GEDCOMs when the estimate is
+    * close to the overlap threshold, or when their sizes are too different to estimate it
+    */
    public int getOverlapPercentage(int otherId, int gedID) throws IOException {
+      NameSignature sig = getNameSignature(gedID);
+      NameSignature otherSig = getNameSignature(otherId);
+      if (!sig.isSizeSkewed(otherSig))
+      {
+         int estimate = sig.estimateOverlapPercentage(otherSig);
+         int margin = Math.max(OVERLAP_EXACT_MARGIN, sig.getOverlapErrorBound(otherSig));
+         if (Math.abs(estimate - OVERLAP_PERCENT_THRESHOLD) > margin)
+         {
+            return estimate;
+         }
+      }
+      return getExactOverlapPercentage(otherId, gedID);
+   }
+
+   /**
+    * @return the percentage of the names in GEDCOM gedID that are also in GEDCOM otherId,
+    *    read from both GEDCOM files
+    */
+   public int getExactOverlapPercentage(int otherId, int gedID) throws IOException {
       Set<String> otherNameSet = this.generateNameSet(otherId);
       Set <String> thisNameSet = this.generateNameSet(gedID);
       int numMatching = 0;
@@ -2388,25 +1867,25 @@ logger.info("getPlaceDisplayNames: placeServer=" + placeServer + " # place names
       }
    }
 
-   private void addGivnSurn(Set<String> nameSet) {
+   private static void addGivnSurn(Set<String> nameSet, IndiName curr) {
       String newName = "";
-      if(!Utils.isEmpty(currGiven))
+      if(!Utils.isEmpty(curr.given))
       {
-         newName += currGiven.trim();
-         if (!Utils.isEmpty(currSurname))
+         newName += curr.given.trim();
+         if (!Utils.isEmpty(curr.surname))
          {
             newName += ' ';
          }
       }
-      if (!Utils.isEmpty(currSurname))
+      if (!Utils.isEmpty(curr.surname))
       {
-         newName += currSurname.trim();
+         newName += curr.surname.trim();
       }
       if (!Utils.isEmpty(newName))
       {
          nameSet.add(newName);
       }
-      currGiven = currSurname = null;
+      curr.given = curr.surname = null;
    }
 
    private void psSetString(PreparedStatement ps, int index, String input) throws SQLException, UnsupportedEncodingException {
@@ -2414,41 +1893,29 @@ logger.info("getPlaceDisplayNames: placeServer=" + placeServer + " # place names
    }
 
    // Generates today's date
-   private static final SimpleDateFormat format = new SimpleDateFormat("yyyyMMddHHmmss");
+   // (SimpleDateFormat isn't thread-safe, so a new one is made for each call)
    protected static String generateDateString() {
       GregorianCalendar today = new GregorianCalendar();
       java.util.Date date = today.getTime();
+      SimpleDateFormat format = new SimpleDateFormat("yyyyMMddHHmmss");
       format.setTimeZone(TimeZone.getTimeZone("GMT"));
       return format.format(date);
    }
 
    // Updates the status of a gedcom in
    // familytree_gedcom
-   protected void updateGedcom (int status, int id, String reason) throws SQLException
+   protected void updateGedcom (final int status, final int id, final String reason) throws SQLException
    {
-      // We'll assume that we're already connected
-      boolean connected = true;
-      for (int i=0; i < NUM_DB_RETRIES; i++)
-      {
-         try
-         {
-            if (!connected)
-            {
-               dbConnect();
-            }
+      executeDb(new DbAttempt<Object>() {
+         protected Object query() throws SQLException {
             sUpdateFamilyTreeGedcom.setInt(1, status);
             sUpdateFamilyTreeGedcom.setString(2, generateDateString());
             sUpdateFamilyTreeGedcom.setString(3, reason);
             sUpdateFamilyTreeGedcom.setInt(4, id);
             sUpdateFamilyTreeGedcom.execute();
-            return;
-         } catch (SQLException e)
-         {
-            connected = false;
-            Utils.sleep(DB_WAIT);
+            return null;
          }
-      }
-      throw new RuntimeException("I can no longer talk to the wikidb");
+      });
    }
 
    /**
@@ -2465,6 +1932,7 @@ logger.info("getPlaceDisplayNames: placeServer=" + placeServer + " # place names
       opt.addOption("u", false, "If set, we ignore unexpected tags without throwing a " +
             "warning and only printing an info to log file");
       opt.addOption("t", false, "We are testing -- stubs out the ID reservation and skips page generation");
+      opt.addOption("d", false, "Keep running and wait for new GEDCOMs when the queue is empty");
       opt.addOption("h", false, "Print out help information");
 
       BasicParser parser = new BasicParser();
@@ -2504,6 +1972,25 @@ logger.info("getPlaceDisplayNames: placeServer=" + placeServer + " # place names
                cgp.setIgnoreUnexpectedTags(true);
             }
             //cgp.setShouldStopWhenWithoutGedcom(true);
+            if (cl.hasOption("d"))
+            {
+               // On SIGTERM, finish the GEDCOMs being processed and then exit
+               final Uploader uploader = cgp;
+               final Thread mainThread = Thread.currentThread();
+               cgp.setDaemon(true);
+               Runtime.getRuntime().addShutdownHook(new Thread() {
+                  public void run() {
+                     uploader.stop();
+                     try
+                     {
+                        mainThread.join();
+                     } catch (InterruptedException e)
+                     {
+                        // exit anyway
+                     }
+                  }
+               });
+            }
             cgp.loop();
          }
          catch (Exception e) {
@@ -2513,7 +2000,7 @@ logger.info("getPlaceDisplayNames: placeServer=" + placeServer + " # place names
          finally {
             if (cgp != null)
             {
-               cgp.close();
+               cgp.shutdown();
             }
          }
       }
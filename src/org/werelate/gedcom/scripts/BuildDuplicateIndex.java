@@ -0,0 +1,48 @@
+package org.werelate.gedcom.scripts;
+
+import org.apache.commons.cli.*;
+import org.werelate.gedcom.Uploader;
+
+import javax.xml.xpath.XPathFactoryConfigurationException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.Properties;
+
+/**
+ * Adds the GEDCOMs imported before the duplicate index was set up to it,
+ * making their name signatures where they are missing.
+ * GEDCOMs already in the index are skipped, so it may be run again.
+ */
+public class BuildDuplicateIndex {
+   public static void main (String [] args)
+         throws ParseException,
+         ClassNotFoundException,
+         InstantiationException,
+         IllegalAccessException,
+         SQLException,
+         IOException,
+         XPathFactoryConfigurationException
+   {
+      Options opt = new Options();
+      opt.addOption("p", true, "Location of the properties file to use; it must set duplicate_index_dir.");
+      opt.addOption("h", false, "Print out help information");
+      BasicParser bp = new BasicParser();
+      CommandLine cl = bp.parse(opt, args);
+
+      if (cl.hasOption("h") || !cl.hasOption("p"))
+      {
+         System.out.println("Adds every imported GEDCOM on this server to the duplicate index.");
+         HelpFormatter f = new HelpFormatter();
+         f.printHelp("OptionsTip", opt);
+      } else
+      {
+         Properties props = new Properties();
+         props.load(new FileInputStream(cl.getOptionValue("p")));
+         Uploader uploader = new Uploader(props);
+         int numAdded = uploader.buildDuplicateIndex();
+         System.out.println("Added " + numAdded + " GEDCOMs to the duplicate index");
+         uploader.shutdown();
+      }
+   }
+}
@@ -0,0 +1,442 @@
+package org.werelate.gedcom.scripts;
+
+import org.apache.commons.cli.*;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.werelate.gedcom.*;
+import org.werelate.util.GzipFiles;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Converts a directory of GEDCOMs to in-process XML files in parallel, without
+ * the database or the wiki, so that a change to parsing or printing can be
+ * re-run over many archived GEDCOMs. Each &lt;name&gt;.ged is written to &lt;name&gt;.xml
+ * as the Uploader writes an uploaded GEDCOM, except that families aren't
+ * matched against the match server and sources aren't matched against the wiki.
+ * Places are standardized to themselves, or by a place server, asking it about
+ * each place only once for the whole run.
+ *
+ * Prints the time, CPU time, bytes allocated and outcome of each GEDCOM, and,
+ * given the directory of an earlier run, how many pages changed; the changes are
+ * written to &lt;name&gt;.diff as by InProcessDiff. The XML files may be written
+ * gzip-compressed, as the Uploader writes them when compress_inprocess_xml is set, in which
+ * case the space saved is printed as well.
+ */
+public class ConvertGedcoms {
+   private static final Logger logger =
+         LogManager.getLogger("org.werelate.gedcom.ConvertGedcoms");
+
+   private File gedcomDir;
+   private File outputDir;
+   private File previousDir = null;
+   private int numThreads = Runtime.getRuntime().availableProcessors();
+   private PlaceNames placeNames = new OfflinePlaceNames();
+   private String placeServer = "";
+   private String defaultCountry = "";
+   private String userName = "ConvertGedcoms";
+   private int treeID = 1;
+   private boolean trustedUploader = false;
+   private boolean ignoreUnexpectedTags = false;
+   private boolean compress = false;
+
+   /**
+    * The outcome of converting one GEDCOM
+    */
+   public static class Result {
+      private String name;
+      private String status;
+      private int numPeople = 0;
+      private int numFamilies = 0;
+      private int numWarnings = 0;
+      private long wallNanos = 0;
+      private long cpuNanos = 0;
+      private long allocatedBytes = 0;
+      private long xmlBytes = 0;
+      private long fileBytes = 0;
+      private InProcessDiff.Summary diff = null;
+
+      public String getName() {
+         return name;
+      }
+
+      /**
+       * @return ok, warnings, invalid or error: and the message
+       */
+      public String getStatus() {
+         return status;
+      }
+
+      public int getNumWarnings() {
+         return numWarnings;
+      }
+
+      public long getWallNanos() {
+         return wallNanos;
+      }
+
+      public long getAllocatedBytes() {
+         return allocatedBytes;
+      }
+
+      /**
+       * @return the size of the XML, uncompressed
+       */
+      public long getXmlBytes() {
+         return xmlBytes;
+      }
+
+      /**
+       * @return the size of the file the XML was written to
+       */
+      public long getFileBytes() {
+         return fileBytes;
+      }
+
+      /**
+       * @return the differences from the earlier run, or null if there was nothing to compare with
+       */
+      public InProcessDiff.Summary getDiff() {
+         return diff;
+      }
+
+      public String toString()
+      {
+         return String.format("%-30s %-12s %7d %7d %8d %9.1f %9.1f %9.1f  %s", name, status, numPeople, numFamilies,
+                              numWarnings, wallNanos / 1e6, cpuNanos / 1e6, allocatedBytes / 1048576.0,
+                              diff == null ? "" : diff.toString());
+      }
+   }
+
+   public static final String HEADER = String.format("%-30s %-12s %7s %7s %8s %9s %9s %9s  %s", "gedcom", "status",
+                                                     "people", "families", "warnings", "wall_ms", "cpu_ms",
+                                                     "alloc_mb", "diff");
+
+   public ConvertGedcoms(File gedcomDir, File outputDir)
+   {
+      this.gedcomDir = gedcomDir;
+      this.outputDir = outputDir;
+   }
+
+   /**
+    * Compare each file with the file of the same name in this directory
+    */
+   public void setPreviousDir(File previousDir) {
+      this.previousDir = previousDir;
+   }
+
+   public void setNumThreads(int numThreads) {
+      this.numThreads = Math.max(1, numThreads);
+   }
+
+   /**
+    * Standardize places with this place server, caching its answers across the GEDCOMs
+    */
+   public void setPlaceServer(String placeServer, Properties properties)
+   {
+      this.placeServer = placeServer;
+      this.placeNames = new CachingPlaceNames(new PlaceStandardizer(properties));
+   }
+
+   public void setDefaultCountry(String defaultCountry) {
+      this.defaultCountry = defaultCountry;
+   }
+
+   public void setUserName(String userName) {
+      this.userName = userName;
+   }
+
+   public void setTreeID(int treeID) {
+      this.treeID = treeID;
+   }
+
+   public void setTrustedUploader(boolean trustedUploader) {
+      this.trustedUploader = trustedUploader;
+   }
+
+   public void setIgnoreUnexpectedTags(boolean ignoreUnexpectedTags) {
+      this.ignoreUnexpectedTags = ignoreUnexpectedTags;
+   }
+
+   /**
+    * Write the XML files gzip-compressed
+    */
+   public void setCompress(boolean compress) {
+      this.compress = compress;
+   }
+
+   // Counts the bytes written through it
+   private static class CountingOutputStream extends FilterOutputStream {
+      private long count = 0;
+
+      public CountingOutputStream(OutputStream out)
+      {
+         super(out);
+      }
+
+      public void write(int b) throws IOException
+      {
+         out.write(b);
+         count++;
+      }
+
+      public void write(byte[] b, int off, int len) throws IOException
+      {
+         out.write(b, off, len);
+         count += len;
+      }
+   }
+
+   /**
+    * Converts every .ged file, printing each result as it finishes
+    * @param out where to print the results
+    * @return the results, in the order of the file names
+    * @throws InterruptedException
+    */
+   public List<Result> convertAll(final PrintStream out) throws InterruptedException
+   {
+      outputDir.mkdirs();
+      File[] files = gedcomDir.listFiles(new FilenameFilter() {
+         public boolean accept(File dir, String name) {
+            return name.toLowerCase().endsWith(".ged");
+         }
+      });
+      if (files == null)
+      {
+         throw new IllegalArgumentException(gedcomDir + " is not a directory");
+      }
+      // Start the largest first, so one big GEDCOM doesn't finish long after the rest
+      Arrays.sort(files, new Comparator<File>() {
+         public int compare(File f1, File f2) {
+            return f1.length() > f2.length() ? -1 : f1.length() < f2.length() ? 1 : f1.getName().compareTo(f2.getName());
+         }
+      });
+      ExecutorService executor = Executors.newFixedThreadPool(numThreads, new ThreadFactory() {
+         private int threadNum = 0;
+         public synchronized Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "convert-" + (++threadNum));
+            t.setDaemon(true);
+            return t;
+         }
+      });
+      List<Future<Result>> futures = new ArrayList<Future<Result>>(files.length);
+      out.println(HEADER);
+      for (int i = 0; i < files.length; i++)
+      {
+         final File file = files[i];
+         final int id = i + 1;
+         futures.add(executor.submit(new Callable<Result>() {
+            public Result call() {
+               Result result = convert(file, id);
+               synchronized (out)
+               {
+                  out.println(result);
+               }
+               return result;
+            }
+         }));
+      }
+      executor.shutdown();
+      List<Result> results = new ArrayList<Result>(files.length);
+      try
+      {
+         for (Future<Result> future : futures)
+         {
+            results.add(future.get());
+         }
+      } catch (ExecutionException e)
+      {
+         throw new RuntimeException(e.getCause());
+      }
+      Collections.sort(results, new Comparator<Result>() {
+         public int compare(Result r1, Result r2) {
+            return r1.name.compareTo(r2.name);
+         }
+      });
+      return results;
+   }
+
+   /**
+    * Converts one GEDCOM; never throws, so that one bad GEDCOM doesn't stop the run
+    * @param gedFile GEDCOM to convert
+    * @param id number of the GEDCOM in this run, for the metrics
+    * @return the outcome
+    */
+   public Result convert(File gedFile, int id)
+   {
+      Result result = new Result();
+      String fileName = gedFile.getName();
+      result.name = fileName.substring(0, fileName.length() - ".ged".length());
+      File xmlFile = new File(outputDir, result.name + ".xml");
+      JobMetrics.begin(id);
+      try
+      {
+         StringBuffer placeXMLBuffer = new StringBuffer();
+         Gedcom gedcom = new Gedcom(placeNames, gedFile.getPath(), userName, placeServer, defaultCountry, treeID,
+                                    trustedUploader, ignoreUnexpectedTags, placeXMLBuffer);
+         if (gedcom.isInvalid())
+         {
+            result.status = "invalid";
+            xmlFile.delete();
+         } else
+         {
+            InProcessXML.prepare(gedcom);
+            CountingOutputStream counter = new CountingOutputStream(GzipFiles.openOutputStream(xmlFile, compress));
+            PrintWriter xmlOut = new PrintWriter(new BufferedWriter(new OutputStreamWriter(counter, "UTF-8")));
+            try
+            {
+               InProcessXML.print(gedcom, placeXMLBuffer, xmlOut, true, InProcessXML.NO_MATCHES);
+            } finally
+            {
+               xmlOut.close();
+            }
+            result.xmlBytes = counter.count;
+            result.fileBytes = xmlFile.length();
+            result.numPeople = gedcom.getPeople().size();
+            result.numFamilies = gedcom.getFamilies().size();
+            result.numWarnings = gedcom.getNumWarnings();
+            result.status = gedcom.getNumWarnings() > 0 ? "warnings" : "ok";
+         }
+      } catch (Exception e)
+      {
+         logger.warn(fileName + ": " + e.getMessage(), e);
+         result.status = "error: " + e.getMessage();
+      } finally
+      {
+         JobMetrics metrics = JobMetrics.current();
+         JobMetrics.end();
+         result.wallNanos = metrics.getTotals().getWallNanos();
+         result.cpuNanos = metrics.getTotals().getCpuNanos();
+         result.allocatedBytes = metrics.getTotals().getAllocatedBytes();
+      }
+      if (previousDir != null)
+      {
+         File previousFile = new File(previousDir, xmlFile.getName());
+         if (previousFile.exists() && xmlFile.exists())
+         {
+            try
+            {
+               result.diff = InProcessDiff.diffToFile(previousFile, xmlFile, outputDir);
+            } catch (IOException e)
+            {
+               logger.warn("Could not compare " + xmlFile + " with " + previousFile + ": " + e.getMessage());
+            }
+         }
+      }
+      return result;
+   }
+
+   // The most heap that has been used at once, summed over the heap's pools
+   private static long getPeakHeapUsed()
+   {
+      long peak = 0;
+      for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+      {
+         if (pool.getType() == MemoryType.HEAP && pool.getPeakUsage() != null)
+         {
+            peak += pool.getPeakUsage().getUsed();
+         }
+      }
+      return peak;
+   }
+
+   public static void main(String [] args) throws ParseException, IOException, InterruptedException
+   {
+      Options opt = new Options();
+      opt.addOption("g", true, "Directory of .ged files");
+      opt.addOption("o", true, "Directory to write the in-process XML files to");
+      opt.addOption("d", true, "Directory of the in-process XML files of an earlier run, to compare with");
+      opt.addOption("t", true, "Number of GEDCOMs to convert at once (number of processors)");
+      opt.addOption("s", true, "Place server host:port; places are standardized to themselves without one");
+      opt.addOption("p", true, "Properties file with the place server's settings, e.g. place_chunk_names");
+      opt.addOption("c", true, "Default country");
+      opt.addOption("u", true, "User name of the GEDCOMs' owner (ConvertGedcoms)");
+      opt.addOption("r", true, "Tree id (1)");
+      opt.addOption("T", false, "The owner is a trusted uploader");
+      opt.addOption("x", false, "Ignore unexpected tags");
+      opt.addOption("z", false, "Write the XML files gzip-compressed");
+      opt.addOption("h", false, "Print out help information");
+      BasicParser bp = new BasicParser();
+      CommandLine cl = bp.parse(opt, args);
+
+      if (cl.hasOption("h") || !cl.hasOption("g") || !cl.hasOption("o"))
+      {
+         System.out.println("Converts a directory of GEDCOMs to in-process XML files, as the Uploader does.");
+         HelpFormatter f = new HelpFormatter();
+         f.printHelp("ConvertGedcoms", opt);
+         return;
+      }
+      ConvertGedcoms converter = new ConvertGedcoms(new File(cl.getOptionValue("g")), new File(cl.getOptionValue("o")));
+      if (cl.hasOption("d"))
+      {
+         converter.setPreviousDir(new File(cl.getOptionValue("d")));
+      }
+      if (cl.hasOption("t"))
+      {
+         converter.setNumThreads(Integer.parseInt(cl.getOptionValue("t")));
+      }
+      CachingPlaceNames cachingPlaceNames = null;
+      if (cl.hasOption("s"))
+      {
+         Properties properties = new Properties();
+         if (cl.hasOption("p"))
+         {
+            InputStream in = new FileInputStream(cl.getOptionValue("p"));
+            properties.load(in);
+            in.close();
+         }
+         converter.setPlaceServer(cl.getOptionValue("s"), properties);
+         cachingPlaceNames = (CachingPlaceNames) converter.placeNames;
+      }
+      converter.setDefaultCountry(cl.getOptionValue("c", ""));
+      converter.setUserName(cl.getOptionValue("u", "ConvertGedcoms"));
+      converter.setTreeID(Integer.parseInt(cl.getOptionValue("r", "1")));
+      converter.setTrustedUploader(cl.hasOption("T"));
+      converter.setIgnoreUnexpectedTags(cl.hasOption("x"));
+      converter.setCompress(cl.hasOption("z"));
+
+      long start = System.nanoTime();
+      List<Result> results = converter.convertAll(System.out);
+      double seconds = (System.nanoTime() - start) / 1e9;
+
+      Map<String, Integer> statuses = new TreeMap<String, Integer>();
+      int numChanged = 0;
+      long xmlBytes = 0;
+      long fileBytes = 0;
+      for (Result result : results)
+      {
+         xmlBytes += result.getXmlBytes();
+         fileBytes += result.getFileBytes();
+         String status = result.getStatus().startsWith("error") ? "error" : result.getStatus();
+         Integer count = statuses.get(status);
+         statuses.put(status, count == null ? 1 : count + 1);
+         if (result.getDiff() != null && !result.getDiff().isSame())
+         {
+            numChanged++;
+         }
+      }
+      System.out.println();
+      System.out.println(String.format("%d GEDCOMs in %.1f s (%.2f GEDCOMs/s), peak heap %.1f MB", results.size(),
+                                       seconds, results.size() / seconds, getPeakHeapUsed() / 1048576.0));
+      System.out.println("Outcomes: " + statuses);
+      if (converter.compress && xmlBytes > 0)
+      {
+         System.out.println(String.format("XML: %.1f MB written as %.1f MB (%.1f%%)", xmlBytes / 1048576.0,
+                                          fileBytes / 1048576.0, 100.0 * fileBytes / xmlBytes));
+      }
+      if (converter.previousDir != null)
+      {
+         System.out.println(numChanged + " GEDCOMs differ from " + converter.previousDir);
+      }
+      if (cachingPlaceNames != null)
+      {
+         System.out.println("Places: " + cachingPlaceNames.getNumMisses() + " sent to the place server, " +
+                            cachingPlaceNames.getNumHits() + " found in the cache");
+      }
+   }
+}
@@ -0,0 +1,46 @@
+package org.werelate.gedcom.scripts;
+
+import org.apache.commons.cli.*;
+import org.werelate.gedcom.PageRecordFile;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Converts an in-process XML file to a PageRecordFile, or a PageRecordFile back to XML,
+ * depending on which the input file is, and prints the sizes and how long it took.
+ */
+public class ConvertInProcess {
+   public static void main(String [] args) throws ParseException, IOException
+   {
+      Options opt = new Options();
+      opt.addOption("i", true, "In-process XML file or page record file to convert");
+      opt.addOption("o", true, "File to write");
+      opt.addOption("h", false, "Print out help information");
+      BasicParser bp = new BasicParser();
+      CommandLine cl = bp.parse(opt, args);
+
+      if (cl.hasOption("h") || !cl.hasOption("i") || !cl.hasOption("o"))
+      {
+         System.out.println("Converts between in-process XML files and page record files.");
+         HelpFormatter f = new HelpFormatter();
+         f.printHelp("ConvertInProcess", opt);
+      } else
+      {
+         File in = new File(cl.getOptionValue("i"));
+         File out = new File(cl.getOptionValue("o"));
+         long start = System.currentTimeMillis();
+         boolean toXML = PageRecordFile.isPageRecordFile(in);
+         if (toXML)
+         {
+            PageRecordFile.toXML(in, out);
+         } else
+         {
+            PageRecordFile.fromXML(in, out);
+         }
+         System.out.println((toXML ? "Wrote XML " : "Wrote page records ") + out + ": " +
+                            in.length() + " -> " + out.length() + " bytes in " +
+                            (System.currentTimeMillis() - start) + " ms");
+      }
+   }
+}
@@ -0,0 +1,251 @@
+package org.werelate.gedcom.scripts;
+
+import org.apache.commons.cli.*;
+import org.werelate.util.GzipFiles;
+
+import java.io.*;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Compares two in-process XML files of the same GEDCOM page by page,
+ * so that a change in parsing or printing can be reviewed as the list of
+ * pages it changed. Each place element, each page and the gedcom element
+ * itself is a record, keyed by the place key or the page's namespace and id;
+ * the lines of a changed record are diffed like diff does.
+ * Replaces running diff and then InterpretDiffFile over the output.
+ */
+public class InProcessDiff {
+   private static final Pattern pPlaceKey = Pattern.compile("^<place\\s+key=\"([^\"]*)\"");
+   private static final Pattern pPage = Pattern.compile("^<page\\s+namespace=\"([^\"]*)\"\\s+id=\"([^\"]*)\"");
+
+   /**
+    * Numbers of records that differ between two files
+    */
+   public static class Summary {
+      private int numChanged = 0;
+      private int numAdded = 0;
+      private int numRemoved = 0;
+
+      public int getNumChanged() {
+         return numChanged;
+      }
+
+      public int getNumAdded() {
+         return numAdded;
+      }
+
+      public int getNumRemoved() {
+         return numRemoved;
+      }
+
+      public boolean isSame() {
+         return numChanged == 0 && numAdded == 0 && numRemoved == 0;
+      }
+
+      public String toString()
+      {
+         return isSame() ? "same" : numChanged + " changed, " + numAdded + " added, " + numRemoved + " removed";
+      }
+   }
+
+   /**
+    * Writes the records that differ, with their lines marked "- " if only in the old file,
+    * "+ " if only in the new file and "  " if in both
+    * @param oldFile file written before the change
+    * @param newFile file written after the change
+    * @param out where to write the differences
+    * @return the numbers of records that differ
+    * @throws IOException
+    */
+   public static Summary diff(File oldFile, File newFile, PrintWriter out) throws IOException
+   {
+      Map<String, List<String>> oldRecords = readRecords(oldFile);
+      Map<String, List<String>> newRecords = readRecords(newFile);
+      Summary summary = new Summary();
+      for (Map.Entry<String, List<String>> entry : newRecords.entrySet())
+      {
+         List<String> oldLines = oldRecords.get(entry.getKey());
+         if (oldLines == null)
+         {
+            summary.numAdded++;
+            out.println("added " + entry.getKey());
+            printLines("+ ", entry.getValue(), out);
+         } else if (!oldLines.equals(entry.getValue()))
+         {
+            summary.numChanged++;
+            out.println("changed " + entry.getKey());
+            printDiff(oldLines, entry.getValue(), out);
+         }
+      }
+      for (Map.Entry<String, List<String>> entry : oldRecords.entrySet())
+      {
+         if (!newRecords.containsKey(entry.getKey()))
+         {
+            summary.numRemoved++;
+            out.println("removed " + entry.getKey());
+            printLines("- ", entry.getValue(), out);
+         }
+      }
+      return summary;
+   }
+
+   /**
+    * Reads the records of an in-process XML file
+    * @return key -> lines of the record, in the order of the file
+    * @throws IOException
+    */
+   public static Map<String, List<String>> readRecords(File file) throws IOException
+   {
+      Map<String, List<String>> records = new LinkedHashMap<String, List<String>>();
+      BufferedReader in = new BufferedReader(new InputStreamReader(GzipFiles.openInputStream(file), "UTF-8"));
+      try
+      {
+         List<String> record = null;
+         String line;
+         while ((line = in.readLine()) != null)
+         {
+            Matcher m;
+            if (line.startsWith("<gedcom"))
+            {
+               record = addRecord(records, "gedcom");
+               record.add(line);
+               record = null;
+            } else if ((m = pPlaceKey.matcher(line)).find())
+            {
+               addRecord(records, "place " + m.group(1)).add(line);
+            } else if ((m = pPage.matcher(line)).find())
+            {
+               record = addRecord(records, "page " + m.group(1) + ':' + m.group(2));
+               record.add(line);
+            } else if (record != null)
+            {
+               record.add(line);
+               if (line.equals("</page>"))
+               {
+                  record = null;
+               }
+            } else if (!line.equals("</gedcom>"))
+            {
+               addRecord(records, "line " + records.size()).add(line);
+            }
+         }
+      } finally
+      {
+         in.close();
+      }
+      return records;
+   }
+
+   // Adds a record, making the key unique if a record already has it
+   private static List<String> addRecord(Map<String, List<String>> records, String key)
+   {
+      String uniqueKey = key;
+      for (int i = 2; records.containsKey(uniqueKey); i++)
+      {
+         uniqueKey = key + " #" + i;
+      }
+      List<String> record = new ArrayList<String>();
+      records.put(uniqueKey, record);
+      return record;
+   }
+
+   private static void printLines(String prefix, List<String> lines, PrintWriter out)
+   {
+      for (String line : lines)
+      {
+         out.println(prefix + line);
+      }
+   }
+
+   // Prints the lines of both records, marking those that aren't in their longest common subsequence
+   private static void printDiff(List<String> oldLines, List<String> newLines, PrintWriter out)
+   {
+      int n = oldLines.size();
+      int m = newLines.size();
+      int[][] common = new int[n + 1][m + 1];
+      for (int i = n - 1; i >= 0; i--)
+      {
+         for (int j = m - 1; j >= 0; j--)
+         {
+            common[i][j] = oldLines.get(i).equals(newLines.get(j)) ? common[i + 1][j + 1] + 1 :
+                           Math.max(common[i + 1][j], common[i][j + 1]);
+         }
+      }
+      int i = 0, j = 0;
+      while (i < n || j < m)
+      {
+         if (i < n && j < m && oldLines.get(i).equals(newLines.get(j)))
+         {
+            out.println("  " + oldLines.get(i++));
+            j++;
+         } else if (j == m || (i < n && common[i + 1][j] >= common[i][j + 1]))
+         {
+            out.println("- " + oldLines.get(i++));
+         } else
+         {
+            out.println("+ " + newLines.get(j++));
+         }
+      }
+   }
+
+   public static void main(String [] args) throws ParseException, IOException
+   {
+      Options opt = new Options();
+      opt.addOption("a", true, "Directory of in-process XML files written before the change");
+      opt.addOption("b", true, "Directory of in-process XML files written after the change");
+      opt.addOption("o", true, "Directory to write a .diff file to for each file that differs");
+      opt.addOption("h", false, "Print out help information");
+      BasicParser bp = new BasicParser();
+      CommandLine cl = bp.parse(opt, args);
+
+      if (cl.hasOption("h") || !cl.hasOption("a") || !cl.hasOption("b") || !cl.hasOption("o"))
+      {
+         System.out.println("Compares the in-process XML files of two directories page by page.");
+         HelpFormatter f = new HelpFormatter();
+         f.printHelp("InProcessDiff", opt);
+      } else
+      {
+         File oldDir = new File(cl.getOptionValue("a"));
+         File newDir = new File(cl.getOptionValue("b"));
+         File outDir = new File(cl.getOptionValue("o"));
+         outDir.mkdirs();
+         String[] names = newDir.list();
+         Arrays.sort(names);
+         for (String name : names)
+         {
+            File oldFile = new File(oldDir, name);
+            if (name.endsWith(".xml") && oldFile.exists())
+            {
+               System.out.println(name + ": " + diffToFile(oldFile, new File(newDir, name), outDir));
+            }
+         }
+      }
+   }
+
+   /**
+    * Diffs the files, writing the differences to &lt;name&gt;.diff in outDir if there are any
+    * @return the numbers of records that differ
+    * @throws IOException
+    */
+   public static Summary diffToFile(File oldFile, File newFile, File outDir) throws IOException
+   {
+      String name = newFile.getName();
+      File diffFile = new File(outDir, name.substring(0, name.length() - ".xml".length()) + ".diff");
+      PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(diffFile), "UTF-8"));
+      Summary summary;
+      try
+      {
+         summary = diff(oldFile, newFile, out);
+      } finally
+      {
+         out.close();
+      }
+      if (summary.isSame())
+      {
+         diffFile.delete();
+      }
+      return summary;
+   }
+}
@@ -30,6 +30,7 @@ public class MeasureOverlap {
       opt.addOption("p", true, "Location of the properties file to use.");
       opt.addOption("a", true, "Gedcom id of the file gedcom b is to be compared to.");
       opt.addOption("b", true, "Gedcom id which is to be compared against GEDCOM a to determine overlap.");
+      opt.addOption("e", false, "Also read both GEDCOMs to measure the overlap exactly.");
       opt.addOption("h", false, "Print out help information");
       BasicParser bp = new BasicParser();
       CommandLine cl = bp.parse(opt, args);
@@ -44,10 +45,19 @@ public class MeasureOverlap {
          Properties props = new Properties();
          props.load(new FileInputStream(cl.getOptionValue("p")));
          Uploader uploader = new Uploader(props);
-         int percentOfBOverlapsWithA = uploader.getOverlapPercentage(Integer.parseInt(cl.getOptionValue("a")),
-               Integer.parseInt(cl.getOptionValue("b")));
+         int a = Integer.parseInt(cl.getOptionValue("a"));
+         int b = Integer.parseInt(cl.getOptionValue("b"));
+         // Uses the same name signatures as the overlap check
+         int percentOfBOverlapsWithA = uploader.getOverlapPercentage(a, b);
          System.out.println(percentOfBOverlapsWithA + "% of " + cl.getOptionValue("b") +
                            ".ged overlaps with " + cl.getOptionValue("a") + ".ged");
+         if (cl.hasOption("e"))
+         {
+            System.out.println("Estimated from signatures: " +
+                  uploader.getNameSignature(b).estimateOverlapPercentage(uploader.getNameSignature(a)) +
+                  "%, exact: " + uploader.getExactOverlapPercentage(a, b) + "%");
+         }
+         uploader.shutdown();
       }
    }
 }
@@ -0,0 +1,353 @@
+package org.werelate.gedcom.scripts;
+
+import org.apache.commons.cli.*;
+import org.lm.gedml.AnselOutputStreamWriter;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Writes a synthetic GEDCOM for benchmarks and offline runs.
+ * The same settings and seed always give the same file.
+ *
+ * People are spread evenly over the generations, oldest first; each family
+ * joins a man and a woman of one generation, and each person after the first
+ * generation is the child of a family of the generation before. People of the
+ * last generations are born recently enough to be living. Names and places
+ * include accented letters, so the ANSEL encoding is exercised too.
+ */
+public class SyntheticGedcom {
+   private static final String [] MALE_NAMES = {
+         "John", "William", "Thomas", "James", "Hans", "Pierre", "J\u00f6ns", "\u00d3lafur", "J\u00f3zef", "Henry"
+   };
+   private static final String [] FEMALE_NAMES = {
+         "Mary", "Elizabeth", "Anna", "Sarah", "Margarethe", "Marie-Th\u00e9r\u00e8se", "\u00c5sa", "Zo\u00eb", "Ingrid", "Jane"
+   };
+   private static final String [] SURNAMES = {
+         "Smith", "M\u00fcller", "Johnson", "Brown", "Lef\u00e8vre", "\u00d8deg\u00e5rd", "Nu\u00f1ez", "Kowalski", "Andersson", "Taylor",
+         "O'Brien", "Van der Berg", "\u00d8stergaard", "Hern\u00e1ndez", "Clark"
+   };
+   private static final String [] PLACES = {
+         "Boston, Suffolk, Massachusetts, United States", "Z\u00fcrich, Switzerland", "Malm\u00f6, Sk\u00e5ne, Sweden",
+         "Besan\u00e7on, Doubs, France", "Krak\u00f3w, Poland", "Dublin, Ireland", "York, Yorkshire, England",
+         "Salt Lake City, Salt Lake, Utah, United States", "Bergen, Hordaland, Norway", "Toledo, Spain"
+   };
+   private static final String [] MONTHS = {
+         "JAN", "FEB", "MAR", "APR", "MAY", "JUN", "JUL", "AUG", "SEP", "OCT", "NOV", "DEC"
+   };
+   private static final String WORDS =
+         "the family lived on a farm near the river and moved west after the war where " +
+         "they kept a store and raised cattle until the children were grown and married";
+
+   private int numPeople = 1000;
+   private int numFamilies = 400;
+   private int numSources = 50;
+   private int numNotes = 100;
+   private int noteLength = 500;
+   private int numGenerations = 8;
+   private String encoding = "UTF-8";
+   private long seed = 1;
+
+   public void setNumPeople(int numPeople) {
+      this.numPeople = Math.max(1, numPeople);
+   }
+
+   public void setNumFamilies(int numFamilies) {
+      this.numFamilies = Math.max(0, numFamilies);
+   }
+
+   public void setNumSources(int numSources) {
+      this.numSources = Math.max(0, numSources);
+   }
+
+   public void setNumNotes(int numNotes) {
+      this.numNotes = Math.max(0, numNotes);
+   }
+
+   /**
+    * @param noteLength number of characters in each note
+    */
+   public void setNoteLength(int noteLength) {
+      this.noteLength = Math.max(1, noteLength);
+   }
+
+   public void setNumGenerations(int numGenerations) {
+      this.numGenerations = Math.max(1, numGenerations);
+   }
+
+   /**
+    * @param encoding UTF-8, ANSEL or ANSI (Windows-1252)
+    */
+   public void setEncoding(String encoding) {
+      this.encoding = encoding.toUpperCase();
+   }
+
+   public void setSeed(long seed) {
+      this.seed = seed;
+   }
+
+   // Generation of the person, 0 being the oldest
+   private int generation(int person)
+   {
+      return (int) ((long) person * numGenerations / numPeople);
+   }
+
+   private boolean isMale(int person)
+   {
+      return person % 2 == 0;
+   }
+
+   /**
+    * Writes the GEDCOM to the file
+    * @throws IOException
+    */
+   public void write(File file) throws IOException
+   {
+      OutputStream os = new BufferedOutputStream(new FileOutputStream(file));
+      Writer w;
+      if (encoding.equals("ANSEL"))
+      {
+         w = new AnselOutputStreamWriter(os);
+      } else if (encoding.equals("ANSI"))
+      {
+         w = new OutputStreamWriter(os, "Cp1252");
+      } else
+      {
+         w = new OutputStreamWriter(os, "UTF-8");
+      }
+      PrintWriter out = new PrintWriter(new BufferedWriter(w));
+      try
+      {
+         write(out);
+      } finally
+      {
+         out.close();
+         os.close();
+      }
+   }
+
+   private void write(PrintWriter out)
+   {
+      Random random = new Random(seed);
+      int lastYear = 2000;
+      int firstYear = lastYear - 30 * numGenerations;
+
+      // the people of each generation, men and women separately
+      List<List<Integer>> men = new ArrayList<List<Integer>>();
+      List<List<Integer>> women = new ArrayList<List<Integer>>();
+      for (int g = 0; g < numGenerations; g++)
+      {
+         men.add(new ArrayList<Integer>());
+         women.add(new ArrayList<Integer>());
+      }
+      for (int p = 0; p < numPeople; p++)
+      {
+         (isMale(p) ? men : women).get(generation(p)).add(p);
+      }
+
+      // Families of every generation but the last, in order of generation
+      int parentGenerations = Math.max(1, numGenerations - 1);
+      int [] husband = new int[numFamilies];
+      int [] wife = new int[numFamilies];
+      int [] familyGeneration = new int[numFamilies];
+      // first family of each generation, and one past the last
+      int [] firstFamily = new int[numGenerations + 1];
+      for (int f = 0; f < numFamilies; f++)
+      {
+         int g = (int) ((long) f * parentGenerations / numFamilies);
+         familyGeneration[f] = g;
+         husband[f] = pick(random, men.get(g));
+         wife[f] = pick(random, women.get(g));
+      }
+      for (int g = 0, f = 0; g <= numGenerations; g++)
+      {
+         while (f < numFamilies && familyGeneration[f] < g)
+         {
+            f++;
+         }
+         firstFamily[g] = f;
+      }
+
+      // Each person after the first generation is a child of a family of the generation before
+      int [] childOf = new int[numPeople];
+      List<List<Integer>> children = new ArrayList<List<Integer>>();
+      List<List<Integer>> spouseOf = new ArrayList<List<Integer>>();
+      for (int f = 0; f < numFamilies; f++)
+      {
+         children.add(new ArrayList<Integer>());
+      }
+      for (int p = 0; p < numPeople; p++)
+      {
+         spouseOf.add(new ArrayList<Integer>());
+      }
+      for (int f = 0; f < numFamilies; f++)
+      {
+         spouseOf.get(husband[f]).add(f);
+         spouseOf.get(wife[f]).add(f);
+      }
+      for (int p = 0; p < numPeople; p++)
+      {
+         int g = generation(p);
+         childOf[p] = -1;
+         if (g > 0 && firstFamily[g] > firstFamily[g - 1])
+         {
+            int f = firstFamily[g - 1] + random.nextInt(firstFamily[g] - firstFamily[g - 1]);
+            childOf[p] = f;
+            children.get(f).add(p);
+         }
+      }
+
+      printHeader(out);
+
+      for (int p = 0; p < numPeople; p++)
+      {
+         boolean male = isMale(p);
+         int birthYear = firstYear + 30 * generation(p) + random.nextInt(25);
+         out.println("0 @I" + p + "@ INDI");
+         out.println("1 NAME " + (male ? pick(random, MALE_NAMES) : pick(random, FEMALE_NAMES)) +
+               " /" + SURNAMES[(p / 2) % SURNAMES.length] + "/");
+         out.println("1 SEX " + (male ? 'M' : 'F'));
+         out.println("1 BIRT");
+         printDate(out, random, birthYear);
+         out.println("2 PLAC " + pick(random, PLACES));
+         if (birthYear < 1920)
+         {
+            out.println("1 DEAT");
+            printDate(out, random, birthYear + 40 + random.nextInt(50));
+            out.println("2 PLAC " + pick(random, PLACES));
+         }
+         if (numSources > 0 && random.nextInt(3) == 0)
+         {
+            out.println("1 SOUR @S" + random.nextInt(numSources) + "@");
+            out.println("2 PAGE p. " + (1 + random.nextInt(400)));
+         }
+         if (numNotes > 0 && p % Math.max(1, numPeople / numNotes) == 0)
+         {
+            out.println("1 NOTE @N" + ((p / Math.max(1, numPeople / numNotes)) % numNotes) + "@");
+         }
+         if (childOf[p] >= 0)
+         {
+            out.println("1 FAMC @F" + childOf[p] + "@");
+         }
+         for (int f : spouseOf.get(p))
+         {
+            out.println("1 FAMS @F" + f + "@");
+         }
+      }
+
+      for (int f = 0; f < numFamilies; f++)
+      {
+         out.println("0 @F" + f + "@ FAM");
+         out.println("1 HUSB @I" + husband[f] + "@");
+         out.println("1 WIFE @I" + wife[f] + "@");
+         out.println("1 MARR");
+         printDate(out, random, firstYear + 30 * familyGeneration[f] + 20 + random.nextInt(10));
+         out.println("2 PLAC " + pick(random, PLACES));
+         for (int child : children.get(f))
+         {
+            out.println("1 CHIL @I" + child + "@");
+         }
+      }
+
+      for (int s = 0; s < numSources; s++)
+      {
+         String place = pick(random, PLACES);
+         out.println("0 @S" + s + "@ SOUR");
+         out.println("1 TITL Parish Registers of " + place.substring(0, place.indexOf(',')) + ", " + (1600 + s));
+         out.println("1 AUTH " + pick(random, SURNAMES) + " Historical Society");
+         out.println("1 PUBL " + place);
+      }
+
+      for (int n = 0; n < numNotes; n++)
+      {
+         printNote(out, random, n);
+      }
+
+      out.println("0 TRLR");
+   }
+
+   private void printHeader(PrintWriter out)
+   {
+      out.println("0 HEAD");
+      out.println("1 SOUR SyntheticGedcom");
+      out.println("1 SUBM @SUBM1@");
+      out.println("1 GEDC");
+      out.println("2 VERS 5.5");
+      out.println("2 FORM LINEAGE-LINKED");
+      out.println("1 CHAR " + encoding);
+      out.println("0 @SUBM1@ SUBM");
+      out.println("1 NAME Synthetic Submitter");
+   }
+
+   private static void printDate(PrintWriter out, Random random, int year)
+   {
+      out.println("2 DATE " + (1 + random.nextInt(28)) + ' ' + MONTHS[random.nextInt(12)] + ' ' + year);
+   }
+
+   // Notes are split into lines of at most 200 characters with CONC
+   private void printNote(PrintWriter out, Random random, int n)
+   {
+      StringBuilder text = new StringBuilder();
+      while (text.length() < noteLength)
+      {
+         int start = random.nextInt(WORDS.length() / 2);
+         text.append(WORDS, start, WORDS.length()).append(' ');
+      }
+      text.setLength(noteLength);
+      String prefix = "0 @N" + n + "@ NOTE ";
+      for (int i = 0; i < text.length(); i += 200)
+      {
+         String chunk = text.substring(i, Math.min(text.length(), i + 200));
+         out.println(prefix + chunk);
+         prefix = "1 CONC ";
+      }
+   }
+
+   private static int pick(Random random, List<Integer> people)
+   {
+      return people.isEmpty() ? 0 : people.get(random.nextInt(people.size()));
+   }
+
+   private static String pick(Random random, String [] values)
+   {
+      return values[random.nextInt(values.length)];
+   }
+
+   public static void main(String [] args) throws ParseException, IOException
+   {
+      Options opt = new Options();
+      opt.addOption("o", true, "GEDCOM file to write");
+      opt.addOption("i", true, "Number of individuals (1000)");
+      opt.addOption("f", true, "Number of families (400)");
+      opt.addOption("s", true, "Number of sources (50)");
+      opt.addOption("n", true, "Number of notes (100)");
+      opt.addOption("l", true, "Characters in each note (500)");
+      opt.addOption("g", true, "Number of generations (8)");
+      opt.addOption("e", true, "Encoding: UTF-8, ANSEL or ANSI (UTF-8)");
+      opt.addOption("r", true, "Random seed (1)");
+      opt.addOption("h", false, "Print out help information");
+      BasicParser bp = new BasicParser();
+      CommandLine cl = bp.parse(opt, args);
+
+      if (cl.hasOption("h") || !cl.hasOption("o"))
+      {
+         System.out.println("Writes a synthetic GEDCOM for benchmarks and offline runs.");
+         HelpFormatter f = new HelpFormatter();
+         f.printHelp("SyntheticGedcom", opt);
+      } else
+      {
+         SyntheticGedcom gedcom = new SyntheticGedcom();
+         gedcom.setNumPeople(Integer.parseInt(cl.getOptionValue("i", "1000")));
+         gedcom.setNumFamilies(Integer.parseInt(cl.getOptionValue("f", "400")));
+         gedcom.setNumSources(Integer.parseInt(cl.getOptionValue("s", "50")));
+         gedcom.setNumNotes(Integer.parseInt(cl.getOptionValue("n", "100")));
+         gedcom.setNoteLength(Integer.parseInt(cl.getOptionValue("l", "500")));
+         gedcom.setNumGenerations(Integer.parseInt(cl.getOptionValue("g", "8")));
+         gedcom.setEncoding(cl.getOptionValue("e", "UTF-8"));
+         gedcom.setSeed(Long.parseLong(cl.getOptionValue("r", "1")));
+         gedcom.write(new File(cl.getOptionValue("o")));
+      }
+   }
+}
@@ -0,0 +1,134 @@
+package org.werelate.util;
+
+/**
+ * Stops calls to an endpoint after it has failed several times in a row.
+ * After openMillis, a single trial call is let through; if it succeeds the
+ * breaker closes again, otherwise it stays open for another openMillis.
+ */
+public class CircuitBreaker {
+   public enum State { CLOSED, OPEN, HALF_OPEN }
+
+   private int failureThreshold;
+   private long openMillis;
+   private State state = State.CLOSED;
+   private int consecutiveFailures = 0;
+   private long openedAt = 0;
+   private boolean trialInFlight = false;
+   private int numOpened = 0;
+
+   /**
+    * @param failureThreshold number of consecutive failures that opens the breaker
+    * @param openMillis how long the breaker stays open before letting a trial call through
+    */
+   public CircuitBreaker(int failureThreshold, long openMillis)
+   {
+      this.failureThreshold = Math.max(1, failureThreshold);
+      this.openMillis = openMillis;
+   }
+
+   /**
+    * @return whether a call may be made now
+    */
+   public synchronized boolean allowRequest()
+   {
+      switch (state)
+      {
+         case CLOSED:
+            return true;
+         case OPEN:
+            if (now() - openedAt >= openMillis)
+            {
+               state = State.HALF_OPEN;
+               trialInFlight = true;
+               return true;
+            }
+            return false;
+         default:
+            // Only one trial call at a time
+            if (trialInFlight)
+            {
+               return false;
+            }
+            trialInFlight = true;
+            return true;
+      }
+   }
+
+   /**
+    * Waits until a call may be made: until the breaker closes, or lets this caller make the trial call
+    * @param maxMillis how long to wait at most
+    * @return whether a call may be made now; false if it still may not after maxMillis
+    */
+   public synchronized boolean awaitRequest(long maxMillis) throws InterruptedException
+   {
+      long end = System.currentTimeMillis() + maxMillis;
+      while (!allowRequest())
+      {
+         long remaining = end - System.currentTimeMillis();
+         if (remaining <= 0)
+         {
+            return false;
+         }
+         // Woken when another caller's call or trial ends; while open, when the trial is due
+         long wait = remaining;
+         if (state == State.OPEN)
+         {
+            wait = Math.min(wait, Math.max(1, openedAt + openMillis - now()));
+         }
+         wait(wait);
+      }
+      return true;
+   }
+
+   public synchronized void recordSuccess()
+   {
+      consecutiveFailures = 0;
+      trialInFlight = false;
+      state = State.CLOSED;
+      notifyAll();
+   }
+
+   public synchronized void recordFailure()
+   {
+      consecutiveFailures++;
+      trialInFlight = false;
+      if (state == State.HALF_OPEN || consecutiveFailures >= failureThreshold)
+      {
+         if (state != State.OPEN)
+         {
+            numOpened++;
+         }
+         state = State.OPEN;
+         openedAt = now();
+      }
+      notifyAll();
+   }
+
+   /**
+    * Ends a trial call that neither succeeded nor failed, e.g. because it was interrupted,
+    * so that another trial may be made
+    */
+   public synchronized void cancelTrial()
+   {
+      trialInFlight = false;
+      notifyAll();
+   }
+
+   public synchronized State getState()
+   {
+      return state;
+   }
+
+   /**
+    * @return how many times the breaker has opened
+    */
+   public synchronized int getNumOpened()
+   {
+      return numOpened;
+   }
+
+   protected long now()
+   {
+      return System.currentTimeMillis();
+   }
+}
@@ -0,0 +1,73 @@
+package org.werelate.util;
+
+import java.io.*;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Opens files that may be gzip-compressed. A compressed file keeps its name;
+ * it is told apart from an uncompressed one by its first two bytes, so readers
+ * don't need to know which kind they were given.
+ */
+public class GzipFiles {
+   /**
+    * Size of the buffers of the streams opened here
+    */
+   public static final int BUFFER_SIZE = 65536;
+
+   private static final int MAGIC_1 = 0x1f;
+   private static final int MAGIC_2 = 0x8b;
+
+   private GzipFiles()
+   {
+   }
+
+   /**
+    * @return whether the file starts with the gzip magic bytes
+    * @throws IOException
+    */
+   public static boolean isGzipped(File file) throws IOException
+   {
+      InputStream in = new FileInputStream(file);
+      try
+      {
+         return in.read() == MAGIC_1 && in.read() == MAGIC_2;
+      } finally
+      {
+         in.close();
+      }
+   }
+
+   /**
+    * @return a buffered stream of the file's bytes, decompressed if the file is gzip-compressed
+    * @throws IOException
+    */
+   public static InputStream openInputStream(File file) throws IOException
+   {
+      BufferedInputStream in = new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE);
+      in.mark(2);
+      boolean gzipped = in.read() == MAGIC_1 && in.read() == MAGIC_2;
+      in.reset();
+      return gzipped ? new GZIPInputStream(in, BUFFER_SIZE) : in;
+   }
+
+   /**
+    * @param compress whether to gzip what is written
+    * @return a buffered stream that writes the file; it must be closed to finish a compressed file
+    * @throws IOException
+    */
+   public static OutputStream openOutputStream(File file, boolean compress) throws IOException
+   {
+      return wrap(new FileOutputStream(file), compress);
+   }
+
+   /**
+    * @param compress whether to gzip what is written
+    * @return a buffered stream that writes to out, compressing it if asked to
+    * @throws IOException
+    */
+   public static OutputStream wrap(OutputStream out, boolean compress) throws IOException
+   {
+      return compress ? new GZIPOutputStream(out, BUFFER_SIZE) : new BufferedOutputStream(out, BUFFER_SIZE);
+   }
+}
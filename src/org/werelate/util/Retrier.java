@@ -0,0 +1,290 @@
+package org.werelate.util;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.sql.SQLException;
+import java.sql.SQLNonTransientConnectionException;
+import java.sql.SQLNonTransientException;
+import java.util.Properties;
+import java.util.Random;
+
+/**
+ * Retries calls to one endpoint (the wiki, a Solr server, the database)
+ * with exponential backoff and jitter, behind a circuit breaker, and
+ * keeps counts of what happened so they can be logged.
+ *
+ * The settings are read from the properties file; each one may be
+ * overridden for a single endpoint by prefixing it with the endpoint
+ * name, e.g. db.retry_attempts
+ */
+public class Retrier {
+   private static final Logger logger = LogManager.getLogger("org.werelate.util.Retrier");
+
+   /**
+    * One attempt at the call. beforeRetry is run after a failed attempt,
+    * before waiting, so the caller can reset connections.
+    */
+   public static abstract class Attempt<T> {
+      public abstract T call() throws Exception;
+
+      public void beforeRetry(Exception e)
+      {
+      }
+   }
+
+   /**
+    * Thrown from an attempt when retrying would not help,
+    * e.g. the server rejected the request or the SQL is invalid.
+    */
+   public static class FatalException extends Exception {
+      private static final long serialVersionUID = 1L;
+
+      public FatalException(String msg)
+      {
+         super(msg);
+      }
+
+      public FatalException(Throwable cause)
+      {
+         super(cause.getMessage(), cause);
+      }
+   }
+
+   /**
+    * Thrown without calling the endpoint when its circuit breaker has stayed open
+    * for longer than the call's retries would have waited
+    */
+   public static class CircuitOpenException extends Exception {
+      private static final long serialVersionUID = 1L;
+
+      public CircuitOpenException(String endpoint)
+      {
+         super("Circuit breaker is open for " + endpoint);
+      }
+   }
+
+   private String name;
+   private int maxAttempts;
+   private long baseWait;
+   private long maxWait;
+   private CircuitBreaker breaker;
+   private Random random = new Random();
+
+   // metrics; guarded by this
+   private long numCalls = 0, numAttempts = 0, numRetries = 0, numFailedCalls = 0,
+         numFatal = 0, numRejected = 0, totalWaitMillis = 0;
+
+   public Retrier(String name, int maxAttempts, long baseWait, long maxWait, CircuitBreaker breaker)
+   {
+      this.name = name;
+      this.maxAttempts = Math.max(1, maxAttempts);
+      this.baseWait = baseWait;
+      this.maxWait = maxWait;
+      this.breaker = breaker;
+   }
+
+   /**
+    * Creates a retrier from retry_attempts, retry_base_wait, retry_max_wait (milliseconds),
+    * breaker_failures and breaker_open_time (milliseconds)
+    * @param name endpoint name, also used as the property prefix for overrides
+    * @param properties settings
+    */
+   public static Retrier fromProperties(String name, Properties properties)
+   {
+      return new Retrier(name,
+            getInt(properties, name, "retry_attempts", 15),
+            getInt(properties, name, "retry_base_wait", 1000),
+            getInt(properties, name, "retry_max_wait", 60000),
+            new CircuitBreaker(getInt(properties, name, "breaker_failures", 5),
+                               getInt(properties, name, "breaker_open_time", 60000)));
+   }
+
+   private static int getInt(Properties properties, String name, String key, int defaultValue)
+   {
+      String value = properties.getProperty(name + '.' + key, properties.getProperty(key));
+      return Utils.isEmpty(value) ? defaultValue : Integer.parseInt(value.trim());
+   }
+
+   /**
+    * Runs the attempt until it succeeds, throws a FatalException or
+    * RuntimeException, or has failed maxAttempts times.
+    * While the endpoint's breaker is open, waits for its trial call instead
+    * of failing, for as long as the call's retries could wait in all.
+    * @return the result of the successful attempt
+    * @throws FatalException if the attempt said not to retry
+    * @throws CircuitOpenException if the endpoint's breaker stayed open for all of that time
+    * @throws Exception the exception of the last failed attempt
+    */
+   public <T> T execute(Attempt<T> attempt) throws Exception
+   {
+      synchronized (this)
+      {
+         numCalls++;
+      }
+      long deadline = System.currentTimeMillis() + getMaxTotalWait();
+      for (int i = 1; ; i++)
+      {
+         if (!breaker.awaitRequest(deadline - System.currentTimeMillis()))
+         {
+            synchronized (this)
+            {
+               numRejected++;
+               numFailedCalls++;
+            }
+            throw new CircuitOpenException(name);
+         }
+         synchronized (this)
+         {
+            numAttempts++;
+         }
+         try
+         {
+            T result = attempt.call();
+            breaker.recordSuccess();
+            return result;
+         } catch (FatalException e)
+         {
+            // The endpoint answered, so it is not down
+            breaker.recordSuccess();
+            synchronized (this)
+            {
+               numFatal++;
+               numFailedCalls++;
+            }
+            throw e;
+         } catch (InterruptedException e)
+         {
+            // The call didn't finish, so it says nothing about the endpoint
+            breaker.cancelTrial();
+            throw e;
+         } catch (RuntimeException e)
+         {
+            // A bug or a malformed response; retrying won't change anything,
+            // but the call failed, and a half-open trial must end either way
+            breaker.recordFailure();
+            synchronized (this)
+            {
+               numFailedCalls++;
+            }
+            throw e;
+         } catch (Exception e)
+         {
+            breaker.recordFailure();
+            if (i >= maxAttempts)
+            {
+               synchronized (this)
+               {
+                  numFailedCalls++;
+               }
+               logger.warn(name + ": giving up after " + i + " attempts: " + e.getMessage());
+               throw e;
+            }
+            long wait = getWait(i);
+            synchronized (this)
+            {
+               numRetries++;
+               totalWaitMillis += wait;
+            }
+            logger.warn(name + ": attempt " + i + " failed (" + e.getMessage() + "), retrying in " + wait + "ms");
+            attempt.beforeRetry(e);
+            Thread.sleep(wait);
+         }
+      }
+   }
+
+   /**
+    * @param attempt number of the attempt that just failed, starting at 1
+    * @return how long to wait: half of the exponential backoff, plus a random
+    *    amount up to the other half, so concurrent callers don't retry in step
+    */
+   public long getWait(int attempt)
+   {
+      long backoff = baseWait << Math.min(attempt - 1, 30);
+      if (backoff <= 0 || backoff > maxWait)
+      {
+         backoff = maxWait;
+      }
+      long half = backoff / 2;
+      synchronized (random)
+      {
+         return half + (long) (random.nextDouble() * (backoff - half));
+      }
+   }
+
+   /**
+    * @return the longest time the retries of one call wait in all
+    */
+   public long getMaxTotalWait()
+   {
+      long total = 0;
+      for (int i = 1; i < maxAttempts; i++)
+      {
+         long backoff = baseWait << Math.min(i - 1, 30);
+         total += (backoff <= 0 || backoff > maxWait) ? maxWait : backoff;
+      }
+      return total;
+   }
+
+   /**
+    * @param status HTTP status code
+    * @return whether a request that got this status is worth retrying
+    */
+   public static boolean isRetryableHttpStatus(int status)
+   {
+      return status == 408 || status == 429 || status >= 500;
+   }
+
+   /**
+    * @param e exception thrown by a JDBC call
+    * @return true if the statement itself is bad, so reconnecting and retrying won't help
+    */
+   public static boolean isFatal(SQLException e)
+   {
+      return e instanceof SQLNonTransientException && !(e instanceof SQLNonTransientConnectionException);
+   }
+
+   public String getName() {
+      return name;
+   }
+
+   public CircuitBreaker getBreaker() {
+      return breaker;
+   }
+
+   public synchronized long getNumCalls() {
+      return numCalls;
+   }
+
+   public synchronized long getNumAttempts() {
+      return numAttempts;
+   }
+
+   public synchronized long getNumRetries() {
+      return numRetries;
+   }
+
+   public synchronized long getNumFailedCalls() {
+      return numFailedCalls;
+   }
+
+   public synchronized long getNumFatal() {
+      return numFatal;
+   }
+
+   public synchronized long getNumRejected() {
+      return numRejected;
+   }
+
+   public synchronized long getTotalWaitMillis() {
+      return totalWaitMillis;
+   }
+
+   public synchronized String toString()
+   {
+      return name + ": calls=" + numCalls + " attempts=" + numAttempts + " retries=" + numRetries +
+            " failed=" + numFailedCalls + " fatal=" + numFatal + " rejected=" + numRejected +
+            " waitMillis=" + totalWaitMillis + " breaker=" + breaker.getState() +
+            " breakerOpened=" + breaker.getNumOpened();
+   }
+}
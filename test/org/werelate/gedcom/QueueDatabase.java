@@ -0,0 +1,449 @@
+package org.werelate.gedcom;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.*;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * An in-memory stand-in for the familytree_gedcom and familytree_gedcom_lease
+ * tables, for testing JobQueue without a wikidb. It only understands the
+ * statements JobQueue sends.
+ *
+ * Transactions are serialized: a connection that turns auto-commit off holds the
+ * tables until it commits or rolls back, and a statement sent on another connection
+ * meanwhile fails like a lock wait timeout. Rollback puts the tables back as they
+ * were when the transaction began. The database's clock only moves by passTime.
+ */
+class QueueDatabase {
+   // A row of familytree_gedcom
+   private static class Gedcom {
+      int status;
+      String reason = "";
+   }
+
+   // A row of familytree_gedcom_lease
+   private static class Lease {
+      int gedID, prevStatus, status, claims;
+      String owner;
+      long expires;
+   }
+
+   // A statement the database understands
+   private static abstract class Query {
+      Pattern pattern;
+
+      Query(String regex)
+      {
+         pattern = Pattern.compile(regex);
+      }
+
+      // Returns the rows selected, or an Integer update count
+      abstract Object run(Matcher m, Map<Integer, Object> params);
+   }
+
+   // How JobQueue asks for the database's time; replaced by NOW before matching
+   private static final String DB_NOW = "ROUND(UNIX_TIMESTAMP(NOW(3)) * 1000)";
+
+   private long now = 1000000000L;
+   private Map<Integer, Gedcom> gedcoms = new TreeMap<Integer, Gedcom>();
+   private Map<Integer, Lease> leases = new TreeMap<Integer, Lease>();
+   private List<Query> queries = new ArrayList<Query>();
+   // the connection in a transaction, and the tables as they were when it began
+   private Connection txConn = null;
+   private Map<Integer, Gedcom> txGedcoms;
+   private Map<Integer, Lease> txLeases;
+   // start of the next statement to fail
+   private String failNext = null;
+
+   QueueDatabase()
+   {
+      addQueries();
+   }
+
+   void addGedcom(int gedID, int status)
+   {
+      Gedcom g = new Gedcom();
+      g.status = status;
+      gedcoms.put(gedID, g);
+   }
+
+   int getStatus(int gedID)
+   {
+      return gedcoms.get(gedID).status;
+   }
+
+   void setStatus(int gedID, int status)
+   {
+      gedcoms.get(gedID).status = status;
+   }
+
+   int getNumLeases()
+   {
+      return leases.size();
+   }
+
+   /**
+    * Moves the database's clock on
+    */
+   void passTime(long millis)
+   {
+      now += millis;
+   }
+
+   /**
+    * Makes the next statement that starts with sql fail, as a lost connection would
+    */
+   void failNext(String sql)
+   {
+      failNext = sql;
+   }
+
+   /**
+    * @return a new connection to the database
+    */
+   Connection connect()
+   {
+      return (Connection) proxy(Connection.class, new ConnectionHandler());
+   }
+
+   private void addQueries()
+   {
+      queries.add(new Query("^UPDATE familytree_gedcom SET fg_status = \\?, fg_status_date = \\?, fg_status_reason = \\? " +
+                            "WHERE fg_id = \\? AND fg_status = \\?$") {
+         Object run(Matcher m, Map<Integer, Object> params) {
+            Gedcom g = gedcoms.get(getInt(params, 4));
+            if (g == null || g.status != getInt(params, 5))
+            {
+               return 0;
+            }
+            g.status = getInt(params, 1);
+            g.reason = (String) params.get(3);
+            return 1;
+         }
+      });
+      queries.add(new Query("^SELECT fgl_claims FROM familytree_gedcom_lease WHERE fgl_fg_id = \\?$") {
+         Object run(Matcher m, Map<Integer, Object> params) {
+            List<Object[]> rows = new ArrayList<Object[]>();
+            Lease lease = leases.get(getInt(params, 1));
+            if (lease != null)
+            {
+               rows.add(new Object[] {lease.claims});
+            }
+            return rows;
+         }
+      });
+      queries.add(new Query("^REPLACE INTO familytree_gedcom_lease \\(fgl_fg_id, fgl_owner, fgl_prev_status, " +
+                            "fgl_status, fgl_expires, fgl_claims\\) VALUES \\(\\?, \\?, \\?, \\?, NOW \\+ \\?, \\?\\)$") {
+         Object run(Matcher m, Map<Integer, Object> params) {
+            Lease lease = new Lease();
+            lease.gedID = getInt(params, 1);
+            lease.owner = (String) params.get(2);
+            lease.prevStatus = getInt(params, 3);
+            lease.status = getInt(params, 4);
+            lease.expires = now + getLong(params, 5);
+            lease.claims = getInt(params, 6);
+            leases.put(lease.gedID, lease);
+            return 1;
+         }
+      });
+      queries.add(new Query("^UPDATE familytree_gedcom_lease SET fgl_expires = NOW \\+ \\? " +
+                            "WHERE fgl_owner = \\? AND fgl_expires > 0$") {
+         Object run(Matcher m, Map<Integer, Object> params) {
+            int n = 0;
+            for (Lease lease : leases.values())
+            {
+               if (lease.owner.equals(params.get(2)) && lease.expires > 0)
+               {
+                  lease.expires = now + getLong(params, 1);
+                  n++;
+               }
+            }
+            return n;
+         }
+      });
+      queries.add(new Query("^UPDATE familytree_gedcom_lease SET fgl_expires = 0 WHERE fgl_fg_id = \\? AND fgl_owner = \\?$") {
+         Object run(Matcher m, Map<Integer, Object> params) {
+            Lease lease = getLease(params, false);
+            if (lease == null)
+            {
+               return 0;
+            }
+            lease.expires = 0;
+            return 1;
+         }
+      });
+      queries.add(new Query("^DELETE FROM familytree_gedcom_lease WHERE fgl_fg_id = \\? AND fgl_owner = \\?( AND fgl_expires < NOW)?$") {
+         Object run(Matcher m, Map<Integer, Object> params) {
+            Lease lease = getLease(params, m.group(1) != null);
+            if (lease == null)
+            {
+               return 0;
+            }
+            leases.remove(lease.gedID);
+            return 1;
+         }
+      });
+      queries.add(new Query("^SELECT fgl_fg_id, fgl_owner, fgl_prev_status, fgl_status, fgl_claims " +
+                            "FROM familytree_gedcom_lease WHERE fgl_expires < NOW$") {
+         Object run(Matcher m, Map<Integer, Object> params) {
+            List<Object[]> rows = new ArrayList<Object[]>();
+            for (Lease lease : leases.values())
+            {
+               if (lease.expires < now)
+               {
+                  rows.add(new Object[] {lease.gedID, lease.owner, lease.prevStatus, lease.status, lease.claims});
+               }
+            }
+            return rows;
+         }
+      });
+   }
+
+   // The lease of gedID (parameter 1) held by owner (parameter 2),
+   // if it has expired when expiredOnly is set
+   private Lease getLease(Map<Integer, Object> params, boolean expiredOnly)
+   {
+      Lease lease = leases.get(getInt(params, 1));
+      if (lease == null || !lease.owner.equals(params.get(2)) || (expiredOnly && lease.expires >= now))
+      {
+         return null;
+      }
+      return lease;
+   }
+
+   private static int getInt(Map<Integer, Object> params, int index)
+   {
+      return ((Number) params.get(index)).intValue();
+   }
+
+   private static long getLong(Map<Integer, Object> params, int index)
+   {
+      return ((Number) params.get(index)).longValue();
+   }
+
+   // Runs the statement sent on conn, returning the rows selected or an Integer update count
+   private Object execute(Connection conn, String sql, Map<Integer, Object> params) throws SQLException
+   {
+      if (txConn != null && txConn != conn)
+      {
+         throw new SQLTransientException("Lock wait timeout exceeded");
+      }
+      if (failNext != null && sql.startsWith(failNext))
+      {
+         failNext = null;
+         throw new SQLTransientConnectionException("Injected error");
+      }
+      String normalized = sql.replace(DB_NOW, "NOW");
+      for (Query q : queries)
+      {
+         Matcher m = q.pattern.matcher(normalized);
+         if (m.matches())
+         {
+            return q.run(m, params);
+         }
+      }
+      throw new SQLException("Statement not understood: " + sql);
+   }
+
+   private void begin(Connection conn) throws SQLException
+   {
+      if (txConn != null && txConn != conn)
+      {
+         throw new SQLTransientException("Lock wait timeout exceeded");
+      }
+      if (txConn == null)
+      {
+         txConn = conn;
+         txGedcoms = copyGedcoms(gedcoms);
+         txLeases = copyLeases(leases);
+      }
+   }
+
+   private void end(Connection conn, boolean commit)
+   {
+      if (txConn == conn)
+      {
+         if (!commit)
+         {
+            gedcoms = txGedcoms;
+            leases = txLeases;
+         }
+         txConn = null;
+         txGedcoms = null;
+         txLeases = null;
+      }
+   }
+
+   private static Map<Integer, Gedcom> copyGedcoms(Map<Integer, Gedcom> rows)
+   {
+      Map<Integer, Gedcom> copy = new TreeMap<Integer, Gedcom>();
+      for (Map.Entry<Integer, Gedcom> e : rows.entrySet())
+      {
+         Gedcom g = new Gedcom();
+         g.status = e.getValue().status;
+         g.reason = e.getValue().reason;
+         copy.put(e.getKey(), g);
+      }
+      return copy;
+   }
+
+   private static Map<Integer, Lease> copyLeases(Map<Integer, Lease> rows)
+   {
+      Map<Integer, Lease> copy = new TreeMap<Integer, Lease>();
+      for (Map.Entry<Integer, Lease> e : rows.entrySet())
+      {
+         Lease l = e.getValue(), lease = new Lease();
+         lease.gedID = l.gedID;
+         lease.owner = l.owner;
+         lease.prevStatus = l.prevStatus;
+         lease.status = l.status;
+         lease.expires = l.expires;
+         lease.claims = l.claims;
+         copy.put(e.getKey(), lease);
+      }
+      return copy;
+   }
+
+   private static Object proxy(Class<?> type, InvocationHandler handler)
+   {
+      return Proxy.newProxyInstance(QueueDatabase.class.getClassLoader(), new Class<?>[] {type}, handler);
+   }
+
+   // Answers the methods of an interface that the other handlers don't implement
+   private static Object defaultResult(Method method)
+   {
+      Class<?> type = method.getReturnType();
+      if (type == boolean.class)
+      {
+         return Boolean.FALSE;
+      } else if (type == int.class)
+      {
+         return 0;
+      } else if (type == long.class)
+      {
+         return 0L;
+      }
+      return null;
+   }
+
+   private class ConnectionHandler implements InvocationHandler {
+      private Connection conn;
+      private boolean autoCommit = true;
+
+      public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+      {
+         conn = (Connection) proxy;
+         String name = method.getName();
+         synchronized (QueueDatabase.this)
+         {
+            if (name.equals("prepareStatement"))
+            {
+               return QueueDatabase.proxy(PreparedStatement.class, new StatementHandler(conn, this, (String) args[0]));
+            } else if (name.equals("setAutoCommit"))
+            {
+               autoCommit = (Boolean) args[0];
+               if (autoCommit)
+               {
+                  end(conn, true);
+               }
+               return null;
+            } else if (name.equals("getAutoCommit"))
+            {
+               return autoCommit;
+            } else if (name.equals("commit") || name.equals("rollback"))
+            {
+               end(conn, name.equals("commit"));
+               return null;
+            } else if (name.equals("close"))
+            {
+               end(conn, false);
+               return null;
+            } else if (name.equals("equals"))
+            {
+               return proxy == args[0];
+            } else if (name.equals("hashCode"))
+            {
+               return System.identityHashCode(proxy);
+            }
+            return defaultResult(method);
+         }
+      }
+   }
+
+   private class StatementHandler implements InvocationHandler {
+      private Connection conn;
+      private ConnectionHandler connHandler;
+      private String sql;
+      private Map<Integer, Object> params = new HashMap<Integer, Object>();
+
+      StatementHandler(Connection conn, ConnectionHandler connHandler, String sql)
+      {
+         this.conn = conn;
+         this.connHandler = connHandler;
+         this.sql = sql;
+      }
+
+      public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+      {
+         String name = method.getName();
+         if (name.startsWith("set") && args != null && args.length == 2 && args[0] instanceof Integer)
+         {
+            params.put((Integer) args[0], args[1]);
+            return null;
+         } else if (name.equals("executeQuery") || name.equals("executeUpdate") || name.equals("execute"))
+         {
+            Object result;
+            synchronized (QueueDatabase.this)
+            {
+               if (!connHandler.autoCommit)
+               {
+                  begin(conn);
+               }
+               result = QueueDatabase.this.execute(conn, sql, params);
+            }
+            if (name.equals("executeQuery"))
+            {
+               @SuppressWarnings("unchecked")
+               List<Object[]> rows = (List<Object[]>) result;
+               return QueueDatabase.proxy(ResultSet.class, new ResultSetHandler(rows));
+            } else if (name.equals("executeUpdate"))
+            {
+               return result;
+            }
+            return result instanceof List;
+         }
+         return defaultResult(method);
+      }
+   }
+
+   private static class ResultSetHandler implements InvocationHandler {
+      private Iterator<Object[]> rows;
+      private Object[] row;
+
+      ResultSetHandler(List<Object[]> rows)
+      {
+         this.rows = rows.iterator();
+      }
+
+      public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+      {
+         String name = method.getName();
+         if (name.equals("next"))
+         {
+            row = rows.hasNext() ? rows.next() : null;
+            return row != null;
+         } else if (name.equals("getInt"))
+         {
+            return ((Number) row[(Integer) args[0] - 1]).intValue();
+         } else if (name.equals("getString"))
+         {
+            return (String) row[(Integer) args[0] - 1];
+         }
+         return defaultResult(method);
+      }
+   }
+}
@@ -0,0 +1,84 @@
+package org.werelate.gedcom;
+
+import junit.framework.TestCase;
+import org.w3c.dom.Document;
+import org.xml.sax.InputSource;
+
+import java.io.StringReader;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Tests parsing page contents on demand and writing back the changed ones
+ */
+public class TestContentCache extends TestCase {
+   private Map<String, String> pages = new HashMap<String, String>();
+
+   private ContentCache.Store store = new ContentCache.Store() {
+      public Document read(String id) {
+         String content = pages.get(id);
+         try
+         {
+            return content == null ? null :
+                   Uploader.getDocumentBuilder().parse(new InputSource(new StringReader(content)));
+         } catch (Exception e)
+         {
+            throw new RuntimeException(e);
+         }
+      }
+
+      public void write(String id, Document content) {
+         pages.put(id, "<person><name given=\"" +
+                       content.getDocumentElement().getFirstChild().getAttributes().getNamedItem("given").getNodeValue() +
+                       "\"/></person>");
+      }
+   };
+
+   protected void setUp()
+   {
+      for (int i = 1; i <= 3; i++)
+      {
+         pages.put("I" + i, "<person><name given=\"N" + i + "\"/></person>");
+      }
+   }
+
+   private static void setGiven(Document content, String given)
+   {
+      content.getDocumentElement().getFirstChild().getAttributes().getNamedItem("given").setNodeValue(given);
+   }
+
+   public void testChangedContentIsWrittenBackWhenDropped() {
+      ContentCache contents = new ContentCache(store, 2);
+      Document content = contents.get("I1");
+      setGiven(content, "John");
+      contents.changed("I1", content);
+      assertSame(content, contents.get("I1"));
+      contents.get("I2");
+      contents.get("I3");
+      assertEquals("<person><name given=\"John\"/></person>", pages.get("I1"));
+      assertEquals(1, contents.getNumWrites());
+      // parsed again, with the change
+      assertNotSame(content, contents.get("I1"));
+      assertEquals(4, contents.getNumReads());
+      assertNull(contents.get("I4"));
+   }
+
+   public void testUnchangedContentIsNotWritten() {
+      ContentCache contents = new ContentCache(store, 1);
+      contents.get("I1");
+      contents.get("I2");
+      contents.flush();
+      assertEquals(0, contents.getNumWrites());
+   }
+
+   public void testDroppedDocumentIsKeptWhenChanged() {
+      ContentCache contents = new ContentCache(store, 1);
+      Document content = contents.get("I1");
+      contents.get("I2");
+      setGiven(content, "John");
+      contents.changed("I1", content);
+      assertSame(content, contents.get("I1"));
+      contents.flush();
+      assertEquals("<person><name given=\"John\"/></person>", pages.get("I1"));
+   }
+}
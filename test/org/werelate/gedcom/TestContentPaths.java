@@ -0,0 +1,141 @@
+package org.werelate.gedcom;
+
+import junit.framework.TestCase;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.xml.sax.InputSource;
+
+import javax.xml.xpath.XPath;
+import javax.xml.xpath.XPathConstants;
+import javax.xml.xpath.XPathFactory;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * Tests that the direct DOM accessors return what the XPath expressions they replace return
+ */
+public class TestContentPaths extends TestCase {
+   private static final String[] CONTENTS = {
+      "<person>\n" +
+      "<name given=\"John\" surname=\"Smith\" title_prefix=\"Dr\" sources=\"S1, S2\"/>\n" +
+      "<name given=\"Johnny\"/>\n" +
+      "<alt_name given=\"Jack\" surname=\"Smith\" sources=\"S2\"/>\n" +
+      "<child_of_family id=\"F1\" title=\"x\"/>\n" +
+      "<spouse_of_family id=\"F2\"/>\n" +
+      "<child_of_family id=\"F3\"/>\n" +
+      "<event_fact type=\"Birth\" date=\"1 JAN 1800\" place=\"York\" sources=\"S1\"/>\n" +
+      "<event_fact type=\"Death\"/>\n" +
+      "<source_citation id=\"S1\" source_id=\"M1\">text</source_citation>\n" +
+      "<source_citation id=\"S2\"/>\n" +
+      "<note id=\"N1\" sources=\"\">a note</note>\n" +
+      "</person>",
+      "<person/>",
+      "<family>\n" +
+      "<husband id=\"I1\" given=\"John\" birthplace=\"Leeds\" deathplace=\"York\" burialplace=\"York\"/>\n" +
+      "<child id=\"I3\" child_of_family=\"F1\" spouse_of_family=\"F9\"/>\n" +
+      "<wife given=\"Mary\"/>\n" +
+      "<husband id=\"I4\"/>\n" +
+      "<wife id=\"I2\"/>\n" +
+      "<event_fact type=\"Marriage\" sources=\"S1\"/>\n" +
+      "<source_citation id=\"S1\" source_id=\"M2\"/>\n" +
+      "<note id=\"N1\"/>\n" +
+      "</family>",
+      "<family><wife id=\"I2\"/></family>",
+      "<mysource><author>A</author><title>The <i>Title</i></title><title>Second</title></mysource>",
+      "<source><title>Source title</title></source>",
+      "<mysource/>",
+   };
+
+   private XPath xpe = XPathFactory.newInstance().newXPath();
+
+   private static Document parse(String content) throws Exception
+   {
+      return Uploader.getDocumentBuilder().parse(new InputSource(new StringReader(content)));
+   }
+
+   private List<Node> evaluate(String expression, Node context) throws Exception
+   {
+      NodeList nodes = (NodeList) xpe.compile(expression).evaluate(context, XPathConstants.NODESET);
+      List<Node> result = new ArrayList<Node>();
+      for (int i = 0; i < nodes.getLength(); i++)
+      {
+         result.add(nodes.item(i));
+      }
+      return result;
+   }
+
+   private String evaluateString(String expression, Node context) throws Exception
+   {
+      return (String) xpe.compile(expression).evaluate(context, XPathConstants.STRING);
+   }
+
+   private Node evaluateNode(String expression, Node context) throws Exception
+   {
+      return (Node) xpe.compile(expression).evaluate(context, XPathConstants.NODE);
+   }
+
+   public void testDocumentPaths() throws Exception {
+      for (String text : CONTENTS)
+      {
+         Document content = parse(text);
+         assertEquals(text, evaluateString("/family/husband[1]/@id", content), ContentPaths.getHusbandId(content));
+         assertEquals(text, evaluateString("/family/wife[1]/@id", content), ContentPaths.getWifeId(content));
+         List<String> spouseIds = new ArrayList<String>();
+         for (Node id : evaluate("/family/husband/@id | /family/wife/@id", content))
+         {
+            spouseIds.add(id.getNodeValue());
+         }
+         assertEquals(text, spouseIds, ContentPaths.getSpouseIds(content));
+         assertSame(text, evaluateNode("/mysource/title | /source/title", content), ContentPaths.getSourceTitle(content));
+         assertEquals(text, evaluateString("/mysource/title | /source/title", content), ContentPaths.getSourceTitleText(content));
+         assertEquals(text, evaluate("person/child_of_family | person/spouse_of_family", content),
+                      ContentPaths.getFamilyReferences(content));
+         assertEquals(text, evaluate("family/husband | family/wife | family/child", content),
+                      ContentPaths.getPersonReferences(content));
+         assertSame(text, evaluateNode("person/child_of_family", content), ContentPaths.getChildOfFamily(content));
+         assertEquals(text, evaluate("person/name", content), ContentPaths.getNames(content));
+         assertSame(text, evaluateNode("person/name", content), ContentPaths.getName(content));
+         assertEquals(text, evaluate("person/alt_name", content), ContentPaths.getAltNames(content));
+         assertEquals(text, evaluate("person/event_fact | family/event_fact", content), ContentPaths.getEvents(content));
+         assertEquals(text, evaluate("person/note | family/note", content), ContentPaths.getNotes(content));
+         assertEquals(text, evaluate("person/source_citation | family/source_citation", content),
+                      ContentPaths.getSourceCitations(content));
+         assertEquals(text, evaluate("person/name[@sources] | person/alt_name[@sources] | person/event_fact[@sources] | " +
+                                     "person/note[@sources] | family/name[@sources] | family/alt_name[@sources] | " +
+                                     "family/event_fact[@sources] | family/note[@sources]", content),
+                      ContentPaths.getSourcesParents(content));
+         assertEquals(text, new HashSet<Node>(evaluate("//@place | //@birthplace | //@deathplace | //@chrplace | " +
+                                                       "//@burialplace", content)),
+                      new HashSet<Node>(ContentPaths.getPlaceAttributes(content)));
+      }
+   }
+
+   public void testReferencePaths() throws Exception {
+      for (String text : CONTENTS)
+      {
+         Document content = parse(text);
+         List<Element> references = new ArrayList<Element>(ContentPaths.getPersonReferences(content));
+         references.addAll(ContentPaths.getFamilyReferences(content));
+         references.addAll(ContentPaths.getSourceCitations(content));
+         for (Element reference : references)
+         {
+            assertEquals(evaluate("@child_of_family | @spouse_of_family", reference),
+                         ContentPaths.getFamilyReferenceAttributes(reference));
+            for (String attribute : new String[] {"id", "source_id", "namespace"})
+            {
+               assertEquals(evaluateString("@" + attribute, reference), ContentPaths.getAttribute(reference, attribute));
+            }
+         }
+      }
+   }
+
+   public void testMissingContent() {
+      assertEquals("", ContentPaths.getHusbandId(null));
+      assertNull(ContentPaths.getName(null));
+      assertEquals(0, ContentPaths.getEvents(null).size());
+   }
+}
@@ -0,0 +1,90 @@
+package org.werelate.gedcom;
+
+import junit.framework.TestCase;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Properties;
+
+/**
+ * Tests timing the stages of a job, with their helper threads, and writing the Prometheus file
+ */
+public class TestGedcomMetrics extends TestCase {
+   public void testStagesAreTimed() throws Exception {
+      assertNull(JobMetrics.start("parse"));
+      JobMetrics metrics = JobMetrics.begin(1);
+      JobMetrics.Timer timer = JobMetrics.start("parse");
+      Thread.sleep(5);
+      JobMetrics.stop(timer, 100);
+      timer = JobMetrics.start("parse");
+      JobMetrics.stop(timer, 20);
+      JobMetrics.end();
+      assertNull(JobMetrics.current());
+      JobMetrics.StageTotals parse = metrics.getStages().get("parse");
+      assertEquals(2, parse.getCalls());
+      assertEquals(120, parse.getItems());
+      assertTrue(parse.getWallNanos() >= 5000000);
+      assertTrue(metrics.getTotals().getWallNanos() >= parse.getWallNanos());
+      assertEquals(0, metrics.getStages().get("uploadXML").getCalls());
+   }
+
+   public void testHelperThreadsAreCounted() throws Exception {
+      final JobMetrics metrics = JobMetrics.begin(1);
+      JobMetrics.Timer timer = JobMetrics.start("placeStandardization");
+      final long[] allocated = new long[1];
+      Thread helper = new Thread() {
+         public void run() {
+            JobMetrics.Helper h = JobMetrics.startHelper(metrics);
+            ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+            long cpu = threads.getCurrentThreadCpuTime();
+            allocated[0] = new byte[10000000].length;
+            while (threads.getCurrentThreadCpuTime() - cpu < 20000000)
+            {
+               // uses 20ms of CPU
+            }
+            JobMetrics.stopHelper(h);
+         }
+      };
+      helper.start();
+      helper.join();
+      JobMetrics.stop(timer, 1);
+      JobMetrics.end();
+      JobMetrics.StageTotals stage = metrics.getStages().get("placeStandardization");
+      assertTrue(stage.getCpuNanos() >= 20000000);
+      assertTrue(metrics.getTotals().getCpuNanos() >= stage.getCpuNanos());
+      if (GedcomEvents.getAllocatedBytes() > 0)
+      {
+         assertTrue(stage.getAllocatedBytes() >= allocated[0]);
+      }
+      // without a job, nothing is measured
+      assertNull(JobMetrics.startHelper(null));
+      JobMetrics.stopHelper(null);
+   }
+
+   public void testWritePrometheus() throws Exception {
+      File file = File.createTempFile("metrics", ".prom");
+      try
+      {
+         GedcomMetrics gedcomMetrics = new GedcomMetrics(new Properties());
+         gedcomMetrics.writePrometheus(file);
+         BufferedReader in = new BufferedReader(new FileReader(file));
+         boolean found = false;
+         String line;
+         while ((line = in.readLine()) != null)
+         {
+            if (line.equals("gedcom_stage_calls_total{stage=\"parse\"} 0"))
+            {
+               found = true;
+            }
+         }
+         in.close();
+         assertTrue(found);
+      } finally
+      {
+         file.delete();
+      }
+   }
+}
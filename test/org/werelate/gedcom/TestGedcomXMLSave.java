@@ -0,0 +1,151 @@
+package org.werelate.gedcom;
+
+import junit.framework.TestCase;
+import org.w3c.dom.Node;
+import org.werelate.util.GzipFiles;
+
+import java.io.*;
+
+/**
+ * Tests saving the reviewed in-process XML
+ */
+public class TestGedcomXMLSave extends TestCase {
+   private File dir;
+
+   protected void setUp() throws Exception
+   {
+      dir = File.createTempFile("save", "");
+      dir.delete();
+      dir.mkdir();
+   }
+
+   protected void tearDown()
+   {
+      for (File file : dir.listFiles())
+      {
+         file.delete();
+      }
+      dir.delete();
+   }
+
+   private File write(String name, String text) throws IOException
+   {
+      File file = new File(dir, name);
+      Writer out = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+      out.write(text);
+      out.close();
+      return file;
+   }
+
+   // Reads the file, decompressing it if it's gzipped
+   private static String read(File file) throws IOException
+   {
+      Reader in = new InputStreamReader(GzipFiles.openInputStream(file), "UTF-8");
+      StringBuilder buf = new StringBuilder();
+      char[] chars = new char[4096];
+      for (int n; (n = in.read(chars)) > 0; )
+      {
+         buf.append(chars, 0, n);
+      }
+      in.close();
+      return buf.toString();
+   }
+
+   private GedcomXML parse(File file) throws Exception
+   {
+      GedcomXML gedXML = new GedcomXML();
+      gedXML.parse(file.getPath());
+      return gedXML;
+   }
+
+   public void testSave() throws Exception
+   {
+      File in = write("in.xml", "<gedcom>\n" +
+            "<page namespace=\"108\" id=\"I1\" tree_id=\"1\">\n" +
+            "<content><![CDATA[<person>\n<name given=\"J\u00f6rg\" surname=\"M\u00fcller\"/>\n</person>\n== Notes ==\n]]></content>\n" +
+            "</page>\n" +
+            "<page namespace=\"108\" id=\"I2\" tree_id=\"1\" living=\"true\">\n" +
+            "<content><![CDATA[<person>\n<name given=\"Ann\"/>\n</person>\nprivate\n]]></content>\n" +
+            "</page>\n" +
+            "</gedcom>\n");
+      File out = write("out.xml", "old");
+      GedcomXML gedXML = parse(in);
+      gedXML.SetData("<readGedcomData><result key=\"I2\">&lt;person&gt;&lt;name  surname=\"Smith\" given=\"Ann\"&gt;" +
+                     "&lt;/name&gt;&lt;/person&gt;</result></readGedcomData>", false);
+      gedXML.save(out);
+
+      assertEquals("<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"no\"?><gedcom>\n" +
+            "<page id=\"I1\" namespace=\"108\" tree_id=\"1\">\n" +
+            "<content>&lt;person&gt;\n&lt;name given=\"J\u00f6rg\" surname=\"M\u00fcller\"/&gt;\n&lt;/person&gt;\n== Notes ==</content>\n" +
+            "</page>\n" +
+            "<page id=\"I2\" living=\"true\" namespace=\"108\" tree_id=\"1\">\n" +
+            "<content>&lt;person&gt;\n&lt;name given=\"Ann\" surname=\"Smith\"/&gt;\n&lt;/person&gt;\n" +
+            "&lt;show_sources_images_notes/&gt;</content>\n" +
+            "</page>\n" +
+            "</gedcom>", read(out));
+      assertFalse(new File(dir, "out.xml.tmp").exists());
+
+      // saving what was saved doesn't change it
+      File again = new File(dir, "again.xml");
+      parse(out).save(again);
+      assertEquals(read(out), read(again));
+   }
+
+   public void testSaveWithComment() throws Exception
+   {
+      File in = write("in.xml", "<gedcom>\n" +
+            "<page namespace=\"112\" id=\"S1\">\n" +
+            "<content><![CDATA[<mysource>\n<title>T</title>\n</mysource>]]></content>\n" +
+            "</page>\n" +
+            "</gedcom>\n");
+      GedcomXML gedXML = parse(in);
+      for (Node page : gedXML.getPages())
+      {
+         page.appendChild(page.getOwnerDocument().createComment("note"));
+      }
+      File out = new File(dir, "out.xml");
+      gedXML.save(out);
+      // only the transformer writes comments
+      assertEquals("<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"no\"?><gedcom>\n" +
+            "<page id=\"S1\" namespace=\"112\">\n" +
+            "<content>&lt;mysource&gt;\n&lt;title&gt;T&lt;/title&gt;\n&lt;/mysource&gt;</content>\n" +
+            "<!--note--></page>\n" +
+            "</gedcom>", read(out));
+   }
+
+   public void testSaveCompressed() throws Exception
+   {
+      String xml = "<gedcom>\n" +
+            "<page namespace=\"108\" id=\"I1\" tree_id=\"1\">\n" +
+            "<content><![CDATA[<person>\n<name given=\"J\u00f6rg\"/>\n</person>\n]]></content>\n" +
+            "</page>\n" +
+            "</gedcom>\n";
+      File plain = new File(dir, "plain.xml");
+      parse(write("in.xml", xml)).save(plain);
+      assertFalse(GzipFiles.isGzipped(plain));
+
+      // a compressed in-process file is read as is, and the compressed output holds the same XML
+      File in = new File(dir, "in.xml.gz");
+      Writer out = new OutputStreamWriter(GzipFiles.openOutputStream(in, true), "UTF-8");
+      out.write(xml);
+      out.close();
+      assertTrue(GzipFiles.isGzipped(in));
+      GedcomXML gedXML = parse(in);
+      gedXML.setCompressOutput(true);
+      File compressed = new File(dir, "compressed.xml");
+      gedXML.save(compressed);
+      assertTrue(GzipFiles.isGzipped(compressed));
+      assertEquals(read(plain), read(compressed));
+
+      // and so is the transformer's
+      gedXML = parse(compressed);
+      gedXML.setCompressOutput(true);
+      for (Node page : gedXML.getPages())
+      {
+         page.appendChild(page.getOwnerDocument().createComment("note"));
+      }
+      gedXML.save(compressed);
+      assertTrue(GzipFiles.isGzipped(compressed));
+      assertTrue(read(compressed).endsWith("<!--note--></page>\n</gedcom>"));
+   }
+}
@@ -0,0 +1,75 @@
+package org.werelate.gedcom;
+
+import junit.framework.TestCase;
+import org.werelate.gedcom.scripts.InProcessDiff;
+
+import java.io.*;
+
+/**
+ * Tests comparing in-process XML files page by page
+ */
+public class TestInProcessDiff extends TestCase {
+   private static final String PLACE = "<place key=\"WRP000\" text=\"York\" title=\"York, England\"/>";
+
+   private static String page(String id, String given)
+   {
+      return "<page namespace=\"108\" id=\"" + id + "\" tree_id=\"1\">\n" +
+             "<content><![CDATA[<person>\n" +
+             "<name given=\"" + given + "\" surname=\"Smith\"/>\n" +
+             "</person>\n" +
+             "]]></content>\n" +
+             "</page>\n";
+   }
+
+   private static File write(String... records) throws IOException
+   {
+      File file = File.createTempFile("test", ".xml");
+      PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+      out.println("<gedcom citation_only_sources=\"0\">");
+      for (String record : records)
+      {
+         out.print(record);
+         if (!record.endsWith("\n"))
+         {
+            out.println();
+         }
+      }
+      out.println("</gedcom>");
+      out.close();
+      return file;
+   }
+
+   private String diff(File a, File b, InProcessDiff.Summary[] summary) throws IOException
+   {
+      StringWriter buf = new StringWriter();
+      PrintWriter out = new PrintWriter(buf);
+      summary[0] = InProcessDiff.diff(a, b, out);
+      out.flush();
+      a.delete();
+      b.delete();
+      return buf.toString();
+   }
+
+   public void testSame() throws IOException {
+      InProcessDiff.Summary[] summary = new InProcessDiff.Summary[1];
+      String diff = diff(write(PLACE, page("I1", "John")), write(PLACE, page("I1", "John")), summary);
+      assertTrue(summary[0].isSame());
+      assertEquals("", diff);
+   }
+
+   public void testChangedAddedRemoved() throws IOException {
+      InProcessDiff.Summary[] summary = new InProcessDiff.Summary[1];
+      String diff = diff(write(PLACE, page("I1", "John"), page("I2", "Mary")),
+                         write(PLACE, page("I1", "Johan"), page("I3", "Anna")), summary);
+      assertEquals(1, summary[0].getNumChanged());
+      assertEquals(1, summary[0].getNumAdded());
+      assertEquals(1, summary[0].getNumRemoved());
+      assertTrue(diff, diff.contains("changed page 108:I1\n"));
+      assertTrue(diff, diff.contains("- <name given=\"John\" surname=\"Smith\"/>\n" +
+                                     "+ <name given=\"Johan\" surname=\"Smith\"/>\n"));
+      assertTrue(diff, diff.contains("  <content><![CDATA[<person>\n"));
+      assertTrue(diff, diff.contains("added page 108:I3\n"));
+      assertTrue(diff, diff.contains("removed page 108:I2\n"));
+      assertFalse(diff, diff.contains("WRP000"));
+   }
+}
@@ -0,0 +1,210 @@
+package org.werelate.gedcom;
+
+import junit.framework.TestCase;
+
+import java.sql.*;
+import java.util.List;
+
+/**
+ * Tests claiming GEDCOMs from the familytree_gedcom queue with two workers,
+ * and reclaiming the GEDCOMs of a worker whose lease has expired,
+ * against an in-memory QueueDatabase.
+ */
+public class TestJobQueue extends TestCase {
+   private static final int GED_ID = 999001;
+
+   private static final long LEASE_TIME = 60000;
+
+   private QueueDatabase db;
+
+   protected void setUp() throws Exception {
+      super.setUp();
+      db = new QueueDatabase();
+      db.addGedcom(GED_ID, Uploader.STATUS_UPLOADED);
+   }
+
+   private int getStatus() {
+      return db.getStatus(GED_ID);
+   }
+
+   // Each worker has its own connection
+   private JobQueue newQueue(String owner, int maxClaims) throws SQLException {
+      return new JobQueue(db.connect(), owner, LEASE_TIME, maxClaims);
+   }
+
+   // Leases are timed by the database's clock
+   private void passTime(long millis) {
+      db.passTime(millis);
+   }
+
+   public void testOnlyOneWorkerClaims() throws Exception {
+      JobQueue a = newQueue("a", 3);
+      JobQueue b = newQueue("b", 3);
+      assertTrue(a.claim(GED_ID, Uploader.STATUS_UPLOADED, Uploader.STATUS_PROCESSING));
+      assertFalse(b.claim(GED_ID, Uploader.STATUS_UPLOADED, Uploader.STATUS_PROCESSING));
+      assertEquals(Uploader.STATUS_PROCESSING, getStatus());
+      // a live lease is not reclaimed
+      passTime(LEASE_TIME / 2);
+      a.renewLeases();
+      passTime(LEASE_TIME * 3 / 4);
+      assertEquals(0, b.reclaimExpired());
+      a.release(GED_ID);
+      assertEquals(0, db.getNumLeases());
+      a.close();
+      b.close();
+   }
+
+   public void testUnclaim() throws Exception {
+      JobQueue a = newQueue("a", 3);
+      assertTrue(a.claim(GED_ID, Uploader.STATUS_UPLOADED, Uploader.STATUS_PROCESSING));
+      assertTrue(a.unclaim(GED_ID, Uploader.STATUS_PROCESSING, Uploader.STATUS_UPLOADED));
+      assertEquals(Uploader.STATUS_UPLOADED, getStatus());
+      assertEquals(0, db.getNumLeases());
+      a.close();
+   }
+
+   public void testFailedJob() throws Exception {
+      JobQueue a = newQueue("a", 3);
+      JobQueue b = newQueue("b", 3);
+      assertTrue(a.claim(GED_ID, Uploader.STATUS_UPLOADED, Uploader.STATUS_PROCESSING));
+      // the job throws: its lease is abandoned, then the GEDCOM is marked as an error
+      a.abandon(GED_ID);
+      assertTrue(a.fail(GED_ID, Uploader.STATUS_PROCESSING, Uploader.STATUS_ERROR, "NullPointerException"));
+      assertEquals(Uploader.STATUS_ERROR, getStatus());
+      assertEquals(0, db.getNumLeases());
+      assertEquals(0, b.reclaimExpired());
+      // once another worker has reclaimed the abandoned lease, the GEDCOM isn't a's to fail
+      db.setStatus(GED_ID, Uploader.STATUS_UPLOADED);
+      assertTrue(a.claim(GED_ID, Uploader.STATUS_UPLOADED, Uploader.STATUS_PROCESSING));
+      a.abandon(GED_ID);
+      assertEquals(1, b.reclaimExpired());
+      assertTrue(b.claim(GED_ID, Uploader.STATUS_UPLOADED, Uploader.STATUS_PROCESSING));
+      assertFalse(a.fail(GED_ID, Uploader.STATUS_PROCESSING, Uploader.STATUS_ERROR, "NullPointerException"));
+      assertEquals(Uploader.STATUS_PROCESSING, getStatus());
+      a.close();
+      b.close();
+   }
+
+   public void testExpiredLeaseIsReclaimed() throws Exception {
+      JobQueue a = newQueue("a", 2);
+      JobQueue b = newQueue("b", 2);
+      assertTrue(a.claim(GED_ID, Uploader.STATUS_UPLOADED, Uploader.STATUS_PROCESSING));
+      // a dies without releasing its lease
+      passTime(2 * LEASE_TIME);
+      assertEquals(1, b.reclaimExpired());
+      assertEquals(Uploader.STATUS_UPLOADED, getStatus());
+      assertTrue(b.claim(GED_ID, Uploader.STATUS_UPLOADED, Uploader.STATUS_PROCESSING));
+      // b fails too; after the second claim the GEDCOM is marked as an error
+      b.abandon(GED_ID);
+      assertEquals(1, a.reclaimExpired());
+      assertEquals(Uploader.STATUS_ERROR, getStatus());
+      assertEquals(0, db.getNumLeases());
+      a.close();
+      b.close();
+   }
+
+   public void testGenerationIsNotRetried() throws Exception {
+      db.setStatus(GED_ID, Uploader.STATUS_CREATE_PAGES);
+      JobQueue a = newQueue("a", 3);
+      JobQueue b = newQueue("b", 3);
+      assertTrue(a.claim(GED_ID, Uploader.STATUS_CREATE_PAGES, Uploader.STATUS_GENERATING));
+      // a fails part way through generating the pages
+      a.abandon(GED_ID);
+      assertEquals(1, b.reclaimExpired());
+      assertEquals(Uploader.STATUS_GENERATE_FAILED, getStatus());
+      assertFalse(b.claim(GED_ID, Uploader.STATUS_CREATE_PAGES, Uploader.STATUS_GENERATING));
+      a.close();
+      b.close();
+   }
+
+   public void testStaleReclaimerLeavesStatusAlone() throws Exception {
+      JobQueue a = newQueue("a", 3);
+      JobQueue b = newQueue("b", 3);
+      JobQueue c = newQueue("c", 3);
+      assertTrue(a.claim(GED_ID, Uploader.STATUS_UPLOADED, Uploader.STATUS_PROCESSING));
+      passTime(2 * LEASE_TIME);
+      // b and c both see the expired lease; c puts the GEDCOM back and claims it again
+      List<JobQueue.ExpiredLease> stale = b.selectExpired();
+      assertEquals(1, stale.size());
+      assertEquals(1, c.reclaimExpired());
+      assertTrue(c.claim(GED_ID, Uploader.STATUS_UPLOADED, Uploader.STATUS_PROCESSING));
+      // b's reclaim comes too late
+      assertFalse(b.reclaim(stale.get(0)));
+      assertEquals(Uploader.STATUS_PROCESSING, getStatus());
+      assertEquals(0, b.reclaimExpired());
+      c.release(GED_ID);
+      assertEquals(0, db.getNumLeases());
+      a.close();
+      b.close();
+      c.close();
+   }
+
+   public void testStaleReclaimerLeavesGenerationAlone() throws Exception {
+      db.setStatus(GED_ID, Uploader.STATUS_CREATE_PAGES);
+      JobQueue a = newQueue("a", 3);
+      JobQueue b = newQueue("b", 3);
+      JobQueue c = newQueue("c", 3);
+      assertTrue(a.claim(GED_ID, Uploader.STATUS_CREATE_PAGES, Uploader.STATUS_GENERATING));
+      a.abandon(GED_ID);
+      List<JobQueue.ExpiredLease> stale = b.selectExpired();
+      assertEquals(1, c.reclaimExpired());
+      assertEquals(Uploader.STATUS_GENERATE_FAILED, getStatus());
+      // an administrator has the pages generated again
+      db.setStatus(GED_ID, Uploader.STATUS_CREATE_PAGES);
+      assertTrue(c.claim(GED_ID, Uploader.STATUS_CREATE_PAGES, Uploader.STATUS_GENERATING));
+      assertFalse(b.reclaim(stale.get(0)));
+      assertEquals(Uploader.STATUS_GENERATING, getStatus());
+      a.close();
+      b.close();
+      c.close();
+   }
+
+   public void testReclaimIsOneTransaction() throws Exception {
+      JobQueue a = newQueue("a", 3);
+      JobQueue b = newQueue("b", 3);
+      assertTrue(a.claim(GED_ID, Uploader.STATUS_UPLOADED, Uploader.STATUS_PROCESSING));
+      passTime(2 * LEASE_TIME);
+      // the connection is lost after the lease was taken but before the status was changed
+      db.failNext("UPDATE familytree_gedcom SET");
+      try
+      {
+         b.reclaimExpired();
+         fail("The status update should have failed");
+      } catch (SQLException e)
+      {
+         // expected
+      }
+      // so the lease is still there to be reclaimed
+      assertEquals(Uploader.STATUS_PROCESSING, getStatus());
+      assertEquals(1, db.getNumLeases());
+      assertEquals(1, b.reclaimExpired());
+      assertEquals(Uploader.STATUS_UPLOADED, getStatus());
+      a.close();
+      b.close();
+   }
+
+   public void testPutBackLeaseIsDeleted() throws Exception {
+      JobQueue a = newQueue("a", 3);
+      JobQueue b = newQueue("b", 3);
+      assertTrue(a.claim(GED_ID, Uploader.STATUS_UPLOADED, Uploader.STATUS_PROCESSING));
+      passTime(2 * LEASE_TIME);
+      assertEquals(1, b.reclaimExpired());
+      // the lease row is kept to count the claims until the GEDCOM is claimed again
+      assertEquals(1, db.getNumLeases());
+      assertTrue(b.claim(GED_ID, Uploader.STATUS_UPLOADED, Uploader.STATUS_PROCESSING));
+      b.release(GED_ID);
+      assertEquals(0, db.getNumLeases());
+      // or until it has waited a day without being claimed, e.g. because it was deleted
+      db.setStatus(GED_ID, Uploader.STATUS_UPLOADED);
+      assertTrue(a.claim(GED_ID, Uploader.STATUS_UPLOADED, Uploader.STATUS_PROCESSING));
+      passTime(2 * LEASE_TIME);
+      assertEquals(1, b.reclaimExpired());
+      db.setStatus(GED_ID, Uploader.STATUS_ERROR);
+      assertEquals(0, b.reclaimExpired());
+      passTime(24 * 60 * 60 * 1000L + LEASE_TIME);
+      assertEquals(1, b.reclaimExpired());
+      assertEquals(0, db.getNumLeases());
+      a.close();
+      b.close();
+   }
+}
@@ -0,0 +1,94 @@
+package org.werelate.gedcom;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests the order in which the scheduler tries queued GEDCOMs
+ */
+public class TestJobScheduler extends TestCase {
+   private static final long MB = 1024 * 1024;
+   private static final long HOUR = 60 * 60 * 1000;
+
+   private JobScheduler scheduler;
+   private List<JobScheduler.Candidate> candidates;
+
+   protected void setUp() throws Exception {
+      super.setUp();
+      scheduler = new JobScheduler(1, 1.0, 30, 100);
+      candidates = new ArrayList<JobScheduler.Candidate>();
+   }
+
+   private int[] order(long now) {
+      List<JobScheduler.Candidate> ordered = scheduler.order(candidates, now);
+      int[] ids = new int[ordered.size()];
+      for (int i = 0; i < ids.length; i++)
+      {
+         ids[i] = ordered.get(i).getGedID();
+      }
+      return ids;
+   }
+
+   public void testShortestFirst() {
+      candidates.add(new JobScheduler.Candidate(1, "big", false, 400 * MB, 0));
+      candidates.add(new JobScheduler.Candidate(2, "small", false, MB, 0));
+      candidates.add(new JobScheduler.Candidate(3, "medium", true, MB, 0));
+      int[] ids = order(0);
+      assertEquals(3, ids.length);
+      assertEquals(2, ids[0]);
+      assertEquals(3, ids[1]);
+      assertEquals(1, ids[2]);
+   }
+
+   public void testAging() {
+      // 400 MB parses in about 3.4 hours; a new small GEDCOM goes first
+      // until the big one has waited longer than that
+      candidates.add(new JobScheduler.Candidate(1, "big", false, 400 * MB, 0));
+      candidates.add(new JobScheduler.Candidate(2, "small", false, MB, HOUR));
+      assertEquals(2, order(HOUR)[0]);
+      candidates.add(new JobScheduler.Candidate(3, "small", false, MB, 4 * HOUR));
+      candidates.remove(1);
+      assertEquals(1, order(4 * HOUR)[0]);
+   }
+
+   public void testUserLimit() {
+      JobScheduler.Candidate first = new JobScheduler.Candidate(1, "a", false, MB, 0);
+      candidates.add(first);
+      candidates.add(new JobScheduler.Candidate(2, "a", false, MB, 0));
+      candidates.add(new JobScheduler.Candidate(3, "b", false, 2 * MB, 0));
+      assertEquals(1, order(0)[0]);
+      scheduler.started(first, 3, 0);
+      candidates.remove(first);
+      int[] ids = order(0);
+      assertEquals(1, ids.length);
+      assertEquals(3, ids[0]);
+      scheduler.finished(1, true, 1000);
+      assertEquals(0, scheduler.getUserJobs("a"));
+      assertEquals(2, order(1000).length);
+   }
+
+   public void testMissingGedcomIsSkipped() {
+      candidates.add(new JobScheduler.Candidate(1, "a", false, -1, 0));
+      candidates.add(new JobScheduler.Candidate(2, "a", true, -1, 0));
+      int[] ids = order(0);
+      assertEquals(1, ids.length);
+      assertEquals(2, ids[0]);
+   }
+
+   public void testLearnsFromFinishedJobs() {
+      long before = scheduler.getExpectedMillis(false, 10 * MB);
+      JobScheduler.Candidate c = new JobScheduler.Candidate(1, "a", false, 10 * MB, 0);
+      candidates.add(c);
+      order(0);
+      scheduler.started(c, 1, 0);
+      scheduler.finished(1, true, 10 * before);
+      assertTrue(scheduler.getExpectedMillis(false, 10 * MB) > before);
+   }
+
+   public void testParseStatusDate() {
+      assertEquals(0, JobScheduler.parseStatusDate("19700101000000", -1));
+      assertEquals(-1, JobScheduler.parseStatusDate("garbage", -1));
+   }
+}
@@ -0,0 +1,104 @@
+package org.werelate.gedcom;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Tests estimating the overlap of two GEDCOMs' names from their signatures
+ */
+public class TestNameSignature extends TestCase {
+   private static Set<String> names(String prefix, int from, int to) {
+      Set<String> names = new HashSet<String>();
+      for (int i = from; i < to; i++)
+      {
+         names.add(prefix + " Name" + i);
+      }
+      return names;
+   }
+
+   public void testIdentical() {
+      NameSignature a = NameSignature.fromNames(names("John", 0, 500));
+      NameSignature b = NameSignature.fromNames(names("John", 0, 500));
+      assertEquals(100, a.estimateOverlapPercentage(b));
+   }
+
+   public void testDisjoint() {
+      NameSignature a = NameSignature.fromNames(names("John", 0, 500));
+      NameSignature b = NameSignature.fromNames(names("Mary", 0, 500));
+      assertTrue(a.estimateOverlapPercentage(b) < 5);
+   }
+
+   public void testContainment() {
+      // 300 of a's 1000 names are in b, which has 3000 names
+      NameSignature a = NameSignature.fromNames(names("John", 0, 1000));
+      Set<String> bNames = names("John", 700, 1000);
+      bNames.addAll(names("Mary", 0, 2700));
+      NameSignature b = NameSignature.fromNames(bNames);
+      int estimate = a.estimateOverlapPercentage(b);
+      assertTrue("estimate " + estimate, estimate >= 20 && estimate <= 40);
+      // b is a small GEDCOM mostly contained in a
+      NameSignature c = NameSignature.fromNames(names("John", 0, 100));
+      assertTrue(c.estimateOverlapPercentage(a) > 80);
+   }
+
+   public void testVeryDifferentSizes() {
+      // a GEDCOM of 100 names, all of them in a GEDCOM of 10,000 names, has a Jaccard
+      // similarity of 0.01, so its estimate can't be trusted and must be counted exactly
+      NameSignature small = NameSignature.fromNames(names("John", 0, 100));
+      NameSignature large = NameSignature.fromNames(names("John", 0, 10000));
+      assertTrue(small.isSizeSkewed(large));
+      assertTrue(large.isSizeSkewed(small));
+      NameSignature similar = NameSignature.fromNames(names("John", 0, 300));
+      assertFalse(similar.isSizeSkewed(NameSignature.fromNames(names("Mary", 0, 1000))));
+   }
+
+   public void testErrorBound() {
+      // 600 of a's 1000 names are in b, which has 1500 names
+      int numOutside = 0;
+      for (int trial = 0; trial < 50; trial++)
+      {
+         String prefix = "Trial" + trial;
+         NameSignature a = NameSignature.fromNames(names(prefix, 0, 1000));
+         NameSignature b = NameSignature.fromNames(names(prefix, 400, 1900));
+         assertFalse(a.isSizeSkewed(b));
+         int bound = a.getOverlapErrorBound(b);
+         assertTrue("bound " + bound, bound > 0 && bound < 20);
+         if (Math.abs(a.estimateOverlapPercentage(b) - 60) > bound)
+         {
+            numOutside++;
+         }
+      }
+      assertTrue("outside " + numOutside, numOutside <= 5);
+      // the bound grows as the sizes grow apart
+      NameSignature small = NameSignature.fromNames(names("John", 0, 250));
+      NameSignature large = NameSignature.fromNames(names("John", 0, 1000));
+      NameSignature same = NameSignature.fromNames(names("John", 0, 250));
+      assertTrue(small.getOverlapErrorBound(large) > small.getOverlapErrorBound(NameSignature.fromNames(names("John", 125, 375))));
+      assertEquals(0, NameSignature.fromNames(new HashSet<String>()).getOverlapErrorBound(same));
+   }
+
+   public void testEmpty() {
+      NameSignature empty = NameSignature.fromNames(new HashSet<String>());
+      NameSignature a = NameSignature.fromNames(names("John", 0, 10));
+      assertEquals(0, empty.estimateOverlapPercentage(a));
+      assertEquals(0, a.estimateOverlapPercentage(empty));
+   }
+
+   public void testWriteAndRead() throws Exception {
+      NameSignature a = NameSignature.fromNames(names("John", 0, 200));
+      File file = File.createTempFile("test", ".sig");
+      try
+      {
+         a.write(file);
+         NameSignature b = NameSignature.read(file);
+         assertEquals(200, b.getSize());
+         assertEquals(100, a.estimateOverlapPercentage(b));
+      } finally
+      {
+         file.delete();
+      }
+   }
+}
@@ -0,0 +1,120 @@
+package org.werelate.gedcom;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Tests finding near-duplicate GEDCOMs of any user in the on-disk index
+ */
+public class TestNameSignatureIndex extends TestCase {
+   private File dir;
+
+   protected void setUp() throws Exception {
+      super.setUp();
+      dir = File.createTempFile("lsh", "");
+      dir.delete();
+   }
+
+   protected void tearDown() throws Exception {
+      File [] files = dir.listFiles();
+      if (files != null)
+      {
+         for (File f : files)
+         {
+            f.delete();
+         }
+      }
+      dir.delete();
+      super.tearDown();
+   }
+
+   private static NameSignature signature(String prefix, int from, int to) {
+      Set<String> names = new HashSet<String>();
+      for (int i = from; i < to; i++)
+      {
+         names.add(prefix + " Name" + i);
+      }
+      return NameSignature.fromNames(names);
+   }
+
+   public void testFindsDuplicatesOfOtherUsers() throws Exception {
+      NameSignatureIndex index = new NameSignatureIndex(dir);
+      index.add(1, "alice", signature("Smith", 0, 1000));
+      index.add(2, "bob", signature("Jones", 0, 1000));
+      index.add(3, "carol", signature("Smith", 50, 1000));
+      List<NameSignatureIndex.Match> matches = index.findDuplicates(4, signature("Smith", 0, 1000), 80);
+      assertEquals(2, matches.size());
+      assertEquals(1, matches.get(0).getGedID());
+      assertEquals("alice", matches.get(0).getUserName());
+      assertEquals(3, matches.get(1).getGedID());
+      assertTrue(index.findDuplicates(5, signature("Brown", 0, 1000), 30).isEmpty());
+   }
+
+   public void testFindsSubsetUploads() throws Exception {
+      NameSignatureIndex index = new NameSignatureIndex(dir);
+      for (int trial = 0; trial < 20; trial++)
+      {
+         index.add(trial, "alice", signature("Trial" + trial, 0, 1000));
+      }
+      index.add(100, "bob", signature("Jones", 0, 300));
+      for (int trial = 0; trial < 20; trial++)
+      {
+         // a relative uploads 70% of alice's export; every name of it is in hers
+         List<NameSignatureIndex.Match> matches = index.findDuplicates(200 + trial, signature("Trial" + trial, 0, 700), 80);
+         assertEquals(1, matches.size());
+         assertEquals(trial, matches.get(0).getGedID());
+      }
+      // a GEDCOM much smaller than the one it is in can't be estimated, and isn't found
+      assertTrue(index.findDuplicates(300, signature("Trial0", 0, 100), 80).isEmpty());
+   }
+
+   public void testCommonNamesAreRarelyCandidates() throws Exception {
+      NameSignatureIndex index = new NameSignatureIndex(dir);
+      for (int i = 0; i < 50; i++)
+      {
+         // each shares 180 of its 1000 names with the GEDCOM looked up: 10% alike
+         Set<String> names = new HashSet<String>();
+         for (int n = 0; n < 180; n++)
+         {
+            names.add("Common Name" + n);
+         }
+         for (int n = 0; n < 820; n++)
+         {
+            names.add("Family" + i + " Name" + n);
+         }
+         index.add(i, "user" + i, NameSignature.fromNames(names));
+      }
+      // each is a candidate 0.3% of the time
+      assertTrue(index.findCandidates(signature("Common", 0, 1000)).size() <= 3);
+   }
+
+   public void testAddingAgainWritesNothing() throws Exception {
+      NameSignatureIndex index = new NameSignatureIndex(dir);
+      assertTrue(index.add(1, "alice", signature("Smith", 0, 500)));
+      long length = new File(dir, "signatures.idx").length();
+      assertFalse(index.add(1, "alice", signature("Smith", 0, 500)));
+      assertEquals(length, new File(dir, "signatures.idx").length());
+      assertFalse(new NameSignatureIndex(dir).add(1, "alice", signature("Smith", 0, 500)));
+      assertEquals(length, new File(dir, "signatures.idx").length());
+      // a changed GEDCOM is written again
+      assertTrue(index.add(1, "alice", signature("Smith", 0, 600)));
+      assertEquals(1, index.size());
+   }
+
+   public void testReopenAndReplace() throws Exception {
+      NameSignatureIndex index = new NameSignatureIndex(dir);
+      index.add(1, "alice", signature("Smith", 0, 500));
+      index.add(1, "alice", signature("Jones", 0, 500));
+      NameSignatureIndex reopened = new NameSignatureIndex(dir);
+      assertEquals(1, reopened.size());
+      assertTrue(reopened.findDuplicates(2, signature("Smith", 0, 500), 50).isEmpty());
+      assertEquals(1, reopened.findDuplicates(2, signature("Jones", 0, 500), 50).size());
+      // records added by another process are seen by the next lookup
+      index.add(3, "bob", signature("Smith", 0, 500));
+      assertEquals(1, reopened.findDuplicates(2, signature("Smith", 0, 500), 50).size());
+   }
+}
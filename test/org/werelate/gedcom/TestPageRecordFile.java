@@ -0,0 +1,168 @@
+package org.werelate.gedcom;
+
+import junit.framework.TestCase;
+import org.w3c.dom.Document;
+import org.xml.sax.InputSource;
+
+import java.io.*;
+import java.util.regex.Matcher;
+
+/**
+ * Tests writing in-process XML files as page record files and reading them back
+ */
+public class TestPageRecordFile extends TestCase {
+   private static final String XML = "<gedcom primary_person=\"I1\">\n" +
+         "<place key=\"WRP0\" text=\"Malm\u00f6, Sk\u00e5ne\" title=\"Malm\u00f6, Sk\u00e5ne, Sweden\"/>\n" +
+         "<page namespace=\"112\" id=\"S1\" tree_id=\"1\" exclude=\"true\">\n" +
+         "<content><![CDATA[<mysource>\n<title>A &amp; B</title>\n</mysource>\n]]></content>\n" +
+         "</page>\n" +
+         "<page namespace=\"108\" id=\"I1\" tree_id=\"1\" uid=\"a&amp;b\">\n" +
+         "<content><![CDATA[<person>\n<name given=\"J\u00f6rg\" surname=\"M\u00fcller\"/>\n" +
+         "<event_fact type=\"Birth\" date=\"1800\" place=\"Malm\u00f6, Sk\u00e5ne\"/>\n" +
+         "</person>\n== Notes ==\n\ud83d\ude00 x]]]]><![CDATA[>y\n]]></content>\n" +
+         "</page>\n" +
+         "<page namespace=\"112\" id=\"S2\" tree_id=\"1\">\n" +
+         "<content><![CDATA[<mysource>\n<!-- note -->\n<title>C</title>\n</mysource>\n]]></content>\n" +
+         "</page>\n" +
+         "<page namespace=\"108\" id=\"I2\" tree_id=\"1\" living=\"true\">\n" +
+         "<content>&lt;person&gt;\n&lt;name given=\"Ann\"/&gt;\n&lt;/person&gt;\n</content>\n" +
+         "</page>\n" +
+         "<page namespace=\"110\" id=\"F1\" tree_id=\"1\">\n" +
+         "<content><![CDATA[<family>\n<husband id=\"I1\" title=\"J\u00f6rg M\u00fcller (1)\"/>\n" +
+         "<wife id=\"I2\"/>\n</family>\n]]></content>\n" +
+         "</page>\n" +
+         "</gedcom>\n";
+
+   private File dir;
+   private File xmlFile;
+   private File recordFile;
+
+   protected void setUp() throws Exception
+   {
+      dir = File.createTempFile("records", "");
+      dir.delete();
+      dir.mkdir();
+      xmlFile = new File(dir, "1.xml");
+      Writer out = new OutputStreamWriter(new FileOutputStream(xmlFile), "UTF-8");
+      out.write(XML);
+      out.close();
+      recordFile = new File(dir, "1" + PageRecordFile.EXTENSION);
+      PageRecordFile.fromXML(xmlFile, recordFile);
+   }
+
+   protected void tearDown()
+   {
+      for (File file : dir.listFiles())
+      {
+         file.delete();
+      }
+      dir.delete();
+   }
+
+   private static String read(File file) throws IOException
+   {
+      Reader in = new InputStreamReader(new FileInputStream(file), "UTF-8");
+      StringBuilder buf = new StringBuilder();
+      char[] chars = new char[4096];
+      for (int n; (n = in.read(chars)) > 0; )
+      {
+         buf.append(chars, 0, n);
+      }
+      in.close();
+      return buf.toString();
+   }
+
+   public void testToXML() throws Exception
+   {
+      assertTrue(PageRecordFile.isPageRecordFile(recordFile));
+      assertFalse(PageRecordFile.isPageRecordFile(xmlFile));
+      File back = new File(dir, "back.xml");
+      PageRecordFile.toXML(recordFile, back);
+      assertEquals(XML, read(back));
+   }
+
+   public void testIsFromXML() throws Exception
+   {
+      assertTrue(PageRecordFile.isFromXML(recordFile, xmlFile));
+      assertFalse(PageRecordFile.isFromXML(xmlFile, recordFile));
+      // the same length and modification time, as a copy might leave them, but another page
+      long modified = xmlFile.lastModified();
+      Writer out = new OutputStreamWriter(new FileOutputStream(xmlFile), "UTF-8");
+      out.write(XML.replace("I1", "I9"));
+      out.close();
+      xmlFile.setLastModified(modified);
+      assertFalse(PageRecordFile.isFromXML(recordFile, xmlFile));
+      PageRecordFile.fromXML(xmlFile, recordFile);
+      assertTrue(PageRecordFile.isFromXML(recordFile, xmlFile));
+      // records cut off while being written
+      RandomAccessFile raf = new RandomAccessFile(recordFile, "rw");
+      raf.setLength(10);
+      raf.close();
+      assertFalse(PageRecordFile.isFromXML(recordFile, xmlFile));
+   }
+
+   public void testDirectory() throws Exception
+   {
+      PageRecordFile records = PageRecordFile.open(recordFile);
+      assertEquals(5, records.getPages().size());
+      assertTrue(records.getPage("S1").isExcluded());
+      assertEquals(112, records.getPage("S1").getNamespace());
+      assertTrue(records.getPage("I2").isLiving());
+      assertFalse(records.getPage("I1").isLiving());
+      assertNull(records.getPage("I3"));
+   }
+
+   public void testReadContent() throws Exception
+   {
+      PageRecordFile records = PageRecordFile.open(recordFile);
+      // the contents, with the one that isn't CDATA unescaped
+      String text = XML.replace("&lt;", "<").replace("&gt;", ">");
+      for (PageRecordFile.Page page : records.getPages())
+      {
+         String id = page.getId();
+         if (id.equals("S2"))
+         {
+            // the serializer doesn't write comments, so the content is kept as text
+            assertFalse(page.hasContent());
+            continue;
+         }
+         assertTrue(id, page.hasContent());
+         Matcher m = GedcomXML.pPageContentXml.matcher(text.substring(text.indexOf("id=\"" + id + "\"")));
+         assertTrue(m.find());
+         Document parsed = Uploader.getDocumentBuilder().parse(new InputSource(new StringReader(m.group(0))));
+         Document built = records.readContent(id);
+         assertTrue(id, parsed.getDocumentElement().isEqualNode(built.getDocumentElement()));
+      }
+      assertEquals("== Notes ==\n\ud83d\ude00 x]]>y", records.readText("I1"));
+      assertEquals("", records.readText("S1"));
+      assertNull(records.readText("S2"));
+   }
+
+   public void testContentTextNotKept() throws Exception
+   {
+      // the XML section is only kept as tokens
+      byte[] bytes = new byte[(int) recordFile.length()];
+      DataInputStream in = new DataInputStream(new FileInputStream(recordFile));
+      in.readFully(bytes);
+      in.close();
+      String records = new String(bytes, "UTF-8");
+      assertFalse(records.contains("<husband"));
+      assertTrue(records.contains("<!-- note -->"));
+   }
+
+   public void testParse() throws Exception
+   {
+      GedcomXML fromXML = new GedcomXML();
+      fromXML.parse(xmlFile.getPath());
+      fromXML.prepareForGeneration();
+      File xmlOut = new File(dir, "fromXML.xml");
+      fromXML.save(xmlOut);
+
+      GedcomXML fromRecords = new GedcomXML();
+      fromRecords.parse(recordFile.getPath());
+      fromRecords.prepareForGeneration();
+      File recordsOut = new File(dir, "fromRecords.xml");
+      fromRecords.save(recordsOut);
+      assertEquals(read(xmlOut), read(recordsOut));
+   }
+}
@@ -0,0 +1,199 @@
+package org.werelate.gedcom;
+
+import junit.framework.TestCase;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.werelate.util.ElementWriter;
+import org.xml.sax.InputSource;
+
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+import java.io.StringReader;
+import java.io.StringWriter;
+
+/**
+ * Tests that PageSerializer writes what the Transformer and GedcomElementWriter write
+ */
+public class TestPageSerializer extends TestCase {
+   // Values with markup, whitespace, control, C1, non-Latin and supplementary characters
+   private static final String[] VALUES = {
+      "", "plain", " padded\t", "a & b < c > d \" e ' f", "line\nline\r\nline", "\u0001\u001f",
+      "\u007f\u0085\u009f", "\u00e9\u4e2d\u00ab\u00bb", "\ud83d\ude00", "\u00abb\u00bbbold\u00ab/b\u00bb\u00abtab\u00bb",
+      "]]>", "a]]>b]]", "x\u0002]]>\u0003"
+   };
+
+   private Document doc;
+
+   protected void setUp() throws Exception
+   {
+      doc = Uploader.getDocumentBuilder().newDocument();
+   }
+
+   private static String transform(Node node) throws Exception
+   {
+      Transformer transformer = TransformerFactory.newInstance().newTransformer();
+      StringWriter out = new StringWriter();
+      transformer.transform(new DOMSource(node), new StreamResult(out));
+      return out.toString().replaceFirst("^<\\?xml[^>]*\\?>", "");
+   }
+
+   private void assertSerialized(Element page) throws Exception
+   {
+      StringBuilder buf = new StringBuilder();
+      assertTrue(PageSerializer.serialize(page, buf));
+      assertEquals(transform(page), buf.toString());
+      assertEquals(transform(page), GedcomXML.serializeNode(page));
+   }
+
+   public void testSerialize() throws Exception
+   {
+      for (String value : VALUES)
+      {
+         Element page = doc.createElement("page");
+         page.setAttribute("id", value);
+         page.appendChild(doc.createElement("empty"));
+         Element content = doc.createElement("content");
+         // control characters and surrogates in CDATA are left to the Transformer
+         if (!value.matches("(?s).*[\\x00-\\x08\\x0b\\x0c\\x0e-\\x1f\\x{10000}-\\x{10ffff}].*"))
+         {
+            content.appendChild(doc.createCDATASection(value));
+         }
+         content.appendChild(doc.createTextNode(value));
+         content.appendChild(doc.createCDATASection(""));
+         page.appendChild(content);
+         assertSerialized(page);
+      }
+   }
+
+   public void testSerializePage() throws Exception
+   {
+      Document page = Uploader.getDocumentBuilder().parse(new InputSource(new StringReader(
+            "<gedcom><page namespace=\"108\" id=\"I1\" tree_id=\"1\">\n" +
+            "<content><![CDATA[<person>\n<name given=\"John\"/>\n</person>\n== Notes ==\n]]></content>\n" +
+            "</page></gedcom>")));
+      assertSerialized((Element) page.getDocumentElement().getFirstChild());
+   }
+
+   private void assertUnsupported(Element page) throws Exception
+   {
+      StringBuilder buf = new StringBuilder("x");
+      assertFalse(PageSerializer.serialize(page, buf));
+      assertEquals("x", buf.toString());
+      assertEquals(transform(page), GedcomXML.serializeNode(page));
+   }
+
+   public void testUnsupported() throws Exception
+   {
+      Element page = doc.createElement("page");
+      page.appendChild(doc.createComment("comment"));
+      assertUnsupported(page);
+      for (String value : new String[] {"\u0001", "a\u0002b", "\ud83d\ude00", "a\ud83d\ude00"})
+      {
+         page = doc.createElement("page");
+         page.appendChild(doc.createCDATASection(value));
+         assertUnsupported(page);
+      }
+   }
+
+   // As GedcomXML wrote contents before PageSerializer
+   private static void writeContent(Node node, StringBuffer buf)
+   {
+      ElementWriter ew = new GedcomElementWriter(node.getNodeName());
+      if (node.getAttributes() != null)
+      {
+         for (int i = 0; i < node.getAttributes().getLength(); i++)
+         {
+            Node attribute = node.getAttributes().item(i);
+            ew.put(attribute.getNodeName(), attribute.getNodeValue());
+         }
+      }
+      StringBuffer subBuf = new StringBuffer();
+      StringBuffer subText = new StringBuffer();
+      for (int i = 0; i < node.getChildNodes().getLength(); i++)
+      {
+         Node childNode = node.getChildNodes().item(i);
+         if (childNode.getNodeType() == Node.TEXT_NODE)
+         {
+            subText.append(childNode.getTextContent().trim());
+         } else
+         {
+            writeContent(childNode, subBuf);
+         }
+      }
+      if (node.getNodeValue() != null && !node.getNodeValue().trim().equals(""))
+      {
+         subBuf.append(node.getNodeValue());
+      }
+      ew.setSubXML(subBuf.toString());
+      ew.setSubText(subText.toString());
+      ew.write(buf);
+   }
+
+   private static String writeContent(Node node)
+   {
+      StringBuffer buf = new StringBuffer();
+      writeContent(node, buf);
+      return buf.toString();
+   }
+
+   private static String serializeContent(Node node)
+   {
+      StringBuilder buf = new StringBuilder();
+      PageSerializer.serializeContent(node, buf);
+      return buf.toString();
+   }
+
+   public void testSerializeContent() throws Exception
+   {
+      for (String value : VALUES)
+      {
+         Element person = doc.createElement("person");
+         Element name = doc.createElement("name");
+         name.setAttribute("surname", value);
+         name.setAttribute("given", "John");
+         name.setAttribute("sources", value);
+         person.appendChild(name);
+         Element note = doc.createElement("note");
+         note.setAttribute("id", "N1");
+         note.setAttribute("zz", value);
+         note.appendChild(doc.createTextNode(value));
+         note.appendChild(doc.createElement("br"));
+         note.appendChild(doc.createTextNode(" more "));
+         person.appendChild(note);
+         Element text = doc.createElement("text");
+         text.appendChild(doc.createTextNode(value));
+         person.appendChild(text);
+         person.appendChild(doc.createCDATASection(value));
+         assertEquals(writeContent(person), serializeContent(person));
+      }
+   }
+
+   public void testAttributeOrder() throws Exception
+   {
+      Element husband = doc.createElement("husband");
+      husband.setAttribute("given", "John");
+      husband.setAttribute("id", "I1");
+      husband.setAttribute("birthdate", "1800");
+      husband.setAttribute("title", "");
+      assertEquals("<husband id=\"I1\" given=\"John\" birthdate=\"1800\"/>\n", serializeContent(husband));
+      assertEquals(writeContent(husband), serializeContent(husband));
+
+      // an attribute that isn't in the order fails as it does in GedcomElementWriter, unless it's empty and first
+      Element event = doc.createElement("event_fact");
+      event.setAttribute("aaa", "");
+      event.setAttribute("type", "Birth");
+      assertEquals(writeContent(event), serializeContent(event));
+      event.setAttribute("zzz", "");
+      try
+      {
+         serializeContent(event);
+         fail();
+      } catch (ElementWriter.ElementWriterException e)
+      {
+         // expected
+      }
+   }
+}
@@ -0,0 +1,88 @@
+package org.werelate.gedcom;
+
+import junit.framework.TestCase;
+import org.xml.sax.InputSource;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tests the chunking and response parsing of place standardization requests.
+ * No place server is needed.
+ */
+public class TestPlaceStandardizer extends TestCase {
+   public void testChunkByNames() {
+      PlaceStandardizer ps = new PlaceStandardizer(2, 1000, 1);
+      List<List<String>> chunks = ps.chunk(Arrays.asList("a", "b", "c", "d", "e"));
+      assertEquals(3, chunks.size());
+      assertEquals(Arrays.asList("a", "b"), chunks.get(0));
+      assertEquals(Arrays.asList("e"), chunks.get(2));
+      ps.shutdown();
+   }
+
+   public void testChunkByChars() {
+      PlaceStandardizer ps = new PlaceStandardizer(100, 9, 1);
+      // "abcd|efgh" is 9 characters, adding "|ij" would exceed the limit
+      List<List<String>> chunks = ps.chunk(Arrays.asList("abcd", "efgh", "ij", "a very long place name"));
+      assertEquals(3, chunks.size());
+      assertEquals(Arrays.asList("abcd", "efgh"), chunks.get(0));
+      assertEquals(Arrays.asList("ij"), chunks.get(1));
+      assertEquals(Arrays.asList("a very long place name"), chunks.get(2));
+      ps.shutdown();
+   }
+
+   public void testChunksPreserveOrder() {
+      PlaceStandardizer ps = new PlaceStandardizer(7, 30, 1);
+      List<String> names = new ArrayList<String>();
+      for (int i = 0; i < 100; i++)
+      {
+         names.add("Place " + i);
+      }
+      List<String> joined = new ArrayList<String>();
+      for (List<String> chunk : ps.chunk(names))
+      {
+         joined.addAll(chunk);
+      }
+      assertEquals(names, joined);
+      ps.shutdown();
+   }
+
+   public void testParseResponse() throws IOException {
+      String response = "<response>\n" +
+            "<lst name=\"responseHeader\"><int name=\"status\">0</int></lst>\n" +
+            "<arr name=\"result\">\n" +
+            "<lst><str name=\"q\">Fort Collins, CO</str><str name=\"PlaceTitle\">Fort Collins, Larimer, Colorado, United States^Fort Collins, Colorado</str></lst>\n" +
+            "<lst><str name=\"q\">Nowhere &amp; Elsewhere</str><str name=\"PlaceTitle\"></str><str name=\"error\">not found</str></lst>\n" +
+            "</arr>\n" +
+            "</response>";
+      List<PlaceStandardizer.Result> results = PlaceStandardizer.parseResponse(new InputSource(new StringReader(response)));
+      assertEquals(2, results.size());
+      assertEquals("Fort Collins, CO", results.get(0).getQ());
+      assertEquals("Fort Collins, Larimer, Colorado, United States^Fort Collins, Colorado", results.get(0).getPlaceTitle());
+      assertEquals("", results.get(0).getError());
+      assertEquals("Nowhere & Elsewhere", results.get(1).getQ());
+      assertEquals("not found", results.get(1).getError());
+   }
+
+   public void testParseInvalidResponse() throws IOException {
+      try
+      {
+         PlaceStandardizer.parseResponse(new InputSource(new StringReader("<html><body>Error</body></html>")));
+         fail("Expected an invalid response to be rejected");
+      } catch (RuntimeException e)
+      {
+         // expected
+      }
+      try
+      {
+         PlaceStandardizer.parseResponse(new InputSource(new StringReader("<response><arr><lst>")));
+         fail("Expected a truncated response to be rejected");
+      } catch (RuntimeException e)
+      {
+         // expected
+      }
+   }
+}
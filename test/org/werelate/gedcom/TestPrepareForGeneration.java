@@ -0,0 +1,110 @@
+package org.werelate.gedcom;
+
+import junit.framework.TestCase;
+
+import java.io.*;
+
+/**
+ * Tests that preparing the page contents with several threads gives what preparing them in one thread gives
+ */
+public class TestPrepareForGeneration extends TestCase {
+   private static final int PEOPLE = 1200;
+   private static final int SOURCES = 20;
+
+   private File dir;
+
+   protected void setUp() throws Exception
+   {
+      dir = File.createTempFile("prepare", "");
+      dir.delete();
+      dir.mkdir();
+   }
+
+   protected void tearDown()
+   {
+      for (File file : dir.listFiles())
+      {
+         file.delete();
+      }
+      dir.delete();
+   }
+
+   private static String read(File file) throws IOException
+   {
+      Reader in = new InputStreamReader(new FileInputStream(file), "UTF-8");
+      StringBuilder buf = new StringBuilder();
+      char[] chars = new char[4096];
+      for (int n; (n = in.read(chars)) > 0; )
+      {
+         buf.append(chars, 0, n);
+      }
+      in.close();
+      return buf.toString();
+   }
+
+   // Every 5th person is living, every 4th source is excluded
+   private File writeGedcom() throws IOException
+   {
+      File file = new File(dir, "in.xml");
+      Writer out = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+      out.write("<gedcom>\n");
+      for (int i = 0; i < SOURCES; i++)
+      {
+         out.write("<page namespace=\"112\" id=\"S" + i + "\" tree_id=\"1\"" + (i % 4 == 0 ? " exclude=\"true\"" : "") + ">\n" +
+                   "<content><![CDATA[<mysource>\n<title>Source " + i + "</title>\n</mysource>\n]]></content>\n</page>\n");
+      }
+      for (int i = 0; i < PEOPLE; i++)
+      {
+         String s1 = "S" + (i % SOURCES);
+         String s2 = "S" + ((i + 1) % SOURCES);
+         out.write("<page namespace=\"108\" id=\"I" + i + "\" tree_id=\"1\"" + (i % 5 == 0 ? " living=\"true\"" : "") + ">\n" +
+                   "<content><![CDATA[<person>\n" +
+                   "<name given=\"Given" + i + "\" surname=\"Surname" + (i % 7) + "\" sources=\"S1, S2\"/>\n" +
+                   "<alt_name given=\"Alt" + i + "\" sources=\"S2\"/>\n" +
+                   "<child_of_family id=\"F" + (i / 2) + "\" title=\"Family " + (i / 2) + "\"/>\n" +
+                   "<event_fact type=\"Birth\" date=\"" + (1800 + i % 100) + "\" sources=\"S1, S2\"/>\n" +
+                   "<source_citation id=\"S1\" source_id=\"" + s1 + "\" title=\"MySource:Source\"/>\n" +
+                   "<source_citation id=\"S2\" source_id=\"" + s2 + "\" title=\"MySource:Source\"/>\n" +
+                   "<note id=\"N1\" sources=\"S2\">Note " + i + "</note>\n" +
+                   "</person>\n" +
+                   "== Notes ==\n]]></content>\n</page>\n");
+      }
+      for (int i = 0; i < PEOPLE / 2; i++)
+      {
+         out.write("<page namespace=\"110\" id=\"F" + i + "\" tree_id=\"1\">\n" +
+                   "<content><![CDATA[<family>\n" +
+                   "<husband id=\"I" + (2 * i) + "\" given=\"Given" + (2 * i) + "\" title=\"Person " + (2 * i) + "\"/>\n" +
+                   "<wife id=\"I" + (2 * i + 1) + "\" given=\"Given" + (2 * i + 1) + "\" title=\"Person " + (2 * i + 1) + "\"/>\n" +
+                   "<event_fact type=\"Marriage\" sources=\"S1\"/>\n" +
+                   "<source_citation id=\"S1\" source_id=\"S" + (i % SOURCES) + "\"/>\n" +
+                   "</family>\n]]></content>\n</page>\n");
+      }
+      out.write("</gedcom>\n");
+      out.close();
+      return file;
+   }
+
+   private String prepare(File in, int prepareThreads, int contentCacheSize) throws Exception
+   {
+      GedcomXML gedXML = new GedcomXML();
+      gedXML.setContentCacheSize(contentCacheSize);
+      gedXML.setPrepareThreads(prepareThreads);
+      gedXML.parse(in.getPath());
+      gedXML.prepareForGeneration();
+      File out = new File(dir, "out-" + prepareThreads + "-" + contentCacheSize + ".xml");
+      gedXML.save(out);
+      return read(out);
+   }
+
+   public void testParallelMatchesSequential() throws Exception
+   {
+      File in = writeGedcom();
+      String sequential = prepare(in, 1, 0);
+      assertTrue(sequential.contains("&lt;name given=\"Living\" surname=\"Surname0\"/&gt;"));
+      assertFalse(sequential.contains("source_id="));
+      for (int contentCacheSize : new int[] {0, 100})
+      {
+         assertEquals(sequential, prepare(in, 4, contentCacheSize));
+      }
+   }
+}
@@ -0,0 +1,217 @@
+package org.werelate.gedcom;
+
+import junit.framework.TestCase;
+import org.werelate.util.CircuitBreaker;
+import org.werelate.util.Retrier;
+
+import java.io.IOException;
+import java.util.Properties;
+
+/**
+ * Tests the backoff, fatal error handling and circuit breaker
+ * used for calls to the wiki, match server, place server and database.
+ */
+public class TestRetrier extends TestCase {
+   // Fails the given number of times, then returns "ok"
+   private static class FailingAttempt extends Retrier.Attempt<String> {
+      int failures;
+      int calls = 0, retries = 0;
+
+      FailingAttempt(int failures)
+      {
+         this.failures = failures;
+      }
+
+      public String call() throws Exception {
+         calls++;
+         if (calls <= failures)
+         {
+            throw new IOException("failure " + calls);
+         }
+         return "ok";
+      }
+
+      public void beforeRetry(Exception e) {
+         retries++;
+      }
+   }
+
+   public void testRetriesUntilSuccess() throws Exception {
+      Retrier r = new Retrier("test", 5, 1, 4, new CircuitBreaker(10, 1000));
+      FailingAttempt attempt = new FailingAttempt(2);
+      assertEquals("ok", r.execute(attempt));
+      assertEquals(3, attempt.calls);
+      assertEquals(2, attempt.retries);
+      assertEquals(1, r.getNumCalls());
+      assertEquals(3, r.getNumAttempts());
+      assertEquals(2, r.getNumRetries());
+      assertEquals(0, r.getNumFailedCalls());
+   }
+
+   public void testGivesUpAfterMaxAttempts() throws Exception {
+      Retrier r = new Retrier("test", 3, 1, 4, new CircuitBreaker(10, 1000));
+      FailingAttempt attempt = new FailingAttempt(5);
+      try
+      {
+         r.execute(attempt);
+         fail("expected IOException");
+      } catch (IOException e)
+      {
+         assertEquals("failure 3", e.getMessage());
+      }
+      assertEquals(3, attempt.calls);
+      assertEquals(1, r.getNumFailedCalls());
+   }
+
+   public void testFatalIsNotRetried() throws Exception {
+      Retrier r = new Retrier("test", 5, 1, 4, new CircuitBreaker(10, 1000));
+      final int [] calls = {0};
+      try
+      {
+         r.execute(new Retrier.Attempt<String>() {
+            public String call() throws Exception {
+               calls[0]++;
+               throw new Retrier.FatalException("bad request");
+            }
+         });
+         fail("expected FatalException");
+      } catch (Retrier.FatalException e)
+      {
+         // expected
+      }
+      assertEquals(1, calls[0]);
+      assertEquals(1, r.getNumFatal());
+   }
+
+   public void testBackoffIsBounded() {
+      Retrier r = new Retrier("test", 10, 100, 1000, new CircuitBreaker(10, 1000));
+      for (int i = 1; i <= 10; i++)
+      {
+         long expected = Math.min(100L << (i - 1), 1000);
+         long wait = r.getWait(i);
+         assertTrue(wait >= expected / 2);
+         assertTrue(wait <= expected);
+      }
+   }
+
+   public void testBreakerOpensAndRejects() throws Exception {
+      CircuitBreaker breaker = new CircuitBreaker(2, 60000);
+      Retrier r = new Retrier("test", 2, 1, 1, breaker);
+      try
+      {
+         r.execute(new FailingAttempt(5));
+         fail("expected IOException");
+      } catch (IOException e)
+      {
+         // expected
+      }
+      assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+      FailingAttempt attempt = new FailingAttempt(0);
+      try
+      {
+         r.execute(attempt);
+         fail("expected CircuitOpenException");
+      } catch (Retrier.CircuitOpenException e)
+      {
+         // expected
+      }
+      assertEquals(0, attempt.calls);
+      assertEquals(1, r.getNumRejected());
+   }
+
+   public void testBreakerHalfOpenTrial() {
+      final long [] now = {0};
+      CircuitBreaker breaker = new CircuitBreaker(1, 100) {
+         protected long now() {
+            return now[0];
+         }
+      };
+      breaker.recordFailure();
+      assertFalse(breaker.allowRequest());
+      now[0] = 100;
+      assertTrue(breaker.allowRequest());
+      assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+      // only one trial at a time
+      assertFalse(breaker.allowRequest());
+      breaker.recordSuccess();
+      assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+      assertTrue(breaker.allowRequest());
+   }
+
+   public void testHalfOpenTrialThatThrows() throws Exception {
+      final long [] now = {0};
+      CircuitBreaker breaker = new CircuitBreaker(1, 100) {
+         protected long now() {
+            return now[0];
+         }
+      };
+      Retrier r = new Retrier("test", 3, 1, 1, breaker);
+      breaker.recordFailure();
+      now[0] = 100;
+      try
+      {
+         r.execute(new Retrier.Attempt<String>() {
+            public String call() {
+               throw new IllegalArgumentException("malformed response");
+            }
+         });
+         fail("expected IllegalArgumentException");
+      } catch (IllegalArgumentException e)
+      {
+         // expected
+      }
+      // the trial failed, so the breaker is open again, and lets another trial through later
+      assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+      assertFalse(breaker.allowRequest());
+      now[0] = 200;
+      assertEquals("ok", r.execute(new FailingAttempt(0)));
+      assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+   }
+
+   public void testWaitsForTrialWhileOpen() throws Exception {
+      CircuitBreaker breaker = new CircuitBreaker(1, 50);
+      Retrier r = new Retrier("test", 3, 100, 100, breaker);
+      breaker.recordFailure();
+      long start = System.currentTimeMillis();
+      FailingAttempt attempt = new FailingAttempt(0);
+      assertEquals("ok", r.execute(attempt));
+      assertTrue(System.currentTimeMillis() - start >= 40);
+      assertEquals(1, attempt.calls);
+      assertEquals(0, r.getNumRejected());
+      assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+   }
+
+   public void testWaitsForAnotherCallersTrial() throws Exception {
+      CircuitBreaker breaker = new CircuitBreaker(1, 1);
+      final Retrier r = new Retrier("test", 3, 1000, 1000, breaker);
+      breaker.recordFailure();
+      Thread.sleep(5);
+      // this caller makes the trial call
+      assertTrue(breaker.allowRequest());
+      final FailingAttempt attempt = new FailingAttempt(0);
+      final Object [] result = new Object[1];
+      Thread waiter = new Thread() {
+         public void run() {
+            try
+            {
+               result[0] = r.execute(attempt);
+            } catch (Exception e)
+            {
+               result[0] = e;
+            }
+         }
+      };
+      waiter.start();
+      Thread.sleep(50);
+      assertEquals(0, attempt.calls);
+      breaker.recordSuccess();
+      waiter.join();
+      assertEquals("ok", result[0]);
+   }
+
+   public void testDefaultsOutlastTheOldRetries() {
+      // the database calls used to be tried 5 times, a minute apart
+      Retrier r = Retrier.fromProperties("db", new Properties());
+      assertTrue(r.getMaxTotalWait() / 2 >= 4 * 60000);
+   }
+}
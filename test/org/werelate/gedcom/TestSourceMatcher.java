@@ -0,0 +1,30 @@
+package org.werelate.gedcom;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests reading the status of the wiki's responses to the source matching calls
+ */
+public class TestSourceMatcher extends TestCase {
+   public void testSuccess() {
+      assertEquals("0", SourceMatcher.getResponseStatus("<match status=\"0\"></match>"));
+      assertTrue(SourceMatcher.checkResponse("wfMatchSource", 1, "", "<match status=\"0\"></match>"));
+      assertTrue(SourceMatcher.checkResponse("wfAddGedcomSourceMatches", 1, "",
+                                             "<addGedcomSourceMatches status=\"0\"/>"));
+   }
+
+   public void testErrorStatus() {
+      String response = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<match status=\"-1\"></match>";
+      assertEquals("-1", SourceMatcher.getResponseStatus(response));
+      assertFalse(SourceMatcher.checkResponse("wfMatchSource", 1, "", response));
+      response = "<addGedcomSourceMatches status=\"-2\"/>";
+      assertEquals("-2", SourceMatcher.getResponseStatus(response));
+      assertFalse(SourceMatcher.checkResponse("wfAddGedcomSourceMatches", 1, "", response));
+   }
+
+   public void testErrorPage() {
+      String response = "<html><body><b>Fatal error</b>: Call to a member function on a non-object</body></html>";
+      assertNull(SourceMatcher.getResponseStatus(response));
+      assertFalse(SourceMatcher.checkResponse("wfMatchSource", 1, "", response));
+   }
+}